@@ -51,6 +51,8 @@ import hudson.os.PosixAPI;
 import hudson.org.apache.tools.tar.TarInputStream;
 import hudson.util.io.Archiver;
 import hudson.util.io.ArchiverFactory;
+import hudson.util.io.DeltaSync;
+import hudson.util.io.ParallelCopy;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.DirectoryScanner;
 import org.apache.tools.ant.Project;
@@ -95,6 +97,7 @@ import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipInputStream;
 
 import com.sun.jna.Native;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.tools.ant.taskdefs.Chmod;
 
@@ -1486,7 +1489,129 @@ public final class FilePath implements Serializable {
                     }
                 }
             });
-        } else
+        } else {
+            if(PARALLEL_COPY_STREAMS>1) {
+                try {
+                    return copyRecursiveToInParallel(fileMask,excludes,target,PARALLEL_COPY_STREAMS);
+                } catch (IOException e) {
+                    // for example, the other side is too old to know ParallelCopy. a tar stream always works
+                    LOGGER.log(Level.WARNING, "Failed to copy "+remote+'/'+fileMask+" to "+target+" in parallel. Falling back to a single stream", e);
+                }
+            }
+            if(this.channel==null) {
+                // local -> remote copy
+                final Pipe pipe = Pipe.createLocalToRemote();
+
+                Future<Void> future = target.actAsync(new FileCallable<Void>() {
+                    public Void invoke(File f, VirtualChannel channel) throws IOException {
+                        try {
+                            readFromTar(remote+'/'+fileMask, f,TarCompression.GZIP.extract(pipe.getIn()));
+                            return null;
+                        } finally {
+                            pipe.getIn().close();
+                        }
+                    }
+                });
+                int r = writeToTar(new File(remote),fileMask,excludes,TarCompression.GZIP.compress(pipe.getOut()));
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw new IOException2(e);
+                }
+                return r;
+            } else {
+                // remote -> local copy
+                final Pipe pipe = Pipe.createRemoteToLocal();
+
+                Future<Integer> future = actAsync(new FileCallable<Integer>() {
+                    public Integer invoke(File f, VirtualChannel channel) throws IOException {
+                        try {
+                            return writeToTar(f,fileMask,excludes,TarCompression.GZIP.compress(pipe.getOut()));
+                        } finally {
+                            pipe.getOut().close();
+                        }
+                    }
+                });
+                try {
+                    readFromTar(remote+'/'+fileMask,new File(target.remote),TarCompression.GZIP.extract(pipe.getIn()));
+                } catch (IOException e) {// BuildException or IOException
+                    try {
+                        future.get(3,TimeUnit.SECONDS);
+                        throw e;    // the remote side completed successfully, so the error must be local
+                    } catch (ExecutionException x) {
+                        // report both errors
+                        throw new IOException2(Functions.printThrowable(e),x);
+                    } catch (TimeoutException _) {
+                        // remote is hanging
+                        throw e;
+                    }
+                }
+                try {
+                    return future.get();
+                } catch (ExecutionException e) {
+                    throw new IOException2(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the files that match the given file mask to the specified target node,
+     * sending only what the target doesn't already have.
+     *
+     * <p>
+     * Unlike {@link #copyRecursiveTo(String, String, FilePath)}, this compares the files with
+     * those in the basis directory first. Files with the same contents aren't sent at all,
+     * and for other large files only the blocks that changed are sent. See {@link DeltaSync} for details.
+     * This pays off when most of the files are the same as the last time, such as build artifacts.
+     *
+     * <p>
+     * Unchanged files may be hard-linked from the basis, even if this is on the same node as the target,
+     * so the copies must be replaced rather than modified in place.
+     *
+     * @param basis
+     *      Directory on the same node as the target with similar contents, such as the same
+     *      files from the previous build. If null, the target directory itself is used.
+     * @return
+     *      the number of files copied.
+     * @since 1.398
+     */
+    public int syncRecursiveTo(final String fileMask, final String excludes, FilePath basis, final FilePath target) throws IOException, InterruptedException {
+        if(basis==null)
+            basis = target;
+        if(basis.channel!=target.channel)
+            throw new IllegalArgumentException(basis+" is not on the same node as "+target);
+        if(this.channel==target.channel) {
+            if(basis.remote.equals(target.remote))
+                return copyRecursiveTo(fileMask,excludes,target);   // nothing to save
+
+            // nothing to save in the transfer, but unchanged files can share the storage with the basis
+            final String basisDir = basis.remote, targetDir = target.remote;
+            return act(new FileCallable<Integer>() {
+                public Integer invoke(File f, VirtualChannel channel) throws IOException {
+                    if(!f.exists())     return 0;
+                    List<DeltaSync.FileInfo> files = DeltaSync.list(f,new DirScanner.Glob(fileMask,excludes));
+                    DeltaSync.copy(f,files,new File(basisDir),new File(targetDir));
+                    return files.size();
+                }
+            });
+        }
+
+        final List<DeltaSync.FileInfo> files = act(new FileCallable<List<DeltaSync.FileInfo>>() {
+            public List<DeltaSync.FileInfo> invoke(File f, VirtualChannel channel) throws IOException {
+                if(!f.exists())     return new ArrayList<DeltaSync.FileInfo>();
+                return DeltaSync.list(f,new DirScanner.Glob(fileMask,excludes));
+            }
+        });
+        if(files.isEmpty())     return 0;
+
+        final List<DeltaSync.Signature> signatures = basis.act(new FileCallable<List<DeltaSync.Signature>>() {
+            public List<DeltaSync.Signature> invoke(File f, VirtualChannel channel) throws IOException {
+                return DeltaSync.signatures(f,files);
+            }
+        });
+
+        final String basisDir = basis.remote;
         if(this.channel==null) {
             // local -> remote copy
             final Pipe pipe = Pipe.createLocalToRemote();
@@ -1494,36 +1619,92 @@ public final class FilePath implements Serializable {
             Future<Void> future = target.actAsync(new FileCallable<Void>() {
                 public Void invoke(File f, VirtualChannel channel) throws IOException {
                     try {
-                        readFromTar(remote+'/'+fileMask, f,TarCompression.GZIP.extract(pipe.getIn()));
+                        DeltaSync.receive(new File(basisDir),f,TarCompression.GZIP.extract(pipe.getIn()));
                         return null;
                     } finally {
                         pipe.getIn().close();
                     }
                 }
             });
-            int r = writeToTar(new File(remote),fileMask,excludes,TarCompression.GZIP.compress(pipe.getOut()));
+            long sent = DeltaSync.send(new File(remote),files,signatures,TarCompression.GZIP.compress(pipe.getOut()));
             try {
                 future.get();
             } catch (ExecutionException e) {
                 throw new IOException2(e);
             }
-            return r;
+            LOGGER.fine("Sent "+sent+" bytes for "+files.size()+" files in "+remote+'/'+fileMask);
         } else {
             // remote -> local copy
             final Pipe pipe = Pipe.createRemoteToLocal();
 
+            Future<Long> future = actAsync(new FileCallable<Long>() {
+                public Long invoke(File f, VirtualChannel channel) throws IOException {
+                    return DeltaSync.send(f,files,signatures,TarCompression.GZIP.compress(pipe.getOut()));
+                }
+            });
+            try {
+                DeltaSync.receive(new File(basisDir),new File(target.remote),TarCompression.GZIP.extract(pipe.getIn()));
+            } catch (IOException e) {
+                try {
+                    future.get(3,TimeUnit.SECONDS);
+                    throw e;    // the remote side completed successfully, so the error must be local
+                } catch (ExecutionException x) {
+                    // report both errors
+                    throw new IOException2(Functions.printThrowable(e),x);
+                } catch (TimeoutException _) {
+                    // remote is hanging
+                    throw e;
+                }
+            }
+            try {
+                LOGGER.fine("Sent "+future.get()+" bytes for "+files.size()+" files in "+remote+'/'+fileMask);
+            } catch (ExecutionException e) {
+                throw new IOException2(e);
+            }
+        }
+        return files.size();
+    }
+
+    /**
+     * Copies files between two nodes over multiple pipes.
+     *
+     * @see ParallelCopy
+     */
+    private int copyRecursiveToInParallel(final String fileMask, final String excludes, final FilePath target, int streams) throws IOException, InterruptedException {
+        final Pipe[] pipes = new Pipe[streams];
+        final String name = remote+'/'+fileMask;
+
+        if(this.channel==null) {
+            // local -> remote copy
+            for (int i=0; i<streams; i++)
+                pipes[i] = Pipe.createLocalToRemote();
+
+            Future<Void> future = target.actAsync(new FileCallable<Void>() {
+                public Void invoke(File f, VirtualChannel channel) throws IOException {
+                    ParallelCopy.receive(name,f,getIns(pipes),TarCompression.GZIP);
+                    return null;
+                }
+            });
+            int r = ParallelCopy.send(new File(remote),new DirScanner.Glob(fileMask,excludes),getOuts(pipes),TarCompression.GZIP);
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new IOException2(e);
+            }
+            return r;
+        } else {
+            // remote -> local copy
+            for (int i=0; i<streams; i++)
+                pipes[i] = Pipe.createRemoteToLocal();
+
             Future<Integer> future = actAsync(new FileCallable<Integer>() {
                 public Integer invoke(File f, VirtualChannel channel) throws IOException {
-                    try {
-                        return writeToTar(f,fileMask,excludes,TarCompression.GZIP.compress(pipe.getOut()));
-                    } finally {
-                        pipe.getOut().close();
-                    }
+                    return ParallelCopy.send(f,new DirScanner.Glob(fileMask,excludes),getOuts(pipes),TarCompression.GZIP);
                 }
             });
             try {
-                readFromTar(remote+'/'+fileMask,new File(target.remote),TarCompression.GZIP.extract(pipe.getIn()));
-            } catch (IOException e) {// BuildException or IOException
+                ParallelCopy.receive(name,new File(target.remote),getIns(pipes),TarCompression.GZIP);
+            } catch (IOException e) {
                 try {
                     future.get(3,TimeUnit.SECONDS);
                     throw e;    // the remote side completed successfully, so the error must be local
@@ -1543,6 +1724,19 @@ public final class FilePath implements Serializable {
         }
     }
 
+    private static OutputStream[] getOuts(Pipe[] pipes) {
+        OutputStream[] outs = new OutputStream[pipes.length];
+        for (int i=0; i<pipes.length; i++)
+            outs[i] = pipes[i].getOut();
+        return outs;
+    }
+
+    private static InputStream[] getIns(Pipe[] pipes) {
+        InputStream[] ins = new InputStream[pipes.length];
+        for (int i=0; i<pipes.length; i++)
+            ins[i] = pipes[i].getIn();
+        return ins;
+    }
 
     /**
      * Writes files in 'this' directory to a tar stream.
@@ -1907,6 +2101,15 @@ public final class FilePath implements Serializable {
 
     public static int SIDE_BUFFER_SIZE = 1024;
 
+    /**
+     * Number of pipes {@link #copyRecursiveTo(String, String, FilePath)} uses to copy files between nodes.
+     * 1, the default, sends a single tar stream as it always did. Set it higher to use {@link ParallelCopy},
+     * which falls back to the tar stream if it fails.
+     *
+     * @since 1.398
+     */
+    public static int PARALLEL_COPY_STREAMS = Integer.getInteger(FilePath.class.getName()+".parallelCopyStreams",1);
+
     private static final Logger LOGGER = Logger.getLogger(FilePath.class.getName());
 
     /**
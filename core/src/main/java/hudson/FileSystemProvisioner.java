@@ -34,11 +34,8 @@ import hudson.model.Hudson;
 import hudson.model.listeners.RunListener;
 import hudson.scm.SCM;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 
 /**
  * Prepares and provisions workspaces for {@link AbstractProject}s.
@@ -208,26 +205,43 @@ public abstract class FileSystemProvisioner implements ExtensionPoint, Describab
         }
         
         /**
-         * Creates a tar ball.
+         * Copies the workspace into the build directory.
+         *
+         * <p>
+         * Files that are the same as in the snapshot of the previous build are hard-linked from there
+         * where the platform allows, so they take no additional disk space, and only the changes are sent.
+         * Files in a snapshot are never modified in place, so the builds can safely share them.
          */
         public WorkspaceSnapshot snapshot(AbstractBuild<?, ?> build, FilePath ws, String glob, TaskListener listener) throws IOException, InterruptedException {
-            File wss = new File(build.getRootDir(),"workspace.zip");
-            OutputStream os = new BufferedOutputStream(new FileOutputStream(wss));
-            try {
-                ws.zip(os,glob);
-            } finally {
-                os.close();
+            FilePath basis = null;
+            AbstractBuild<?,?> prev = build.getPreviousBuild();
+            if (prev!=null && prev.getAction(WorkspaceSnapshotImpl.class)!=null) {
+                File d = new File(prev.getRootDir(),SNAPSHOT_DIR);
+                if (d.isDirectory())
+                    basis = new FilePath(d);
             }
+            ws.syncRecursiveTo(glob,null,basis,new FilePath(new File(build.getRootDir(),SNAPSHOT_DIR)));
             return new WorkspaceSnapshotImpl();
         }
 
         public static final class WorkspaceSnapshotImpl extends WorkspaceSnapshot {
             public void restoreTo(AbstractBuild<?,?> owner, FilePath dst, TaskListener listener) throws IOException, InterruptedException {
                 File wss = new File(owner.getRootDir(),"workspace.zip");
-                new FilePath(wss).unzip(dst);
+                if (wss.exists()) {
+                    // taken by an earlier version
+                    new FilePath(wss).unzip(dst);
+                    return;
+                }
+                // only the files that differ from what's already in the workspace are sent
+                new FilePath(new File(owner.getRootDir(),SNAPSHOT_DIR)).syncRecursiveTo("**/*",null,dst,dst);
             }
         }
 
+        /**
+         * Name of the directory in the build directory that keeps the snapshot.
+         */
+        private static final String SNAPSHOT_DIR = "workspace-snapshot";
+
         @Extension
         public static final class DescriptorImpl extends FileSystemProvisionerDescriptor {
             public boolean discard(FilePath ws, TaskListener listener) throws IOException, InterruptedException {
@@ -28,6 +28,7 @@ import hudson.model.Computer;
 import hudson.slaves.OfflineCause;
 import hudson.slaves.SlaveComputer;
 import hudson.remoting.Channel;
+import hudson.remoting.NioChannelHub;
 import hudson.remoting.SocketOutputStream;
 import hudson.remoting.SocketInputStream;
 import hudson.remoting.Engine;
@@ -47,6 +48,8 @@ import java.io.BufferedOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
 import java.security.SecureRandom;
 import java.util.Map.Entry;
 import java.util.Properties;
@@ -81,11 +84,21 @@ import java.util.logging.Logger;
  * is generated once and used forever, which makes this whole scheme
  * less secure.
  *
+ * <h2>Non-blocking I/O</h2>
+ * <p>
+ * With {@code -Dhudson.TcpSlaveAgentListener.nio=true}, established channels are served by
+ * a {@link NioChannelHub}, so that the master doesn't need a reader thread for every connected
+ * slave. Only the initial handshake is done with a thread per connection.
+ *
  * @author Kohsuke Kawaguchi
  */
 public final class TcpSlaveAgentListener extends Thread {
 
     private final ServerSocket serverSocket;
+    /**
+     * Non-null if the channels use non-blocking I/O.
+     */
+    private final NioChannelHub hub;
     private volatile boolean shuttingDown;
 
     public final int configuredPort;
@@ -97,11 +110,18 @@ public final class TcpSlaveAgentListener extends Thread {
     public TcpSlaveAgentListener(int port) throws IOException {
         super("TCP slave agent listener port="+port);
         try {
-            serverSocket = new ServerSocket(port);
+            if(USE_NIO) {
+                // sockets accepted from a channel can be switched to non-blocking mode
+                serverSocket = ServerSocketChannel.open().socket();
+                serverSocket.bind(new InetSocketAddress(port));
+            } else {
+                serverSocket = new ServerSocket(port);
+            }
         } catch (BindException e) {
             throw (BindException)new BindException("Failed to listen on port "+port+" because it's already in use.").initCause(e);
         }
         this.configuredPort = port;
+        this.hub = USE_NIO ? new NioChannelHub() : null;
 
         LOGGER.info("JNLP slave agent listener started on TCP port "+getPort());
 
@@ -150,6 +170,8 @@ public final class TcpSlaveAgentListener extends Thread {
         } catch (IOException e) {
             LOGGER.log(Level.WARNING, "Failed to close down TCP port",e);
         }
+        if(hub!=null)
+            hub.close();
     }
 
     private final class ConnectionHandler extends Thread {
@@ -213,7 +235,12 @@ public final class TcpSlaveAgentListener extends Thread {
          */
         private void runCliConnect(DataInputStream in, PrintWriter out) throws IOException, InterruptedException {
             out.println("Welcome");
-            Channel channel = new Channel("CLI channel from " + s.getInetAddress(),
+            String name = "CLI channel from " + s.getInetAddress();
+            Channel channel;
+            if(hub!=null)
+                channel = hub.newChannel(name, Computer.threadPoolForRemoting, this.s.getChannel(), null, true);
+            else
+                channel = new Channel(name,
                     Computer.threadPoolForRemoting, Mode.BINARY,
                     new BufferedInputStream(new SocketInputStream(this.s)),
                     new BufferedOutputStream(new SocketOutputStream(this.s)), null, true);
@@ -317,25 +344,29 @@ public final class TcpSlaveAgentListener extends Thread {
             PrintWriter logw = new PrintWriter(log,true);
             logw.println("JNLP agent connected from "+ this.s.getInetAddress());
 
+            Listener listener = new Listener() {
+                @Override
+                public void onClosed(Channel channel, IOException cause) {
+                    try {
+                        log.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    if(cause!=null)
+                        LOGGER.log(Level.WARNING, "Connection #"+id+" for + " + nodeName + " terminated",cause);
+                    try {
+                        ConnectionHandler.this.s.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            };
+
             try {
-                computer.setChannel(new BufferedInputStream(this.s.getInputStream()), new BufferedOutputStream(this.s.getOutputStream()), log,
-                    new Listener() {
-                        @Override
-                        public void onClosed(Channel channel, IOException cause) {
-                            try {
-                                log.close();
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                            if(cause!=null)
-                                LOGGER.log(Level.WARNING, "Connection #"+id+" for + " + nodeName + " terminated",cause);
-                            try {
-                                ConnectionHandler.this.s.close();
-                            } catch (IOException e) {
-                                // ignore
-                            }
-                        }
-                    });
+                if(hub!=null)
+                    computer.setChannel(hub.newChannel(nodeName, Computer.threadPoolForRemoting, this.s.getChannel(), log, false), log, listener);
+                else
+                    computer.setChannel(new BufferedInputStream(this.s.getInputStream()), new BufferedOutputStream(this.s.getOutputStream()), log, listener);
                 return computer.getChannel();
             } catch (AbortException e) {
                 logw.println(e.getMessage());
@@ -366,6 +397,11 @@ public final class TcpSlaveAgentListener extends Thread {
 
     private static int iotaGen=1;
 
+    /**
+     * Serve the channels with {@link NioChannelHub} instead of a thread per connection.
+     */
+    public static boolean USE_NIO = Boolean.getBoolean(TcpSlaveAgentListener.class.getName()+".nio");
+
     private static final Logger LOGGER = Logger.getLogger(TcpSlaveAgentListener.class.getName());
 
     private static final String COOKIE_NAME = TcpSlaveAgentListener.class.getName()+".cookie";
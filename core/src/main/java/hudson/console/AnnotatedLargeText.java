@@ -26,10 +26,14 @@ package hudson.console;
 import com.trilead.ssh2.crypto.Base64;
 import hudson.model.Hudson;
 import hudson.remoting.ObjectInputStreamEx;
+import hudson.util.FlushProofOutputStream;
 import hudson.util.IOException2;
 import hudson.util.Secret;
 import hudson.util.TimeUnit2;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
 import org.kohsuke.stapler.Stapler;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
@@ -39,9 +43,12 @@ import org.kohsuke.stapler.framework.io.LargeText;
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
 import javax.crypto.CipherOutputStream;
+import javax.servlet.http.HttpServletResponse;
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
@@ -77,14 +84,21 @@ public class AnnotatedLargeText<T> extends LargeText {
      */
     private T context;
 
+    /**
+     * Null if the text is in memory.
+     */
+    private final MappedLogFile file;
+
     public AnnotatedLargeText(File file, Charset charset, boolean completed, T context) {
         super(file, charset, completed);
         this.context = context;
+        this.file = new MappedLogFile(file);
     }
 
     public AnnotatedLargeText(ByteBuffer memory, Charset charset, boolean completed, T context) {
         super(memory, charset, completed);
         this.context = context;
+        this.file = null;
     }
 
     public void doProgressiveHtml(StaplerRequest req, StaplerResponse rsp) throws IOException {
@@ -146,13 +160,307 @@ public class AnnotatedLargeText<T> extends LargeText {
 
     @Override
     public long writeLogTo(long start, OutputStream out) throws IOException {
-        return super.writeLogTo(start, new PlainTextConsoleOutputStream(out));
+        if (file==null)
+            return super.writeLogTo(start, new PlainTextConsoleOutputStream(out));
+        LineIndex gz = getCompressedIndex();
+        if (gz!=null) {
+            PlainTextConsoleOutputStream filter = new PlainTextConsoleOutputStream(out);
+            long r = copyCompressed(gz,start,filter);
+            filter.forceEol();
+            return r;
+        }
+
+        return file.writePlainTextTo(start,file.length(),out,!isComplete());
+    }
+
+    /**
+     * Writes the raw bytes, including console notes, starting at the given offset.
+     * Like {@link #writeLogTo(long, OutputStream)}, if the text is still being written,
+     * this stops at the end of the last complete line.
+     *
+     * @return
+     *      the offset to start the next write operation from.
+     */
+    private long writeRawTo(long start, OutputStream out) throws IOException {
+        if (file==null)
+            return super.writeLogTo(start, out);
+        LineIndex gz = getCompressedIndex();
+        if (gz!=null)
+            return copyCompressed(gz,start,out);
+
+        return file.writeTo(start,file.length(),out,!isComplete());
+    }
+
+    /**
+     * Gets the index of the log if it has been compressed by {@link LineIndex#compress(File)},
+     * in which case the plain log is gone and everything has to be read through the index.
+     *
+     * @return
+     *      null if the log is not compressed.
+     */
+    private LineIndex getCompressedIndex() throws IOException {
+        if (file.getFile().exists() || !LineIndex.getCompressedFile(file.getFile()).exists())
+            return null;
+        LineIndex index = LineIndex.load(file.getFile());
+        return index!=null && index.isCompressed() ? index : null;
+    }
+
+    /**
+     * Copies the text of a compressed log from the given offset till the end.
+     * A compressed log is always complete, so there's no partial line to hold back.
+     *
+     * @return
+     *      the offset of the end of the text.
+     */
+    private static long copyCompressed(LineIndex index, long start, OutputStream out) throws IOException {
+        InputStream in = index.openAtLine(0);
+        try {
+            skipFully(in,start);
+            return start+IOUtils.copyLarge(in,out);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Skips exactly the given number of bytes of a decompressed stream.
+     *
+     * @throws EOFException
+     *      if the stream ends first.
+     */
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n>0) {
+            long s = in.skip(n);
+            if (s<=0) {
+                // skip() may return 0 before the end, so only a read can tell
+                if (in.read()<0)
+                    throw new EOFException("Unexpected end of the log with "+n+" bytes left to skip");
+                s = 1;
+            }
+            n -= s;
+        }
+    }
+
+    /**
+     * Serves the plain text, honoring a single byte range in the HTTP {@code Range} header.
+     *
+     * <p>
+     * Byte positions in the range refer to the text as it's sent, that is without the
+     * console notes, so that a client can resume a download or fetch the tail of what it
+     * already has. This works the same way for a compressed log. Since notes
+     * make the stored log longer than the text, finding a range takes a pass over the log
+     * to learn the length of the text, but only the range itself is sent.
+     *
+     * @since 1.398
+     */
+    public void doPlainText(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        rsp.setContentType("text/plain;charset=UTF-8");
+        rsp.setHeader("Accept-Ranges","bytes");
+        String range = req.getHeader("Range");
+        long len = -1;
+        long[] r = null;
+        if (range!=null) {
+            CountingOutputStream counter = new CountingOutputStream(new NullOutputStream());
+            writeLogTo(0,counter);
+            len = counter.getByteCount();
+            r = parseRange(range,len);
+        }
+        if (r==null) {
+            // Prevent jelly from flushing stream so Content-Length header can be added afterwards
+            FlushProofOutputStream out = new FlushProofOutputStream(rsp.getCompressedOutputStream(req));
+            writeLogTo(0,out);
+            out.close();
+            return;
+        }
+
+        if (r[0]>=len) {
+            rsp.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            rsp.setHeader("Content-Range","bytes */"+len);
+            return;
+        }
+        long end = Math.min(r[1]+1,len);
+        rsp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        // the size isn't final until the log is complete
+        rsp.setHeader("Content-Range","bytes "+r[0]+'-'+(end-1)+'/'+(isComplete() ? String.valueOf(len) : "*"));
+        OutputStream out = rsp.getOutputStream();
+        // if the log has grown since it was measured, the range still ends where it was promised to
+        writeLogTo(0,new RangeOutputStream(out,r[0],end));
+        out.close();
+    }
+
+    /**
+     * Passes on the bytes in {@code [from,to)} of what's written to it, and drops the rest.
+     */
+    /*package*/ static final class RangeOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final long from, to;
+        private long pos;
+
+        RangeOutputStream(OutputStream out, long from, long to) {
+            this.out = out;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (from<=pos && pos<to)
+                out.write(b);
+            pos++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long s = Math.max(pos,from);
+            long e = Math.min(pos+len,to);
+            if (s<e)
+                out.write(b,off+(int)(s-pos),(int)(e-s));
+            pos += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+
+    /**
+     * Gets the {@link LineIndex} of the log.
+     *
+     * @return
+     *      null if the text is not backed by a file, or the file can't be indexed.
+     * @since 1.398
+     */
+    public LineIndex getLineIndex() {
+        if (file==null)
+            return null;
+        return LineIndex.get(file.getFile(),isComplete());
+    }
+
+    /**
+     * Serves the given range of lines as plain text.
+     *
+     * <p>
+     * The {@code from} parameter is the first line (0-origin) and {@code to} is the line
+     * right after the last (defaults to the end of the text). Alternatively, {@code tail=N}
+     * asks for the last N lines. The first line sent is reported in the {@code X-First-Line}
+     * header. If the text is still being written, a partial last line is not sent.
+     *
+     * @since 1.398
+     */
+    public void doLines(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        LineIndex index = getLineIndex();
+        if (index==null) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND, "This log can't be accessed by lines");
+            return;
+        }
+
+        long from, to;
+        try {
+            String tail = req.getParameter("tail");
+            if (tail!=null) {
+                to = index.getLineCount();
+                from = Math.max(0,to-Long.parseLong(tail));
+            } else {
+                String f = req.getParameter("from");
+                String t = req.getParameter("to");
+                from = f!=null ? Long.parseLong(f) : 0;
+                to = t!=null ? Long.parseLong(t) : Long.MAX_VALUE;
+            }
+        } catch (NumberFormatException e) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        if (from<0 || to<from) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid line range: "+from+"-"+to);
+            return;
+        }
+
+        if (index.isCompressed()) {
+            // the plain log is gone, so the lines are decompressed from the member they start in
+            rsp.setContentType("text/plain;charset=UTF-8");
+            rsp.setHeader("X-First-Line",String.valueOf(from));
+            OutputStream out = rsp.getOutputStream();
+            InputStream in = index.openAtLine(from);
+            try {
+                copyLines(in,to-from,out);
+            } finally {
+                in.close();
+            }
+            out.close();
+            return;
+        }
+
+        long start = index.getOffsetOfLine(from);
+        long end = to==Long.MAX_VALUE ? file.length() : index.getOffsetOfLine(to);
+
+        rsp.setContentType("text/plain;charset=UTF-8");
+        rsp.setHeader("X-First-Line",String.valueOf(from));
+        OutputStream out = rsp.getOutputStream();
+        file.writePlainTextTo(start,Math.max(start,end),out,!isComplete());
+        out.close();
+    }
+
+    /**
+     * Copies the given number of lines without the console notes.
+     */
+    private static void copyLines(InputStream in, long lines, OutputStream out) throws IOException {
+        PlainTextConsoleOutputStream filter = new PlainTextConsoleOutputStream(out);
+        byte[] buf = new byte[8192];
+        int len;
+        while (lines>0 && (len=in.read(buf))>=0) {
+            int end = 0;
+            while (end<len && lines>0) {
+                if (buf[end++]=='\n')
+                    lines--;
+            }
+            filter.write(buf,0,end);
+        }
+        filter.forceEol();
+    }
+
+    /**
+     * Parses a {@code Range} header that specifies a single range.
+     *
+     * @return
+     *      first and last byte position (inclusive), or null if the header isn't
+     *      something we honor, in which case the whole text should be sent.
+     */
+    /*package*/ static long[] parseRange(String header, long length) {
+        header = header.trim();
+        if (!header.startsWith("bytes="))
+            return null;
+        String spec = header.substring(6).trim();
+        if (spec.indexOf(',')>=0)
+            return null;    // multiple ranges. we don't do multipart/byteranges
+        int dash = spec.indexOf('-');
+        if (dash<0)
+            return null;
+        try {
+            String first = spec.substring(0,dash).trim();
+            String last = spec.substring(dash+1).trim();
+            if (first.length()==0) {
+                // suffix range, as in the last N bytes
+                if (last.length()==0)   return null;
+                long n = Long.parseLong(last);
+                if (n<=0)   return null;
+                return new long[]{Math.max(0,length-n),length-1};
+            }
+            long f = Long.parseLong(first);
+            long l = last.length()==0 ? Long.MAX_VALUE : Long.parseLong(last);
+            if (f<0 || l<f)
+                return null;
+            return new long[]{f,l};
+        } catch (NumberFormatException e) {
+            return null;
+        }
     }
 
     public long writeHtmlTo(long start, Writer w) throws IOException {
         ConsoleAnnotationOutputStream caw = new ConsoleAnnotationOutputStream(
-                w, createAnnotator(Stapler.getCurrentRequest()), context, charset);
-        long r = super.writeLogTo(start,caw);
+                w, createAnnotator(Stapler.getCurrentRequest()), context, charset,
+                file!=null ? ConsoleNoteDictionary.of(file.getFile()) : null);
+        long r = writeRawTo(start,caw);
 
         try {
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -35,7 +35,9 @@ import java.io.StringWriter;
 import java.io.Writer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -62,14 +64,40 @@ public class ConsoleAnnotationOutputStream<T> extends LineTransformationOutputSt
      */
     private final WriterOutputStream lineOut;
 
+    /**
+     * Dictionary of the log being annotated, if any.
+     */
+    private final ConsoleNoteDictionary dictionary;
+
+    /**
+     * Notes decoded so far, keyed by their dictionary id or their serialized form,
+     * since the same note tends to appear many times in a log.
+     */
+    private final Map<Object,ConsoleNote> notes = new LinkedHashMap<Object,ConsoleNote>(16,0.75f,true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object,ConsoleNote> eldest) {
+            return size()>NOTE_CACHE_SIZE;
+        }
+    };
+
     /**
      *
      */
     public ConsoleAnnotationOutputStream(Writer out, ConsoleAnnotator<? super T> ann, T context, Charset charset) {
+        this(out,ann,context,charset,null);
+    }
+
+    /**
+     * @param dictionary
+     *      Dictionary of the log, to resolve the notes that refer to it. Can be null.
+     * @since 1.398
+     */
+    public ConsoleAnnotationOutputStream(Writer out, ConsoleAnnotator<? super T> ann, T context, Charset charset, ConsoleNoteDictionary dictionary) {
         this.out = out;
         this.ann = ConsoleAnnotator.cast(ann);
         this.context = context;
         this.lineOut = new WriterOutputStream(line,charset);
+        this.dictionary = dictionary;
     }
 
     public ConsoleAnnotator getConsoleAnnotator() {
@@ -106,7 +134,7 @@ public class ConsoleAnnotationOutputStream<T> extends LineTransformationOutputSt
                 ByteArrayInputStream b = new ByteArrayInputStream(in, next, rest);
 
                 try {
-                    final ConsoleNote a = ConsoleNote.readFrom(new DataInputStream(b));
+                    final ConsoleNote a = readNote(new DataInputStream(b));
                     if (a!=null) {
                         if (annotators==null)
                             annotators = new ArrayList<ConsoleAnnotator<T>>();
@@ -146,6 +174,34 @@ public class ConsoleAnnotationOutputStream<T> extends LineTransformationOutputSt
         out.write(mt.toString(true)); // this perform escapes
     }
 
+    /**
+     * Reads an encoded note, reusing the note decoded earlier if it has been seen before.
+     */
+    private ConsoleNote readNote(DataInputStream in) throws IOException, ClassNotFoundException {
+        byte[] payload = ConsoleNote.readPayload(in);
+        if (payload==null)
+            return null;
+
+        Object key;
+        if (ConsoleNoteDictionary.isReference(payload)) {
+            int id = ConsoleNoteDictionary.getId(payload);
+            key = id;
+            ConsoleNote n = notes.get(key);
+            if (n!=null)    return n;
+            payload = dictionary!=null ? dictionary.get(id) : null;
+            if (payload==null)
+                return null;
+        } else {
+            key = new String(payload,"ISO-8859-1");  // just as a hash key
+            ConsoleNote n = notes.get(key);
+            if (n!=null)    return n;
+        }
+
+        ConsoleNote n = ConsoleNote.deserialize(payload);
+        notes.put(key,n);
+        return n;
+    }
+
     @Override
     public void flush() throws IOException {
         out.flush();
@@ -183,5 +239,10 @@ public class ConsoleAnnotationOutputStream<T> extends LineTransformationOutputSt
         }
     }
 
+    /**
+     * Number of decoded notes kept around.
+     */
+    private static final int NOTE_CACHE_SIZE = 256;
+
     private static final Logger LOGGER = Logger.getLogger(ConsoleAnnotationOutputStream.class.getName());
 }
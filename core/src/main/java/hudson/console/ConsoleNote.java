@@ -95,6 +95,10 @@ import java.util.zip.GZIPOutputStream;
  * {@link ConsoleNote} always sticks to a particular point in the console output.
  *
  * <p>
+ * Build logs don't repeat the same note over and over, though. As the log is written, the note is moved
+ * into the {@link ConsoleNoteDictionary} of the log, and the log only keeps a short reference to it.
+ *
+ * <p>
  * This design allows descendant processes of Hudson to emit {@link ConsoleNote}s. For example, Ant forked
  * by a shell forked by Hudson can put an encoded note in its stdout, and Hudson will correctly understands that.
  * The preamble and postamble includes a certain ANSI escape sequence designed in such a way to minimize garbage
@@ -175,15 +179,22 @@ public abstract class ConsoleNote<T> implements Serializable, Describable<Consol
         oos.writeObject(this);
         oos.close();
 
-        ByteArrayOutputStream buf2 = new ByteArrayOutputStream();
+        return encodePayload(buf.toByteArray());
+    }
+
+    /**
+     * Wraps the payload into the preamble/postamble.
+     */
+    /*package*/ static ByteArrayOutputStream encodePayload(byte[] payload) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
 
-        DataOutputStream dos = new DataOutputStream(new Base64OutputStream(buf2,true,-1,null));
-        buf2.write(PREAMBLE);
-        dos.writeInt(buf.size());
-        buf.writeTo(dos);
+        DataOutputStream dos = new DataOutputStream(new Base64OutputStream(buf,true,-1,null));
+        buf.write(PREAMBLE);
+        dos.writeInt(payload.length);
+        dos.write(payload);
         dos.close();
-        buf2.write(POSTAMBLE);
-        return buf2;
+        buf.write(POSTAMBLE);
+        return buf;
     }
 
     /**
@@ -202,8 +213,42 @@ public abstract class ConsoleNote<T> implements Serializable, Describable<Consol
      *      Must point to the beginning of a preamble.
      *
      * @return null if the encoded form is malformed.
+     *      Notes that refer to a {@link ConsoleNoteDictionary} can't be read by this method,
+     *      and null is returned for them, too. Logs read through {@link Run#getLogInputStream()}
+     *      have the notes themselves in place of such references.
      */
     public static ConsoleNote readFrom(DataInputStream in) throws IOException, ClassNotFoundException {
+        return readFrom(in,null);
+    }
+
+    /**
+     * Reads a note back from its encoded form, which can be a reference to
+     * an entry in the given dictionary.
+     *
+     * @param dictionary
+     *      Dictionary of the log being read. Can be null.
+     * @return null if the encoded form is malformed, or if it refers to an entry not in the dictionary.
+     * @since 1.398
+     */
+    public static ConsoleNote readFrom(DataInputStream in, ConsoleNoteDictionary dictionary) throws IOException, ClassNotFoundException {
+        byte[] payload = readPayload(in);
+        if (payload==null)
+            return null;
+        if (ConsoleNoteDictionary.isReference(payload)) {
+            payload = dictionary!=null ? dictionary.get(ConsoleNoteDictionary.getId(payload)) : null;
+            if (payload==null)
+                return null;
+        }
+        return deserialize(payload);
+    }
+
+    /**
+     * Reads the payload between the preamble and the postamble,
+     * which is either the serialized note or a dictionary reference.
+     *
+     * @return null if the encoded form is malformed.
+     */
+    /*package*/ static byte[] readPayload(DataInputStream in) throws IOException {
         try {
             byte[] preamble = new byte[PREAMBLE.length];
             in.readFully(preamble);
@@ -220,9 +265,7 @@ public abstract class ConsoleNote<T> implements Serializable, Describable<Consol
             if (!Arrays.equals(postamble,POSTAMBLE))
                 return null;    // not a valid postamble
 
-            ObjectInputStream ois = new ObjectInputStreamEx(
-                    new GZIPInputStream(new ByteArrayInputStream(buf)), Hudson.getInstance().pluginManager.uberClassLoader);
-            return (ConsoleNote) ois.readObject();
+            return buf;
         } catch (Error e) {
             // for example, bogus 'sz' can result in OutOfMemoryError.
             // package that up as IOException so that the caller won't fatally die.
@@ -230,6 +273,15 @@ public abstract class ConsoleNote<T> implements Serializable, Describable<Consol
         }
     }
 
+    /**
+     * Resurrects a note from its serialized, gzipped form.
+     */
+    /*package*/ static ConsoleNote deserialize(byte[] payload) throws IOException, ClassNotFoundException {
+        ObjectInputStream ois = new ObjectInputStreamEx(
+                new GZIPInputStream(new ByteArrayInputStream(payload)), Hudson.getInstance().pluginManager.uberClassLoader);
+        return (ConsoleNote) ois.readObject();
+    }
+
     /**
      * Skips the encoded console note.
      */
@@ -0,0 +1,509 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.console;
+
+import hudson.util.ByteArrayOutputStream2;
+import org.apache.commons.codec.binary.Base64;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Console notes of a log, each stored once and referred to from the log by a short id.
+ *
+ * <p>
+ * {@link #encode(OutputStream, File)} sits in front of the log file. It watches for encoded
+ * {@link ConsoleNote}s going by. The first time a note is seen, it's appended to the dictionary
+ * file {@code log.notes}. The log gets a reference to the dictionary entry instead of the note.
+ * Notes are compared by their serialized form, so this works no matter who wrote the note,
+ * including processes forked by the build.
+ *
+ * <p>
+ * A reference uses the same preamble and postamble as a regular encoded note, so it's stripped
+ * from the plain text like any other note. Only its payload differs: it's a {@link #REFERENCE}
+ * byte followed by the id, rather than a gzip stream. Logs written before the dictionary
+ * existed, or by other means, simply have no references in them.
+ *
+ * <p>
+ * Code that reads the raw log with {@link ConsoleNote#readFrom(DataInputStream)} doesn't know
+ * about the dictionary, so {@link #decode(InputStream, File)} puts the notes back in place of
+ * the references for it.
+ *
+ * @author Kohsuke Kawaguchi
+ * @since 1.398
+ * @see ConsoleNote#readFrom(DataInputStream, ConsoleNoteDictionary)
+ */
+public final class ConsoleNoteDictionary {
+    private final File file;
+    /**
+     * Payloads loaded so far, in the order of their ids.
+     */
+    private final List<byte[]> payloads = new ArrayList<byte[]>();
+    /**
+     * Where in {@link #file} to continue loading from.
+     */
+    private long pos = HEADER_SIZE;
+
+    private ConsoleNoteDictionary(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Gets the serialized note of the given id.
+     *
+     * @return null if there's no such entry.
+     */
+    public synchronized byte[] get(int id) throws IOException {
+        if (id<0)   return null;
+        if (id>=payloads.size())
+            load(); // the log may still be being written
+        return id<payloads.size() ? payloads.get(id) : null;
+    }
+
+    /**
+     * Loads the entries added since the last time.
+     */
+    private void load() throws IOException {
+        if (!file.exists())     return;
+        RandomAccessFile raf = new RandomAccessFile(file,"r");
+        try {
+            if (pos==HEADER_SIZE && (raf.length()<HEADER_SIZE || raf.readInt()!=MAGIC))
+                return;
+            long len = raf.length();
+            while (pos+4<=len) {
+                raf.seek(pos);
+                int sz = raf.readInt();
+                if (sz<0 || pos+4+sz>len)
+                    break;  // being written
+                byte[] payload = new byte[sz];
+                raf.readFully(payload);
+                payloads.add(payload);
+                pos += 4+sz;
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    public static File getFile(File log) {
+        return new File(log.getPath()+".notes");
+    }
+
+    /**
+     * Gets the dictionary of the given log.
+     *
+     * @return null if the log has none.
+     */
+    public static ConsoleNoteDictionary of(File log) {
+        File f = getFile(log);
+        return f.exists() ? new ConsoleNoteDictionary(f) : null;
+    }
+
+    /**
+     * Wraps the stream that writes the given log, so that the notes written to it go to the dictionary.
+     */
+    public static OutputStream encode(OutputStream out, File log) {
+        return new Encoder(out,getFile(log));
+    }
+
+    /**
+     * Wraps the stream that reads the given log, so that the references in it are replaced by the notes
+     * they refer to. What's read is then just like a log written without a dictionary.
+     *
+     * @return
+     *      the given stream as is, if the log has no dictionary.
+     */
+    public static InputStream decode(InputStream in, File log) {
+        ConsoleNoteDictionary d = of(log);
+        return d!=null ? new Decoder(in,d) : in;
+    }
+
+    /**
+     * Is this the payload of a reference to a dictionary entry?
+     */
+    /*package*/ static boolean isReference(byte[] payload) {
+        return payload.length==5 && payload[0]==REFERENCE;
+    }
+
+    /*package*/ static int getId(byte[] payload) {
+        return ((payload[1]&0xFF)<<24) | ((payload[2]&0xFF)<<16) | ((payload[3]&0xFF)<<8) | (payload[4]&0xFF);
+    }
+
+    /*package*/ static byte[] encodeReference(int id) throws IOException {
+        return ConsoleNote.encodePayload(new byte[]{REFERENCE,(byte)(id>>>24),(byte)(id>>>16),(byte)(id>>>8),(byte)id}).toByteArray();
+    }
+
+    /**
+     * Passes the log through, except the encoded notes, which are replaced by references.
+     *
+     * <p>
+     * Bytes from an escape character on are held back until it's clear whether they are a note,
+     * which is as soon as they stop matching the preamble for anything else, such as color codes.
+     * A flush writes them out regardless, so that the output isn't kept waiting for the rest of
+     * the line. A note cut short that way is left in the log as it is.
+     */
+    private static final class Encoder extends OutputStream {
+        private final OutputStream out;
+        private final File file;
+        private OutputStream dictionary;
+        private final Map<Key,Integer> ids = new HashMap<Key,Integer>();
+        /**
+         * Bytes held back, which starts with an escape character if any.
+         */
+        private final ByteArrayOutputStream2 pending = new ByteArrayOutputStream2();
+
+        Encoder(OutputStream out, File file) {
+            this.out = out;
+            this.file = file;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            write(new byte[]{(byte)b},0,1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            int end = off+len;
+            while (off<end) {
+                if (pending.size()==0) {
+                    int esc = off;
+                    while (esc<end && b[esc]!=ESC)
+                        esc++;
+                    out.write(b,off,esc-off);
+                    off = esc;
+                    if (off==end)   return;
+                }
+                pending.write(b[off++]);
+                examine();
+            }
+        }
+
+        /**
+         * Decides what to do with the held back bytes, now that one more has been added.
+         */
+        private void examine() throws IOException {
+            byte[] buf = pending.getBuffer();
+            int n = pending.size();
+            byte last = buf[n-1];
+
+            if (n<=PREAMBLE.length) {
+                if (last==PREAMBLE[n-1])
+                    return; // so far so good
+                // not a note. the rest may still contain one
+                byte[] rest = new byte[n-1];
+                System.arraycopy(buf,1,rest,0,rest.length);
+                pending.reset();
+                out.write(buf[0]);
+                write(rest,0,rest.length);
+                return;
+            }
+
+            if (last=='\n' || n>MAX_NOTE_SIZE) {
+                release();
+                return;
+            }
+
+            if (n>=PREAMBLE.length+POSTAMBLE.length && endsWithPostamble(buf,n)) {
+                byte[] base64 = new byte[n-PREAMBLE.length-POSTAMBLE.length];
+                System.arraycopy(buf,PREAMBLE.length,base64,0,base64.length);
+                byte[] ref = replace(base64);
+                if (ref==null) {
+                    release();
+                } else {
+                    out.write(ref);
+                    pending.reset();
+                }
+            }
+        }
+
+        private boolean endsWithPostamble(byte[] buf, int n) {
+            for (int i=0; i<POSTAMBLE.length; i++)
+                if (buf[n-POSTAMBLE.length+i]!=POSTAMBLE[i])
+                    return false;
+            return true;
+        }
+
+        /**
+         * Writes out the held back bytes as they are.
+         */
+        private void release() throws IOException {
+            pending.writeTo(out);
+            pending.reset();
+        }
+
+        /**
+         * Adds the note to the dictionary if it's not there already.
+         *
+         * @param base64
+         *      the part of the encoded note between the preamble and the postamble.
+         * @return
+         *      the reference to write in place of the note, or null to leave the note as is.
+         */
+        private byte[] replace(byte[] base64) {
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.decodeBase64(base64)));
+                int sz = in.readInt();
+                if (sz!=in.available() || sz<2)
+                    return null;
+                byte[] payload = new byte[sz];
+                in.readFully(payload);
+                if (payload[0]!=GZIP_MAGIC[0] || payload[1]!=GZIP_MAGIC[1])
+                    return null;    // already a reference, or something we don't understand
+
+                Key key = new Key(payload);
+                Integer id = ids.get(key);
+                if (id==null) {
+                    if (ids.size()>=MAX_ENTRIES)
+                        return null;
+                    id = ids.size();
+                    append(payload);
+                    ids.put(key,id);
+                }
+                return encodeReference(id);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to add a console note to "+file, e);
+                return null;
+            } catch (RuntimeException e) {
+                // garbage that happens to look like a note
+                LOGGER.log(Level.FINE, "Failed to add a console note to "+file, e);
+                return null;
+            }
+        }
+
+        /**
+         * Adds an entry to the dictionary file, before any reference to it makes it to the log.
+         */
+        private void append(byte[] payload) throws IOException {
+            if (dictionary==null) {
+                // not buffered, so that readers see the entry as soon as they see the reference
+                dictionary = new FileOutputStream(file);
+                DataOutputStream header = new DataOutputStream(dictionary);
+                header.writeInt(MAGIC);
+            }
+            ByteArrayOutputStream2 record = new ByteArrayOutputStream2(payload.length+4);
+            DataOutputStream dos = new DataOutputStream(record);
+            dos.writeInt(payload.length);
+            dos.write(payload);
+            record.writeTo(dictionary);
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            release();
+            out.flush();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            try {
+                release();
+                out.close();
+            } finally {
+                if (dictionary!=null)
+                    dictionary.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the log, replacing the references by the encoded notes they refer to.
+     */
+    private static final class Decoder extends InputStream {
+        private final InputStream in;
+        private final ConsoleNoteDictionary dictionary;
+        private final byte[] buf = new byte[8192];
+        private int start, end;
+        private boolean eof;
+        /**
+         * Encoded note being read in place of a reference, if any.
+         */
+        private byte[] note;
+        private int notePos;
+
+        Decoder(InputStream in, ConsoleNoteDictionary dictionary) {
+            this.in = in;
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b,0,1)<0 ? -1 : b[0]&0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len==0)     return 0;
+            if (note==null) {
+                fill();
+                if (start==end)     return -1;
+                if (buf[start]==ESC && end-start>=REFERENCE_SIZE) {
+                    note = resolve(start);
+                    if (note!=null) {
+                        start += REFERENCE_SIZE;
+                        notePos = 0;
+                    }
+                }
+            }
+
+            if (note!=null) {
+                int n = Math.min(len,note.length-notePos);
+                System.arraycopy(note,notePos,b,off,n);
+                notePos += n;
+                if (notePos==note.length)
+                    note = null;
+                return n;
+            }
+
+            // up to the next escape character, which may start a reference
+            int i = start+1;
+            while (i<end && buf[i]!=ESC)
+                i++;
+            int n = Math.min(len,i-start);
+            System.arraycopy(buf,start,b,off,n);
+            start += n;
+            return n;
+        }
+
+        /**
+         * Reads more if nothing is buffered, or if a reference may start at {@link #start}
+         * and isn't buffered in full.
+         */
+        private void fill() throws IOException {
+            if (end-start>=REFERENCE_SIZE || (start<end && buf[start]!=ESC))
+                return;
+            System.arraycopy(buf,start,buf,0,end-start);
+            end -= start;
+            start = 0;
+            while (!eof && (end==0 || (buf[0]==ESC && end<REFERENCE_SIZE))) {
+                int n = in.read(buf,end,buf.length-end);
+                if (n<0)    eof = true;
+                else        end += n;
+            }
+        }
+
+        /**
+         * Gets the encoded note for the reference at the given position.
+         *
+         * @return null if there's no reference there, or if it can't be resolved.
+         */
+        private byte[] resolve(int pos) {
+            for (int i=0; i<PREAMBLE.length; i++)
+                if (buf[pos+i]!=PREAMBLE[i])
+                    return null;
+            for (int i=0; i<POSTAMBLE.length; i++)
+                if (buf[pos+REFERENCE_SIZE-POSTAMBLE.length+i]!=POSTAMBLE[i])
+                    return null;
+            try {
+                byte[] base64 = new byte[REFERENCE_SIZE-PREAMBLE.length-POSTAMBLE.length];
+                System.arraycopy(buf,pos+PREAMBLE.length,base64,0,base64.length);
+                DataInputStream data = new DataInputStream(new ByteArrayInputStream(Base64.decodeBase64(base64)));
+                if (data.readInt()!=5)
+                    return null;
+                byte[] payload = new byte[5];
+                data.readFully(payload);
+                if (!isReference(payload))
+                    return null;
+                byte[] note = dictionary.get(getId(payload));
+                return note!=null ? ConsoleNote.encodePayload(note).toByteArray() : null;
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to resolve a console note from "+dictionary.file, e);
+                return null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Serialized note as a hash key.
+     */
+    private static final class Key {
+        private final byte[] payload;
+        private final int hash;
+
+        Key(byte[] payload) {
+            this.payload = payload;
+            this.hash = Arrays.hashCode(payload);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(payload,((Key)o).payload);
+        }
+    }
+
+    /**
+     * Marks the payload of a reference. A serialized note starts with {@link #GZIP_MAGIC} instead.
+     */
+    /*package*/ static final byte REFERENCE = 0;
+
+    private static final byte[] GZIP_MAGIC = {(byte)0x1F,(byte)0x8B};
+    private static final byte ESC = 0x1B;
+    private static final byte[] PREAMBLE = ConsoleNote.PREAMBLE;
+    private static final byte[] POSTAMBLE = ConsoleNote.POSTAMBLE;
+
+    /**
+     * Size of an encoded reference. Its 9 bytes (the size and the payload) take 12 characters in base64.
+     */
+    private static final int REFERENCE_SIZE = PREAMBLE.length+12+POSTAMBLE.length;
+
+    private static final int MAGIC = 0x434E4431; // CND1
+    private static final int HEADER_SIZE = 4;
+
+    /**
+     * Notes bigger than this are left in the log.
+     */
+    private static final int MAX_NOTE_SIZE = 64*1024;
+
+    /**
+     * Number of distinct notes a log can have in its dictionary. Notes beyond this are left in the log.
+     */
+    public static int MAX_ENTRIES = Integer.getInteger(ConsoleNoteDictionary.class.getName()+".maxEntries",4096);
+
+    private static final Logger LOGGER = Logger.getLogger(ConsoleNoteDictionary.class.getName());
+}
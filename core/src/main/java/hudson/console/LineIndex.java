@@ -0,0 +1,581 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.console;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.util.Enumeration;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sidecar index of a console log that records where every {@link #INTERVAL}-th line starts,
+ * so that a line can be found by reading at most that many lines.
+ *
+ * <p>
+ * The index of {@code log} is kept in {@code log.idx}. It's written along with the log by
+ * {@link #openLog(File)}, or created from an existing log by {@link #build(File)}.
+ * Lines are terminated by LF, and the index has an entry for lines 0, N, 2N, and so on.
+ * Each entry is a pair of the position in the file and the position in the text.
+ *
+ * <p>
+ * The two are the same for a plain log. For {@code log.gz} written by {@link #compress(File)},
+ * every N lines make a separate gzip member, and the file position of an entry is where its
+ * member starts, which is the block-offset map that makes random access possible.
+ * A {@code log.gz} produced by other means has no usable index, so callers need to fall
+ * back to reading it from the start.
+ *
+ * <p>
+ * Lines are counted on the raw bytes, console notes included.
+ *
+ * @author Kohsuke Kawaguchi
+ * @since 1.398
+ */
+public final class LineIndex {
+    private final File log;
+    private final boolean gzip;
+    private final int interval;
+    /**
+     * Entry i is for line i*interval.
+     */
+    private final long[] fileOffsets;
+    private final long[] textOffsets;
+
+    private LineIndex(File log, boolean gzip, int interval, long[] fileOffsets, long[] textOffsets) {
+        this.log = log;
+        this.gzip = gzip;
+        this.interval = interval;
+        this.fileOffsets = fileOffsets;
+        this.textOffsets = textOffsets;
+    }
+
+    /**
+     * True if this indexes {@code log.gz}, as opposed to the plain {@code log}.
+     */
+    public boolean isCompressed() {
+        return gzip;
+    }
+
+    /**
+     * Counts the lines, including the last one even if it's not terminated.
+     */
+    public long getLineCount() throws IOException {
+        int last = fileOffsets.length-1;
+        long lines = (long)last*interval;
+        InputStream in = openEntry(last);
+        try {
+            byte[] buf = new byte[8192];
+            boolean partial = false;
+            int len;
+            while((len=in.read(buf))>=0) {
+                for( int i=0; i<len; i++ ) {
+                    if(buf[i]=='\n') {
+                        lines++;
+                        partial = false;
+                    } else {
+                        partial = true;
+                    }
+                }
+            }
+            return partial ? lines+1 : lines;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Gets the position of the start of the given line in the text,
+     * or the end of the text if there aren't that many lines.
+     */
+    public long getOffsetOfLine(long line) throws IOException {
+        int e = entryOf(line);
+        InputStream in = openEntry(e);
+        try {
+            return textOffsets[e]+skipLines(in,line-(long)e*interval);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Opens the text from the start of the given line.
+     */
+    public InputStream openAtLine(long line) throws IOException {
+        int e = entryOf(line);
+        InputStream in = new BufferedInputStream(openEntry(e));
+        skipLines(in,line-(long)e*interval);
+        return in;
+    }
+
+    private int entryOf(long line) {
+        if(line<0)  throw new IllegalArgumentException("Negative line number: "+line);
+        return (int)Math.min(line/interval,fileOffsets.length-1);
+    }
+
+    /**
+     * Opens the text at the given entry, reading till the end.
+     */
+    private InputStream openEntry(final int e) throws IOException {
+        if(!gzip) {
+            FileInputStream in = new FileInputStream(log);
+            in.getChannel().position(fileOffsets[e]);
+            return in;
+        }
+
+        final File gz = getCompressedFile(log);
+        // read one member at a time, since GZIPInputStream on some JREs stops at the end of the first member
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            int i = e;
+            public boolean hasMoreElements() {
+                return i<fileOffsets.length;
+            }
+
+            public InputStream nextElement() {
+                if(!hasMoreElements())  throw new NoSuchElementException();
+                try {
+                    long start = fileOffsets[i];
+                    long end = i+1<fileOffsets.length ? fileOffsets[i+1] : gz.length();
+                    i++;
+                    if(start==end)  return new ByteArrayInputStream(new byte[0]);
+                    return new GZIPInputStream(new RegionInputStream(gz,start,end));
+                } catch (IOException x) {
+                    throw new IllegalStateException("Failed to read "+gz,x);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads through the given number of lines.
+     *
+     * @return the number of bytes read.
+     */
+    private static long skipLines(InputStream in, long lines) throws IOException {
+        long read = 0;
+        while(lines>0) {
+            int b = in.read();
+            if(b<0)     break;
+            read++;
+            if(b=='\n') lines--;
+        }
+        return read;
+    }
+
+    public static File getIndexFile(File log) {
+        return new File(log.getPath()+".idx");
+    }
+
+    public static File getCompressedFile(File log) {
+        return new File(log.getPath()+".gz");
+    }
+
+    /**
+     * Loads the index of the given log.
+     *
+     * @param log
+     *      the plain log file, even if the log is compressed.
+     * @return
+     *      null if there's no index.
+     */
+    public static LineIndex load(File log) throws IOException {
+        return load(log,getIndexFile(log));
+    }
+
+    private static LineIndex load(File log, File idx) throws IOException {
+        if(!idx.exists())   return null;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(idx)));
+        try {
+            if(in.readInt()!=MAGIC || in.readInt()!=VERSION)
+                return null;
+            int interval = in.readInt();
+            boolean gzip = in.readBoolean();
+            if(interval<=0)     return null;
+            if(gzip ? !getCompressedFile(log).exists() : !log.exists())
+                return null;    // stale
+
+            int n = (int)((idx.length()-HEADER_SIZE)/ENTRY_SIZE); // a partially written entry is ignored
+            if(n==0)    return null;
+            long[] fileOffsets = new long[n];
+            long[] textOffsets = new long[n];
+            for( int i=0; i<n; i++ ) {
+                fileOffsets[i] = in.readLong();
+                textOffsets[i] = in.readLong();
+            }
+            return new LineIndex(log,gzip,interval,fileOffsets,textOffsets);
+        } catch (EOFException e) {
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Loads the index of the given log, indexing the log if it has no index,
+     * as is the case for builds made before the index was introduced.
+     * The index of a log that's still being written is not saved.
+     *
+     * @return
+     *      null if the log is not indexed and can't be indexed.
+     */
+    public static LineIndex get(File log, boolean complete) {
+        try {
+            LineIndex index = load(log);
+            if(index==null && log.exists()) {
+                if(complete)
+                    index = build(log);
+                else {
+                    File tmp = File.createTempFile("log",".idx",log.getParentFile());
+                    try {
+                        index(log,tmp);
+                        index = load(log,tmp);
+                    } finally {
+                        tmp.delete();
+                    }
+                }
+            }
+            return index;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to index "+log, e);
+            return null;
+        }
+    }
+
+    /**
+     * Indexes an existing plain log.
+     */
+    public static LineIndex build(File log) throws IOException {
+        File idx = getIndexFile(log);
+        File tmp = new File(idx.getPath()+".tmp");
+        index(log,tmp);
+        idx.delete();
+        if(!tmp.renameTo(idx))
+            throw new IOException("Failed to rename "+tmp+" to "+idx);
+        return load(log);
+    }
+
+    private static void index(File log, File idx) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(log));
+        try {
+            Writer w = new Writer(new NullStream(),idx,false);
+            try {
+                IOUtils.copy(in,w);
+            } finally {
+                w.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Opens the given log for writing, creating the index as the data is written.
+     * If the index can't be created, the log is written without one.
+     */
+    public static OutputStream openLog(File log) throws IOException {
+        OutputStream out = new FileOutputStream(log);
+        try {
+            return new Writer(out,getIndexFile(log),false);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to create the line index of "+log, e);
+            getIndexFile(log).delete();
+            return out;
+        }
+    }
+
+    /**
+     * Compresses the given complete log into {@code log.gz} that can be read from any line,
+     * then deletes the plain log.
+     *
+     * <p>
+     * Builds do this to their log when they complete if {@link #COMPRESS} is set.
+     */
+    public static void compress(File log) throws IOException {
+        File gz = getCompressedFile(log);
+        File idx = getIndexFile(log);
+        File tmpIdx = new File(idx.getPath()+".tmp");
+
+        OutputStream file = new BufferedOutputStream(new FileOutputStream(gz));
+        boolean success = false;
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(log));
+            try {
+                GzipWriter w = new GzipWriter(file,tmpIdx);
+                try {
+                    IOUtils.copy(in,w);
+                } finally {
+                    w.close();
+                }
+            } finally {
+                in.close();
+            }
+            success = true;
+        } finally {
+            if(!success) {
+                // leave the plain log and its index as they were
+                file.close();
+                gz.delete();
+                tmpIdx.delete();
+            }
+        }
+
+        idx.delete();
+        if(!tmpIdx.renameTo(idx))
+            throw new IOException("Failed to rename "+tmpIdx+" to "+idx);
+        log.delete();
+    }
+
+    /**
+     * Passes the log through to the underlying stream while writing the index.
+     */
+    private static class Writer extends OutputStream {
+        protected final OutputStream out;
+        private final DataOutputStream index;
+        private final int interval = INTERVAL;
+        /**
+         * Position in the text.
+         */
+        protected long pos;
+        private long lines;
+
+        Writer(OutputStream out, File idx, boolean gzip) throws IOException {
+            this.out = out;
+            // not buffered, so that the index is usable while the log is being written.
+            // it's only written to every INTERVAL lines anyway.
+            index = new DataOutputStream(new FileOutputStream(idx));
+            index.writeInt(MAGIC);
+            index.writeInt(VERSION);
+            index.writeInt(interval);
+            index.writeBoolean(gzip);
+            writeEntry(0,0);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte)b},0,1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int start = off;
+            for( int i=off; i<off+len; i++ ) {
+                if(b[i]=='\n' && ++lines%interval==0) {
+                    // the line to be indexed starts right after this byte
+                    emit(b,start,i+1-start);
+                    start = i+1;
+                    startEntry();
+                }
+            }
+            emit(b,start,off+len-start);
+        }
+
+        /**
+         * Writes a part of the text that doesn't cross an index entry.
+         */
+        protected void emit(byte[] b, int off, int len) throws IOException {
+            out.write(b,off,len);
+            pos += len;
+        }
+
+        /**
+         * Called when the line to be indexed is about to start.
+         */
+        protected void startEntry() throws IOException {
+            writeEntry(pos,pos);
+        }
+
+        protected final void writeEntry(long fileOffset, long textOffset) throws IOException {
+            byte[] buf = new byte[ENTRY_SIZE];
+            for( int i=0; i<8; i++ ) {
+                buf[i]   = (byte)(fileOffset>>>(56-i*8));
+                buf[i+8] = (byte)(textOffset>>>(56-i*8));
+            }
+            index.write(buf);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.close();
+            } finally {
+                index.close();
+            }
+        }
+    }
+
+    /**
+     * Writes a gzip member every {@link #INTERVAL} lines.
+     */
+    private static final class GzipWriter extends Writer {
+        private final MemberStream file;
+        private GZIPOutputStream member;
+
+        GzipWriter(OutputStream file, File idx) throws IOException {
+            super(file,idx,true);
+            this.file = new MemberStream(file);
+        }
+
+        @Override
+        protected void emit(byte[] b, int off, int len) throws IOException {
+            if(len==0)  return;
+            if(member==null)
+                member = new GZIPOutputStream(file);
+            member.write(b,off,len);
+            pos += len;
+        }
+
+        @Override
+        protected void startEntry() throws IOException {
+            if(member!=null) {
+                member.finish();
+                member = null;
+            }
+            writeEntry(file.count,pos);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if(member!=null)
+                    member.finish();
+            } finally {
+                super.close();
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes written so far, and leaves the file open when a member is closed.
+     */
+    private static final class MemberStream extends FilterOutputStream {
+        long count;
+
+        MemberStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b,off,len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /**
+     * Reads a region of a file.
+     */
+    private static final class RegionInputStream extends InputStream {
+        private final RandomAccessFile file;
+        private long remaining;
+
+        RegionInputStream(File f, long start, long end) throws IOException {
+            file = new RandomAccessFile(f,"r");
+            file.seek(start);
+            remaining = end-start;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(remaining<=0)    return -1;
+            int b = file.read();
+            if(b>=0)    remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(remaining<=0)    return -1;
+            int n = file.read(b,off,(int)Math.min(len,remaining));
+            if(n>0)     remaining -= n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    private static final class NullStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    private static final int MAGIC = 0x4C494458; // LIDX
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4+4+4+1;
+    private static final int ENTRY_SIZE = 16;
+
+    /**
+     * Number of lines between the index entries.
+     */
+    public static int INTERVAL = Integer.getInteger(LineIndex.class.getName()+".interval",1000);
+
+    /**
+     * If true, the log of a build is compressed by {@link #compress(File)} when the build completes.
+     */
+    public static boolean COMPRESS = Boolean.getBoolean(LineIndex.class.getName()+".compress");
+
+    private static final Logger LOGGER = Logger.getLogger(LineIndex.class.getName());
+}
@@ -0,0 +1,221 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.console;
+
+import hudson.Functions;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Reads byte ranges of a console log through its {@link FileChannel}.
+ *
+ * <p>
+ * The file is read through memory-mapped regions of at most {@link #MAP_SIZE} bytes,
+ * so a range is never read onto the heap as a whole, and plain text that has no
+ * console notes in it skips {@link PlainTextConsoleOutputStream}. The bytes still go
+ * through a small copy buffer on their way out, because the destination is an
+ * {@link OutputStream}, such as a servlet response, and not a channel that
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)} could write to directly. Each region is mapped
+ * once per request, and the end of the last complete line of a log that's still being
+ * written is found in the last region as it's written.
+ *
+ * <p>
+ * Windows doesn't let a file be deleted while a region of it is mapped, and a region
+ * stays mapped until it's garbage collected, so on Windows (or with
+ * {@code -Dhudson.console.MappedLogFile.disableMapping=true}) the regions are read
+ * into a buffer instead.
+ *
+ * <p>
+ * Each method opens and closes the file, so instances can be kept around freely.
+ *
+ * @author Kohsuke Kawaguchi
+ * @since 1.398
+ */
+public final class MappedLogFile {
+    private final File file;
+
+    public MappedLogFile(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long length() {
+        return file.length();
+    }
+
+    /**
+     * Writes the bytes in {@code [start,end)} as they are.
+     *
+     * @param wholeLines
+     *      if true, stop at the end of the last complete line, for a log that's still being written.
+     * @return
+     *      the offset right after the last byte written.
+     */
+    public long writeTo(long start, long end, OutputStream out, boolean wholeLines) throws IOException {
+        return write(start,end,out,wholeLines,false);
+    }
+
+    /**
+     * Writes the bytes in {@code [start,end)} without the console notes, like
+     * {@link PlainTextConsoleOutputStream} does.
+     *
+     * <p>
+     * The range is processed a block of lines at a time. Blocks without any escape
+     * sequence, which is what most of a typical log is, skip the filter and are
+     * written straight from the mapped region.
+     *
+     * @param wholeLines
+     *      if true, stop at the end of the last complete line, for a log that's still being written.
+     * @return
+     *      the offset right after the last byte written.
+     */
+    public long writePlainTextTo(long start, long end, OutputStream out, boolean wholeLines) throws IOException {
+        return write(start,end,out,wholeLines,true);
+    }
+
+    private long write(long start, long end, OutputStream out, boolean wholeLines, boolean plain) throws IOException {
+        PlainTextConsoleOutputStream filter = plain ? new PlainTextConsoleOutputStream(out) : null;
+        // true if the filter is holding on to the first half of a line
+        boolean partial = false;
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel ch = in.getChannel();
+            byte[] chunk = new byte[COPY_SIZE];
+            long pos = start;
+            while(pos<end) {
+                ByteBuffer window = region(ch,pos,Math.min(windowSize(),end-pos));
+                int size = window.remaining();
+                if(size==0)     break;  // truncated underneath us
+
+                boolean last = pos+size>=end;
+                if(wholeLines || !last) {
+                    // end the window at the end of a line, so that the next one starts with a line.
+                    // this is also where the last complete line ends, so the region is mapped just once.
+                    int eol = size;
+                    while(eol>0 && !isEol(window.get(eol-1)))
+                        eol--;
+                    if(eol>0)
+                        size = eol;
+                    else if(last)
+                        break;  // the rest is a line that's still being written
+                    // otherwise a line longer than a window, which has to be split somewhere
+                }
+
+                for( int off=0; off<size; ) {
+                    int len = Math.min(COPY_SIZE,size-off);
+                    if(!plain) {
+                        window.position(off);
+                        window.get(chunk,0,len);
+                        out.write(chunk,0,len);
+                        off += len;
+                        continue;
+                    }
+
+                    // cut the block at the end of the last line in it
+                    int eol = len;
+                    while(eol>0 && window.get(off+eol-1)!='\n')
+                        eol--;
+                    boolean complete = eol>0;
+                    if(!complete)  eol = len;  // a very long line, or the last one
+
+                    window.position(off);
+                    window.get(chunk,0,eol);
+                    if(!partial && complete && !hasEscape(chunk,eol)) {
+                        out.write(chunk,0,eol);
+                    } else {
+                        filter.write(chunk,0,eol);
+                        partial = !complete;
+                    }
+                    off += eol;
+                }
+                pos += size;
+            }
+            if(filter!=null)
+                filter.forceEol();
+            return pos;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean isEol(byte b) {
+        return b=='\r' || b=='\n';
+    }
+
+    private static boolean hasEscape(byte[] buf, int len) {
+        for( int i=0; i<len; i++ )
+            if(buf[i]==ESC)
+                return true;
+        return false;
+    }
+
+    /**
+     * How much to look at at once. Without mapping, this is how much we put on the heap.
+     */
+    private static long windowSize() {
+        return USE_MAPPING ? MAP_SIZE : COPY_SIZE;
+    }
+
+    /**
+     * Gets the given region of the file as a buffer whose position is 0.
+     */
+    private static ByteBuffer region(FileChannel ch, long pos, long len) throws IOException {
+        len = Math.max(0,Math.min(len,ch.size()-pos));
+        if(USE_MAPPING)
+            return ch.map(MapMode.READ_ONLY,pos,len);
+
+        ByteBuffer buf = ByteBuffer.allocate((int)len);
+        while(buf.hasRemaining()) {
+            if(ch.read(buf,pos+buf.position())<0)
+                break;
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * First byte of {@link ConsoleNote#PREAMBLE}, as well as any other ANSI escape sequence.
+     */
+    private static final byte ESC = 0x1B;
+
+    private static final int COPY_SIZE = 64*1024;
+
+    /**
+     * Largest region mapped at once.
+     */
+    public static int MAP_SIZE = 16*1024*1024;
+
+    public static boolean USE_MAPPING = !Functions.isWindows()
+            && !Boolean.getBoolean(MappedLogFile.class.getName()+".disableMapping");
+}
@@ -249,6 +249,7 @@ public abstract class AbstractProject<P extends AbstractProject<P,R>,R extends A
                 return loadBuild(dir);
             }
         });
+        getBuildSummaries().verify(builds);
 
         // boolean! Can't tell if xml file contained false..
         if (enableRemoteTrigger) OldDataMonitor.report(this, "1.77");
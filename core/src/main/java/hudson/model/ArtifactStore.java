@@ -0,0 +1,407 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.model;
+
+import hudson.Extension;
+import hudson.Functions;
+import hudson.Util;
+import hudson.os.PosixAPI;
+import hudson.util.AtomicFileWriter;
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static hudson.util.jna.GNUCLibrary.LIBC;
+
+/**
+ * Stores archived artifacts only once per distinct content, no matter how many builds archive them.
+ *
+ * <p>
+ * Each file is kept as a blob under {@code $HUDSON_HOME/artifacts/<xx>/<md5>}, and the copies
+ * in the {@linkplain Run#getArtifactsDir() artifacts directory} of builds are hard links to it.
+ * Because of this, everything that looks at the artifacts directory keeps working unchanged,
+ * while the disk space is only consumed once.
+ *
+ * <p>
+ * The list of files a build has archived, along with their MD5 checksums, is recorded in
+ * the manifest file in the build directory. {@link hudson.tasks.Fingerprinter} uses this
+ * to avoid digesting the same files again.
+ *
+ * <p>
+ * The link count of the blob serves as the reference count. When artifacts of a build
+ * are deleted, blobs no longer linked from any build are removed. Blobs left behind by builds
+ * that went away some other way, such as along with their job, are swept daily.
+ *
+ * <p>
+ * A file is only linked to a blob whose content is byte-for-byte identical, so that
+ * two files with colliding MD5 checksums never get mixed up.
+ *
+ * <p>
+ * Since all the copies share the same inode, archived artifacts must not be modified in place.
+ * This mode is therefore off unless enabled via {@link #ENABLED}, and is only available on Unix.
+ *
+ * @author Kohsuke Kawaguchi
+ * @since 1.398
+ */
+public final class ArtifactStore {
+    private final File root;
+
+    public ArtifactStore(File root) {
+        this.root = root;
+    }
+
+    /**
+     * Returns the store of this Hudson instance.
+     */
+    public static ArtifactStore get() {
+        return new ArtifactStore(new File(Hudson.getInstance().getRootDir(),"artifacts"));
+    }
+
+    /**
+     * Returns true if archived artifacts should go to the store.
+     */
+    public static boolean isEnabled() {
+        return ENABLED && !Functions.isWindows();
+    }
+
+    /**
+     * Gets the blob file that holds the content of the given MD5 checksum.
+     */
+    public File getBlob(String md5) {
+        return new File(new File(root,md5.substring(0,2)),md5);
+    }
+
+    /**
+     * Puts all the files in the artifacts directory into the store, and records them in the manifest.
+     *
+     * @return
+     *      entries of the manifest.
+     */
+    public List<Entry> add(Run<?,?> run) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        File dir = run.getArtifactsDir();
+        if (dir.isDirectory())
+            add(dir,"",entries);
+        writeManifest(getManifestFile(run),entries);
+        return entries;
+    }
+
+    private void add(File dir, String prefix, List<Entry> entries) throws IOException {
+        File[] children = dir.listFiles();
+        if (children==null)     return;
+        for (File child : children) {
+            if (Util.isSymlink(child))
+                continue;   // leave symlinks alone
+            String path = prefix+child.getName();
+            if (child.isDirectory()) {
+                add(child,path+'/',entries);
+            } else {
+                // record the timestamp before the file gets replaced by a link to an older blob
+                Entry e = new Entry(path,Util.getDigestOf(new FileInputStream(child)),child.length(),child.lastModified());
+                intern(child,e.md5);
+                entries.add(e);
+            }
+        }
+    }
+
+    /**
+     * Makes the given file a hard link to the blob of the given checksum,
+     * or makes the file the blob if there's none yet.
+     */
+    /*package*/ void intern(File file, String md5) throws IOException {
+        File blob = getBlob(md5);
+        synchronized (LOCK) {
+            if (!blob.exists()) {
+                blob.getParentFile().mkdirs();
+                if (!link(file,blob))
+                    LOGGER.fine("Failed to create "+blob);
+                return;
+            }
+
+            // the checksum alone can be forged, so don't risk handing out someone else's data
+            if (blob.length()!=file.length() || !FileUtils.contentEquals(blob,file)) {
+                LOGGER.warning(file+" has the same MD5 checksum as "+blob+" but different contents. Not linking them");
+                return;
+            }
+
+            File tmp = new File(file.getParentFile(),'.'+file.getName()+".link");
+            tmp.delete();
+            if (link(blob,tmp))
+                tmp.renameTo(file);
+            // rename does nothing if the two are already links to the same blob
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Deletes blobs no longer referenced by any build.
+     *
+     * @param entries
+     *      entries of the manifest of a build whose artifacts have just been deleted.
+     */
+    public void release(Collection<Entry> entries) {
+        Set<String> checksums = new HashSet<String>();
+        for (Entry e : entries)
+            checksums.add(e.md5);
+
+        synchronized (LOCK) {
+            for (String md5 : checksums) {
+                File blob = getBlob(md5);
+                if (blob.exists() && getLinkCount(blob)==1) {
+                    if (!blob.delete())
+                        LOGGER.fine("Failed to delete "+blob);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes all the blobs that are no longer referenced by any build.
+     *
+     * @return
+     *      the number of blobs deleted.
+     */
+    public int sweep() {
+        int n = 0;
+        File[] dirs = root.listFiles();
+        if (dirs==null)     return 0;
+        for (File dir : dirs) {
+            File[] blobs = dir.listFiles();
+            if (blobs==null)    continue;
+            for (File blob : blobs) {
+                synchronized (LOCK) {
+                    if (getLinkCount(blob)==1) {
+                        if (blob.delete())  n++;
+                        else                LOGGER.fine("Failed to delete "+blob);
+                    }
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Deletes the artifacts of a build, along with blobs that are no longer referenced.
+     */
+    public static void deleteArtifacts(Run<?,?> run) throws IOException {
+        Map<String,Entry> manifest = loadManifest(run);
+        Util.deleteContentsRecursive(run.getArtifactsDir());
+        if (!manifest.isEmpty()) {
+            getManifestFile(run).delete();
+            get().release(manifest.values());
+        }
+    }
+
+    /**
+     * Makes the artifacts of a build also the artifacts of another build,
+     * for a build that reuses the outcome of an earlier build.
+     *
+     * <p>
+     * Files are hard links to those of the source build where possible, so nothing gets copied.
+     * If the source build archived into the store, its manifest is reused as is.
+     */
+    public static void copyArtifacts(Run<?,?> from, Run<?,?> to) throws IOException, InterruptedException {
+        File src = from.getArtifactsDir();
+        if (!src.isDirectory())
+            return;
+        synchronized (LOCK) {    // the source blobs mustn't go away in the mean time
+            linkTree(src,to.getArtifactsDir());
+        }
+
+        if (!isEnabled())
+            return;
+        Map<String,Entry> manifest = loadManifest(from);
+        if (manifest.isEmpty())
+            get().add(to);
+        else    // the new files are links to the same blobs
+            writeManifest(getManifestFile(to),new ArrayList<Entry>(manifest.values()));
+    }
+
+    private static void linkTree(File src, File dst) throws IOException, InterruptedException {
+        File[] children = src.listFiles();
+        if (children==null)     return;
+        dst.mkdirs();
+        for (File child : children) {
+            File target = new File(dst,child.getName());
+            String symlink = Util.resolveSymlink(child,TaskListener.NULL);
+            if (symlink!=null)
+                Util.createSymlink(dst,symlink,child.getName(),TaskListener.NULL);
+            else if (child.isDirectory())
+                linkTree(child,target);
+            else if (Functions.isWindows() || !link(child,target))
+                FileUtils.copyFile(child,target);
+        }
+    }
+
+    private static boolean link(File existing, File link) {
+        try {
+            return LIBC.link(existing.getPath(),link.getPath())==0;
+        } catch (LinkageError e) {
+            LOGGER.log(Level.FINE, "Failed to create a hard link",e);
+            return false;
+        }
+    }
+
+    /**
+     * @return -1 if the link count cannot be determined, in which case the blob should be kept.
+     */
+    /*package*/ static int getLinkCount(File f) {
+        try {
+            return PosixAPI.get().stat(f.getPath()).nlink();
+        } catch (LinkageError e) {
+            LOGGER.log(Level.FINE, "Failed to stat "+f,e);
+            return -1;
+        }
+    }
+
+    public static File getManifestFile(Run<?,?> run) {
+        return new File(run.getRootDir(),"artifacts.manifest");
+    }
+
+    /**
+     * Loads the manifest of the given build.
+     *
+     * @return
+     *      map from the relative path in the artifacts directory to the entry.
+     *      Empty if the build didn't archive its artifacts into the store.
+     */
+    public static Map<String,Entry> loadManifest(Run<?,?> run) throws IOException {
+        File f = getManifestFile(run);
+        if (!f.exists())
+            return Collections.emptyMap();
+
+        Map<String,Entry> r = new LinkedHashMap<String,Entry>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(f),"UTF-8"));
+        try {
+            String line;
+            while ((line=in.readLine())!=null) {
+                // md5 size timestamp path
+                String[] tokens = line.split(" ",4);
+                if (tokens.length<4)    continue;
+                try {
+                    r.put(tokens[3],new Entry(tokens[3],tokens[0],Long.parseLong(tokens[1]),Long.parseLong(tokens[2])));
+                } catch (NumberFormatException e) {
+                    LOGGER.warning("Corrupt manifest entry in "+f+": "+line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return r;
+    }
+
+    private static void writeManifest(File f, List<Entry> entries) throws IOException {
+        AtomicFileWriter w = new AtomicFileWriter(f,"UTF-8");
+        try {
+            PrintWriter out = new PrintWriter(w);
+            for (Entry e : entries)
+                out.println(e.md5+' '+e.size+' '+e.lastModified+' '+e.path);
+            out.flush();
+            w.commit();
+        } finally {
+            w.abort();
+        }
+    }
+
+    /**
+     * One archived file.
+     */
+    public static final class Entry implements Serializable {
+        /**
+         * '/'-separated path relative to the artifacts directory.
+         */
+        public final String path;
+        public final String md5;
+        public final long size;
+        /**
+         * Timestamp of the file when it was archived.
+         */
+        public final long lastModified;
+
+        public Entry(String path, String md5, long size, long lastModified) {
+            this.path = path;
+            this.md5 = md5;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Returns true if the given file looks unchanged since this entry was recorded.
+         */
+        public boolean matches(File f) {
+            return f.length()==size && f.lastModified()==lastModified;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Serializes adding and removing links to blobs, so that a blob doesn't get deleted
+     * while it's being linked from a new build.
+     */
+    private static final Object LOCK = new Object();
+
+    /**
+     * Sweeps the blobs that {@link #release(Collection)} didn't get to.
+     */
+    @Extension
+    public static final class SweeperImpl extends AsyncPeriodicWork {
+        public SweeperImpl() {
+            super("Artifact store sweep");
+        }
+
+        public long getRecurrencePeriod() {
+            return DAY;
+        }
+
+        protected void execute(TaskListener listener) {
+            if (!isEnabled())   return;
+            int n = get().sweep();
+            listener.getLogger().println("Deleted "+n+" unreferenced artifacts");
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ArtifactStore.class.getName());
+
+    /**
+     * Set to true to store archived artifacts in {@link ArtifactStore}.
+     */
+    public static boolean ENABLED = Boolean.getBoolean(ArtifactStore.class.getName()+".enabled");
+}
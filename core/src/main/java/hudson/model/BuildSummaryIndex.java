@@ -0,0 +1,557 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2011, Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.model;
+
+import hudson.Util;
+import hudson.util.IOException2;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static javax.xml.stream.XMLStreamConstants.*;
+
+/**
+ * Compact summary of the builds of a {@link Job}, so that the build number, timestamp,
+ * duration and {@link Result} can be obtained without unmarshalling build.xml.
+ *
+ * <p>
+ * The index is kept in a binary file next to the "builds" directory, which is a header
+ * followed by fixed-width records. Records are only ever appended: every {@link Run#save()}
+ * appends the current state of that build, and {@link Run#delete()} appends a tombstone,
+ * so the last record of any given build number wins. The file is compacted once it
+ * accumulates too many superseded records.
+ *
+ * <p>
+ * If the file is missing (such as right after an upgrade) or turns out to be corrupted,
+ * the index is rebuilt from the build records on disk.
+ *
+ * @author Kohsuke Kawaguchi
+ * @see Job#getBuildSummaries()
+ */
+public final class BuildSummaryIndex {
+    private final Job<?,?> job;
+
+    /**
+     * Build number to the latest record, newest first. Copy-on-write.
+     * Null until loaded.
+     */
+    private volatile SortedMap<Integer,Record> records;
+
+    /**
+     * Number of records in the file, including superseded ones.
+     */
+    private int fileRecords;
+
+    /*package*/ BuildSummaryIndex(Job<?,?> job) {
+        this.job = job;
+    }
+
+    /**
+     * Location of the index file.
+     */
+    public File getFile() {
+        return new File(job.getRootDir(),"buildSummaries.idx");
+    }
+
+    /**
+     * Gets all the records, keyed by build number, newest first.
+     */
+    public SortedMap<Integer,Record> getRecords() {
+        SortedMap<Integer,Record> r = records;
+        if (r==null) {
+            synchronized (this) {
+                if (records==null)
+                    load();
+                r = records;
+            }
+        }
+        return Collections.unmodifiableSortedMap(r);
+    }
+
+    /**
+     * Gets the record of the given build, or null if there's no such build.
+     */
+    public Record get(int number) {
+        return getRecords().get(number);
+    }
+
+    /**
+     * Finds the newest completed build older than the given build number, whose result
+     * is between the given two (inclusive.)
+     *
+     * @param before
+     *      Only look at the builds whose number is smaller than this.
+     *      Pass in {@link Integer#MAX_VALUE} to look at all the builds.
+     * @param orNull
+     *      If true, a completed build without a result matches, too.
+     * @return
+     *      null if no such build exists.
+     */
+    public Record findLast(int before, Result best, Result worst, boolean orNull) {
+        for (Record r : getRecords().tailMap(before-1).values()) {
+            if (r.isBuilding())   continue;
+            if (matches(r.getResult(),best,worst,orNull))
+                return r;
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if the given result of a completed build is between the given two (inclusive.)
+     * Shared with {@link Job} so that builds are picked the same way with or without the index.
+     *
+     * @param orNull
+     *      What to return if the result is null.
+     */
+    /*package*/ static boolean matches(Result res, Result best, Result worst, boolean orNull) {
+        if (res==null)  return orNull;
+        return res.isBetterOrEqualTo(worst) && res.isWorseOrEqualTo(best);
+    }
+
+    /**
+     * Gets the record of the last successful build, without loading any build.
+     *
+     * @see Job#getLastSuccessfulBuild()
+     */
+    public Record getLastSuccessful() {
+        return findLast(Integer.MAX_VALUE,Result.SUCCESS,Result.UNSTABLE,false);
+    }
+
+    /**
+     * Gets the record of the last stable build, without loading any build.
+     *
+     * @see Job#getLastStableBuild()
+     */
+    public Record getLastStable() {
+        return findLast(Integer.MAX_VALUE,Result.SUCCESS,Result.SUCCESS,false);
+    }
+
+    /**
+     * Gets the record of the last failed build, without loading any build.
+     *
+     * @see Job#getLastFailedBuild()
+     */
+    public Record getLastFailed() {
+        return findLast(Integer.MAX_VALUE,Result.FAILURE,Result.FAILURE,false);
+    }
+
+    /**
+     * Records the current state of the build.
+     */
+    public synchronized void update(Run<?,?> run) {
+        if (records==null)  load();
+        Record r = new Record(run);
+        SortedMap<Integer,Record> m = new TreeMap<Integer,Record>(records);
+        m.put(r.number,r);
+        records = m;
+        append(r);
+    }
+
+    /**
+     * Records that the given build is deleted.
+     */
+    public synchronized void remove(int number) {
+        if (records==null)  load();
+        SortedMap<Integer,Record> m = new TreeMap<Integer,Record>(records);
+        if (m.remove(number)==null)
+            return;
+        records = m;
+        append(new Record(job,number,0,0,null,DELETED));
+    }
+
+    /**
+     * Makes sure that the index covers exactly the given set of build numbers,
+     * and rebuild it otherwise. Called when the job is loaded.
+     */
+    public synchronized void verify(RunMap<?> runs) {
+        if (records==null)  load();
+        if (records.keySet().equals(runs.keySet()) && !hasBuildingRecord())
+            return;
+
+        LOGGER.info("Build summary index of "+job.getFullName()+" is out of date. Rebuilding");
+        if (runs.isLazy())
+            rebuild();
+        else
+            rebuild(runs.values());
+    }
+
+    /**
+     * Nothing is in progress when a job is loaded, so records that say otherwise
+     * are left behind by an unclean shutdown.
+     */
+    private boolean hasBuildingRecord() {
+        for (Record r : records.values())
+            if (r.isBuilding())
+                return true;
+        return false;
+    }
+
+    /**
+     * Rebuilds the index from the build records on disk.
+     */
+    public synchronized void rebuild() {
+        SortedMap<Integer,Record> m = new TreeMap<Integer,Record>(RunMap.COMPARATOR);
+        File[] dirs = job.getBuildDir().listFiles();
+        if (dirs!=null) {
+            for (File dir : dirs) {
+                File xml = new File(dir,"build.xml");
+                if (!xml.exists())  continue;
+                try {
+                    Record r = scan(job, xml, Run.parseTimestampFromBuildDir(dir));
+                    if (r!=null)
+                        m.put(r.number,r);
+                } catch (IOException e) {
+                    // this includes the "number -> ID" symlinks, which don't parse as a timestamp
+                    LOGGER.log(Level.FINE, "Skipping "+dir, e);
+                }
+            }
+        }
+        replace(m);
+    }
+
+    /**
+     * Rebuilds the index from the builds already in memory.
+     */
+    public synchronized void rebuild(Collection<? extends Run<?,?>> runs) {
+        SortedMap<Integer,Record> m = new TreeMap<Integer,Record>(RunMap.COMPARATOR);
+        for (Run<?,?> r : runs)
+            m.put(r.getNumber(),new Record(r));
+        replace(m);
+    }
+
+    private void load() {
+        File f = getFile();
+        if (!f.exists()) {
+            rebuild();
+            return;
+        }
+
+        SortedMap<Integer,Record> m = new TreeMap<Integer,Record>(RunMap.COMPARATOR);
+        int n = 0;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            try {
+                if (in.readInt()!=MAGIC)
+                    throw new IOException("Not a build summary index: "+f);
+                if (f.length()%RECORD_SIZE!=HEADER_SIZE%RECORD_SIZE)
+                    throw new IOException("Truncated build summary index: "+f);
+                while (true) {
+                    Record r;
+                    try {
+                        r = Record.read(job,in);
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    n++;
+                    if ((r.flags&DELETED)!=0)
+                        m.remove(r.number);
+                    else
+                        m.put(r.number,r);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load the build summary index. Rebuilding", e);
+            rebuild();
+            return;
+        }
+        records = m;
+        fileRecords = n;
+    }
+
+    private void append(Record r) {
+        if (fileRecords > records.size()*2+16) {
+            // too many superseded records
+            replace(records);
+            return;
+        }
+
+        File f = getFile();
+        try {
+            boolean fresh = !f.exists();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f,true)));
+            try {
+                if (fresh)
+                    out.writeInt(MAGIC);
+                r.write(out);
+            } finally {
+                out.close();
+            }
+            fileRecords++;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to update "+f, e);
+            // the index is still accurate in memory, so try to bring the file back in sync
+            f.delete();
+            replace(records);
+        }
+    }
+
+    /**
+     * Replaces the whole index with the given records and writes it out.
+     */
+    private void replace(SortedMap<Integer,Record> m) {
+        records = m;
+        File f = getFile();
+        File tmp = new File(f.getPath()+".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                for (Record r : m.values())
+                    r.write(out);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(f)) {
+                f.delete();
+                if (!tmp.renameTo(f))
+                    throw new IOException("Failed to rename "+tmp+" to "+f);
+            }
+            fileRecords = m.size();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to write "+f, e);
+            tmp.delete();
+            // leave no file behind so that the index is rebuilt next time
+            f.delete();
+        }
+    }
+
+    /**
+     * Reads a record from the top-level elements of build.xml without unmarshalling the whole thing.
+     *
+     * @return
+     *      null if build.xml doesn't have the build number.
+     */
+    /*package*/ static Record scan(Job<?,?> job, File xml, long timestamp) throws IOException {
+        Integer number = null;
+        long duration = 0;
+        Result result = null;
+        byte flags = 0;
+
+        InputStream in = new BufferedInputStream(new FileInputStream(xml));
+        try {
+            XMLStreamReader r = XML_INPUT_FACTORY.createXMLStreamReader(in);
+            try {
+                int depth = 0;
+                while (r.hasNext()) {
+                    switch (r.next()) {
+                    case START_ELEMENT:
+                        depth++;
+                        if (depth==2) {
+                            String name = r.getLocalName();
+                            if (name.equals("number")) {
+                                number = Integer.valueOf(r.getElementText().trim());
+                                depth--;
+                            } else
+                            if (name.equals("duration")) {
+                                duration = Long.parseLong(r.getElementText().trim());
+                                depth--;
+                            } else
+                            if (name.equals("result")) {
+                                result = Result.fromString(r.getElementText().trim());
+                                depth--;
+                            } else
+                            if (name.equals("displayName")) {
+                                flags |= CUSTOM_DISPLAY_NAME;
+                            }
+                        }
+                        break;
+                    case END_ELEMENT:
+                        depth--;
+                        break;
+                    }
+                }
+            } finally {
+                r.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException2("Failed to parse "+xml,e);
+        } catch (NumberFormatException e) {
+            throw new IOException2("Failed to parse "+xml,e);
+        } finally {
+            in.close();
+        }
+
+        if (number==null)   return null;
+        return new Record(job,number,timestamp,duration,result,flags);
+    }
+
+    /**
+     * Summary of one build.
+     */
+    public static final class Record {
+        private final Job<?,?> job;
+        private final int number;
+        private final long timestamp;
+        private final long duration;
+        private final Result result;
+        private final byte flags;
+
+        /*package*/ Record(Job<?,?> job, int number, long timestamp, long duration, Result result, byte flags) {
+            this.job = job;
+            this.number = number;
+            this.timestamp = timestamp;
+            this.duration = duration;
+            this.result = result;
+            this.flags = flags;
+        }
+
+        /*package*/ Record(Run<?,?> r) {
+            this(r.getParent(), r.getNumber(), r.getTimeInMillis(), r.getDuration(), r.getResult(),
+                    (byte)((r.isBuilding()?BUILDING:0) | (r.hasCustomDisplayName()?CUSTOM_DISPLAY_NAME:0)));
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public long getTimeInMillis() {
+            return timestamp;
+        }
+
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * Null if the build was in progress when the record was written.
+         */
+        public Result getResult() {
+            return result;
+        }
+
+        /**
+         * True if the build was in progress when the record was written.
+         */
+        public boolean isBuilding() {
+            return (flags&BUILDING)!=0;
+        }
+
+        /**
+         * If true, the build has a custom display name, which this record doesn't carry.
+         */
+        public boolean hasCustomDisplayName() {
+            return (flags&CUSTOM_DISPLAY_NAME)!=0;
+        }
+
+        /**
+         * Loads the build only if it has a custom display name.
+         *
+         * @see Run#getDisplayName()
+         */
+        public String getDisplayName() {
+            if (hasCustomDisplayName()) {
+                Run<?,?> r = job.getBuildByNumber(number);
+                if (r!=null)
+                    return r.getDisplayName();
+            }
+            return "#"+number;
+        }
+
+        /**
+         * @see Run#getUrl()
+         */
+        public String getUrl() {
+            return job.getUrl()+number+'/';
+        }
+
+        /**
+         * @see Run#getTimestampString()
+         */
+        public String getTimestampString() {
+            return Util.getPastTimeString(System.currentTimeMillis()-timestamp);
+        }
+
+        /**
+         * @see Run#getTimestampString2()
+         */
+        public String getTimestampString2() {
+            return Util.XS_DATETIME_FORMATTER.format(new Date(timestamp));
+        }
+
+        /**
+         * @see Run#getDurationString()
+         */
+        public String getDurationString() {
+            return Util.getTimeSpanString(duration);
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeInt(number);
+            out.writeLong(timestamp);
+            out.writeLong(duration);
+            out.writeByte(result==null ? -1 : result.ordinal);
+            out.writeByte(flags);
+            out.writeShort(0);  // reserved
+        }
+
+        private static Record read(Job<?,?> job, DataInputStream in) throws IOException {
+            int number = in.readInt();
+            long timestamp = in.readLong();
+            long duration = in.readLong();
+            byte result = in.readByte();
+            byte flags = in.readByte();
+            in.readShort();
+            if (result<-1 || result>=RESULTS.length)
+                throw new IOException("Unknown result "+result+" in the record of build #"+number);
+            return new Record(job,number,timestamp,duration,result<0 ? null : RESULTS[result],flags);
+        }
+    }
+
+    private static final Result[] RESULTS = {
+        Result.SUCCESS, Result.UNSTABLE, Result.FAILURE, Result.NOT_BUILT, Result.ABORTED
+    };
+
+    private static final int MAGIC = 0x48425349; // "HBSI"
+    private static final int HEADER_SIZE = 4;
+    private static final int RECORD_SIZE = 24;
+
+    private static final byte BUILDING = 1;
+    private static final byte DELETED = 2;
+    private static final byte CUSTOM_DISPLAY_NAME = 4;
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    private static final Logger LOGGER = Logger.getLogger(BuildSummaryIndex.class.getName());
+}
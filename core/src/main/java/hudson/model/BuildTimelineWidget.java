@@ -59,9 +59,18 @@ public class BuildTimelineWidget {
         return builds.getLastBuild();
     }
 
+    /**
+     * Gets the builds in the given period, in the descending order.
+     *
+     * @since 1.398
+     */
+    protected RunList<?> getBuildsByTimestamp(long min, long max) {
+        return builds.byTimestamp(min,max);
+    }
+
     public TimelineEventList doData(StaplerRequest req, @QueryParameter long min, @QueryParameter long max) throws IOException {
         TimelineEventList result = new TimelineEventList();
-        for (Run r : builds.byTimestamp(min,max)) {
+        for (Run r : getBuildsByTimestamp(min,max)) {
             Event e = new Event();
             e.start = r.getTime();
             e.end   = new Date(r.timestamp+r.getDuration());
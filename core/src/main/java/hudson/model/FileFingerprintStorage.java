@@ -0,0 +1,136 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.model;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.util.Iterators.FlattenIterator;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Stores each {@link Fingerprint} as an XML file in {@code $HUDSON_HOME/fingerprints/xx/yy/},
+ * which is how fingerprints were stored before {@link FingerprintStorage} was introduced.
+ *
+ * <p>
+ * This implementation is used when {@link IndexedFingerprintStorage} is disabled,
+ * and it's also what {@link IndexedFingerprintStorage} migrates the existing records from.
+ *
+ * @author Kohsuke Kawaguchi
+ * @since 1.398
+ */
+@Extension(ordinal=-100)
+public class FileFingerprintStorage extends FingerprintStorage {
+    public Fingerprint load(byte[] md5sum) throws IOException {
+        return Fingerprint.load(Fingerprint.getFingerprintFile(md5sum));
+    }
+
+    public void save(Fingerprint fp) throws IOException {
+        byte[] md5sum = Util.fromHexString(fp.getHashString());
+        getConfigFile(md5sum).write(fp);
+    }
+
+    @Override
+    public XmlFile getConfigFile(byte[] md5sum) {
+        return Fingerprint.getConfigFile(Fingerprint.getFingerprintFile(md5sum));
+    }
+
+    public boolean delete(byte[] md5sum) throws IOException {
+        File file = Fingerprint.getFingerprintFile(md5sum);
+        if(!file.delete())
+            return false;
+        File dir2 = file.getParentFile();
+        deleteIfEmpty(dir2);
+        deleteIfEmpty(dir2.getParentFile());
+        return true;
+    }
+
+    public Iterable<byte[]> keys() {
+        return new Iterable<byte[]>() {
+            public Iterator<byte[]> iterator() {
+                return new FlattenIterator<byte[],File>(listFiles(getRootDir(),LENGTH2DIR_FILTER)) {
+                    protected Iterator<byte[]> expand(final File dir1) {
+                        return new FlattenIterator<byte[],File>(listFiles(dir1,LENGTH2DIR_FILTER)) {
+                            protected Iterator<byte[]> expand(File dir2) {
+                                List<File> files = listFiles(dir2,FINGERPRINTFILE_FILTER);
+                                byte[][] keys = new byte[files.size()][];
+                                for (int i=0; i<keys.length; i++) {
+                                    String name = files.get(i).getName();
+                                    keys[i] = Util.fromHexString(dir1.getName()+dir2.getName()+name.substring(0,name.length()-4));
+                                }
+                                return Arrays.asList(keys).iterator();
+                            }
+                        };
+                    }
+                };
+            }
+        };
+    }
+
+    public boolean isReady() {
+        return getRootDir().exists();
+    }
+
+    /*package*/ static File getRootDir() {
+        return new File(Hudson.getInstance().getRootDir(),"fingerprints");
+    }
+
+    private static List<File> listFiles(File dir, FileFilter filter) {
+        File[] files = dir.listFiles(filter);
+        if(files==null)     return Collections.emptyList();
+        return Arrays.asList(files);
+    }
+
+    /**
+     * Deletes a directory if it's empty.
+     */
+    private static void deleteIfEmpty(File dir) {
+        String[] r = dir.list();
+        if(r==null)     return; // can happen in a rare occasion
+        if(r.length==0)
+            dir.delete();
+    }
+
+    private static final FileFilter LENGTH2DIR_FILTER = new FileFilter() {
+        public boolean accept(File f) {
+            return f.isDirectory() && f.getName().length()==2;
+        }
+    };
+
+    private static final FileFilter FINGERPRINTFILE_FILTER = new FileFilter() {
+        private final Pattern PATTERN = Pattern.compile("[0-9a-f]{28}\\.xml");
+
+        public boolean accept(File f) {
+            return f.isFile() && PATTERN.matcher(f.getName()).matches();
+        }
+    };
+}
@@ -655,15 +655,58 @@ public class Fingerprint implements ModelObject, Saveable {
      * Records that a build of a job has used this file.
      */
     public synchronized void add(String jobFullName, int n) throws IOException {
+        if(addUsage(jobFullName,n))
+            Hudson.getInstance().getFingerprintMap().getUsageIndex().add(jobFullName,md5sum);
+        save();
+    }
+
+    /**
+     * Records the usage in memory only, leaving {@link FingerprintUsageIndex} and the disk
+     * to the caller, which is {@link FingerprintWriter}.
+     *
+     * @return
+     *      true if this is the first time the job is recorded.
+     */
+    /*package*/ synchronized boolean addUsage(String jobFullName, int n) {
         synchronized(usages) {
             RangeSet r = usages.get(jobFullName);
-            if(r==null) {
+            boolean newJob = r==null;
+            if(newJob) {
                 r = new RangeSet();
                 usages.put(jobFullName,r);
             }
             r.add(n);
+            return newJob;
         }
-        save();
+    }
+
+    /**
+     * Moves the usages recorded under the old name of a renamed job to its new name.
+     *
+     * @return
+     *      false if the old name isn't recorded here.
+     */
+    /*package*/ synchronized boolean rename(String oldFullName, String newFullName) {
+        synchronized(usages) {
+            RangeSet r = usages.remove(oldFullName);
+            if(r==null)     return false;
+            RangeSet existing = usages.get(newFullName);
+            if(existing!=null)
+                existing.add(r);
+            else
+                usages.put(newFullName,r);
+            return true;
+        }
+    }
+
+    /**
+     * Gets the fingerprints that record usages by the given job,
+     * as found in {@link FingerprintUsageIndex}.
+     *
+     * @since 1.398
+     */
+    public static List<Fingerprint> getUsedBy(Job job) throws IOException {
+        return Hudson.getInstance().getFingerprintMap().getUsedBy(job.getFullName());
     }
 
     /**
@@ -700,12 +743,14 @@ public class Fingerprint implements ModelObject, Saveable {
         if(logger.isLoggable(Level.FINE))
             start = System.currentTimeMillis();
 
-        File file = getFingerprintFile(md5sum);
-        getConfigFile(file).write(this);
-        SaveableListener.fireOnChange(this, getConfigFile(file));
+        FingerprintStorage storage = FingerprintStorage.get();
+        storage.save(this);
+        XmlFile file = storage.getConfigFile(md5sum);
+        if(file!=null)
+            SaveableListener.fireOnChange(this, file);
 
         if(logger.isLoggable(Level.FINE))
-            logger.fine("Saving fingerprint "+file+" took "+(System.currentTimeMillis()-start)+"ms");
+            logger.fine("Saving fingerprint "+getHashString()+" took "+(System.currentTimeMillis()-start)+"ms");
     }
 
     public Api getApi() {
@@ -715,25 +760,29 @@ public class Fingerprint implements ModelObject, Saveable {
     /**
      * The file we save our configuration.
      */
-    private static XmlFile getConfigFile(File file) {
+    /*package*/ static XmlFile getConfigFile(File file) {
         return new XmlFile(XSTREAM,file);
     }
 
     /**
      * Determines the file name from md5sum.
      */
-    private static File getFingerprintFile(byte[] md5sum) {
+    /*package*/ static File getFingerprintFile(byte[] md5sum) {
         assert md5sum.length==16;
         return new File( Hudson.getInstance().getRootDir(),
             "fingerprints/"+ Util.toHexString(md5sum,0,1)+'/'+Util.toHexString(md5sum,1,1)+'/'+Util.toHexString(md5sum,2,md5sum.length-2)+".xml");
     }
 
     /**
-     * Loads a {@link Fingerprint} from a file in the image.
+     * Loads a {@link Fingerprint} from the {@link FingerprintStorage}.
      */
     /*package*/ static Fingerprint load(byte[] md5sum) throws IOException {
-        return load(getFingerprintFile(md5sum));
+        return FingerprintStorage.get().load(md5sum);
     }
+
+    /**
+     * Loads a {@link Fingerprint} from a file in the layout of {@link FileFingerprintStorage}.
+     */
     /*package*/ static Fingerprint load(File file) throws IOException {
         XmlFile configFile = getConfigFile(file);
         if(!configFile.exists())
@@ -765,7 +814,7 @@ public class Fingerprint implements ModelObject, Saveable {
         }
     }
 
-    private static final XStream XSTREAM = new XStream2();
+    /*package*/ static final XStream XSTREAM = new XStream2();
     static {
         XSTREAM.alias("fingerprint",Fingerprint.class);
         XSTREAM.alias("range",Range.class);
@@ -24,12 +24,17 @@
 package hudson.model;
 
 import hudson.Extension;
+import hudson.Util;
 
-import java.io.File;
-import java.io.FileFilter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 import java.util.logging.Level;
-import java.util.regex.Pattern;
 
 /**
  * Scans the fingerprint database and remove old records
@@ -39,6 +44,10 @@ import java.util.regex.Pattern;
  * A {@link Fingerprint} is removed when none of the builds that
  * it point to is available in the records.
  *
+ * <p>
+ * Once {@link FingerprintUsageIndex} is built, only the fingerprints of the jobs
+ * that lost builds since the last run are examined.
+ *
  * @author Kohsuke Kawaguchi
  */
 @Extension
@@ -60,65 +69,103 @@ public final class FingerprintCleanupThread extends AsyncPeriodicWork {
     }
 
     protected void execute(TaskListener listener) {
-        int numFiles = 0;
+        FingerprintStorage storage = FingerprintStorage.get();
+        FingerprintUsageIndex index = Hudson.getInstance().getFingerprintMap().getUsageIndex();
 
-        File root = new File(Hudson.getInstance().getRootDir(),"fingerprints");
-        File[] files1 = root.listFiles(LENGTH2DIR_FILTER);
-        if(files1!=null) {
-            for (File file1 : files1) {
-                File[] files2 = file1.listFiles(LENGTH2DIR_FILTER);
-                for(File file2 : files2) {
-                    File[] files3 = file2.listFiles(FINGERPRINTFILE_FILTER);
-                    for(File file3 : files3) {
-                        if(check(file3))
-                            numFiles++;
-                    }
-                    deleteIfEmpty(file2);
-                }
-                deleteIfEmpty(file1);
-            }
-        }
+        int numFiles;
+        if(index.isComplete())
+            numFiles = cleanChangedJobs(index);
+        else
+            numFiles = cleanAll(storage,index);
 
         logger.log(Level.INFO, "Cleaned up "+numFiles+" records");
-    }
 
-    /**
-     * Deletes a directory if it's empty.
-     */
-    private void deleteIfEmpty(File dir) {
-        String[] r = dir.list();
-        if(r==null)     return; // can happen in a rare occasion
-        if(r.length==0)
-            dir.delete();
+        try {
+            storage.maintain(listener);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to maintain "+storage, e);
+        }
     }
 
     /**
-     * Examines the file and returns true if a file was deleted.
+     * Goes through all the fingerprints, and rebuilds {@link FingerprintUsageIndex} along the way.
      */
-    private boolean check(File fingerprintFile) {
+    private int cleanAll(FingerprintStorage storage, FingerprintUsageIndex index) {
+        int numFiles = 0;
+        Set<String> changed = index.getChangedJobs();
         try {
-            Fingerprint fp = Fingerprint.load(fingerprintFile);
-            if(!fp.isAlive()) {
-                fingerprintFile.delete();
-                return true;
+            // fingerprints not saved yet are indexed as they get saved
+            Hudson.getInstance().getFingerprintMap().getWriter().resetUsageIndex();
+            for (byte[] md5sum : storage.keys()) {
+                try {
+                    Fingerprint fp = storage.load(md5sum);
+                    if(fp==null)    continue;
+                    if(!fp.isAlive()) {
+                        if(storage.delete(md5sum))
+                            numFiles++;
+                    } else {
+                        for (String job : fp.getJobs())
+                            index.add(job,md5sum);
+                    }
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Failed to process "+Util.toHexString(md5sum), e);
+                }
             }
+            index.markComplete();
+            index.clearChanged(changed);
         } catch (IOException e) {
-            logger.log(Level.WARNING, "Failed to process "+fingerprintFile, e);
+            logger.log(Level.WARNING, "Failed to list fingerprints in "+storage, e);
         }
-        return false;
+        return numFiles;
     }
 
-    private static final FileFilter LENGTH2DIR_FILTER = new FileFilter() {
-        public boolean accept(File f) {
-            return f.isDirectory() && f.getName().length()==2;
-        }
-    };
+    /**
+     * Only examines the fingerprints used by jobs that lost some builds since the last time.
+     */
+    private int cleanChangedJobs(FingerprintUsageIndex index) {
+        int numFiles = 0;
+        FingerprintMap map = Hudson.getInstance().getFingerprintMap();
+        FingerprintStorage storage = FingerprintStorage.get();
 
-    private static final FileFilter FINGERPRINTFILE_FILTER = new FileFilter() {
-        private final Pattern PATTERN = Pattern.compile("[0-9a-f]{28}\\.xml");
+        Set<String> changed = index.getChangedJobs();
+        Set<String> examined = new HashSet<String>();
+        Map<String,List<String>> removed = new HashMap<String,List<String>>();
+        for (String job : changed) {
+            for (String md5sum : index.get(job)) {
+                if(!examined.add(md5sum))   continue;
+                try {
+                    // go through the map to see the changes that haven't been saved yet
+                    Fingerprint fp = map.get(md5sum);
+                    if(fp==null) {
+                        remove(removed,job,md5sum);
+                        continue;
+                    }
+                    if(!fp.isAlive() && storage.delete(Util.fromHexString(md5sum))) {
+                        numFiles++;
+                        for (String j : fp.getJobs())
+                            remove(removed,j,md5sum);
+                    }
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Failed to process "+md5sum, e);
+                }
+            }
+        }
 
-        public boolean accept(File f) {
-            return f.isFile() && PATTERN.matcher(f.getName()).matches();
+        for (Entry<String,List<String>> e : removed.entrySet()) {
+            try {
+                index.remove(e.getKey(),e.getValue());
+            } catch (IOException x) {
+                logger.log(Level.WARNING, "Failed to update the fingerprint index of "+e.getKey(), x);
+            }
         }
-    };
+        index.clearChanged(changed);
+        return numFiles;
+    }
+
+    private static void remove(Map<String,List<String>> removed, String job, String md5sum) {
+        List<String> l = removed.get(job);
+        if(l==null)
+            removed.put(job,l=new ArrayList<String>());
+        l.add(md5sum);
+    }
 }
@@ -27,8 +27,9 @@ import hudson.Util;
 import hudson.diagnosis.OldDataMonitor;
 import hudson.util.KeyedDataStorage;
 
-import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -53,11 +54,52 @@ public final class FingerprintMap extends KeyedDataStorage<Fingerprint,Fingerpri
      */
     private transient ConcurrentHashMap<String,Object> core = new ConcurrentHashMap<String,Object>();
 
+    private transient FingerprintWriter writer;
+
+    /**
+     * Gets the object that records fingerprint usages in the background.
+     *
+     * @since 1.398
+     */
+    public synchronized FingerprintWriter getWriter() {
+        if(writer==null)
+            writer = new FingerprintWriter(this);
+        return writer;
+    }
+
+    private transient FingerprintUsageIndex usageIndex;
+
+    /**
+     * Gets the index from jobs to the fingerprints that record their usages.
+     *
+     * @since 1.398
+     */
+    public synchronized FingerprintUsageIndex getUsageIndex() {
+        if(usageIndex==null)
+            usageIndex = new FingerprintUsageIndex();
+        return usageIndex;
+    }
+
+    /**
+     * Gets the fingerprints that record usages by the given job.
+     *
+     * @since 1.398
+     */
+    public List<Fingerprint> getUsedBy(String jobFullName) throws IOException {
+        List<Fingerprint> r = new ArrayList<Fingerprint>();
+        for (String md5sum : getUsageIndex().get(jobFullName)) {
+            Fingerprint fp = get(md5sum);
+            if(fp!=null)
+                r.add(fp);
+        }
+        return r;
+    }
+
     /**
      * Returns true if there's some data in the fingerprint database.
      */
     public boolean isReady() {
-        return new File(Hudson.getInstance().getRootDir(),"fingerprints").exists();
+        return FingerprintStorage.get().isReady();
     }
 
     /**
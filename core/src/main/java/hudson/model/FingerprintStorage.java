@@ -0,0 +1,127 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.model;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import hudson.XmlFile;
+import hudson.model.listeners.SaveableListener;
+
+import java.io.IOException;
+
+/**
+ * Persists {@link Fingerprint}s.
+ *
+ * <p>
+ * {@link FingerprintMap} takes care of caching and of making sure that there's only
+ * one {@link Fingerprint} object per checksum, so implementations only need to move
+ * the records to and from the storage.
+ *
+ * <p>
+ * The first enabled implementation (in the order of {@link hudson.Extension#ordinal()})
+ * is used. Core has {@link IndexedFingerprintStorage}, which is the default, and
+ * {@link FileFingerprintStorage}, the one-file-per-fingerprint layout of earlier versions.
+ *
+ * @author Kohsuke Kawaguchi
+ * @since 1.398
+ * @see #get()
+ */
+public abstract class FingerprintStorage implements ExtensionPoint {
+    /**
+     * Loads the fingerprint of the given checksum.
+     *
+     * @return
+     *      null if no such fingerprint is stored.
+     */
+    public abstract Fingerprint load(byte[] md5sum) throws IOException;
+
+    /**
+     * Persists the current state of the fingerprint, replacing the previous one.
+     */
+    public abstract void save(Fingerprint fp) throws IOException;
+
+    /**
+     * Removes the fingerprint of the given checksum.
+     *
+     * @return
+     *      false if no such fingerprint was stored.
+     */
+    public abstract boolean delete(byte[] md5sum) throws IOException;
+
+    /**
+     * Lists the checksums of all the stored fingerprints.
+     *
+     * <p>
+     * The iteration need not be a consistent snapshot, but it must tolerate
+     * concurrent {@link #save(Fingerprint)} and {@link #delete(byte[])} calls.
+     */
+    public abstract Iterable<byte[]> keys() throws IOException;
+
+    /**
+     * Gets the XML file that holds the fingerprint, to be reported to {@link SaveableListener}s.
+     *
+     * @return
+     *      null if this storage doesn't keep each fingerprint in its own file,
+     *      in which case the listeners aren't notified.
+     */
+    public XmlFile getConfigFile(byte[] md5sum) {
+        return null;
+    }
+
+    /**
+     * Returns true if there's some data in this storage.
+     */
+    public abstract boolean isReady();
+
+    /**
+     * Returns false to have this storage skipped by {@link #get()}.
+     */
+    public boolean isEnabled() {
+        return true;
+    }
+
+    /**
+     * Called periodically by {@link FingerprintCleanupThread} after it has removed
+     * the obsolete fingerprints, to reorganize the storage as necessary.
+     */
+    public void maintain(TaskListener listener) throws IOException {
+    }
+
+    /**
+     * Returns all the registered {@link FingerprintStorage}s.
+     */
+    public static ExtensionList<FingerprintStorage> all() {
+        return Hudson.getInstance().getExtensionList(FingerprintStorage.class);
+    }
+
+    /**
+     * Returns the storage in use.
+     */
+    public static FingerprintStorage get() {
+        for (FingerprintStorage s : all())
+            if(s.isEnabled())
+                return s;
+        throw new AssertionError("No fingerprint storage is available");
+    }
+}
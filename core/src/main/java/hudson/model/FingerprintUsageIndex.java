@@ -0,0 +1,364 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.model;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.SoftReference;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persisted reverse index from job full names to the MD5 checksums of the
+ * fingerprints that list the job in {@link Fingerprint#getUsages()}.
+ *
+ * <p>
+ * {@link Fingerprint#add(String, int)} adds to this index the first time a job is
+ * recorded in a fingerprint ({@link FingerprintWriter} does so when it saves the fingerprint),
+ * so the index only ever grows on its own.
+ * {@link FingerprintCleanupThread} removes the entries of the fingerprints it deletes,
+ * and it uses {@link #getChangedJobs()} (jobs that lost builds since the last cleanup)
+ * to examine only those fingerprints that could have become obsolete.
+ *
+ * <p>
+ * When a job is renamed, its entries move to the new name, and so do its usages
+ * in the fingerprints that the index lists for it.
+ *
+ * <p>
+ * The index is built from the existing fingerprints by the first cleanup after
+ * an upgrade. Until then {@link #isComplete()} returns false, and queries may miss
+ * older fingerprints.
+ *
+ * <p>
+ * Each job has a file in {@code $HUDSON_HOME/fingerprints/usages/jobs} that's
+ * a sequence of 16-byte checksums, appended as they are added.
+ *
+ * @author Kohsuke Kawaguchi
+ * @since 1.398
+ * @see FingerprintMap#getUsageIndex()
+ */
+public final class FingerprintUsageIndex {
+    /**
+     * Checksums of the jobs recently used, in hex.
+     */
+    private final Map<String,SoftReference<Set<String>>> cache = new HashMap<String,SoftReference<Set<String>>>();
+
+    /**
+     * Jobs that lost some of their builds since the last cleanup.
+     * Loaded lazily from {@code changed.txt}.
+     */
+    private Set<String> changed;
+
+    /*package*/ FingerprintUsageIndex() {
+    }
+
+    /**
+     * Gets the checksums of the fingerprints that record usages by the given job.
+     *
+     * @return
+     *      read-only sorted set of MD5 checksums in hex. Never null.
+     */
+    public synchronized SortedSet<String> get(String jobFullName) {
+        return Collections.unmodifiableSortedSet(new TreeSet<String>(load(jobFullName)));
+    }
+
+    /**
+     * Records that the given fingerprint lists the given job.
+     */
+    public synchronized void add(String jobFullName, byte[] md5sum) {
+        Set<String> s = load(jobFullName);
+        if(!s.add(Util.toHexString(md5sum)))
+            return;     // already in the index
+        try {
+            File f = getJobFile(jobFullName);
+            f.getParentFile().mkdirs();
+            OutputStream o = new FileOutputStream(f,true);
+            try {
+                o.write(md5sum);
+            } finally {
+                o.close();
+            }
+        } catch (IOException e) {
+            // the index is one day off at worst, since the cleanup starts over from the fingerprints themselves.
+            LOGGER.log(Level.WARNING, "Failed to update the fingerprint index of "+jobFullName, e);
+            markIncomplete();
+        }
+    }
+
+    /**
+     * Removes the given fingerprints from the index of the given job.
+     */
+    public synchronized void remove(String jobFullName, Collection<String> md5sums) throws IOException {
+        Set<String> s = load(jobFullName);
+        if(!s.removeAll(md5sums))
+            return;
+        save(jobFullName,s);
+    }
+
+    /**
+     * Moves the entries of a renamed job to its new name, along with its usages
+     * in the fingerprints that list it.
+     */
+    public void rename(String oldFullName, String newFullName) throws IOException {
+        FingerprintMap map = Hudson.getInstance().getFingerprintMap();
+        // usages that are only in memory are recorded under the old name, too
+        map.getWriter().flush();
+        for (String md5sum : get(oldFullName)) {
+            Fingerprint fp = map.get(md5sum);
+            if(fp!=null && fp.rename(oldFullName,newFullName))
+                fp.save();
+        }
+
+        synchronized (this) {
+            Set<String> s = load(oldFullName);
+            if(!s.isEmpty()) {
+                Set<String> t = load(newFullName);
+                t.addAll(s);
+                save(newFullName,t);
+                s.clear();
+                save(oldFullName,s);
+            }
+            if(loadChanged().remove(oldFullName)) {
+                changed.add(newFullName);
+                saveChanged();
+            }
+        }
+    }
+
+    /**
+     * Rewrites the file of the given job.
+     */
+    private void save(String jobFullName, Set<String> s) throws IOException {
+        File f = getJobFile(jobFullName);
+        if(s.isEmpty()) {
+            f.delete();
+            cache.remove(jobFullName);
+            return;
+        }
+        f.getParentFile().mkdirs();
+        File tmp = new File(f.getPath()+".tmp");
+        OutputStream o = new FileOutputStream(tmp);
+        try {
+            for (String md5sum : s)
+                o.write(Util.fromHexString(md5sum));
+        } finally {
+            o.close();
+        }
+        if(!tmp.renameTo(f)) {
+            f.delete();
+            if(!tmp.renameTo(f))
+                throw new IOException("Failed to rename "+tmp+" to "+f);
+        }
+    }
+
+    /**
+     * Returns true if the index covers all the fingerprints.
+     */
+    public boolean isComplete() {
+        return getCompleteMarker().exists();
+    }
+
+    /**
+     * Returns the jobs whose fingerprints need to be re-examined by the cleanup.
+     */
+    public synchronized Set<String> getChangedJobs() {
+        return new TreeSet<String>(loadChanged());
+    }
+
+    /**
+     * Records that the given job lost some builds.
+     */
+    public synchronized void markChanged(String jobFullName) {
+        if(loadChanged().add(jobFullName))
+            saveChanged();
+    }
+
+    /**
+     * Called when the given jobs are taken care of by the cleanup.
+     */
+    public synchronized void clearChanged(Collection<String> jobFullNames) {
+        if(loadChanged().removeAll(jobFullNames))
+            saveChanged();
+    }
+
+    /**
+     * Throws away the index so that it can be rebuilt with {@link #add(String, byte[])}.
+     */
+    /*package*/ synchronized void reset() throws IOException {
+        markIncomplete();
+        cache.clear();
+        Util.deleteRecursive(getJobsDir());
+    }
+
+    /**
+     * Called once the index is rebuilt.
+     */
+    /*package*/ synchronized void markComplete() throws IOException {
+        getCompleteMarker().getParentFile().mkdirs();
+        FileUtils.touch(getCompleteMarker());
+    }
+
+    private void markIncomplete() {
+        getCompleteMarker().delete();
+    }
+
+    private Set<String> load(String jobFullName) {
+        SoftReference<Set<String>> ref = cache.get(jobFullName);
+        Set<String> s = ref!=null ? ref.get() : null;
+        if(s!=null)     return s;
+
+        s = new TreeSet<String>();
+        File f = getJobFile(jobFullName);
+        if(f.exists()) {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+                try {
+                    byte[] buf = new byte[16];
+                    while(true) {
+                        in.readFully(buf);
+                        s.add(Util.toHexString(buf));
+                    }
+                } catch (EOFException e) {
+                    // done. a partial entry at the end is the remnant of an interrupted write
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load the fingerprint index of "+jobFullName, e);
+                markIncomplete();
+            }
+        }
+        cache.put(jobFullName,new SoftReference<Set<String>>(s));
+        return s;
+    }
+
+    private Set<String> loadChanged() {
+        if(changed==null) {
+            changed = new TreeSet<String>();
+            File f = getChangedFile();
+            if(f.exists()) {
+                try {
+                    List<String> lines = FileUtils.readLines(f,"UTF-8");
+                    for (String line : lines)
+                        if(line.length()>0)
+                            changed.add(line);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to load "+f, e);
+                    markIncomplete();
+                }
+            }
+        }
+        return changed;
+    }
+
+    private void saveChanged() {
+        File f = getChangedFile();
+        try {
+            f.getParentFile().mkdirs();
+            FileUtils.writeLines(f,"UTF-8",changed);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save "+f, e);
+            // make the next cleanup go through everything
+            markIncomplete();
+        }
+    }
+
+    private static File getRootDir() {
+        return new File(Hudson.getInstance().getRootDir(),"fingerprints/usages");
+    }
+
+    private static File getJobsDir() {
+        return new File(getRootDir(),"jobs");
+    }
+
+    private static File getJobFile(String jobFullName) {
+        return new File(getJobsDir(),Util.rawEncode(jobFullName));
+    }
+
+    private static File getChangedFile() {
+        return new File(getRootDir(),"changed.txt");
+    }
+
+    private static File getCompleteMarker() {
+        return new File(getRootDir(),"complete");
+    }
+
+    private static FingerprintUsageIndex get() {
+        return Hudson.getInstance().getFingerprintMap().getUsageIndex();
+    }
+
+    /**
+     * Fingerprints of a build may become obsolete once it's deleted.
+     */
+    @Extension
+    public static final class RunListenerImpl extends RunListener<Run> {
+        @Override
+        public void onDeleted(Run r) {
+            get().markChanged(r.getParent().getFullName());
+        }
+    }
+
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            if(item instanceof Job)
+                get().markChanged(item.getFullName());
+        }
+
+        @Override
+        public void onRenamed(Item item, String oldName, String newName) {
+            if(!(item instanceof Job))  return;
+            String parent = item.getParent().getFullName();
+            String oldFullName = parent.length()==0 ? oldName : parent+'/'+oldName;
+            try {
+                get().rename(oldFullName,item.getFullName());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to move the fingerprint index of "+oldFullName+" to "+item.getFullName(), e);
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(FingerprintUsageIndex.class.getName());
+}
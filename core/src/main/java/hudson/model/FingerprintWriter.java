@@ -0,0 +1,531 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.model;
+
+import hudson.BulkChange;
+import hudson.Util;
+import hudson.init.Initializer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static hudson.init.InitMilestone.JOB_LOADED;
+
+/**
+ * Records fingerprint usages on behalf of builds without making them wait
+ * for every {@link Fingerprint} to be saved.
+ *
+ * <p>
+ * {@link #record(Run, Collection)} writes all the usages of a build as a single entry
+ * to a journal in {@code $HUDSON_HOME/fingerprints/journal}, updates the in-memory
+ * {@link Fingerprint}s, and returns. The journal is forced to the disk before returning,
+ * but concurrent callers share the same force ("group commit"). A background thread
+ * then saves the updated fingerprints, each one once no matter how many builds touched it
+ * in the mean time, and discards the journal that's no longer needed.
+ *
+ * <p>
+ * If Hudson dies before the fingerprints are saved, the journal is replayed
+ * when Hudson starts up again. A fingerprint that fails to save is retried with the
+ * following batches, up to {@link #MAX_SAVE_ATTEMPTS} times, after which the journals
+ * are left for the next start up to replay.
+ *
+ * @author Kohsuke Kawaguchi
+ * @since 1.398
+ * @see FingerprintMap#getWriter()
+ */
+public final class FingerprintWriter {
+    /**
+     * A file used in a build.
+     */
+    public static final class Usage {
+        public final String md5sum;
+        public final String fileName;
+        /**
+         * True if the build produced this file, as opposed to using it.
+         */
+        public final boolean produced;
+
+        public Usage(String md5sum, String fileName, boolean produced) {
+            this.md5sum = md5sum;
+            this.fileName = fileName;
+            this.produced = produced;
+        }
+    }
+
+    private final FingerprintMap map;
+
+    /**
+     * Fingerprints that are modified in memory but not saved yet.
+     * Strongly held here so that {@link FingerprintMap} keeps handing out the same objects.
+     */
+    private Set<Fingerprint> dirty = new LinkedHashSet<Fingerprint>();
+
+    /**
+     * Pairs of a job and the checksum of a fingerprint in {@link #dirty} that lists the job for the first time,
+     * to be added to {@link FingerprintUsageIndex} when the fingerprint is saved.
+     */
+    private List<String[]> newUsages = new ArrayList<String[]>();
+
+    /**
+     * The journal that records the changes in {@link #dirty}. Opened lazily.
+     */
+    private Segment segment;
+
+    /**
+     * Journals of earlier flushes that failed to save some fingerprints, which are retried with {@link #dirty}.
+     * They are deleted once a flush saves everything. Guarded by {@link #flushLock}.
+     */
+    private final List<File> unsavedJournals = new ArrayList<File>();
+
+    /**
+     * Number of times each fingerprint has failed to save in a row. Guarded by {@link #flushLock}.
+     */
+    private final Map<Fingerprint,Integer> failures = new HashMap<Fingerprint,Integer>();
+
+    private Thread flusher;
+
+    /**
+     * Serializes {@link #flush()}, {@link #replay()}, and {@link #resetUsageIndex()}.
+     */
+    private final Object flushLock = new Object();
+
+    /*package*/ FingerprintWriter(FingerprintMap map) {
+        this.map = map;
+    }
+
+    /**
+     * Records that the given build used the given files.
+     *
+     * @return
+     *      {@link Fingerprint}s that correspond to the given usages, in the same order.
+     *      An entry is null if the checksum was invalid.
+     */
+    public List<Fingerprint> record(Run build, Collection<Usage> usages) throws IOException {
+        String job = build.getParent().getFullName();
+        int n = build.getNumber();
+
+        List<Fingerprint> r = new ArrayList<Fingerprint>(usages.size());
+        Segment seg;
+        long seq;
+        // nothing gets saved in here, which includes newly created fingerprints
+        BulkChange bc = new BulkChange(BulkChange.ALL);
+        try {
+            // look them up outside the lock, since this can load them from the disk
+            for (Usage u : usages)
+                r.add(map.getOrCreate(u.produced?build:null, u.fileName, u.md5sum));
+
+            byte[] entry = encode(job,n,usages);
+            synchronized (this) {
+                if(segment==null)
+                    segment = new Segment(getJournalDir());
+                seg = segment;
+                seq = seg.write(entry);
+                for (Fingerprint fp : r) {
+                    if(fp==null)    continue;
+                    if(fp.addUsage(job,n))
+                        // the index is updated by the flusher, so that we don't touch the disk in here
+                        newUsages.add(new String[]{job,fp.getHashString()});
+                    dirty.add(fp);
+                }
+                startFlusher();
+                notifyAll();
+            }
+        } finally {
+            bc.abort();
+        }
+
+        seg.sync(seq);
+        return r;
+    }
+
+    /**
+     * Saves all the pending changes now.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            doFlush();
+        }
+    }
+
+    /**
+     * Saves all the pending changes, then throws away {@link FingerprintUsageIndex} so that it can be rebuilt,
+     * before any more changes are saved. So every usage is either in a saved fingerprint or yet to be indexed.
+     */
+    /*package*/ void resetUsageIndex() throws IOException {
+        synchronized (flushLock) {
+            doFlush();
+            map.getUsageIndex().reset();
+        }
+    }
+
+    /**
+     * Called with {@link #flushLock} held.
+     */
+    private void doFlush() {
+        Set<Fingerprint> batch;
+        List<String[]> indexed;
+        Segment seg;
+        synchronized (this) {
+            if(dirty.isEmpty())     return;
+            batch = dirty;
+            indexed = newUsages;
+            seg = segment;
+            dirty = new LinkedHashSet<Fingerprint>();
+            newUsages = new ArrayList<String[]>();
+            segment = null;
+        }
+
+        long start = System.currentTimeMillis();
+        Set<Fingerprint> failed = new LinkedHashSet<Fingerprint>();
+        Set<String> failedHashes = new HashSet<String>();
+        Set<String> retried = new HashSet<String>();
+        boolean gaveUp = false;
+        for (Fingerprint fp : batch) {
+            Exception error;
+            try {
+                fp.save();
+                failures.remove(fp);
+                continue;
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = e;
+            }
+
+            failedHashes.add(fp.getHashString());
+            Integer n = failures.get(fp);
+            int attempts = n==null ? 1 : n+1;
+            if(attempts>=MAX_SAVE_ATTEMPTS) {
+                LOGGER.log(Level.SEVERE, "Giving up on saving fingerprint "+fp.getHashString()+" after "+attempts+" attempts. It will be replayed from the journal at the next start", error);
+                failures.remove(fp);
+                gaveUp = true;
+            } else {
+                // only the first failure gets reported in full, so that a broken fingerprint doesn't flood the log
+                LOGGER.log(attempts==1 ? Level.WARNING : Level.FINE, "Failed to save fingerprint "+fp.getHashString()+". Will retry", error);
+                failures.put(fp,attempts);
+                failed.add(fp);
+                retried.add(fp.getHashString());
+            }
+        }
+
+        FingerprintUsageIndex index = map.getUsageIndex();
+        List<String[]> unindexed = new ArrayList<String[]>();
+        for (String[] u : indexed) {
+            if(retried.contains(u[1]))
+                unindexed.add(u);
+            else if(!failedHashes.contains(u[1]))
+                index.add(u[0],Util.fromHexString(u[1]));
+        }
+
+        if(seg!=null) {
+            seg.close();
+            unsavedJournals.add(seg.file);
+        }
+        // until everything is saved, the journals stay around, so that they get replayed at the next start
+        if(gaveUp) {
+            // just stop tracking them. they are still on the disk
+            unsavedJournals.clear();
+        } else if(failed.isEmpty()) {
+            for (File f : unsavedJournals)
+                f.delete();
+            unsavedJournals.clear();
+        }
+        if(!failed.isEmpty()) {
+            // try them again with the next batch
+            synchronized (this) {
+                dirty.addAll(failed);
+                newUsages.addAll(unindexed);
+                notifyAll();
+            }
+        }
+
+        if(LOGGER.isLoggable(Level.FINE))
+            LOGGER.fine("Saved "+(batch.size()-failedHashes.size())+" fingerprints in "+(System.currentTimeMillis()-start)+"ms");
+    }
+
+    /**
+     * Saves all the pending changes and stops the background thread.
+     */
+    public void shutdown() {
+        Thread t;
+        synchronized (this) {
+            t = flusher;
+            flusher = null;
+        }
+        if(t!=null)
+            t.interrupt();
+        flush();
+    }
+
+    /**
+     * Applies the journals left behind by an abnormal termination.
+     */
+    /*package*/ void replay() {
+        synchronized (flushLock) {
+            File[] files = getJournalDir().listFiles(JOURNAL_FILTER);
+            if(files==null || files.length==0)  return;
+            Arrays.sort(files);
+
+            File current;
+            synchronized (this) {
+                current = segment!=null ? segment.file : null;
+            }
+
+            Set<Fingerprint> updated = new LinkedHashSet<Fingerprint>();
+            List<File> replayed = new ArrayList<File>();
+            for (File f : files) {
+                if(f.equals(current))   continue;
+                try {
+                    replay(f,updated);
+                    replayed.add(f);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to replay the fingerprint journal "+f, e);
+                }
+            }
+
+            boolean success = true;
+            for (Fingerprint fp : updated) {
+                try {
+                    fp.save();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to save fingerprint "+fp.getHashString(), e);
+                    success = false;
+                }
+            }
+            if(success)
+                for (File f : replayed)
+                    f.delete();
+            LOGGER.info("Replayed "+replayed.size()+" fingerprint journals, updating "+updated.size()+" fingerprints");
+        }
+    }
+
+    private void replay(File f, Set<Fingerprint> updated) throws IOException {
+        Hudson h = Hudson.getInstance();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        BulkChange bc = new BulkChange(BulkChange.ALL);
+        try {
+            while(true) {
+                String job;
+                int n;
+                List<Usage> usages;
+                try {
+                    byte[] entry = new byte[in.readInt()];
+                    in.readFully(entry);
+                    DataInputStream e = new DataInputStream(new ByteArrayInputStream(entry));
+                    job = e.readUTF();
+                    n = e.readInt();
+                    int size = e.readInt();
+                    usages = new ArrayList<Usage>(size);
+                    for (int i=0; i<size; i++)
+                        usages.add(new Usage(e.readUTF(),e.readUTF(),e.readBoolean()));
+                } catch (EOFException e) {
+                    // the rest, if any, is an entry that was only partially written
+                    return;
+                }
+
+                Job<?,?> j = h.getItemByFullName(job,Job.class);
+                Run b = j!=null ? j.getBuildByNumber(n) : null;
+                for (Usage u : usages) {
+                    Fingerprint fp = map.getOrCreate(u.produced?b:null, u.fileName, u.md5sum);
+                    if(fp==null)    continue;
+                    fp.add(job,n);
+                    updated.add(fp);
+                }
+            }
+        } finally {
+            bc.abort();
+            in.close();
+        }
+    }
+
+    private synchronized void startFlusher() {
+        if(flusher!=null)   return;
+        flusher = new Thread("Fingerprint writer") {
+            @Override
+            public void run() {
+                try {
+                    while(true) {
+                        synchronized (FingerprintWriter.this) {
+                            while(dirty.isEmpty())
+                                FingerprintWriter.this.wait();
+                        }
+                        // let more changes pile up, so that they get saved together
+                        Thread.sleep(COMMIT_DELAY);
+                        try {
+                            flush();
+                        } catch (Throwable t) {
+                            // keep going, or else nothing gets saved until the next restart
+                            LOGGER.log(Level.SEVERE, "Failed to save fingerprints", t);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // shutting down
+                }
+            }
+        };
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    private static byte[] encode(String job, int n, Collection<Usage> usages) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        out.writeInt(0); // placeholder for the length
+        out.writeUTF(job);
+        out.writeInt(n);
+        out.writeInt(usages.size());
+        for (Usage u : usages) {
+            out.writeUTF(u.md5sum);
+            out.writeUTF(u.fileName);
+            out.writeBoolean(u.produced);
+        }
+        out.close();
+
+        byte[] entry = buf.toByteArray();
+        int len = entry.length-4;
+        entry[0] = (byte)(len>>>24);
+        entry[1] = (byte)(len>>>16);
+        entry[2] = (byte)(len>>>8);
+        entry[3] = (byte)len;
+        return entry;
+    }
+
+    private static File getJournalDir() {
+        return new File(Hudson.getInstance().getRootDir(),"fingerprints/journal");
+    }
+
+    /**
+     * A journal file.
+     */
+    private static final class Segment {
+        final File file;
+        private final FileOutputStream out;
+        private long written;
+        private long synced;
+        private boolean closed;
+
+        Segment(File dir) throws IOException {
+            dir.mkdirs();
+            File f;
+            synchronized (Segment.class) {
+                // names sort in the order of creation, which is the order to replay them in
+                do {
+                    f = new File(dir,String.format("%019d.log",nextId++));
+                } while(f.exists());
+            }
+            this.file = f;
+            this.out = new FileOutputStream(f);
+        }
+
+        /**
+         * @return
+         *      the sequence number of this write, to be passed to {@link #sync(long)}.
+         */
+        synchronized long write(byte[] entry) throws IOException {
+            out.write(entry);
+            return ++written;
+        }
+
+        /**
+         * Makes sure the given write is on the disk. One force covers all the
+         * writes made before it, so the threads waiting here mostly return right away.
+         */
+        synchronized void sync(long seq) throws IOException {
+            if(closed || synced>=seq || !SYNC)  return;
+            long s = written;
+            out.getChannel().force(false);
+            synced = s;
+        }
+
+        /**
+         * Called once no more changes are recorded here.
+         * Forces what's written so far, since {@link #sync(long)} doesn't do anything after this.
+         */
+        synchronized void close() {
+            try {
+                if(SYNC && synced<written)
+                    out.getChannel().force(false);
+                synced = written;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to sync "+file, e);
+            }
+            closed = true;
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to close "+file, e);
+            }
+        }
+
+        private static long nextId = System.currentTimeMillis()*1000;
+    }
+
+    @Initializer(after=JOB_LOADED)
+    public static void init(Hudson h) {
+        h.getFingerprintMap().getWriter().replay();
+    }
+
+    private static final FilenameFilter JOURNAL_FILTER = new FilenameFilter() {
+        public boolean accept(File dir, String name) {
+            return name.endsWith(".log");
+        }
+    };
+
+    /**
+     * Milliseconds the background thread waits for more changes before saving them.
+     */
+    public static long COMMIT_DELAY = Long.getLong(FingerprintWriter.class.getName()+".commitDelay",1000);
+
+    /**
+     * Number of times a fingerprint is attempted to be saved before giving up until the next start.
+     */
+    public static int MAX_SAVE_ATTEMPTS = Integer.getInteger(FingerprintWriter.class.getName()+".maxSaveAttempts",10);
+
+    /**
+     * Set to false to skip forcing the journal to the disk, trading durability for speed.
+     */
+    public static boolean SYNC = !Boolean.getBoolean(FingerprintWriter.class.getName()+".noSync");
+
+    private static final Logger LOGGER = Logger.getLogger(FingerprintWriter.class.getName());
+}
@@ -67,6 +67,7 @@ import hudson.lifecycle.RestartNotSupportedException;
 import hudson.markup.RawHtmlMarkupFormatter;
 import hudson.model.Descriptor.FormException;
 import hudson.model.labels.LabelAtom;
+import hudson.model.labels.NodeLabelIndex;
 import hudson.model.listeners.ItemListener;
 import hudson.model.listeners.SCMListener;
 import hudson.model.listeners.SaveableListener;
@@ -1678,6 +1679,7 @@ public final class Hudson extends Node implements ItemGroup<TopLevelItem>, Stapl
      * Resets all labels and remove invalid ones.
      */
     private void trimLabels() {
+        NodeLabelIndex.invalidate();
         for (Iterator<Label> itr = labels.values().iterator(); itr.hasNext();) {
             Label l = itr.next();
             l.reset();
@@ -2393,6 +2395,8 @@ public final class Hudson extends Node implements ItemGroup<TopLevelItem>, Stapl
             // don't try to save. Issue #536
             getQueue().save();
 
+        fingerprintMap.getWriter().shutdown();
+
         threadPoolForLoad.shutdown();
         for (Future<?> f : pending)
             try {
@@ -2517,6 +2521,7 @@ public final class Hudson extends Node implements ItemGroup<TopLevelItem>, Stapl
                 mode = Mode.NORMAL;
 
             label = json.optString("labelString","");
+            NodeLabelIndex.invalidate();
 
             quietPeriod = json.getInt("quiet_period");
 
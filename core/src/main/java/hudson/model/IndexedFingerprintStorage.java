@@ -0,0 +1,157 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.model;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.util.IOException2;
+import hudson.util.Iterators;
+import hudson.util.LogStructuredStore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Default {@link FingerprintStorage} that keeps all the fingerprints in a single
+ * {@link LogStructuredStore} in {@code $HUDSON_HOME/fingerprints}, instead of one XML file each.
+ *
+ * <p>
+ * Records are the same XML that {@link FileFingerprintStorage} writes, so nothing about
+ * the data changes. Fingerprints still in the old layout are migrated one by one as
+ * they are loaded, and the rest are migrated by {@link #maintain(TaskListener)}.
+ *
+ * <p>
+ * Run with {@code -Dhudson.model.IndexedFingerprintStorage.disabled=true} to
+ * keep using {@link FileFingerprintStorage}. Fingerprints that have been migrated
+ * are not moved back in that case.
+ *
+ * @author Kohsuke Kawaguchi
+ * @since 1.398
+ */
+@Extension
+public class IndexedFingerprintStorage extends FingerprintStorage {
+    private final FileFingerprintStorage legacy = new FileFingerprintStorage();
+
+    private LogStructuredStore store;
+
+    /*package*/ synchronized LogStructuredStore getStore() throws IOException {
+        if(store==null)
+            store = new LogStructuredStore(FileFingerprintStorage.getRootDir());
+        return store;
+    }
+
+    public Fingerprint load(byte[] md5sum) throws IOException {
+        byte[] data = getStore().get(md5sum);
+        if(data!=null) {
+            try {
+                return (Fingerprint)Fingerprint.XSTREAM.fromXML(new InputStreamReader(new ByteArrayInputStream(data),"UTF-8"));
+            } catch (RuntimeException e) {
+                // XStream reports broken data in various unchecked exceptions
+                throw new IOException2("Unable to read the fingerprint "+Util.toHexString(md5sum),e);
+            }
+        }
+
+        Fingerprint fp = legacy.load(md5sum);
+        if(fp!=null)
+            migrate(md5sum,fp);
+        return fp;
+    }
+
+    public void save(Fingerprint fp) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        Writer w = new OutputStreamWriter(buf,"UTF-8");
+        Fingerprint.XSTREAM.toXML(fp,w);
+        w.close();
+        getStore().put(Util.fromHexString(fp.getHashString()),buf.toByteArray());
+    }
+
+    public boolean delete(byte[] md5sum) throws IOException {
+        boolean r = getStore().delete(md5sum);
+        return legacy.delete(md5sum) || r;
+    }
+
+    public Iterable<byte[]> keys() throws IOException {
+        return Iterators.sequence(getStore().keys(),legacy.keys());
+    }
+
+    public boolean isReady() {
+        return legacy.isReady();
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return !DISABLED;
+    }
+
+    /**
+     * Migrates the fingerprints remaining in the old layout, then compacts the
+     * store if more than half of it is obsolete.
+     */
+    @Override
+    public void maintain(TaskListener listener) throws IOException {
+        int migrated = 0;
+        for (byte[] md5sum : legacy.keys()) {
+            try {
+                Fingerprint fp = legacy.load(md5sum);
+                if(fp!=null) {
+                    migrate(md5sum,fp);
+                    migrated++;
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to migrate the fingerprint "+Util.toHexString(md5sum), e);
+            }
+        }
+        if(migrated>0)
+            listener.getLogger().println("Migrated "+migrated+" fingerprints");
+
+        LogStructuredStore s = getStore();
+        long garbage = s.getGarbageSize();
+        if(garbage>COMPACTION_THRESHOLD && garbage*2>s.getLogSize()) {
+            listener.getLogger().println("Compacting the fingerprint store to reclaim "+garbage+" bytes");
+            s.compact();
+        }
+    }
+
+    private void migrate(byte[] md5sum, Fingerprint fp) throws IOException {
+        synchronized (fp) {
+            save(fp);
+        }
+        legacy.delete(md5sum);
+    }
+
+    /**
+     * Don't bother compacting until at least this many bytes can be reclaimed.
+     */
+    public static long COMPACTION_THRESHOLD = 1024*1024;
+
+    public static boolean DISABLED = Boolean.getBoolean(IndexedFingerprintStorage.class.getName()+".disabled");
+
+    private static final Logger LOGGER = Logger.getLogger(IndexedFingerprintStorage.class.getName());
+}
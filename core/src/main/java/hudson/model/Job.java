@@ -74,6 +74,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
+import java.util.SortedSet;
 import java.util.LinkedList;
 
 import javax.servlet.ServletException;
@@ -145,6 +146,11 @@ public abstract class Job<JobT extends Job<JobT, RunT>, RunT extends Run<JobT, R
     private transient Integer cachedBuildHealthReportsBuildNumber = null;
     private transient List<HealthReport> cachedBuildHealthReports = null;
 
+    /**
+     * Lazily created. See {@link #getBuildSummaries()}.
+     */
+    private transient volatile BuildSummaryIndex buildSummaries;
+
     private boolean keepDependencies;
 
     /**
@@ -548,13 +554,27 @@ public abstract class Job<JobT extends Job<JobT, RunT>, RunT extends Run<JobT, R
     /**
      * Obtains a list of builds, in the descending order, that are within the specified time range [start,end).
      *
+     * <p>
+     * Unlike {@code getBuilds().byTimestamp(s,e)}, this finds the builds through {@link #getBuildSummaries()},
+     * so only the builds in the range are loaded.
+     *
      * @return can be empty but never null.
-     * @deprecated
-     *      as of 1.372. Should just do {@code getBuilds().byTimestamp(s,e)} to avoid code bloat in {@link Job}.
      */
     @WithBridgeMethods(List.class)
     public RunList<RunT> getBuildsByTimestamp(long start, long end) {
-        return getBuilds().byTimestamp(start,end);
+        if (!isBuildSummariesInSync())
+            return getBuilds().byTimestamp(start,end);
+
+        List<RunT> r = new ArrayList<RunT>();
+        for (BuildSummaryIndex.Record s : getBuildSummaries().getRecords().values()) {
+            long t = s.getTimeInMillis();
+            if (start <= t && t < end) {
+                RunT b = getBuildByNumber(s.getNumber());
+                if (b != null)
+                    r.add(b);
+            }
+        }
+        return RunList.fromRuns(r);
     }
 
     @CLIResolver
@@ -684,13 +704,7 @@ public abstract class Job<JobT extends Job<JobT, RunT>, RunT extends Run<JobT, R
     @Exported
     @QuickSilver
     public RunT getLastSuccessfulBuild() {
-        RunT r = getLastBuild();
-        // temporary hack till we figure out what's causing this bug
-        while (r != null
-                && (r.isBuilding() || r.getResult() == null || r.getResult()
-                        .isWorseThan(Result.UNSTABLE)))
-            r = r.getPreviousBuild();
-        return r;
+        return getLastCompletedBuild(Result.SUCCESS, Result.UNSTABLE, false);
     }
 
     /**
@@ -700,11 +714,8 @@ public abstract class Job<JobT extends Job<JobT, RunT>, RunT extends Run<JobT, R
     @Exported
     @QuickSilver
     public RunT getLastUnsuccessfulBuild() {
-        RunT r = getLastBuild();
-        while (r != null
-                && (r.isBuilding() || r.getResult() == Result.SUCCESS))
-            r = r.getPreviousBuild();
-        return r;
+        // a completed build without a result doesn't count as a success
+        return getLastCompletedBuild(Result.UNSTABLE, Result.ABORTED, true);
     }
 
     /**
@@ -714,11 +725,7 @@ public abstract class Job<JobT extends Job<JobT, RunT>, RunT extends Run<JobT, R
     @Exported
     @QuickSilver
     public RunT getLastUnstableBuild() {
-        RunT r = getLastBuild();
-        while (r != null
-                && (r.isBuilding() || r.getResult() != Result.UNSTABLE))
-            r = r.getPreviousBuild();
-        return r;
+        return getLastCompletedBuild(Result.UNSTABLE, Result.UNSTABLE, false);
     }
 
     /**
@@ -728,11 +735,7 @@ public abstract class Job<JobT extends Job<JobT, RunT>, RunT extends Run<JobT, R
     @Exported
     @QuickSilver
     public RunT getLastStableBuild() {
-        RunT r = getLastBuild();
-        while (r != null
-                && (r.isBuilding() || r.getResult().isWorseThan(Result.SUCCESS)))
-            r = r.getPreviousBuild();
-        return r;
+        return getLastCompletedBuild(Result.SUCCESS, Result.SUCCESS, false);
     }
 
     /**
@@ -741,10 +744,42 @@ public abstract class Job<JobT extends Job<JobT, RunT>, RunT extends Run<JobT, R
     @Exported
     @QuickSilver
     public RunT getLastFailedBuild() {
+        return getLastCompletedBuild(Result.FAILURE, Result.FAILURE, false);
+    }
+
+    /**
+     * Finds the last completed build whose result is between the given two (inclusive.)
+     *
+     * <p>
+     * Builds that don't match are skipped by looking at {@link #getBuildSummaries()},
+     * so that they don't have to be loaded.
+     *
+     * @param orNull
+     *      If true, a completed build without a result matches, too.
+     */
+    private RunT getLastCompletedBuild(Result best, Result worst, boolean orNull) {
+        boolean indexed = isBuildSummariesInSync();
         RunT r = getLastBuild();
-        while (r != null && (r.isBuilding() || r.getResult() != Result.FAILURE))
+        while (r != null) {
+            if (!r.isBuilding()) {
+                if (BuildSummaryIndex.matches(r.getResult(), best, worst, orNull))
+                    return r;
+
+                if (indexed) {
+                    BuildSummaryIndex.Record s = getBuildSummaries().findLast(r.getNumber(), best, worst, orNull);
+                    if (s == null)
+                        return null;
+                    RunT b = getBuildByNumber(s.getNumber());
+                    if (b != null) {
+                        r = b;
+                        continue;
+                    }
+                    // the index is out of sync. walk the builds one by one.
+                }
+            }
             r = r.getPreviousBuild();
-        return r;
+        }
+        return null;
     }
 
     /**
@@ -782,17 +817,65 @@ public abstract class Job<JobT extends Job<JobT, RunT>, RunT extends Run<JobT, R
     }
     
     public final long getEstimatedDuration() {
-        List<RunT> builds = getLastBuildsOverThreshold(3, Result.UNSTABLE);
-        
-        if(builds.isEmpty())     return -1;
-
+        int count = 0;
         long totalDuration = 0;
-        for (RunT b : builds) {
-            totalDuration += b.getDuration();
+        if (isBuildSummariesInSync()) {
+            // same as getLastBuildsOverThreshold(3, Result.UNSTABLE), but without loading builds
+            for (BuildSummaryIndex.Record s : getBuildSummaries().getRecords().values()) {
+                if (count == 3)  break;
+                if (s.isBuilding() || s.getResult() == null || s.getResult().isWorseThan(Result.UNSTABLE))
+                    continue;
+                totalDuration += s.getDuration();
+                count++;
+            }
+        } else {
+            for (RunT b : getLastBuildsOverThreshold(3, Result.UNSTABLE)) {
+                totalDuration += b.getDuration();
+                count++;
+            }
         }
+
+        if(count==0)     return -1;
         if(totalDuration==0) return -1;
 
-        return Math.round((double)totalDuration / builds.size());
+        return Math.round((double)totalDuration / count);
+    }
+
+    /**
+     * Returns true if {@link #getBuildSummaries()} has a record for each build of this job and nothing else,
+     * so that it can answer for the builds. Only build numbers are compared, so no build is loaded.
+     */
+    private boolean isBuildSummariesInSync() {
+        return getBuildSummaries().getRecords().keySet().equals(_getRuns().keySet());
+    }
+
+    /**
+     * Gets the compact summary of the builds of this job, which can be used to look up
+     * basic information about builds without loading them.
+     *
+     * @since 1.398
+     */
+    public BuildSummaryIndex getBuildSummaries() {
+        BuildSummaryIndex s = buildSummaries;
+        if (s == null) {
+            synchronized (this) {
+                if (buildSummaries == null)
+                    buildSummaries = new BuildSummaryIndex(this);
+                s = buildSummaries;
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Gets the MD5 checksums of the fingerprints that record usages by this job.
+     *
+     * @since 1.398
+     * @see Fingerprint#getUsedBy(Job)
+     */
+    @Exported(name="fingerprint")
+    public SortedSet<String> getFingerprintHashes() {
+        return Hudson.getInstance().getFingerprintMap().getUsageIndex().get(getFullName());
     }
 
     /**
@@ -1282,6 +1365,22 @@ public abstract class Job<JobT extends Job<JobT, RunT>, RunT extends Run<JobT, R
     }
 
     public BuildTimelineWidget getTimeline() {
-        return new BuildTimelineWidget(getBuilds());
+        // only the builds in the period being shown are loaded
+        return new BuildTimelineWidget(new RunList<RunT>()) {
+            @Override
+            public Run<?,?> getFirstBuild() {
+                return Job.this.getFirstBuild();
+            }
+
+            @Override
+            public Run<?,?> getLastBuild() {
+                return Job.this.getLastBuild();
+            }
+
+            @Override
+            protected RunList<?> getBuildsByTimestamp(long min, long max) {
+                return Job.this.getBuildsByTimestamp(min,max);
+            }
+        };
     }
 }
@@ -32,6 +32,7 @@ import hudson.model.labels.LabelExpression;
 import hudson.model.labels.LabelExpressionLexer;
 import hudson.model.labels.LabelExpressionParser;
 import hudson.model.labels.LabelOperatorPrecedence;
+import hudson.model.labels.NodeLabelIndex;
 import hudson.slaves.NodeProvisioner;
 import hudson.slaves.Cloud;
 import hudson.util.QuotedStringTokenizer;
@@ -41,6 +42,7 @@ import org.kohsuke.stapler.export.ExportedBean;
 
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -152,6 +154,31 @@ public abstract class Label extends Actionable implements Comparable<Label>, Mod
         return matches(n.getAssignedLabels());
     }
 
+    /**
+     * Evaluates this label against all the nodes in the given index at once.
+     *
+     * <p>
+     * The default implementation evaluates {@link #matches(VariableResolver)} for each node,
+     * and subtypes override this to combine the bit sets of the label atoms instead.
+     *
+     * @return
+     *      a new {@link BitSet} that has bits set at the positions of the matching nodes.
+     * @since 1.398
+     */
+    public BitSet matchingNodes(final NodeLabelIndex index) {
+        BitSet r = new BitSet(index.size());
+        for (int i=0; i<index.size(); i++) {
+            final int n = i;
+            if (matches(new VariableResolver<Boolean>() {
+                public Boolean resolve(String name) {
+                    return index.hasAtom(n,name);
+                }
+            }))
+                r.set(i);
+        }
+        return r;
+    }
+
     /**
      * Returns true if this label is a "self label",
      * which means the label is the name of a {@link Node}.
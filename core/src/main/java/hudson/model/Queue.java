@@ -47,6 +47,7 @@ import hudson.model.queue.QueueTaskDispatcher;
 import hudson.model.queue.Tasks;
 import hudson.model.queue.WorkUnit;
 import hudson.model.Node.Mode;
+import hudson.model.labels.NodeLabelIndex;
 import hudson.model.listeners.SaveableListener;
 import hudson.model.queue.CauseOfBlockage;
 import hudson.model.queue.FoldableAction;
@@ -71,11 +72,13 @@ import java.io.InputStreamReader;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -156,6 +159,13 @@ public class Queue extends ResourceController implements Saveable {
      */
     private final ItemList<BuildableItem> pendings = new ItemList<BuildableItem>();
 
+    /**
+     * Immutable copy of the above four collections, which is all the read accessors look at,
+     * so that they never contend with {@link #maintain()} and {@link #pop()} for the queue lock.
+     * Replaced at the end of every modification. See {@link #updateSnapshot()}.
+     */
+    private volatile Snapshot snapshot = new Snapshot();
+
     /**
      * Data structure created for each idle {@link Executor}.
      * This is a job offer from the queue to an executor.
@@ -213,6 +223,34 @@ public class Queue extends ResourceController implements Saveable {
             return isAvailable();
         }
 
+        /**
+         * Same as {@link #canTake(Task)}, except that it rules out nodes through the {@link NodeLabelIndex}
+         * and remembers the verdict for each node, as it's the same for all the executors on that node.
+         *
+         * @param verdicts
+         *      Node-level verdicts computed so far for this task.
+         */
+        private boolean canTake(Task task, NodeLabelIndex index, Map<Node,Boolean> verdicts) {
+            if (!isAvailable())     return false;
+
+            Node node = getNode();
+            if (node==null)     return false;   // this executor is about to die
+
+            Boolean v = verdicts.get(node);
+            if (v==null) {
+                v = !index.isRuledOut(task.getAssignedLabel(),node) && node.canTake(task)==null;
+                if (v) {
+                    for (QueueTaskDispatcher d : QueueTaskDispatcher.all())
+                        if (d.canTake(node,task)!=null) {
+                            v = false;
+                            break;
+                        }
+                }
+                verdicts.put(node,v);
+            }
+            return v;
+        }
+
         /**
          * Is this executor ready to accept some tasks?
          */
@@ -322,6 +360,7 @@ public class Queue extends ResourceController implements Saveable {
         } catch (IOException e) {
             LOGGER.log(Level.WARNING, "Failed to load the queue file " + getXMLQueueFile(), e);
         }
+        updateSnapshot();
     }
 
     /**
@@ -332,7 +371,7 @@ public class Queue extends ResourceController implements Saveable {
         
         // write out the tasks on the queue
     	ArrayList<Queue.Item> items = new ArrayList<Queue.Item>();
-    	for (Item item: getItems()) {
+    	for (Item item: _getItems()) {
             if(item.task instanceof TransientTask)  continue;
     	    items.add(item);
     	}
@@ -357,6 +396,7 @@ public class Queue extends ResourceController implements Saveable {
         waitingList.clear();
         blockedProjects.cancelAll();
         buildables.cancelAll();
+        updateSnapshot();
         scheduleMaintenance();
     }
 
@@ -451,7 +491,7 @@ public class Queue extends ResourceController implements Saveable {
 
         // Do we already have this task in the queue? Because if so, we won't schedule a new one.
     	List<Item> duplicatesInQueue = new ArrayList<Item>();
-    	for(Item item : getItems(p)) {
+    	for(Item item : _getItems(p)) {
     		boolean shouldScheduleItem = false;
     		for (QueueAction action: item.getActions(QueueAction.class)) {
                 shouldScheduleItem |= action.shouldSchedule(actions);
@@ -469,6 +509,7 @@ public class Queue extends ResourceController implements Saveable {
     		// put the item in the queue
             WaitingItem added = new WaitingItem(due,p,actions);
     		waitingList.add(added);
+            updateSnapshot();
             scheduleMaintenance();   // let an executor know that a new item is in the queue.
             return added;
     	}
@@ -503,7 +544,10 @@ public class Queue extends ResourceController implements Saveable {
             queueUpdated=true;
         }
 
-        if (queueUpdated)   scheduleMaintenance();
+        if (queueUpdated) {
+            updateSnapshot();
+            scheduleMaintenance();
+        }
         return null;
     }
     
@@ -547,24 +591,30 @@ public class Queue extends ResourceController implements Saveable {
             if (item.task.equals(p)) {
                 itr.remove();
                 item.onCancelled();
+                updateSnapshot();
                 return true;
             }
         }
         // use bitwise-OR to make sure that both branches get evaluated all the time
-        return blockedProjects.cancel(p)!=null | buildables.cancel(p)!=null;
+        boolean r = blockedProjects.cancel(p)!=null | buildables.cancel(p)!=null;
+        if(r)
+            updateSnapshot();
+        return r;
     }
     
     public synchronized boolean cancel(Item item) {
         LOGGER.fine("Cancelling " + item.task.getFullDisplayName() + " item#" + item.id);
         // use bitwise-OR to make sure that all the branches get evaluated all the time
         boolean r = (item instanceof WaitingItem && waitingList.remove(item)) | blockedProjects.remove(item) | buildables.remove(item);
-        if(r)
+        if(r) {
             item.onCancelled();
+            updateSnapshot();
+        }
         return r;
     }
 
-    public synchronized boolean isEmpty() {
-        return waitingList.isEmpty() && blockedProjects.isEmpty() && buildables.isEmpty() && pendings.isEmpty();
+    public boolean isEmpty() {
+        return snapshot.items.length==0;
     }
 
     private synchronized WaitingItem peek() {
@@ -578,7 +628,11 @@ public class Queue extends ResourceController implements Saveable {
      * at the end.
      */
     @Exported(inline=true)
-    public synchronized Item[] getItems() {
+    public Item[] getItems() {
+        return snapshot.items.clone();
+    }
+
+    private Item[] _getItems() {
         Item[] r = new Item[waitingList.size() + blockedProjects.size() + buildables.size() + pendings.size()];
         waitingList.toArray(r);
         int idx = waitingList.size();
@@ -591,27 +645,24 @@ public class Queue extends ResourceController implements Saveable {
         return r;
     }
     
-    public synchronized Item getItem(int id) {
-    	for (Item item: waitingList) if (item.id == id) return item;
-    	for (Item item: blockedProjects) if (item.id == id) return item;
-    	for (Item item: buildables) if (item.id == id) return item;
-        for (Item item: pendings) if (item.id == id) return item;
-    	return null;
+    public Item getItem(int id) {
+        return snapshot.byId.get(id);
     }
 
     /**
      * Gets all the {@link BuildableItem}s that are waiting for an executor in the given {@link Computer}.
      */
-    public synchronized List<BuildableItem> getBuildableItems(Computer c) {
+    public List<BuildableItem> getBuildableItems(Computer c) {
+        Snapshot s = snapshot;
         List<BuildableItem> result = new ArrayList<BuildableItem>();
-        _getBuildableItems(c, buildables, result);
-        _getBuildableItems(c, pendings, result);
+        _getBuildableItems(c, s.buildables, result);
+        _getBuildableItems(c, s.pendings, result);
         return result;
     }
 
-    private void _getBuildableItems(Computer c, ItemList<BuildableItem> col, List<BuildableItem> result) {
+    private void _getBuildableItems(Computer c, List<BuildableItem> col, List<BuildableItem> result) {
         Node node = c.getNode();
-        for (BuildableItem p : col.values()) {
+        for (BuildableItem p : col) {
             if (node.canTake(p.task) == null)
                 result.add(p);
         }
@@ -620,24 +671,25 @@ public class Queue extends ResourceController implements Saveable {
     /**
      * Gets the snapshot of all {@link BuildableItem}s.
      */
-    public synchronized List<BuildableItem> getBuildableItems() {
-        ArrayList<BuildableItem> r = new ArrayList<BuildableItem>(buildables.values());
-        r.addAll(pendings.values());
+    public List<BuildableItem> getBuildableItems() {
+        Snapshot s = snapshot;
+        ArrayList<BuildableItem> r = new ArrayList<BuildableItem>(s.buildables);
+        r.addAll(s.pendings);
         return r;
     }
 
     /**
      * Gets the snapshot of all {@link BuildableItem}s.
      */
-    public synchronized List<BuildableItem> getPendingItems() {
-        return new ArrayList<BuildableItem>(pendings.values());
+    public List<BuildableItem> getPendingItems() {
+        return new ArrayList<BuildableItem>(snapshot.pendings);
     }
 
     /**
      * Is the given task currently pending execution?
      */
-    public synchronized boolean isPending(Task t) {
-        for (BuildableItem i : pendings)
+    public boolean isPending(Task t) {
+        for (BuildableItem i : snapshot.pendings)
             if (i.task.equals(t))
                 return true;
         return false;
@@ -646,12 +698,13 @@ public class Queue extends ResourceController implements Saveable {
     /**
      * How many {@link BuildableItem}s are assigned for the given label?
      */
-    public synchronized int countBuildableItemsFor(Label l) {
+    public int countBuildableItemsFor(Label l) {
+        Snapshot s = snapshot;
         int r = 0;
-        for (BuildableItem bi : buildables.values())
+        for (BuildableItem bi : s.buildables)
             if(bi.task.getAssignedLabel()==l)
                 r++;
-        for (BuildableItem bi : pendings.values())
+        for (BuildableItem bi : s.pendings)
             if(bi.task.getAssignedLabel()==l)
                 r++;
         return r;
@@ -662,22 +715,9 @@ public class Queue extends ResourceController implements Saveable {
      *
      * @return null if the project is not in the queue.
      */
-    public synchronized Item getItem(Task t) {
-        BlockedItem bp = blockedProjects.get(t);
-        if (bp!=null)
-            return bp;
-        BuildableItem bi = buildables.get(t);
-        if(bi!=null)
-            return bi;
-        bi = pendings.get(t);
-        if(bi!=null)
-            return bi;
-
-        for (Item item : waitingList) {
-            if (item.task == t)
-                return item;
-        }
-        return null;
+    public Item getItem(Task t) {
+        List<Item> items = snapshot.byTask.get(t);
+        return items==null ? null : items.get(0);
     }
 
     /**
@@ -685,10 +725,19 @@ public class Queue extends ResourceController implements Saveable {
      *
      * @return null if the project is not in the queue.
      */
-    public synchronized List<Item> getItems(Task t) {
-    	List<Item> result =new ArrayList<Item>();
-    	result.addAll(blockedProjects.getAll(t));
-    	result.addAll(buildables.getAll(t));
+    public List<Item> getItems(Task t) {
+        List<Item> items = snapshot.byTask.get(t);
+        return items==null ? new ArrayList<Item>() : new ArrayList<Item>(items);
+    }
+
+    /**
+     * Like {@link #getItems(Task)}, but looks at the live collections
+     * rather than the last published snapshot. Must be called with the lock held.
+     */
+    private List<Item> _getItems(Task t) {
+        List<Item> result = new ArrayList<Item>();
+        result.addAll(blockedProjects.getAll(t));
+        result.addAll(buildables.getAll(t));
         result.addAll(pendings.getAll(t));
         for (Item item : waitingList) {
             if (item.task == t)
@@ -709,14 +758,16 @@ public class Queue extends ResourceController implements Saveable {
     /**
      * Returns true if this queue contains the said project.
      */
-    public synchronized boolean contains(Task t) {
-        if (blockedProjects.containsKey(t) || buildables.containsKey(t) || pendings.containsKey(t))
-            return true;
-        for (Item item : waitingList) {
-            if (item.task == t)
-                return true;
-        }
-        return false;
+    public boolean contains(Task t) {
+        return snapshot.byTask.containsKey(t);
+    }
+
+    /**
+     * Publishes the current state of the queue to the read accessors.
+     * Must be called with the lock held, after the queue is modified.
+     */
+    private void updateSnapshot() {
+        snapshot = new Snapshot();
     }
 
     /**
@@ -741,6 +792,26 @@ public class Queue extends ResourceController implements Saveable {
                 // in the buildables field.
                 maintain();
 
+                // group the offers by the position of their nodes in the index,
+                // so that each buildable item only looks at the nodes its label allows
+                NodeLabelIndex index = NodeLabelIndex.get();
+                Map<Integer,List<JobOffer>> offersByNode = new HashMap<Integer,List<JobOffer>>();
+                BitSet offered = new BitSet(index.size());
+                List<JobOffer> unindexed = new ArrayList<JobOffer>();
+                for (JobOffer j : parked.values()) {
+                    Node n = j.getNode();
+                    int i = n==null ? -1 : index.indexOf(n);
+                    if (i<0) {
+                        unindexed.add(j);
+                        continue;
+                    }
+                    List<JobOffer> offers = offersByNode.get(i);
+                    if (offers==null)
+                        offersByNode.put(i,offers=new ArrayList<JobOffer>());
+                    offers.add(j);
+                    offered.set(i);
+                }
+
                 // allocate buildable jobs to executors
                 Iterator<BuildableItem> itr = buildables.iterator();
                 while (itr.hasNext()) {
@@ -753,9 +824,16 @@ public class Queue extends ResourceController implements Saveable {
                         continue;
                     }
 
-                    List<JobOffer> candidates = new ArrayList<JobOffer>(parked.size());
-                    for (JobOffer j : parked.values())
-                        if(j.canTake(p.task))
+                    List<JobOffer> candidates = new ArrayList<JobOffer>();
+                    Map<Node,Boolean> verdicts = new IdentityHashMap<Node,Boolean>();
+                    BitSet nodes = index.getCandidateNodes(p.task.getAssignedLabel());
+                    nodes.and(offered);
+                    for (int i=nodes.nextSetBit(0); i>=0; i=nodes.nextSetBit(i+1))
+                        for (JobOffer j : offersByNode.get(i))
+                            if(j.canTake(p.task,index,verdicts))
+                                candidates.add(j);
+                    for (JobOffer j : unindexed)
+                        if(j.canTake(p.task,index,verdicts))
                             candidates.add(j);
 
                     MappingWorksheet ws = new MappingWorksheet(p, candidates);
@@ -774,6 +852,7 @@ public class Queue extends ResourceController implements Saveable {
                     if (!wuc.getWorkUnits().isEmpty())
                         pendings.add(p);
                 }
+                updateSnapshot();
 
                 // we went over all the buildable projects and awaken
                 // all the executors that got work to do. now, go to sleep
@@ -801,8 +880,10 @@ public class Queue extends ResourceController implements Saveable {
                     LOGGER.fine("Pop returning " + offer.workUnit + " for " + exec.getName());
 
                     // TODO: I think this has to be done by the last executor that leaves the pop(), not by main executor
-                    if (offer.workUnit.isMainWork())
+                    if (offer.workUnit.isMainWork()) {
                         pendings.remove(offer.workUnit.context.item);
+                        updateSnapshot();
+                    }
 
                     return offer.workUnit;
                 }
@@ -875,6 +956,14 @@ public class Queue extends ResourceController implements Saveable {
         if (LOGGER.isLoggable(Level.FINE))
             LOGGER.fine("Queue maintenance started " + this);
 
+        try {
+            _maintain();
+        } finally {
+            updateSnapshot();
+        }
+    }
+
+    private void _maintain() {
         // blocked -> buildable
         Iterator<BlockedItem> itr = blockedProjects.values().iterator();
         while (itr.hasNext()) {
@@ -1533,39 +1622,118 @@ public class Queue extends ResourceController implements Saveable {
      * {@link ArrayList} of {@link Item} with more convenience methods.
      */
     private static class ItemList<T extends Item> extends ArrayList<T> {
+        /**
+         * Items of each task, in the list order, so that looking up
+         * a task doesn't require a scan.
+         */
+        private final Map<Task,List<T>> byTask = new IdentityHashMap<Task,List<T>>();
+
+        @Override
+        public boolean add(T item) {
+            index(item);
+            return super.add(item);
+        }
+
+        @Override
+        public void add(int index, T item) {
+            super.add(index, item);
+            reindex();
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends T> items) {
+            for (T item : items)
+                index(item);
+            return super.addAll(items);
+        }
+
+        @Override
+        public T set(int index, T item) {
+            T old = super.set(index, item);
+            reindex();
+            return old;
+        }
+
+        @Override
+        public T remove(int index) {
+            T t = super.remove(index);
+            unindex(t);
+            return t;
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            boolean r = super.remove(o);
+            if (r)
+                unindex((Item)o);
+            return r;
+        }
+
+        @Override
+        public boolean removeAll(Collection<?> c) {
+            boolean r = super.removeAll(c);
+            reindex();
+            return r;
+        }
+
+        @Override
+        public boolean retainAll(Collection<?> c) {
+            boolean r = super.retainAll(c);
+            reindex();
+            return r;
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            byTask.clear();
+        }
+
+        private void index(T item) {
+            List<T> l = byTask.get(item.task);
+            if (l==null)
+                byTask.put(item.task, l=new ArrayList<T>(1));
+            l.add(item);
+        }
+
+        private void unindex(Item item) {
+            List<T> l = byTask.get(item.task);
+            if (l==null)    return;
+            for (Iterator<T> itr = l.iterator(); itr.hasNext();) {
+                if (itr.next()==item) {
+                    itr.remove();
+                    break;
+                }
+            }
+            if (l.isEmpty())
+                byTask.remove(item.task);
+        }
+
+        private void reindex() {
+            byTask.clear();
+            for (T item : this)
+                index(item);
+        }
+
     	public T get(Task task) {
-    		for (T item: this) {
-    			if (item.task == task) {
-    				return item;
-    			}
-    		}
-    		return null;
+            List<T> l = byTask.get(task);
+            return l==null ? null : l.get(0);
     	}
     	
     	public List<T> getAll(Task task) {
-    		List<T> result = new ArrayList<T>();
-    		for (T item: this) {
-    			if (item.task == task) {
-    				result.add(item);
-    			}
-    		}
-    		return result;
+            List<T> l = byTask.get(task);
+            return l==null ? new ArrayList<T>() : new ArrayList<T>(l);
     	}
     	
     	public boolean containsKey(Task task) {
-    		return get(task) != null;
+    		return byTask.containsKey(task);
     	}
     	
     	public T remove(Task task) {
-    		Iterator<T> it = iterator();
-    		while (it.hasNext()) {
-    			T t = it.next();
-    			if (t.task == task) {
-    				it.remove();
-    				return t;
-    			}
-    		}
-    		return null;
+            T t = get(task);
+            if (t!=null)
+                remove(t);
+            return t;
     	}
     	
     	public void put(Task task, T item) {
@@ -1602,6 +1770,52 @@ public class Queue extends ResourceController implements Saveable {
         }
     }
 
+    /**
+     * Immutable state of the queue, published after each modification.
+     */
+    private final class Snapshot {
+        final List<WaitingItem> waitingList;
+        final List<BlockedItem> blockedProjects;
+        final List<BuildableItem> buildables;
+        final List<BuildableItem> pendings;
+
+        /**
+         * See {@link Queue#getItems()}.
+         */
+        final Item[] items;
+
+        /**
+         * Items of each task, in the order of blocked, buildable, pending, and waiting.
+         */
+        final Map<Task,List<Item>> byTask = new IdentityHashMap<Task,List<Item>>();
+
+        final Map<Integer,Item> byId = new HashMap<Integer,Item>();
+
+        Snapshot() {
+            waitingList = Collections.unmodifiableList(new ArrayList<WaitingItem>(Queue.this.waitingList));
+            blockedProjects = Collections.unmodifiableList(new ArrayList<BlockedItem>(Queue.this.blockedProjects));
+            buildables = Collections.unmodifiableList(new ArrayList<BuildableItem>(Queue.this.buildables));
+            pendings = Collections.unmodifiableList(new ArrayList<BuildableItem>(Queue.this.pendings));
+
+            items = _getItems();
+
+            index(blockedProjects);
+            index(buildables);
+            index(pendings);
+            index(waitingList);
+        }
+
+        private void index(List<? extends Item> list) {
+            for (Item item : list) {
+                List<Item> l = byTask.get(item.task);
+                if (l==null)
+                    byTask.put(item.task, l=new ArrayList<Item>(1));
+                l.add(item);
+                byId.put(item.id, item);
+            }
+        }
+    }
+
     @CLIResolver
     public static Queue getInstance() {
         return Hudson.getInstance().getQueue();
@@ -38,6 +38,8 @@ import hudson.XmlFile;
 import hudson.cli.declarative.CLIMethod;
 import hudson.console.AnnotatedLargeText;
 import hudson.console.ConsoleNote;
+import hudson.console.ConsoleNoteDictionary;
+import hudson.console.LineIndex;
 import hudson.matrix.MatrixBuild;
 import hudson.matrix.MatrixRun;
 import hudson.model.Descriptor.FormException;
@@ -53,7 +55,6 @@ import hudson.tasks.Mailer;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildStep;
 import hudson.tasks.test.AbstractTestResultAction;
-import hudson.util.FlushProofOutputStream;
 import hudson.util.IOException2;
 import hudson.util.LogTaskListener;
 import hudson.util.XStream2;
@@ -107,7 +108,6 @@ import org.kohsuke.stapler.export.Exported;
 import org.kohsuke.stapler.export.ExportedBean;
 
 import com.thoughtworks.xstream.XStream;
-import java.io.FileOutputStream;
 import java.io.OutputStream;
 
 import static java.util.logging.Level.FINE;
@@ -149,6 +149,13 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
      */
     protected volatile transient RunT nextBuild;
 
+    /**
+     * Set by {@link RunMap} when it loads builds on demand, in which case
+     * {@link #previousBuild} and {@link #nextBuild} are not maintained and
+     * the links are resolved through the map instead.
+     */
+    /*package*/ volatile transient RunMap<RunT> runMap;
+
     /**
      * Pointer to the next younger build in progress. This data structure is lazily updated,
      * so it may point to the build that's already completed. This pointer is set to 'this'
@@ -583,10 +590,11 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
 
         // a new build is in progress
         BallColor baseColor;
-        if(previousBuild==null)
+        RunT pb = getPreviousBuild();
+        if(pb==null)
             baseColor = BallColor.GREY;
         else
-            baseColor = previousBuild.getIconColor();
+            baseColor = pb.getIconColor();
 
         return baseColor.anime();
     }
@@ -632,6 +640,8 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
     }
 
     public RunT getPreviousBuild() {
+        RunMap<RunT> m = runMap;
+        if (m!=null)    return m.getPrevious(number);
         return previousBuild;
     }
 
@@ -690,10 +700,10 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
      * Returns the last build that was actually built - i.e., skipping any with Result.NOT_BUILT
      */
     public RunT getPreviousBuiltBuild() {
-        RunT r=previousBuild;
+        RunT r=getPreviousBuild();
         // in certain situations (aborted m2 builds) r.getResult() can still be null, although it should theoretically never happen
         while( r!=null && (r.getResult() == null || r.getResult()==Result.NOT_BUILT) )
-            r=r.previousBuild;
+            r=r.getPreviousBuild();
         return r;
     }
 
@@ -701,9 +711,9 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
      * Returns the last build that didn't fail before this build.
      */
     public RunT getPreviousNotFailedBuild() {
-        RunT r=previousBuild;
+        RunT r=getPreviousBuild();
         while( r!=null && r.getResult()==Result.FAILURE )
-            r=r.previousBuild;
+            r=r.getPreviousBuild();
         return r;
     }
 
@@ -711,9 +721,9 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
      * Returns the last failed build before this build.
      */
     public RunT getPreviousFailedBuild() {
-        RunT r=previousBuild;
+        RunT r=getPreviousBuild();
         while( r!=null && r.getResult()!=Result.FAILURE )
-            r=r.previousBuild;
+            r=r.getPreviousBuild();
         return r;
     }
 
@@ -722,9 +732,9 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
      * @since 1.383
      */
     public RunT getPreviousSuccessfulBuild() {
-        RunT r=previousBuild;
+        RunT r=getPreviousBuild();
         while( r!=null && r.getResult()!=Result.SUCCESS )
-            r=r.previousBuild;
+            r=r.getPreviousBuild();
         return r;
     }
 
@@ -754,6 +764,8 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
     }
 
     public RunT getNextBuild() {
+        RunMap<RunT> m = runMap;
+        if (m!=null)    return m.getNext(number);
         return nextBuild;
     }
 
@@ -1069,6 +1081,10 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
      * Returns an input stream that reads from the log file.
      * It will use a gzip-compressed log file (log.gz) if that exists.
      *
+     * <p>
+     * Console notes that are kept in the {@link ConsoleNoteDictionary} of the log
+     * are read in place, as if the log had them inline.
+     *
      * @throws IOException 
      * @return an input stream from the log file, or null if none exists
      * @since 1.349
@@ -1076,12 +1092,16 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
     public InputStream getLogInputStream() throws IOException {
     	File logFile = getLogFile();
     	if (logFile.exists() ) {
-            return new FileInputStream(logFile);
+            return ConsoleNoteDictionary.decode(new FileInputStream(logFile),logFile);
     	}
 
     	File compressedLogFile = new File(logFile.getParentFile(), logFile.getName()+ ".gz");
     	if (compressedLogFile.exists()) {
-            return new GZIPInputStream(new FileInputStream(compressedLogFile));
+            LineIndex index = LineIndex.load(logFile);
+            if (index!=null && index.isCompressed())
+                // made of many gzip members, which GZIPInputStream may not read through
+                return ConsoleNoteDictionary.decode(index.openAtLine(0),logFile);
+            return ConsoleNoteDictionary.decode(new GZIPInputStream(new FileInputStream(compressedLogFile)),logFile);
     	}
     	
     	return new NullInputStream(0);
@@ -1158,9 +1178,7 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
      * @since 1.350
      */
     public synchronized void deleteArtifacts() throws IOException {
-        File artifactsDir = getArtifactsDir();
-
-        Util.deleteContentsRecursive(artifactsDir);
+        ArtifactStore.deleteArtifacts(this);
     }
 
     /**
@@ -1178,9 +1196,12 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
 
         File rootDir = getRootDir();
         File tmp = new File(rootDir.getParentFile(),'.'+rootDir.getName());
+        Map<String,ArtifactStore.Entry> manifest = ArtifactStore.loadManifest(this);
         
         boolean renamingSucceeded = rootDir.renameTo(tmp);
         Util.deleteRecursive(tmp);
+        if (!manifest.isEmpty())
+            ArtifactStore.get().release(manifest.values());
         // some user reported that they see some left-over .xyz files in the workspace,
         // so just to make sure we've really deleted it, schedule the deletion on VM exit, too.
         if(tmp.exists())
@@ -1189,6 +1210,7 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
         if(!renamingSucceeded)
             throw new IOException(rootDir+" is in use");
 
+        project.getBuildSummaries().remove(getNumber());
         removeRunFromParent();
     }
 
@@ -1334,7 +1356,9 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
                     // don't do buffering so that what's written to the listener
                     // gets reflected to the file immediately, which can then be
                     // served to the browser immediately
-                    OutputStream logger = new FileOutputStream(getLogFile());
+                    // the line index is written as the file is, and repeated console notes are
+                    // moved to the dictionary of the log
+                    OutputStream logger = ConsoleNoteDictionary.encode(LineIndex.openLog(getLogFile()),getLogFile());
                     RunT build = job.getBuild();
 
                     // Global log filters
@@ -1415,6 +1439,14 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
                 if(listener!=null)
                     listener.closeQuietly();
 
+                if(LineIndex.COMPRESS) {
+                    try {
+                        LineIndex.compress(getLogFile());
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to compress "+getLogFile(),e);
+                    }
+                }
+
                 try {
                     save();
                 } catch (IOException e) {
@@ -1491,6 +1523,7 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
     public synchronized void save() throws IOException {
         if(BulkChange.contains(this))   return;
         getDataFile().write(this);
+        project.getBuildSummaries().update(this);
         SaveableListener.fireOnChange(this, getDataFile());
     }
 
@@ -1507,7 +1540,12 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
      */
     @Deprecated
     public String getLog() throws IOException {
-        return Util.loadFile(getLogFile(),getCharset());
+        Reader r = getLogReader();
+        try {
+            return IOUtils.toString(r);
+        } finally {
+            r.close();
+        }
     }
 
     /**
@@ -1520,9 +1558,13 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
      * @throws IOException If there is a problem reading the log file.
      */
     public List<String> getLog(int maxLines) throws IOException {
+        LineIndex index = LineIndex.get(getLogFile(),!isLogUpdated());
+        if (index!=null)
+            return getLog(index,maxLines);
+
         int lineCount = 0;
         List<String> logLines = new LinkedList<String>();
-        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(getLogFile()),getCharset()));
+        BufferedReader reader = new BufferedReader(getLogReader());
         try {
             for (String line = reader.readLine(); line != null; line = reader.readLine()) {
                 logLines.add(line);
@@ -1547,6 +1589,30 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
         return ConsoleNote.removeNotes(logLines);
     }
 
+    /**
+     * Reads just the last lines, by starting from where the index says they are.
+     */
+    private List<String> getLog(LineIndex index, int maxLines) throws IOException {
+        long first = Math.max(0,index.getLineCount()-maxLines);
+        List<String> logLines = new LinkedList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(index.openAtLine(first),getCharset()));
+        try {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                logLines.add(line);
+                // the index only counts LF, but readLine() also splits at a lone CR
+                if (logLines.size() > maxLines)
+                    logLines.remove(0);
+            }
+        } finally {
+            reader.close();
+        }
+
+        if (first > 0 && !logLines.isEmpty())
+            logLines.set(0, "[...truncated " + (first + 1) + " lines...]");
+
+        return ConsoleNote.removeNotes(logLines);
+    }
+
     public void doBuildStatus( StaplerRequest req, StaplerResponse rsp ) throws IOException {
         rsp.sendRedirect2(req.getContextPath()+"/images/48x48/"+getBuildStatusUrl());
     }
@@ -1653,13 +1719,24 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
 
     /**
      * Sends out the raw console output.
+     *
+     * <p>
+     * A single byte range in the {@code Range} header is honored,
+     * so that clients can fetch just the tail of a large log.
      */
     public void doConsoleText(StaplerRequest req, StaplerResponse rsp) throws IOException {
-        rsp.setContentType("text/plain;charset=UTF-8");
-        // Prevent jelly from flushing stream so Content-Length header can be added afterwards
-        FlushProofOutputStream out = new FlushProofOutputStream(rsp.getCompressedOutputStream(req));
-        getLogText().writeLogTo(0,out);
-        out.close();
+        getLogText().doPlainText(req,rsp);
+    }
+
+    /**
+     * Sends out a range of lines of the console output, such as {@code consoleLines?tail=100}
+     * or {@code consoleLines?from=5000&to=6000}, without reading the log from the start.
+     *
+     * @see AnnotatedLargeText#doLines(StaplerRequest, StaplerResponse)
+     * @since 1.398
+     */
+    public void doConsoleLines(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        getLogText().doLines(req,rsp);
     }
 
     /**
@@ -23,20 +23,38 @@
  */
 package hudson.model;
 
+import hudson.Util;
+import hudson.util.IOException2;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
 import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.text.SimpleDateFormat;
 import java.text.ParseException;
 
+import static javax.xml.stream.XMLStreamConstants.*;
+
 /**
  * {@link Map} from build number to {@link Run}.
  *
@@ -45,21 +63,87 @@ import java.text.ParseException;
  * and it also updates the bi-directional links within {@link Run}
  * accordingly.
  *
+ * <p>
+ * When {@link #LAZY_LOADING} is on, {@link #load(Job, Constructor)} only indexes
+ * the build directories, and {@link Run}s are unmarshalled from disk the first time
+ * they are accessed. Loaded records are then held through {@link SoftReference}s
+ * (plus a small set of strongly-held, recently used ones), so they can be discarded
+ * under memory pressure and transparently reloaded later. In this mode, the
+ * previous/next links of {@link Run} are resolved through this map instead
+ * of being kept in fields.
+ *
  * @author Kohsuke Kawaguchi
  */
 public final class RunMap<R extends Run<?,R>> extends AbstractMap<Integer,R> implements SortedMap<Integer,R> {
     // copy-on-write map
-    private transient volatile SortedMap<Integer,R> builds =
-        new TreeMap<Integer,R>(COMPARATOR);
+    private transient volatile SortedMap<Integer,BuildReference<R>> builds =
+        new TreeMap<Integer,BuildReference<R>>(COMPARATOR);
 
     /**
      * Read-only view of this map.
      */
     private final SortedMap<Integer,R> view = Collections.unmodifiableSortedMap(this);
 
+    /**
+     * True if this map loads {@link Run}s on demand.
+     */
+    private final boolean lazy = LAZY_LOADING;
+
+    /**
+     * Used to (re)load build records on demand. Set by {@link #load(Job, Constructor)}.
+     */
+    private transient volatile Constructor<R> cons;
+
+    /**
+     * Recently accessed builds, strongly held in addition to the {@link SoftReference}s
+     * so that the builds the UI keeps touching do not get evicted first.
+     * Only used in the lazy mode.
+     */
+    private final Map<Integer,R> recentlyUsed = new LinkedHashMap<Integer,R>(16,0.75f,true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer,R> eldest) {
+            return size()>CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Returns true if this map loads build records on demand.
+     */
+    public boolean isLazy() {
+        return lazy;
+    }
+
     public Set<Entry<Integer,R>> entrySet() {
         // since the map is copy-on-write, make sure no one modifies it
-        return Collections.unmodifiableSet(builds.entrySet());
+        return Collections.unmodifiableSet(new RunView(builds).entrySet());
+    }
+
+    @Override
+    public int size() {
+        return builds.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return builds.isEmpty();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return builds.containsKey(key);
+    }
+
+    @Override
+    public R get(Object key) {
+        return new RunView(builds).get(key);
+    }
+
+    /**
+     * Build numbers in this map. This doesn't load any build.
+     */
+    @Override
+    public Set<Integer> keySet() {
+        return Collections.unmodifiableSet(builds.keySet());
     }
 
     public synchronized R put(R value) {
@@ -69,7 +153,7 @@ public final class RunMap<R extends Run<?,R>> extends AbstractMap<Integer,R> imp
     @Override
     public synchronized R put(Integer key, R value) {
         // copy-on-write update
-        TreeMap<Integer,R> m = new TreeMap<Integer,R>(builds);
+        TreeMap<Integer,BuildReference<R>> m = new TreeMap<Integer,BuildReference<R>>(builds);
 
         R r = update(m, key, value);
 
@@ -80,7 +164,7 @@ public final class RunMap<R extends Run<?,R>> extends AbstractMap<Integer,R> imp
     @Override
     public synchronized void putAll(Map<? extends Integer,? extends R> rhs) {
         // copy-on-write update
-        TreeMap<Integer,R> m = new TreeMap<Integer,R>(builds);
+        TreeMap<Integer,BuildReference<R>> m = new TreeMap<Integer,BuildReference<R>>(builds);
 
         for (Map.Entry<? extends Integer,? extends R> e : rhs.entrySet())
             update(m, e.getKey(), e.getValue());
@@ -88,14 +172,20 @@ public final class RunMap<R extends Run<?,R>> extends AbstractMap<Integer,R> imp
         this.builds = m;
     }
 
-    private R update(TreeMap<Integer, R> m, Integer key, R value) {
+    private R update(TreeMap<Integer,BuildReference<R>> m, Integer key, R value) {
+        if (lazy) {
+            // links are resolved through this map. See Run.getPreviousBuild()
+            value.runMap = this;
+            return unwrap(m.put(key, new BuildReference<R>(key, value.getRootDir(), value)));
+        }
+
         // things are bit tricky because this map is order so that the newest one comes first,
         // yet 'nextBuild' refers to the newer build.
-        R first = m.isEmpty() ? null : m.get(m.firstKey());
-        R r = m.put(key, value);
-        SortedMap<Integer,R> head = m.headMap(key);
+        R first = m.isEmpty() ? null : m.get(m.firstKey()).get();
+        R r = unwrap(m.put(key, new BuildReference<R>(key, value.getRootDir(), value)));
+        SortedMap<Integer,BuildReference<R>> head = m.headMap(key);
         if(!head.isEmpty()) {
-            R prev = m.get(head.lastKey());
+            R prev = m.get(head.lastKey()).get();
             value.previousBuild = prev.previousBuild;
             value.nextBuild = prev;
             if(value.previousBuild!=null)
@@ -110,22 +200,32 @@ public final class RunMap<R extends Run<?,R>> extends AbstractMap<Integer,R> imp
         return r;
     }
 
+    private static <R> R unwrap(BuildReference<R> ref) {
+        return ref==null ? null : ref.get();
+    }
+
     public synchronized boolean remove(R run) {
-        if(run.nextBuild!=null)
-            run.nextBuild.previousBuild = run.previousBuild;
-        if(run.previousBuild!=null)
-            run.previousBuild.nextBuild = run.nextBuild; 
+        if (!lazy) {
+            if(run.nextBuild!=null)
+                run.nextBuild.previousBuild = run.previousBuild;
+            if(run.previousBuild!=null)
+                run.previousBuild.nextBuild = run.nextBuild;
+        }
 
         // copy-on-write update
-        TreeMap<Integer,R> m = new TreeMap<Integer,R>(builds);
-        R r = m.remove(run.getNumber());
+        TreeMap<Integer,BuildReference<R>> m = new TreeMap<Integer,BuildReference<R>>(builds);
+        BuildReference<R> r = m.remove(run.getNumber());
         this.builds = m;
 
+        synchronized (recentlyUsed) {
+            recentlyUsed.remove(run.getNumber());
+        }
+
         return r!=null;
     }
 
     public synchronized void reset(TreeMap<Integer,R> builds) {
-        this.builds = new TreeMap<Integer,R>(COMPARATOR);
+        this.builds = new TreeMap<Integer,BuildReference<R>>(COMPARATOR);
         putAll(builds);
     }
 
@@ -136,6 +236,31 @@ public final class RunMap<R extends Run<?,R>> extends AbstractMap<Integer,R> imp
         return view;
     }
 
+    /**
+     * Returns true if the build of the given number is in memory, without loading it.
+     */
+    /*package*/ boolean isLoaded(int n) {
+        BuildReference<R> ref = builds.get(n);
+        return ref!=null && ref.get()!=null;
+    }
+
+    /**
+     * Finds the build that precedes the given build number, loading it if necessary.
+     */
+    /*package*/ R getPrevious(int n) {
+        // the map is in the descending order, so the tail map contains older builds
+        SortedMap<Integer,BuildReference<R>> m = builds.tailMap(n-1);
+        return m.isEmpty() ? null : new RunView(m).get(m.firstKey());
+    }
+
+    /**
+     * Finds the build that follows the given build number, loading it if necessary.
+     */
+    /*package*/ R getNext(int n) {
+        SortedMap<Integer,BuildReference<R>> m = builds.headMap(n);
+        return m.isEmpty() ? null : new RunView(m).get(m.lastKey());
+    }
+
 //
 // SortedMap delegation
 //
@@ -144,15 +269,15 @@ public final class RunMap<R extends Run<?,R>> extends AbstractMap<Integer,R> imp
     }
 
     public SortedMap<Integer, R> subMap(Integer fromKey, Integer toKey) {
-        return builds.subMap(fromKey, toKey);
+        return new RunView(builds.subMap(fromKey, toKey));
     }
 
     public SortedMap<Integer, R> headMap(Integer toKey) {
-        return builds.headMap(toKey);
+        return new RunView(builds.headMap(toKey));
     }
 
     public SortedMap<Integer, R> tailMap(Integer fromKey) {
-        return builds.tailMap(fromKey);
+        return new RunView(builds.tailMap(fromKey));
     }
 
     public Integer firstKey() {
@@ -163,6 +288,72 @@ public final class RunMap<R extends Run<?,R>> extends AbstractMap<Integer,R> imp
         return builds.lastKey();
     }
 
+    /**
+     * Obtains the {@link Run} that the given reference points to, loading it from disk
+     * if it's not in memory.
+     *
+     * @return
+     *      null if the build record failed to load, in which case it's removed from this map.
+     */
+    private R materialize(BuildReference<R> ref) {
+        R r = ref.get();
+        if (r!=null) {
+            if (lazy) {
+                if (!r.isLogUpdated() && cons!=null)
+                    ref.release();  // completed builds can be reloaded from disk
+                touch(ref.number, r);
+            }
+            return r;
+        }
+
+        synchronized (ref) {
+            r = ref.get();
+            if (r==null) {
+                r = loadBuild(ref);
+                if (r==null) {
+                    drop(ref);
+                    return null;
+                }
+                ref.set(r);
+            }
+        }
+        touch(ref.number, r);
+        return r;
+    }
+
+    private R loadBuild(BuildReference<R> ref) {
+        Constructor<R> c = cons;
+        if (c==null)    return null;
+        try {
+            R r = c.create(ref.dir);
+            if (r.getNumber()!=ref.number) {
+                LOGGER.warning("Expected build #"+ref.number+" in "+ref.dir+" but found #"+r.getNumber());
+                return null;
+            }
+            r.runMap = this;
+            r.onLoad();
+            return r;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load "+ref.dir, e);
+        } catch (InstantiationError e) {
+            LOGGER.log(Level.WARNING, "Failed to load "+ref.dir, e);
+        }
+        return null;
+    }
+
+    private synchronized void drop(BuildReference<R> ref) {
+        if (builds.get(ref.number)!=ref)    return;
+        TreeMap<Integer,BuildReference<R>> m = new TreeMap<Integer,BuildReference<R>>(builds);
+        m.remove(ref.number);
+        this.builds = m;
+    }
+
+    private void touch(int n, R r) {
+        synchronized (recentlyUsed) {
+            recentlyUsed.put(n,r);
+        }
+    }
+
     public static final Comparator<Comparable> COMPARATOR = new Comparator<Comparable>() {
         public int compare(Comparable o1, Comparable o2) {
             return -o1.compareTo(o2);
@@ -186,8 +377,8 @@ public final class RunMap<R extends Run<?,R>> extends AbstractMap<Integer,R> imp
      */
     public synchronized void load(Job job, Constructor<R> cons) {
         final SimpleDateFormat formatter = Run.ID_FORMATTER.get();
+        this.cons = cons;
 
-        TreeMap<Integer,R> builds = new TreeMap<Integer,R>(RunMap.COMPARATOR);
         File buildDir = job.getBuildDir();
         buildDir.mkdirs();
         String[] buildDirs = buildDir.list(new FilenameFilter() {
@@ -213,6 +404,12 @@ public final class RunMap<R extends Run<?,R>> extends AbstractMap<Integer,R> imp
             }
         });
 
+        if (lazy) {
+            index(buildDir, buildDirs);
+            return;
+        }
+
+        TreeMap<Integer,R> builds = new TreeMap<Integer,R>(RunMap.COMPARATOR);
         for( String build : buildDirs ) {
             File d = new File(buildDir,build);
             if(new File(d,"build.xml").exists()) {
@@ -234,5 +431,285 @@ public final class RunMap<R extends Run<?,R>> extends AbstractMap<Integer,R> imp
             r.onLoad();
     }
 
+    /**
+     * Builds the number-to-directory index without unmarshalling any build record.
+     *
+     * <p>
+     * The build number is taken from the "number to ID" symlinks that {@link Run} creates,
+     * and only when that's unavailable (say on Windows), from the &lt;number> element of build.xml.
+     */
+    private void index(File buildDir, String[] buildDirs) {
+        Map<String,Integer> numbers = new HashMap<String,Integer>();
+        String[] links = buildDir.list();
+        if (links!=null) {
+            for (String link : links) {
+                int n;
+                try {
+                    n = Integer.parseInt(link);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                try {
+                    String target = Util.resolveSymlink(new File(buildDir,link),TaskListener.NULL);
+                    if (target!=null)
+                        numbers.put(new File(target).getName(),n);
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to resolve "+link, e);
+                } catch (InterruptedException e) {
+                    LOGGER.log(Level.FINE, "Failed to resolve "+link, e);
+                } catch (LinkageError e) {
+                    LOGGER.log(Level.FINE, "Failed to resolve "+link, e);
+                }
+            }
+        }
+
+        TreeMap<Integer,BuildReference<R>> m = new TreeMap<Integer,BuildReference<R>>(COMPARATOR);
+        for (String build : buildDirs) {
+            File d = new File(buildDir,build);
+            File xml = new File(d,"build.xml");
+            if (!xml.exists())
+                continue;   // if the build result file isn't in the directory, ignore it.
+
+            Integer n = numbers.get(build);
+            if (n==null) {
+                try {
+                    n = readNumber(xml);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to index "+d, e);
+                }
+                if (n==null)    continue;
+            }
+            m.put(n, new BuildReference<R>(n,d,null));
+        }
+
+        synchronized (recentlyUsed) {
+            recentlyUsed.clear();
+        }
+        this.builds = m;
+    }
+
+    /**
+     * Reads the build number from build.xml by only looking at the top-level &lt;number> element.
+     *
+     * @return
+     *      null if the file doesn't have the build number.
+     */
+    /*package*/ static Integer readNumber(File xml) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(xml));
+        try {
+            XMLStreamReader r = XML_INPUT_FACTORY.createXMLStreamReader(in);
+            try {
+                int depth = 0;
+                while (r.hasNext()) {
+                    switch (r.next()) {
+                    case START_ELEMENT:
+                        depth++;
+                        if (depth==2 && r.getLocalName().equals("number"))
+                            return Integer.valueOf(r.getElementText().trim());
+                        break;
+                    case END_ELEMENT:
+                        depth--;
+                        break;
+                    }
+                }
+                return null;
+            } finally {
+                r.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException2("Failed to parse "+xml,e);
+        } catch (NumberFormatException e) {
+            throw new IOException2("Failed to parse "+xml,e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Entry in {@link RunMap} that refers to a {@link Run} that may or may not be in memory.
+     */
+    private static final class BuildReference<R> {
+        final int number;
+        final File dir;
+        /**
+         * Builds that are in progress or that cannot be reloaded from disk are held strongly.
+         */
+        private volatile R strong;
+        private volatile SoftReference<R> soft;
+
+        BuildReference(int number, File dir, R r) {
+            this.number = number;
+            this.dir = dir;
+            this.strong = r;
+            if (r!=null)
+                this.soft = new SoftReference<R>(r);
+        }
+
+        /**
+         * Returns the run if it's in memory, without loading it.
+         */
+        R get() {
+            R r = strong;
+            if (r!=null)    return r;
+            SoftReference<R> s = soft;
+            return s==null ? null : s.get();
+        }
+
+        void set(R r) {
+            this.soft = new SoftReference<R>(r);
+        }
+
+        /**
+         * Downgrades the strong reference to the soft reference.
+         */
+        void release() {
+            strong = null;
+        }
+    }
+
+    /**
+     * {@link SortedMap} view of a portion of {@link RunMap#builds}, which loads {@link Run}s as they are accessed.
+     */
+    private final class RunView extends AbstractMap<Integer,R> implements SortedMap<Integer,R> {
+        private final SortedMap<Integer,BuildReference<R>> core;
+
+        RunView(SortedMap<Integer,BuildReference<R>> core) {
+            this.core = core;
+        }
+
+        @Override
+        public R get(Object key) {
+            BuildReference<R> ref = core.get(key);
+            return ref==null ? null : materialize(ref);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return core.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return core.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return core.isEmpty();
+        }
+
+        @Override
+        public Set<Integer> keySet() {
+            return Collections.unmodifiableSet(core.keySet());
+        }
+
+        public Set<Entry<Integer,R>> entrySet() {
+            return new AbstractSet<Entry<Integer,R>>() {
+                public Iterator<Entry<Integer,R>> iterator() {
+                    final Iterator<BuildReference<R>> itr = core.values().iterator();
+                    return new Iterator<Entry<Integer,R>>() {
+                        private Entry<Integer,R> next;
+
+                        public boolean hasNext() {
+                            while (next==null && itr.hasNext()) {
+                                BuildReference<R> ref = itr.next();
+                                R r = materialize(ref);
+                                if (r!=null)
+                                    next = new RunEntry<R>(ref.number,r);
+                            }
+                            return next!=null;
+                        }
+
+                        public Entry<Integer,R> next() {
+                            if (!hasNext())
+                                throw new NoSuchElementException();
+                            Entry<Integer,R> e = next;
+                            next = null;
+                            return e;
+                        }
+
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                public int size() {
+                    return core.size();
+                }
+            };
+        }
+
+        public Comparator<? super Integer> comparator() {
+            return core.comparator();
+        }
+
+        public SortedMap<Integer,R> subMap(Integer fromKey, Integer toKey) {
+            return new RunView(core.subMap(fromKey,toKey));
+        }
+
+        public SortedMap<Integer,R> headMap(Integer toKey) {
+            return new RunView(core.headMap(toKey));
+        }
+
+        public SortedMap<Integer,R> tailMap(Integer fromKey) {
+            return new RunView(core.tailMap(fromKey));
+        }
+
+        public Integer firstKey() {
+            return core.firstKey();
+        }
+
+        public Integer lastKey() {
+            return core.lastKey();
+        }
+    }
+
+    private static final class RunEntry<R> implements Entry<Integer,R> {
+        private final Integer key;
+        private final R value;
+
+        RunEntry(Integer key, R value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        public Integer getKey() {
+            return key;
+        }
+
+        public R getValue() {
+            return value;
+        }
+
+        public R setValue(R value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry))  return false;
+            Entry<?,?> that = (Entry<?,?>) o;
+            return key.equals(that.getKey()) && (value==null ? that.getValue()==null : value.equals(that.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ (value==null ? 0 : value.hashCode());
+        }
+    }
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    /**
+     * If true, build records are loaded on demand instead of all at once when the job is loaded.
+     */
+    public static boolean LAZY_LOADING = Boolean.getBoolean(RunMap.class.getName()+".lazyLoading");
+
+    /**
+     * Number of recently used build records that are strongly held per job in the lazy mode.
+     */
+    public static int CACHE_SIZE = Integer.getInteger(RunMap.class.getName()+".cacheSize",64);
+
     private static final Logger LOGGER = Logger.getLogger(RunMap.class.getName());
 }
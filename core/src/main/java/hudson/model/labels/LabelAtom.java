@@ -49,6 +49,7 @@ import org.kohsuke.stapler.export.Exported;
 import javax.servlet.ServletException;
 import java.io.File;
 import java.io.IOException;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.List;
 import java.util.Vector;
@@ -144,6 +145,11 @@ public class LabelAtom extends Label implements Saveable {
         return resolver.resolve(name);
     }
 
+    @Override
+    public BitSet matchingNodes(NodeLabelIndex index) {
+        return index.getNodesWith(name);
+    }
+
     @Override
     public LabelOperatorPrecedence precedence() {
         return LabelOperatorPrecedence.ATOM;
@@ -26,6 +26,8 @@ package hudson.model.labels;
 import hudson.model.Label;
 import hudson.util.VariableResolver;
 
+import java.util.BitSet;
+
 /**
  * Boolean expression of labels.
  * 
@@ -55,6 +57,13 @@ public abstract class LabelExpression extends Label {
             return !base.matches(resolver);
         }
 
+        @Override
+        public BitSet matchingNodes(NodeLabelIndex index) {
+            BitSet r = base.matchingNodes(index);
+            r.flip(0,index.size());
+            return r;
+        }
+
         @Override
         public LabelOperatorPrecedence precedence() {
             return LabelOperatorPrecedence.NOT;
@@ -77,6 +86,11 @@ public abstract class LabelExpression extends Label {
             return base.matches(resolver);
         }
 
+        @Override
+        public BitSet matchingNodes(NodeLabelIndex index) {
+            return base.matchingNodes(index);
+        }
+
         @Override
         public LabelOperatorPrecedence precedence() {
             return LabelOperatorPrecedence.ATOM;
@@ -114,7 +128,27 @@ public abstract class LabelExpression extends Label {
             return op(lhs.matches(resolver),rhs.matches(resolver));
         }
 
+        @Override
+        public BitSet matchingNodes(NodeLabelIndex index) {
+            return op(lhs.matchingNodes(index),rhs.matchingNodes(index),index.size());
+        }
+
         protected abstract boolean op(boolean a, boolean b);
+
+        /**
+         * Bit-wise version of {@link #op(boolean, boolean)}, which can modify the given bit sets.
+         * The default implementation applies {@link #op(boolean, boolean)} to each bit.
+         *
+         * @param size
+         *      Number of nodes, which is the number of bits that matter.
+         */
+        protected BitSet op(BitSet a, BitSet b, int size) {
+            BitSet r = new BitSet(size);
+            for (int i=0; i<size; i++)
+                if (op(a.get(i),b.get(i)))
+                    r.set(i);
+            return r;
+        }
     }
 
     public static final class And extends Binary {
@@ -127,6 +161,12 @@ public abstract class LabelExpression extends Label {
             return a && b;
         }
 
+        @Override
+        protected BitSet op(BitSet a, BitSet b, int size) {
+            a.and(b);
+            return a;
+        }
+
         @Override
         public LabelOperatorPrecedence precedence() {
             return LabelOperatorPrecedence.AND;
@@ -143,6 +183,12 @@ public abstract class LabelExpression extends Label {
             return a || b;
         }
 
+        @Override
+        protected BitSet op(BitSet a, BitSet b, int size) {
+            a.or(b);
+            return a;
+        }
+
         @Override
         public LabelOperatorPrecedence precedence() {
             return LabelOperatorPrecedence.OR;
@@ -159,6 +205,13 @@ public abstract class LabelExpression extends Label {
             return !(a ^ b);
         }
 
+        @Override
+        protected BitSet op(BitSet a, BitSet b, int size) {
+            a.xor(b);
+            a.flip(0,size);
+            return a;
+        }
+
         @Override
         public LabelOperatorPrecedence precedence() {
             return LabelOperatorPrecedence.IFF;
@@ -175,6 +228,13 @@ public abstract class LabelExpression extends Label {
             return !a || b;
         }
 
+        @Override
+        protected BitSet op(BitSet a, BitSet b, int size) {
+            a.flip(0,size);
+            a.or(b);
+            return a;
+        }
+
         @Override
         public LabelOperatorPrecedence precedence() {
             return LabelOperatorPrecedence.IMPLIES;
@@ -0,0 +1,212 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2011, Sun Microsystems, Inc.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.model.labels;
+
+import hudson.Util;
+import hudson.model.Hudson;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue.Task;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the {@link LabelAtom}s of a fixed set of {@link Node}s, so that {@link Label}s
+ * can be evaluated against all the nodes at once.
+ *
+ * <p>
+ * Each node is given a position in the index, and each label atom is mapped to a {@link BitSet}
+ * of the nodes that carry it. {@link Label#matchingNodes(NodeLabelIndex)} then combines those bit sets
+ * according to the label expression, so finding the nodes that can run a task is
+ * a handful of bit set operations instead of evaluating the expression for every node.
+ * The result is cached for each label.
+ *
+ * <p>
+ * The index of the current set of nodes is obtained by {@link #get()}, and it's
+ * discarded when the nodes or labels are changed.
+ *
+ * @author Kohsuke Kawaguchi
+ * @since 1.398
+ */
+public final class NodeLabelIndex {
+    private final List<Node> nodes;
+    private final Map<Node,Integer> positions = new IdentityHashMap<Node,Integer>();
+    /**
+     * Label atom name to the nodes that have that atom.
+     */
+    private final Map<String,BitSet> atoms = new HashMap<String,BitSet>();
+    /**
+     * Nodes whose {@link Node#canTake(Task)} is not overridden, and therefore
+     * only accept tasks whose label they match.
+     */
+    private final BitSet standardNodes = new BitSet();
+    private final Map<Label,BitSet> cache = new ConcurrentHashMap<Label,BitSet>();
+
+    public NodeLabelIndex(Collection<? extends Node> nodes) {
+        this.nodes = new ArrayList<Node>(nodes);
+        for (int i=0; i<this.nodes.size(); i++) {
+            Node n = this.nodes.get(i);
+            positions.put(n,i);
+            for (LabelAtom a : n.getAssignedLabels()) {
+                BitSet b = atoms.get(a.getName());
+                if (b==null)
+                    atoms.put(a.getName(), b=new BitSet(this.nodes.size()));
+                b.set(i);
+            }
+            if (!Util.isOverridden(Node.class, n.getClass(), "canTake", Task.class))
+                standardNodes.set(i);
+        }
+    }
+
+    /**
+     * Number of nodes in this index.
+     */
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Gets the node at the given position.
+     */
+    public Node getNode(int i) {
+        return nodes.get(i);
+    }
+
+    /**
+     * Gets the position of the node, or -1 if the node isn't in this index.
+     */
+    public int indexOf(Node n) {
+        Integer i = positions.get(n);
+        return i==null ? -1 : i;
+    }
+
+    /**
+     * Gets the nodes that have the given label atom.
+     *
+     * @return
+     *      a new {@link BitSet} that the caller can modify.
+     */
+    public BitSet getNodesWith(String atom) {
+        BitSet b = atoms.get(atom);
+        return b==null ? new BitSet() : (BitSet)b.clone();
+    }
+
+    /**
+     * Returns true if the node at the given position has the given label atom.
+     */
+    public boolean hasAtom(int i, String atom) {
+        BitSet b = atoms.get(atom);
+        return b!=null && b.get(i);
+    }
+
+    /**
+     * Gets the nodes that match the given label.
+     *
+     * @return
+     *      a {@link BitSet} shared with other callers, which must not be modified.
+     */
+    public BitSet getMatchingNodes(Label l) {
+        BitSet b = cache.get(l);
+        if (b==null)
+            cache.put(l, b=l.matchingNodes(this));
+        return b;
+    }
+
+    /**
+     * Returns true if the given node matches the given label.
+     */
+    public boolean matches(Label l, Node n) {
+        int i = indexOf(n);
+        if (i<0)    return l.matches(n);
+        return getMatchingNodes(l).get(i);
+    }
+
+    /**
+     * Returns true if the given node can be ruled out for a task tied to the given label
+     * just by looking at this index, without calling {@link Node#canTake(Task)}.
+     */
+    public boolean isRuledOut(Label l, Node n) {
+        if (l==null)    return false;
+        int i = indexOf(n);
+        return i>=0 && standardNodes.get(i) && !getMatchingNodes(l).get(i);
+    }
+
+    /**
+     * Gets the nodes that {@link #isRuledOut(Label, Node)} doesn't rule out for the given label,
+     * which are the matching nodes plus those that decide for themselves in {@link Node#canTake(Task)}.
+     *
+     * @return
+     *      a new {@link BitSet} that the caller can modify.
+     */
+    public BitSet getCandidateNodes(Label l) {
+        BitSet r;
+        if (l==null) {
+            r = new BitSet(size());
+            r.set(0,size());
+        } else {
+            r = (BitSet)standardNodes.clone();
+            r.flip(0,size());
+            r.or(getMatchingNodes(l));
+        }
+        return r;
+    }
+
+    private static volatile NodeLabelIndex current;
+
+    /**
+     * Gets the index of all the nodes in Hudson.
+     */
+    public static NodeLabelIndex get() {
+        NodeLabelIndex i = current;
+        if (i==null) {
+            synchronized (NodeLabelIndex.class) {
+                i = current;
+                if (i==null) {
+                    Hudson h = Hudson.getInstance();
+                    List<Node> all = new ArrayList<Node>();
+                    all.add(h);
+                    all.addAll(h.getNodes());
+                    current = i = new NodeLabelIndex(all);
+                }
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Discards the current index. Called when nodes or their labels change.
+     */
+    public static void invalidate() {
+        synchronized (NodeLabelIndex.class) {
+            current = null;
+        }
+    }
+}
@@ -26,6 +26,7 @@ package hudson.slaves;
 import hudson.model.*;
 import hudson.model.Hudson.MasterComputer;
 import hudson.remoting.Channel;
+import hudson.remoting.NioChannelHub;
 import hudson.remoting.VirtualChannel;
 import hudson.remoting.Callable;
 import hudson.util.StreamTaskListener;
@@ -301,11 +302,32 @@ public class SlaveComputer extends Computer {
         if(this.channel!=null)
             throw new IllegalStateException("Already connected");
 
+        Channel channel = new Channel(nodeName,threadPoolForRemoting, Channel.Mode.NEGOTIATE,
+            in,out, launchLog);
+        setChannel(channel,launchLog,listener);
+    }
+
+    /**
+     * Sets an already established {@link Channel} to this slave, such as the one
+     * created by {@link NioChannelHub}.
+     *
+     * @param launchLog
+     *      Receives the progress of the initialization of the slave.
+     * @param listener
+     *      Gets a notification when the channel closes, to perform clean up. Can be null.
+     *      By the time this method is called, the cause of the termination is reported to the user,
+     *      so the implementation of the listener doesn't need to do that again.
+     * @since 1.398
+     */
+    public void setChannel(Channel channel, OutputStream launchLog, Channel.Listener listener) throws IOException, InterruptedException {
+        if(this.channel!=null) {
+            channel.close();
+            throw new IllegalStateException("Already connected");
+        }
+
         final TaskListener taskListener = new StreamTaskListener(launchLog);
         PrintStream log = taskListener.getLogger();
 
-        Channel channel = new Channel(nodeName,threadPoolForRemoting, Channel.Mode.NEGOTIATE,
-            in,out, launchLog);
         channel.addListener(new Channel.Listener() {
             @Override
             public void onClosed(Channel c, IOException cause) {
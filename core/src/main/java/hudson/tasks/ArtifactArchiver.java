@@ -29,6 +29,7 @@ import hudson.Util;
 import hudson.Extension;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.ArtifactStore;
 import hudson.model.BuildListener;
 import hudson.model.Result;
 import hudson.model.Hudson;
@@ -114,7 +115,7 @@ public class ArtifactArchiver extends Recorder {
             }
 
             String artifacts = build.getEnvironment(listener).expand(this.artifacts);
-            if(ws.copyRecursiveTo(artifacts,excludes,new FilePath(dir))==0) {
+            if(ws.syncRecursiveTo(artifacts,excludes,getPreviousArtifacts(build),new FilePath(dir))==0) {
                 if(build.getResult().isBetterOrEqualTo(Result.UNSTABLE)) {
                     // If the build failed, don't complain that there was no matching artifact.
                     // The build probably didn't even get to the point where it produces artifacts. 
@@ -133,6 +134,8 @@ public class ArtifactArchiver extends Recorder {
                 }
                 return true;
             }
+            if (ArtifactStore.isEnabled())
+                ArtifactStore.get().add(build);
         } catch (IOException e) {
             Util.displayIOException(e,listener);
             e.printStackTrace(listener.error(
@@ -143,6 +146,18 @@ public class ArtifactArchiver extends Recorder {
         return true;
     }
 
+    /**
+     * Finds the artifacts of an earlier build, which are likely to be mostly the same as the ones being archived.
+     */
+    private FilePath getPreviousArtifacts(AbstractBuild<?,?> build) {
+        for (AbstractBuild<?,?> b=build.getPreviousBuild(); b!=null; b=b.getPreviousBuild()) {
+            File ad = b.getArtifactsDir();
+            if(ad.exists())
+                return new FilePath(ad);
+        }
+        return null;
+    }
+
     @Override
     public boolean prebuild(AbstractBuild<?, ?> build, BuildListener listener) {
         if(latestOnly) {
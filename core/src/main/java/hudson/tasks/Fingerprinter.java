@@ -31,11 +31,12 @@ import hudson.Launcher;
 import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.ArtifactStore;
 import hudson.model.Build;
 import hudson.model.BuildListener;
 import hudson.model.Fingerprint;
 import hudson.model.Fingerprint.BuildPtr;
-import hudson.model.FingerprintMap;
+import hudson.model.FingerprintWriter.Usage;
 import hudson.model.Hudson;
 import hudson.model.Result;
 import hudson.model.Run;
@@ -57,6 +58,7 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -105,7 +107,7 @@ public class Fingerprinter extends Recorder implements Serializable {
 
 
             if(targets.length()!=0)
-                record(build, listener, record, targets);
+                record(build, listener, record, targets, Collections.<String,ArtifactStore.Entry>emptyMap());
 
             if(recordBuildArtifacts) {
                 ArtifactArchiver aa = build.getProject().getPublishersList().get(ArtifactArchiver.class);
@@ -115,7 +117,8 @@ public class Fingerprinter extends Recorder implements Serializable {
                     build.setResult(Result.FAILURE);
                     return true;
                 }
-                record(build, listener, record, aa.getArtifacts() );
+                // the artifact store has already computed checksums of archived files
+                record(build, listener, record, aa.getArtifacts(), ArtifactStore.loadManifest(build));
             }
 
             build.getActions().add(new FingerprintAction(build,record));
@@ -133,7 +136,7 @@ public class Fingerprinter extends Recorder implements Serializable {
         return BuildStepMonitor.NONE;
     }
 
-    private void record(AbstractBuild<?,?> build, BuildListener listener, Map<String,String> record, final String targets) throws IOException, InterruptedException {
+    private void record(AbstractBuild<?,?> build, BuildListener listener, Map<String,String> record, final String targets, final Map<String,ArtifactStore.Entry> known) throws IOException, InterruptedException {
         final class Record implements Serializable {
             final boolean produced;
             final String relativePath;
@@ -147,11 +150,6 @@ public class Fingerprinter extends Recorder implements Serializable {
                 this.md5sum = md5sum;
             }
 
-            Fingerprint addRecord(AbstractBuild build) throws IOException {
-                FingerprintMap map = Hudson.getInstance().getFingerprintMap();
-                return map.getOrCreate(produced?build:null, fileName, md5sum);
-            }
-
             private static final long serialVersionUID = 1L;
         }
 
@@ -180,7 +178,9 @@ public class Fingerprinter extends Recorder implements Serializable {
                     boolean produced = buildTimestamp <= file.lastModified()+2000;
 
                     try {
-                        results.add(new Record(produced,f,file.getName(),new FilePath(file).digest()));
+                        ArtifactStore.Entry e = known.get(f.replace('\\','/'));
+                        String md5 = e!=null && e.matches(file) ? e.md5 : new FilePath(file).digest();
+                        results.add(new Record(produced,f,file.getName(),md5));
                     } catch (IOException e) {
                         throw new IOException2(Messages.Fingerprinter_DigestFailed(file),e);
                     } catch (InterruptedException e) {
@@ -192,13 +192,19 @@ public class Fingerprinter extends Recorder implements Serializable {
             }
         });
 
-        for (Record r : records) {
-            Fingerprint fp = r.addRecord(build);
+        List<Usage> usages = new ArrayList<Usage>(records.size());
+        for (Record r : records)
+            usages.add(new Usage(r.md5sum,r.fileName,r.produced));
+
+        // the fingerprints are saved in the background
+        List<Fingerprint> fingerprints = Hudson.getInstance().getFingerprintMap().getWriter().record(build,usages);
+        for (int i=0; i<records.size(); i++) {
+            Record r = records.get(i);
+            Fingerprint fp = fingerprints.get(i);
             if(fp==null) {
                 listener.error(Messages.Fingerprinter_FailedFor(r.relativePath));
                 continue;
             }
-            fp.add(build);
             record.put(r.relativePath,fp.getHashString());
         }
     }
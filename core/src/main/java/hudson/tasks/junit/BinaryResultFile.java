@@ -0,0 +1,351 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks.junit;
+
+import hudson.model.AbstractBuild;
+import org.apache.commons.io.output.CountingOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persists {@link TestResult} in a compact binary form, in place of the XStream XML
+ * that takes seconds to read back for big test suites.
+ *
+ * <p>
+ * The file consists of the following sections:
+ *
+ * <dl>
+ * <dt>header
+ * <dd>Test counts of the whole result and of each package, so that they can be
+ *     {@linkplain #readHeader(File, AbstractBuild) read} without loading any test case.
+ * <dt>stdio
+ * <dd>stdout/stderr of suites and cases. They are only referenced by their offsets
+ *     from the rest of the file, and {@linkplain #loadStdio(AbstractBuild, long) loaded}
+ *     when someone asks for them.
+ * <dt>body
+ * <dd>The table of names (class, test, suite and file names), each of which is only
+ *     written and loaded once, followed by suites and cases that refer to them.
+ * <dt>trailer
+ * <dd>The offset of the body.
+ * </dl>
+ *
+ * @author Kohsuke Kawaguchi
+ * @since 1.398
+ */
+final class BinaryResultFile {
+    private BinaryResultFile() {}
+
+    /**
+     * Writes the given frozen test result.
+     */
+    static void write(File f, TestResult result) throws IOException {
+        File tmp = new File(f.getPath()+".tmp");
+        CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        DataOutputStream out = new DataOutputStream(counter);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            // header
+            writeCounts(out,result);
+            out.writeInt(result.getChildren().size());
+            for (PackageResult p : result.getChildren()) {
+                writeString(out,p.getName());
+                writeCounts(out,p);
+            }
+
+            // stdio, remembering where each went in the order the body will ask for them
+            List<Long> stdio = new ArrayList<Long>();
+            for (SuiteResult s : result.getSuites()) {
+                stdio.add(writeStdio(out,counter,s.getOwnStdout()));
+                stdio.add(writeStdio(out,counter,s.getOwnStderr()));
+                for (CaseResult c : s.getCases()) {
+                    stdio.add(writeStdio(out,counter,c.getOwnStdout()));
+                    stdio.add(writeStdio(out,counter,c.getOwnStderr()));
+                }
+            }
+
+            // body
+            long body = counter.getByteCount();
+            Map<String,Integer> names = new LinkedHashMap<String,Integer>();
+            for (SuiteResult s : result.getSuites()) {
+                name(names,s.getFile());
+                name(names,s.getName());
+                name(names,s.getTimestamp());
+                name(names,s.getStdoutFile());
+                name(names,s.getStderrFile());
+                for (CaseResult c : s.getCases()) {
+                    name(names,c.getClassName());
+                    name(names,c.getName());
+                    name(names,c.getStdoutFile());
+                    name(names,c.getStderrFile());
+                }
+            }
+            out.writeInt(names.size());
+            for (String name : names.keySet())
+                writeString(out,name);
+
+            out.writeFloat(result.getDuration());
+            out.writeBoolean(result.isKeepLongStdio());
+            out.writeInt(result.getSuites().size());
+            int i=0;
+            for (SuiteResult s : result.getSuites()) {
+                writeName(out,names,s.getFile());
+                writeName(out,names,s.getName());
+                writeName(out,names,s.getTimestamp());
+                writeName(out,names,s.getStdoutFile());
+                writeName(out,names,s.getStderrFile());
+                out.writeLong(stdio.get(i++));
+                out.writeLong(stdio.get(i++));
+                out.writeFloat(s.getDuration());
+                out.writeInt(s.getCases().size());
+                for (CaseResult c : s.getCases()) {
+                    writeName(out,names,c.getClassName());
+                    writeName(out,names,c.getName());
+                    out.writeFloat(c.getDuration());
+                    out.writeBoolean(c.isSkipped());
+                    writeString(out,c.getErrorStackTrace());
+                    writeString(out,c.getErrorDetails());
+                    writeName(out,names,c.getStdoutFile());
+                    writeName(out,names,c.getStderrFile());
+                    out.writeLong(stdio.get(i++));
+                    out.writeLong(stdio.get(i++));
+                    out.writeInt(c.getFailedSince());
+                }
+            }
+
+            out.writeLong(body);
+            out.close();
+
+            if (!tmp.renameTo(f)) {
+                // Windows can't rename over an existing file
+                f.delete();
+                if (!tmp.renameTo(f))
+                    throw new IOException("Failed to rename "+tmp+" to "+f);
+            }
+        } finally {
+            out.close();
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Reads the whole test result, except stdout/stderr.
+     * The result still needs to be {@linkplain TestResult#freeze(TestResultAction) frozen}.
+     */
+    static TestResult read(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f,"r");
+        try {
+            checkMagic(raf,f);
+            raf.seek(raf.length()-8);
+            raf.seek(raf.readLong());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD())));
+
+            String[] names = new String[in.readInt()];
+            for (int i=0; i<names.length; i++)
+                names[i] = readString(in);
+
+            float duration = in.readFloat();
+            boolean keepLongStdio = in.readBoolean();
+            int nSuites = in.readInt();
+            List<SuiteResult> suites = new ArrayList<SuiteResult>(nSuites);
+            for (int i=0; i<nSuites; i++) {
+                String file = readName(in,names);
+                String name = readName(in,names);
+                String timestamp = readName(in,names);
+                String stdoutFile = readName(in,names);
+                String stderrFile = readName(in,names);
+                long stdoutPos = in.readLong();
+                long stderrPos = in.readLong();
+                float suiteDuration = in.readFloat();
+                int nCases = in.readInt();
+                List<CaseResult> cases = new ArrayList<CaseResult>(nCases);
+                for (int j=0; j<nCases; j++) {
+                    String className = readName(in,names);
+                    String testName = readName(in,names);
+                    float caseDuration = in.readFloat();
+                    boolean skipped = in.readBoolean();
+                    String errorStackTrace = readString(in);
+                    String errorDetails = readString(in);
+                    String caseStdoutFile = readName(in,names);
+                    String caseStderrFile = readName(in,names);
+                    long caseStdoutPos = in.readLong();
+                    long caseStderrPos = in.readLong();
+                    cases.add(new CaseResult(className,testName,caseDuration,skipped,errorStackTrace,errorDetails,
+                            caseStdoutFile,caseStdoutPos,caseStderrFile,caseStderrPos,in.readInt()));
+                }
+                suites.add(new SuiteResult(file,name,timestamp,stdoutFile,stdoutPos,stderrFile,stderrPos,suiteDuration,cases));
+            }
+            return new TestResult(keepLongStdio,duration,suites);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads just the test counts.
+     */
+    static Header readHeader(File f, AbstractBuild<?,?> owner) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            checkMagic(in,f);
+            Header h = new Header(readCounts(in,owner));
+            int n = in.readInt();
+            for (int i=0; i<n; i++) {
+                String name = readString(in);
+                h.packages.put(name,readCounts(in,owner));
+            }
+            return h;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Loads stdout/stderr of a suite or a case of the given build.
+     *
+     * @param pos
+     *      the offset where it's stored, as recorded in the body.
+     */
+    static String loadStdio(AbstractBuild<?,?> owner, long pos) {
+        if (owner==null)
+            return null;
+        File f = new File(owner.getRootDir(),FILE_NAME);
+        try {
+            RandomAccessFile raf = new RandomAccessFile(f,"r");
+            try {
+                raf.seek(pos);
+                return readString(raf);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load stdio from "+f,e);
+            return null;
+        }
+    }
+
+    /**
+     * Test counts of the whole result and of each package.
+     */
+    static final class Header {
+        final HistoryStore.Summary total;
+        /**
+         * Keyed by the package name.
+         */
+        final Map<String,HistoryStore.Summary> packages = new LinkedHashMap<String,HistoryStore.Summary>();
+
+        Header(HistoryStore.Summary total) {
+            this.total = total;
+        }
+    }
+
+    private static void writeCounts(DataOutputStream out, hudson.tasks.test.TestResult r) throws IOException {
+        out.writeInt(r.getPassCount());
+        out.writeInt(r.getFailCount());
+        out.writeInt(r.getSkipCount());
+        out.writeFloat(r.getDuration());
+    }
+
+    private static HistoryStore.Summary readCounts(DataInput in, AbstractBuild<?,?> owner) throws IOException {
+        return new HistoryStore.Summary(owner,in.readInt(),in.readInt(),in.readInt(),in.readFloat());
+    }
+
+    /**
+     * @return
+     *      the offset where the string went, or 0 for null.
+     */
+    private static long writeStdio(DataOutputStream out, CountingOutputStream counter, String s) throws IOException {
+        if (s==null)    return 0;
+        long pos = counter.getByteCount();
+        writeString(out,s);
+        return pos;
+    }
+
+    private static void name(Map<String,Integer> names, String s) {
+        if (s!=null && !names.containsKey(s))
+            names.put(s,names.size());
+    }
+
+    private static void writeName(DataOutputStream out, Map<String,Integer> names, String s) throws IOException {
+        out.writeInt(s==null ? -1 : names.get(s));
+    }
+
+    private static String readName(DataInput in, String[] names) throws IOException {
+        int i = in.readInt();
+        return i<0 ? null : names[i];
+    }
+
+    /**
+     * Unlike {@link DataOutputStream#writeUTF(String)}, this works with strings of any length,
+     * such as huge stack traces.
+     */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s==null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int len = in.readInt();
+        if (len<0)  return null;
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes,"UTF-8");
+    }
+
+    private static void checkMagic(DataInput in, File f) throws IOException {
+        if (in.readInt()!=MAGIC)
+            throw new IOException(f+" is not a test result file");
+        int v = in.readInt();
+        if (v!=VERSION)
+            throw new IOException("Unsupported version "+v+" of "+f);
+    }
+
+    static final String FILE_NAME = "junitResult.bin";
+
+    private static final int MAGIC = 0x4A554E54; // "JUNT"
+    private static final int VERSION = 1;
+
+    private static final Logger LOGGER = Logger.getLogger(BinaryResultFile.class.getName());
+}
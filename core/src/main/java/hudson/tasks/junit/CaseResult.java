@@ -27,12 +27,13 @@ import org.jvnet.localizer.Localizable;
 import hudson.model.AbstractBuild;
 import hudson.model.Run;
 import hudson.tasks.test.TestResult;
-import org.dom4j.Element;
 import org.kohsuke.stapler.export.Exported;
 
+import java.io.IOException;
 import java.text.DecimalFormat;
 import java.text.ParseException;
 import java.util.*;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static java.util.Collections.emptyList;
@@ -70,6 +71,18 @@ public final class CaseResult extends TestResult implements Comparable<CaseResul
      */
     private final String stdout,stderr;
 
+    /**
+     * If the stdout/stderr reported at the test case level was too big to keep in memory,
+     * the name of the file that holds it. See {@link StdioBuffer}.
+     */
+    private final String stdoutFile,stderrFile;
+
+    /**
+     * If the stdout/stderr reported at the test case level has been left in {@link BinaryResultFile}
+     * to be loaded on demand, its offset in that file, otherwise 0.
+     */
+    private transient long stdoutPos,stderrPos;
+
     /**
      * This test has been failing since this build number (not id.)
      *
@@ -77,8 +90,7 @@ public final class CaseResult extends TestResult implements Comparable<CaseResul
      */
     private /*final*/ int failedSince;
 
-    private static float parseTime(Element testCase) {
-        String time = testCase.attributeValue("time");
+    /*package*/ static float parseTime(String time) {
         if(time!=null) {
             time = time.replace(",","");
             try {
@@ -94,24 +106,26 @@ public final class CaseResult extends TestResult implements Comparable<CaseResul
         return 0.0f;
     }
 
-    CaseResult(SuiteResult parent, Element testCase, String testClassName, boolean keepLongStdio) {
+    /**
+     * Creates a test result from what {@link SuiteResult} has parsed from a report.
+     *
+     * @param stdoutFile
+     *      if the stdout was spilled, the name of the file, in which case {@code stdout} is null.
+     *      See {@link StdioBuffer}.
+     */
+    CaseResult(String testClassName, String nameAttr, float duration, boolean skipped,
+               String errorStackTrace, String errorDetails,
+               String stdout, String stdoutFile, String stderr, String stderrFile) {
         // schema for JUnit report XML format is not available in Ant,
         // so I don't know for sure what means what.
         // reports in http://www.nabble.com/difference-in-junit-publisher-and-ant-junitreport-tf4308604.html#a12265700
         // indicates that maybe I shouldn't use @classname altogether.
 
-        //String cn = testCase.attributeValue("classname");
-        //if(cn==null)
-        //    // Maven seems to skip classname, and that shows up in testSuite/@name
-        //    cn = parent.getName();
-
-
         /*
             According to http://www.nabble.com/NPE-(Fatal%3A-Null)-in-recording-junit-test-results-td23562964.html
             there's some odd-ball cases where testClassName is null but
             @name contains fully qualified name.
          */
-        String nameAttr = testCase.attributeValue("name");
         if(testClassName==null && nameAttr.contains(".")) {
             testClassName = nameAttr.substring(0,nameAttr.lastIndexOf('.'));
             nameAttr = nameAttr.substring(nameAttr.lastIndexOf('.')+1);
@@ -119,36 +133,35 @@ public final class CaseResult extends TestResult implements Comparable<CaseResul
 
         className = testClassName;
         testName = nameAttr;
-        errorStackTrace = getError(testCase);
-        errorDetails = getErrorMessage(testCase);
-        this.parent = parent;
-        duration = parseTime(testCase);
-        skipped = isMarkedAsSkipped(testCase);
-        @SuppressWarnings("LeakingThisInConstructor")
-        Collection<CaseResult> _this = Collections.singleton(this);
-        stdout = possiblyTrimStdio(_this, keepLongStdio, testCase.elementText("system-out"));
-        stderr = possiblyTrimStdio(_this, keepLongStdio, testCase.elementText("system-err"));
-    }
-
-    private static final int HALF_MAX_SIZE = 500;
-    static String possiblyTrimStdio(Collection<CaseResult> results, boolean keepLongStdio, String stdio) { // HUDSON-6516
-        if (stdio == null) {
-            return null;
-        }
-        if (keepLongStdio) {
-            return stdio;
-        }
-        for (CaseResult result : results) {
-            if (result.errorStackTrace != null) {
-                return stdio;
-            }
-        }
-        int len = stdio.length();
-        int middle = len - HALF_MAX_SIZE * 2;
-        if (middle <= 0) {
-            return stdio;
-        }
-        return stdio.substring(0, HALF_MAX_SIZE) + "...[truncated " + middle + " chars]..." + stdio.substring(len - HALF_MAX_SIZE, len);
+        this.errorStackTrace = errorStackTrace;
+        this.errorDetails = errorDetails;
+        this.duration = duration;
+        this.skipped = skipped;
+        this.stdout = stdout;
+        this.stdoutFile = stdoutFile;
+        this.stderr = stderr;
+        this.stderrFile = stderrFile;
+    }
+
+    /**
+     * Used by {@link BinaryResultFile} to restore a persisted test result.
+     */
+    CaseResult(String className, String testName, float duration, boolean skipped,
+               String errorStackTrace, String errorDetails,
+               String stdoutFile, long stdoutPos, String stderrFile, long stderrPos, int failedSince) {
+        this.className = className;
+        this.testName = testName;
+        this.duration = duration;
+        this.skipped = skipped;
+        this.errorStackTrace = errorStackTrace;
+        this.errorDetails = errorDetails;
+        this.stdout = null;
+        this.stderr = null;
+        this.stdoutFile = stdoutFile;
+        this.stderrFile = stderrFile;
+        this.stdoutPos = stdoutPos;
+        this.stderrPos = stderrPos;
+        this.failedSince = failedSince;
     }
 
     /**
@@ -162,6 +175,8 @@ public final class CaseResult extends TestResult implements Comparable<CaseResul
         this.parent = parent;
         this.stdout = null;
         this.stderr = null;
+        this.stdoutFile = null;
+        this.stderrFile = null;
         this.duration = 0.0f;
         this.skipped = false;
     }
@@ -170,34 +185,6 @@ public final class CaseResult extends TestResult implements Comparable<CaseResul
     	return classResult;
     }
 
-    private static String getError(Element testCase) {
-        String msg = testCase.elementText("error");
-        if(msg!=null)
-            return msg;
-        return testCase.elementText("failure");
-    }
-
-    private static String getErrorMessage(Element testCase) {
-
-        Element msg = testCase.element("error");
-        if (msg == null) {
-            msg = testCase.element("failure");
-        }
-        if (msg == null) {
-            return null; // no error or failure elements! damn!
-        }
-
-        return msg.attributeValue("message");
-    }
-
-    /**
-     * If the testCase element includes the skipped element (as output by TestNG), then
-     * the test has neither passed nor failed, it was never run.
-     */
-    private static boolean isMarkedAsSkipped(Element testCase) {
-        return testCase.element("skipped") != null;
-    }
-
     public String getDisplayName() {
         return testName;
     }
@@ -297,7 +284,7 @@ public final class CaseResult extends TestResult implements Comparable<CaseResul
         // If we haven't calculated failedSince yet, and we should,
         // do it now.
         if (failedSince==0 && getFailCount()==1) {
-            CaseResult prev = getPreviousResult();
+            HistoryStore.CaseEntry prev = getPreviousEntry();
             if(prev!=null && !prev.isPassed())
                 this.failedSince = prev.failedSince;
             else if (getOwner() != null) {
@@ -345,7 +332,9 @@ public final class CaseResult extends TestResult implements Comparable<CaseResul
      */
     @Exported
     public String getStdout() {
-        if(stdout!=null)    return stdout;
+        String s = getOwnStdout();
+        if(s!=null)    return s;
+        if(stdoutFile!=null)    return StdioBuffer.load(getOwner(),stdoutFile);
         SuiteResult sr = getSuiteResult();
         if (sr==null) return "";         
         return getSuiteResult().getStdout();
@@ -359,12 +348,66 @@ public final class CaseResult extends TestResult implements Comparable<CaseResul
      */
     @Exported
     public String getStderr() {
-        if(stderr!=null)    return stderr;
+        String s = getOwnStderr();
+        if(s!=null)    return s;
+        if(stderrFile!=null)    return StdioBuffer.load(getOwner(),stderrFile);
         SuiteResult sr = getSuiteResult();
         if (sr==null) return "";
         return getSuiteResult().getStderr();
     }
 
+    /**
+     * The stdout reported at the test case level and kept with the test result, if any.
+     * Unlike {@link #getStdout()}, this doesn't fall back to the suite.
+     */
+    String getOwnStdout() {
+        if(stdoutPos!=0)    return BinaryResultFile.loadStdio(getOwner(),stdoutPos);
+        return stdout;
+    }
+
+    String getOwnStderr() {
+        if(stderrPos!=0)    return BinaryResultFile.loadStdio(getOwner(),stderrPos);
+        return stderr;
+    }
+
+    /**
+     * See {@link StdioBuffer}.
+     */
+    String getStdoutFile() {
+        return stdoutFile;
+    }
+
+    String getStderrFile() {
+        return stderrFile;
+    }
+
+    /**
+     * Looks up this test in the previous build that has test results. This uses {@link HistoryStore}
+     * where possible, so that the whole test result of that build doesn't need to be loaded.
+     *
+     * @return null if there's no counter part in the previous build.
+     */
+    private HistoryStore.CaseEntry getPreviousEntry() {
+        AbstractBuild<?,?> owner = getOwner();
+        if (HistoryStore.ENABLED && owner!=null) {
+            AbstractBuild<?,?> b = owner.getPreviousBuild();
+            while (b!=null && b.getAction(TestResultAction.class)==null)
+                b = b.getPreviousBuild();
+            if (b==null)
+                return null;
+            try {
+                HistoryStore.CaseEntry e = HistoryStore.get(b.getProject()).getCase(b, className, testName);
+                if (e!=null)
+                    return e.status==HistoryStore.ABSENT ? null : e;
+            } catch (IOException x) {
+                LOGGER.log(Level.WARNING, "Failed to read the test history of "+b, x);
+            }
+        }
+
+        CaseResult prev = getPreviousResult();
+        return prev==null ? null : new HistoryStore.CaseEntry(prev);
+    }
+
     @Override
     public CaseResult getPreviousResult() {
         if (parent == null) return null;
@@ -479,7 +522,7 @@ public final class CaseResult extends TestResult implements Comparable<CaseResul
         this.parent = parent;
         // some old test data doesn't have failedSince value set, so for those compute them.
         if(!isPassed() && failedSince==0) {
-            CaseResult prev = getPreviousResult();
+            HistoryStore.CaseEntry prev = getPreviousEntry();
             if(prev!=null && !prev.isPassed())
                 this.failedSince = prev.failedSince;
             else
@@ -496,7 +539,7 @@ public final class CaseResult extends TestResult implements Comparable<CaseResul
         if (skipped) {
             return Status.SKIPPED;
         }
-        CaseResult pr = getPreviousResult();
+        HistoryStore.CaseEntry pr = getPreviousEntry();
         if(pr==null) {
             return isPassed() ? Status.PASSED : Status.FAILED;
         }
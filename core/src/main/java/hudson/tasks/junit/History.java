@@ -23,7 +23,9 @@
  */
 package hudson.tasks.junit;
 
+import hudson.Util;
 import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
 import hudson.model.Hudson;
 import hudson.tasks.test.TestObject;
 import hudson.tasks.test.TestResult;
@@ -36,8 +38,12 @@ import hudson.util.StackedAreaRenderer2;
 
 import java.awt.Color;
 import java.awt.Paint;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.JFreeChart;
@@ -91,6 +97,50 @@ public class History {
 		return getList(0, testObject.getOwner().getParent().getBuilds().size());
 	}
 
+    /**
+     * Gets the test counts and the duration of this test object in the given range of builds.
+     * Unlike {@link #getList(int, int)}, this reads from {@link HistoryStore} where possible,
+     * instead of loading the test result of each build.
+     */
+    public List<HistoryStore.Summary> getSummaries(int start, int end) {
+        AbstractProject<?,?> job = testObject.getOwner().getParent();
+        List<AbstractBuild<?,?>> builds = new ArrayList<AbstractBuild<?,?>>();
+        end = Math.min(end, job.getBuilds().size());
+        for (AbstractBuild<?,?> b : job.getBuilds().subList(start, end))
+            if (!b.isBuilding())
+                builds.add(b);
+
+        if (HistoryStore.ENABLED) {
+            try {
+                List<HistoryStore.Summary> r = HistoryStore.get(job).summarize(builds, testObject);
+                if (r!=null) {
+                    r.removeAll(Collections.singleton(null));
+                    return r;
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to read the test history of "+job.getFullName(), e);
+            }
+        }
+
+        List<HistoryStore.Summary> r = new ArrayList<HistoryStore.Summary>();
+        for (AbstractBuild<?,?> b : builds) {
+            TestResult o = testObject.getResultInBuild(b);
+            if (o != null)
+                r.add(new HistoryStore.Summary(o));
+        }
+        return r;
+    }
+
+    private List<HistoryStore.Summary> getSummaries() {
+        try {
+            return getSummaries(
+                    Integer.parseInt(Stapler.getCurrentRequest().getParameter("start")),
+                    Integer.parseInt(Stapler.getCurrentRequest().getParameter("end")));
+        } catch (NumberFormatException e) {
+            return getSummaries(0, testObject.getOwner().getParent().getBuilds().size());
+        }
+    }
+
     /**
      * Graph of duration of tests over time.
      */
@@ -99,17 +149,8 @@ public class History {
     	   
            protected DataSetBuilder<String, ChartLabel> createDataSet() {
                DataSetBuilder<String, ChartLabel> data = new DataSetBuilder<String, ChartLabel>();
-               
-               List<TestResult> list;
-               try {
-               	list = getList(
-               			Integer.parseInt(Stapler.getCurrentRequest().getParameter("start")), 
-               			Integer.parseInt(Stapler.getCurrentRequest().getParameter("end")));
-               } catch (NumberFormatException e) {
-               	list = getList();
-               }
-               
-			for (hudson.tasks.test.TestResult o: list) {
+
+               for (final HistoryStore.Summary o: getSummaries()) {
                    data.add(((double) o.getDuration()) / (1000), "", new ChartLabel(o)  {
                        @Override
                        public Color getColor() {
@@ -136,16 +177,7 @@ public class History {
             protected DataSetBuilder<String, ChartLabel> createDataSet() {
                 DataSetBuilder<String, ChartLabel> data = new DataSetBuilder<String, ChartLabel>();
 
-                List<TestResult> list;
-                try {
-                	list = getList(
-                			Integer.parseInt(Stapler.getCurrentRequest().getParameter("start")), 
-                			Integer.parseInt(Stapler.getCurrentRequest().getParameter("end")));
-                } catch (NumberFormatException e) {
-                	list = getList();
-                }
-                
-                for (TestResult o: list) {
+                for (HistoryStore.Summary o: getSummaries()) {
                     data.add(o.getPassCount(), "2Passed", new ChartLabel(o));
                     data.add(o.getFailCount(), "1Failed", new ChartLabel(o));
                     data.add(o.getSkipCount(), "0Skipped", new ChartLabel(o));
@@ -223,8 +255,8 @@ public class History {
                 public String generateToolTip(CategoryDataset dataset, int row,
                         int column) {
                     ChartLabel label = (ChartLabel) dataset.getColumnKey(column);
-                    return label.o.getOwner().getDisplayName() + " : "
-                            + label.o.getDurationString();
+                    return label.o.build.getDisplayName() + " : "
+                            + Util.getTimeSpanString((long) (label.o.getDuration() * 1000));
                 }
             };
             plot.setRenderer(ar);
@@ -240,9 +272,9 @@ public class History {
     }
 
     class ChartLabel implements Comparable<ChartLabel> {
-    	TestResult o;
+    	HistoryStore.Summary o;
         String url;
-        public ChartLabel(TestResult o) {
+        public ChartLabel(HistoryStore.Summary o) {
             this.o = o;
             this.url = null;
         }
@@ -253,14 +285,14 @@ public class History {
         }
 
          private void generateUrl() {
-            AbstractBuild<?,?> build = o.getOwner();
+            AbstractBuild<?,?> build = o.build;
             String buildLink = build.getUrl();
-            String actionUrl = o.getTestResultAction().getUrlName();
-            this.url = Hudson.getInstance().getRootUrl() + buildLink + actionUrl + o.getUrl();             
+            String actionUrl = testObject.getTestResultAction().getUrlName();
+            this.url = Hudson.getInstance().getRootUrl() + buildLink + actionUrl + testObject.getUrl();
         }
 
         public int compareTo(ChartLabel that) {
-            return this.o.getOwner().number - that.o.getOwner().number;
+            return this.o.build.number - that.o.build.number;
         }
 
         @Override
@@ -283,8 +315,8 @@ public class History {
 
         @Override
         public String toString() {
-            String l = o.getOwner().getDisplayName();
-            String s = o.getOwner().getBuiltOnStr();
+            String l = o.build.getDisplayName();
+            String s = o.build.getBuiltOnStr();
             if (s != null)
                 l += ' ' + s;
             return l;
@@ -293,4 +325,5 @@ public class History {
 
     }
 
+    private static final Logger LOGGER = Logger.getLogger(History.class.getName());
 }
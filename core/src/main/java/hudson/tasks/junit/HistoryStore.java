@@ -0,0 +1,862 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks.junit;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import hudson.tasks.test.TestObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Status and duration of every test case in every build of a job, kept in a compact form
+ * so that the history of a test can be looked up without loading test results of each build.
+ *
+ * <p>
+ * The store consists of two files in the job directory. {@code junitHistory.ids} lists
+ * the test cases, one per line, and the line number serves as the index of the test case.
+ * {@code junitHistory.dat} starts with a magic number, followed by one block per build,
+ * which is appended when the build {@linkplain #record(AbstractBuild, TestResult) records} its test result:
+ *
+ * <pre>
+ * int buildNumber
+ * int n                number of test cases in the build
+ * int[n] index         indices of the test cases, in the ascending order
+ * byte[n] status       (see {@link #PASSED} etc.)
+ * float[n] duration
+ * int[n] failedSince
+ * </pre>
+ *
+ * <p>
+ * So a block only has the test cases of its build, no matter how many other tests
+ * the job has had over time. Looking up a test case in a build is a binary search of the index
+ * column, and the aggregated history of a class or a package only needs to read three columns.
+ *
+ * <p>
+ * Builds whose tests have been recorded before the store existed are recorded the first
+ * time their history is asked for.
+ *
+ * <p>
+ * Blocks of deleted builds, as well as blocks replaced by recording a build again, are left
+ * in the file until they make up half of it. Then the file is rewritten without them, and
+ * the test cases that no remaining build has are dropped from {@code junitHistory.ids}.
+ *
+ * <p>
+ * If Hudson dies while recording, a partially written block is truncated away, and
+ * a partially written line in {@code junitHistory.ids} is terminated before more are appended.
+ * If the data file refers to test cases that didn't make it to {@code junitHistory.ids}, placeholders
+ * are added for them, so that their indices aren't handed out to other test cases.
+ *
+ * @author Kohsuke Kawaguchi
+ * @since 1.398
+ */
+public final class HistoryStore {
+    private final File idsFile;
+    private final File dataFile;
+
+    /**
+     * Keys of test cases, in the order of their indices. Null until loaded.
+     */
+    private List<String> keys;
+    private final Map<String,Integer> indices = new HashMap<String,Integer>();
+    /**
+     * Build number to the offset of its block in {@link #dataFile}.
+     */
+    private final Map<Integer,Long> blocks = new HashMap<Integer,Long>();
+    /**
+     * Bytes in {@link #dataFile} taken by blocks no longer in {@link #blocks}.
+     */
+    private long garbage;
+    /**
+     * True if {@link #idsFile} doesn't end with a newline, because the last write was cut short.
+     */
+    private boolean idsUnterminated;
+
+    /**
+     * Blocks recently looked up, as looking up a test case in a build tends to be
+     * followed by looking up other test cases in the same build.
+     */
+    private final Map<Integer,Block> cache = new LinkedHashMap<Integer,Block>(16,0.75f,true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer,Block> eldest) {
+            return size()>CACHE_SIZE;
+        }
+    };
+
+    /*package*/ HistoryStore(File dir) {
+        this.idsFile = new File(dir,"junitHistory.ids");
+        this.dataFile = new File(dir,"junitHistory.dat");
+    }
+
+    /**
+     * Gets the store of the given job.
+     */
+    public static HistoryStore get(AbstractProject<?,?> job) {
+        File dir = job.getRootDir();
+        synchronized (STORES) {
+            HistoryStore s = STORES.get(dir);
+            if (s==null)
+                STORES.put(dir,s=new HistoryStore(dir));
+            return s;
+        }
+    }
+
+    private void load() throws IOException {
+        if (keys!=null)     return;
+        recover();
+        List<String> keys = new ArrayList<String>();
+        if (idsFile.exists()) {
+            BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(idsFile),"UTF-8"));
+            try {
+                String line;
+                while ((line=r.readLine())!=null) {
+                    indices.put(line,keys.size());
+                    keys.add(line);
+                }
+            } finally {
+                r.close();
+            }
+            RandomAccessFile raf = new RandomAccessFile(idsFile,"r");
+            try {
+                long len = raf.length();
+                if (len>0) {
+                    raf.seek(len-1);
+                    idsUnterminated = raf.read()!='\n';
+                }
+            } finally {
+                raf.close();
+            }
+        }
+
+        int maxIndex = -1;
+        if (dataFile.exists()) {
+            RandomAccessFile raf = new RandomAccessFile(dataFile,"rw");
+            try {
+                long len = raf.length(), pos = DATA_HEADER_SIZE;
+                if (len<DATA_HEADER_SIZE || readMagic(raf)!=DATA_MAGIC) {
+                    // nothing but a cache of test results, so just start over
+                    if (len>0)
+                        LOGGER.warning("Discarding "+dataFile+" in an unknown format");
+                    raf.setLength(0);
+                    len = 0;
+                }
+                while (pos<len) {
+                    try {
+                        raf.seek(pos);
+                        int number = raf.readInt();
+                        int n = raf.readInt();
+                        long next = pos+8+13L*n;
+                        if (n<0 || next>len)
+                            throw new EOFException();
+                        if (n>0) {
+                            // indices are in the ascending order, so the last one is the biggest
+                            raf.seek(pos+8+4L*(n-1));
+                            maxIndex = Math.max(maxIndex,raf.readInt());
+                        }
+                        Long old = blocks.put(number,pos);
+                        if (old!=null)  // recorded again
+                            garbage += blockSize(raf,old);
+                        pos = next;
+                    } catch (EOFException e) {
+                        // the last block was only partially written
+                        LOGGER.warning("Truncating "+dataFile+" at "+pos);
+                        raf.setLength(pos);
+                        break;
+                    }
+                }
+            } finally {
+                raf.close();
+            }
+        }
+        this.keys = keys;
+
+        if (maxIndex>=keys.size()) {
+            // the test cases of the last block didn't make it to the disk
+            LOGGER.warning("Adding "+(maxIndex+1-keys.size())+" lost test cases to "+idsFile);
+            List<String> lost = new ArrayList<String>();
+            for (int i=keys.size(); i<=maxIndex; i++) {
+                String key = key(LOST,String.valueOf(i));
+                indices.put(key,keys.size());
+                keys.add(key);
+                lost.add(key);
+            }
+            appendKeys(lost);
+        }
+    }
+
+    private static int readMagic(RandomAccessFile raf) throws IOException {
+        raf.seek(0);
+        return raf.readInt();
+    }
+
+    private void appendKeys(List<String> added) throws IOException {
+        Writer w = new OutputStreamWriter(new FileOutputStream(idsFile,true),"UTF-8");
+        try {
+            if (idsUnterminated) {
+                // finish the line that was cut short, or the first key would be glued to it
+                w.write('\n');
+                idsUnterminated = false;
+            }
+            for (String key : added)
+                w.write(key+'\n');
+        } finally {
+            w.close();
+        }
+    }
+
+    /**
+     * Records the test result of a build.
+     */
+    public void record(AbstractBuild<?,?> build, TestResult result) throws IOException {
+        // computing failedSince may look into the history of earlier builds,
+        // and even load their test results, so do this before locking the store
+        Map<String,CaseEntry> entries = new HashMap<String,CaseEntry>();
+        for (SuiteResult s : result.getSuites()) {
+            for (CaseResult c : s.getCases()) {
+                String key = key(c.getClassName(),c.getName());
+                // test names need not be unique, but every case should count
+                for (int i=2; entries.containsKey(key); i++)
+                    key = key(c.getClassName(),c.getName()+'#'+i);
+                entries.put(key,new CaseEntry(c));
+            }
+        }
+        record(build.getNumber(),entries);
+    }
+
+    /*package*/ synchronized void record(int number, Map<String,CaseEntry> entries) throws IOException {
+        load();
+
+        // assign indices to the test cases
+        SortedMap<Integer,CaseEntry> cases = new TreeMap<Integer,CaseEntry>();
+        List<String> added = new ArrayList<String>();
+        for (Map.Entry<String,CaseEntry> e : entries.entrySet()) {
+            String key = e.getKey();
+            Integer idx = indices.get(key);
+            if (idx==null) {
+                indices.put(key,idx=keys.size());
+                keys.add(key);
+                added.add(key);
+            }
+            cases.put(idx,e.getValue());
+        }
+
+        if (!added.isEmpty())
+            appendKeys(added);
+
+        long offset = dataFile.length();
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dataFile,true)));
+            try {
+                if (offset<DATA_HEADER_SIZE) {
+                    out.writeInt(DATA_MAGIC);
+                    offset = DATA_HEADER_SIZE;
+                }
+                out.writeInt(number);
+                out.writeInt(cases.size());
+                for (int i : cases.keySet())
+                    out.writeInt(i);
+                for (CaseEntry c : cases.values())
+                    out.writeByte(c.status);
+                for (CaseEntry c : cases.values())
+                    out.writeFloat(c.duration);
+                for (CaseEntry c : cases.values())
+                    out.writeInt(c.failedSince);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            // don't leave a partial block in the middle of the file
+            RandomAccessFile raf = new RandomAccessFile(dataFile,"rw");
+            try {
+                raf.setLength(offset);
+            } finally {
+                raf.close();
+            }
+            throw e;
+        }
+        Long old = blocks.put(number,offset);
+        if (old!=null) {
+            // recorded again, which replaces the earlier block
+            cache.remove(number);
+            RandomAccessFile raf = new RandomAccessFile(dataFile,"r");
+            try {
+                garbage += blockSize(raf,old);
+            } finally {
+                raf.close();
+            }
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * Records the test result of the given build if it's not recorded yet.
+     *
+     * @return false if the build has no test result, or it's not recorded yet and
+     *      the build is still in progress. In the latter case it's left to the build to record it,
+     *      as the build may not be done with its test result.
+     */
+    private boolean ensureRecorded(AbstractBuild<?,?> build) throws IOException {
+        if (isRecorded(build.getNumber()))
+            return true;
+        if (build.isBuilding())
+            return false;
+        TestResultAction a = build.getAction(TestResultAction.class);
+        if (a==null)
+            return false;
+        // load the test result without locking the store, as loading it also looks up the history
+        record(build,a.getResult());
+        return true;
+    }
+
+    private synchronized boolean isRecorded(int number) throws IOException {
+        load();
+        return blocks.containsKey(number);
+    }
+
+    /**
+     * Looks up a test case in a build.
+     *
+     * @return
+     *      null if the build has no test result. {@link CaseEntry#status} is {@link #ABSENT}
+     *      if it has, but this test wasn't in it.
+     */
+    public CaseEntry getCase(AbstractBuild<?,?> build, String className, String testName) throws IOException {
+        if (!ensureRecorded(build))
+            return null;
+        return readCase(build.getNumber(),key(className,testName));
+    }
+
+    /**
+     * @return
+     *      null if the build isn't recorded, which is the case if it has just been deleted.
+     */
+    /*package*/ synchronized CaseEntry readCase(int number, String key) throws IOException {
+        load();
+        Long pos = blocks.get(number);
+        if (pos==null)
+            return null;
+        Integer i = indices.get(key);
+        if (i==null)
+            return new CaseEntry(ABSENT,0,0);
+
+        Block b = cache.get(number);
+        if (b==null)
+            cache.put(number,b=readBlock(pos));
+        return b.get(i);
+    }
+
+    /**
+     * Reads the whole block at the given offset at once.
+     */
+    private Block readBlock(long pos) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(dataFile,"r");
+        try {
+            raf.seek(pos+4);
+            int n = raf.readInt();
+            byte[] buf = new byte[13*n];
+            raf.readFully(buf);
+            return new Block(n,buf);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static long blockSize(RandomAccessFile raf, long pos) throws IOException {
+        raf.seek(pos+4);
+        return 8+13L*raf.readInt();
+    }
+
+    /**
+     * Forgets the given build, which has been deleted.
+     */
+    private synchronized void remove(int number) throws IOException {
+        load();
+        Long pos = blocks.remove(number);
+        if (pos==null)  return;
+        cache.remove(number);
+        RandomAccessFile raf = new RandomAccessFile(dataFile,"r");
+        try {
+            garbage += blockSize(raf,pos);
+        } finally {
+            raf.close();
+        }
+        compactIfNeeded();
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (garbage*2>dataFile.length())
+            compact();
+    }
+
+    /**
+     * Rewrites the store with only the blocks of the current builds, and only
+     * the test cases that any of them has.
+     *
+     * <p>
+     * The new files are written next to the current ones and then renamed into place.
+     * {@link #recover()} completes or undoes a compaction interrupted in the middle.
+     */
+    private void compact() throws IOException {
+        // blocks in the order they appear in the file
+        List<Map.Entry<Integer,Long>> live = new ArrayList<Map.Entry<Integer,Long>>(blocks.entrySet());
+        Collections.sort(live,new Comparator<Map.Entry<Integer,Long>>() {
+            public int compare(Map.Entry<Integer,Long> a, Map.Entry<Integer,Long> b) {
+                return a.getValue().compareTo(b.getValue());
+            }
+        });
+
+        // find the test cases still in use, which only needs the index columns
+        boolean[] used = new boolean[keys.size()];
+        RandomAccessFile raf = new RandomAccessFile(dataFile,"r");
+        try {
+            ByteBuffer index = ByteBuffer.allocate(0);
+            for (Map.Entry<Integer,Long> e : live) {
+                raf.seek(e.getValue()+4);
+                int n = raf.readInt();
+                if (index.capacity()<n*4)   index = ByteBuffer.allocate(n*4);
+                raf.readFully(index.array(),0,n*4);
+                for (int j=0; j<n; j++)
+                    used[index.getInt(j*4)] = true;
+            }
+        } finally {
+            raf.close();
+        }
+
+        int[] map = new int[keys.size()];
+        List<String> newKeys = new ArrayList<String>();
+        for (int i=0; i<used.length; i++) {
+            map[i] = used[i] ? newKeys.size() : -1;
+            if (used[i])    newKeys.add(keys.get(i));
+        }
+        int m = newKeys.size();
+
+        File idsTmp = new File(idsFile.getPath()+".tmp");
+        File dataTmp = new File(dataFile.getPath()+".tmp");
+        Writer w = new OutputStreamWriter(new FileOutputStream(idsTmp),"UTF-8");
+        try {
+            for (String key : newKeys)
+                w.write(key+'\n');
+        } finally {
+            w.close();
+        }
+
+        Map<Integer,Long> newBlocks = new HashMap<Integer,Long>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(dataFile)));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dataTmp)));
+        try {
+            long inPos = 0, outPos = DATA_HEADER_SIZE;
+            out.writeInt(DATA_MAGIC);
+            for (Map.Entry<Integer,Long> e : live) {
+                for (long skip=e.getValue()-inPos; skip>0; ) {
+                    long k = in.skip(skip);
+                    if (k<=0)   throw new EOFException();
+                    skip -= k;
+                }
+                int number = in.readInt();
+                int n = in.readInt();
+                byte[] buf = new byte[13*n];
+                in.readFully(buf);
+                inPos = e.getValue()+8+buf.length;
+
+                // every test case of a live block is used, and the mapping keeps them in order,
+                // so only the index column changes
+                ByteBuffer index = ByteBuffer.wrap(buf,0,n*4);
+                for (int j=0; j<n; j++)
+                    index.putInt(j*4,map[index.getInt(j*4)]);
+                out.writeInt(number);
+                out.writeInt(n);
+                out.write(buf);
+                newBlocks.put(number,outPos);
+                outPos += 8+buf.length;
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+
+        File dataNew = new File(dataFile.getPath()+".new");
+        rename(dataTmp,dataNew);
+        rename(idsTmp,idsFile);
+        rename(dataNew,dataFile);
+
+        keys = newKeys;
+        indices.clear();
+        for (int i=0; i<m; i++)
+            indices.put(newKeys.get(i),i);
+        blocks.clear();
+        blocks.putAll(newBlocks);
+        cache.clear();
+        garbage = 0;
+        LOGGER.fine("Compacted "+dataFile+" to "+live.size()+" builds and "+m+" tests");
+    }
+
+    /**
+     * Finishes a compaction that was interrupted. Once the new data file is complete,
+     * the compaction goes ahead; before that, the old files are still the store.
+     */
+    private void recover() throws IOException {
+        File idsTmp = new File(idsFile.getPath()+".tmp");
+        File dataTmp = new File(dataFile.getPath()+".tmp");
+        File dataNew = new File(dataFile.getPath()+".new");
+        if (dataNew.exists()) {
+            if (idsTmp.exists())
+                rename(idsTmp,idsFile);
+            rename(dataNew,dataFile);
+        }
+        idsTmp.delete();
+        dataTmp.delete();
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        // on Windows rename doesn't overwrite
+        if (!to.delete() && to.exists())
+            throw new IOException("Failed to delete "+to);
+        if (!from.renameTo(to))
+            throw new IOException("Failed to rename "+from+" to "+to);
+    }
+
+    /**
+     * A block of {@link #dataFile}, minus the build number and the number of the test cases.
+     */
+    private static final class Block {
+        final int n;
+        private final ByteBuffer buf;
+
+        Block(int n, byte[] buf) {
+            this.n = n;
+            this.buf = ByteBuffer.wrap(buf);
+        }
+
+        /**
+         * Looks up the test case of the given index.
+         */
+        CaseEntry get(int i) {
+            int lo = 0, hi = n-1;
+            while (lo<=hi) {
+                int mid = (lo+hi)>>>1;
+                int v = buf.getInt(4*mid);
+                if (v<i)        lo = mid+1;
+                else if (v>i)   hi = mid-1;
+                else            return new CaseEntry(buf.get(4*n+mid),buf.getFloat(5*n+4*mid),buf.getInt(9*n+4*mid));
+            }
+            return new CaseEntry(ABSENT,0,0);
+        }
+    }
+
+    /**
+     * Adds up the results of the test cases that belong to the given test object, in each of the given builds.
+     *
+     * @return
+     *      list of the same size as {@code builds}, where builds that have no test result
+     *      or don't contain any of the tests map to null. Null if the store doesn't know how to
+     *      pick test cases of the given test object.
+     */
+    public List<Summary> summarize(List<? extends AbstractBuild<?,?>> builds, TestObject o) throws IOException {
+        for (AbstractBuild<?,?> b : builds)
+            ensureRecorded(b);
+        return readSummaries(builds,o);
+    }
+
+    private synchronized List<Summary> readSummaries(List<? extends AbstractBuild<?,?>> builds, TestObject o) throws IOException {
+        boolean[] filter = filter(o);
+        if (filter==null)
+            return null;
+
+        List<Summary> r = new ArrayList<Summary>(builds.size());
+        if (blocks.isEmpty()) {
+            for (int i=0; i<builds.size(); i++)
+                r.add(null);
+            return r;
+        }
+        RandomAccessFile raf = new RandomAccessFile(dataFile,"r");
+        try {
+            byte[] buf = new byte[0];
+            for (AbstractBuild<?,?> b : builds) {
+                Long pos = blocks.get(b.getNumber());
+                if (pos==null) {
+                    r.add(null);
+                    continue;
+                }
+                raf.seek(pos+4);
+                int n = raf.readInt();
+                if (buf.length<n*9)
+                    buf = new byte[n*9];
+                raf.readFully(buf,0,n*9);   // index, status, and duration columns
+                ByteBuffer columns = ByteBuffer.wrap(buf);
+
+                Summary s = new Summary(b);
+                for (int j=0; j<n; j++) {
+                    if (!filter[columns.getInt(j*4)])   continue;
+                    switch (buf[4*n+j]) {
+                    case PASSED:    s.passCount++; break;
+                    case FAILED:    s.failCount++; break;
+                    case SKIPPED:   s.skipCount++; break;
+                    default:        continue;
+                    }
+                    s.duration += columns.getFloat(5*n+j*4);
+                }
+                r.add(s.getTotalCount()>0 ? s : null);
+            }
+        } finally {
+            raf.close();
+        }
+        return r;
+    }
+
+    /**
+     * Figures out which test cases belong to the given test object.
+     */
+    private boolean[] filter(TestObject o) {
+        boolean[] r = new boolean[keys.size()];
+        if (o instanceof TestResult) {
+            Arrays.fill(r,true);
+        } else if (o instanceof PackageResult) {
+            String pkg = o.getName();
+            for (int i=0; i<r.length; i++)
+                r[i] = getPackageName(keys.get(i)).equals(pkg);
+        } else if (o instanceof ClassResult) {
+            String pkg = ((ClassResult)o).getParent().getName();
+            String cls = o.getName();
+            for (int i=0; i<r.length; i++) {
+                String key = keys.get(i);
+                r[i] = getPackageName(key).equals(pkg) && getSimpleClassName(key).equals(cls);
+            }
+        } else if (o instanceof CaseResult) {
+            CaseResult c = (CaseResult)o;
+            Integer i = indices.get(key(c.getClassName(),c.getName()));
+            if (i!=null)    r[i] = true;
+        } else {
+            return null;
+        }
+        return r;
+    }
+
+    private static String key(String className, String testName) {
+        return (className+'\t'+testName).replace('\n',' ').replace('\r',' ');
+    }
+
+    private static String getClassName(String key) {
+        return key.substring(0,key.indexOf('\t'));
+    }
+
+    /**
+     * Same as {@link CaseResult#getPackageName()}.
+     */
+    private static String getPackageName(String key) {
+        String className = getClassName(key);
+        int idx = className.lastIndexOf('.');
+        if(idx<0)       return "(root)";
+        else            return className.substring(0,idx);
+    }
+
+    private static String getSimpleClassName(String key) {
+        String className = getClassName(key);
+        return className.substring(className.lastIndexOf('.')+1);
+    }
+
+    /**
+     * Status and duration of a test case in one build.
+     */
+    public static final class CaseEntry {
+        public final byte status;
+        public final float duration;
+        /**
+         * Same as {@link CaseResult#getFailedSince()}. 0 if {@link #PASSED}.
+         */
+        public final int failedSince;
+
+        CaseEntry(byte status, float duration, int failedSince) {
+            this.status = status;
+            this.duration = duration;
+            this.failedSince = failedSince;
+        }
+
+        CaseEntry(CaseResult c) {
+            this(c.isSkipped() ? SKIPPED : c.isPassed() ? PASSED : FAILED, c.getDuration(), c.isPassed() ? 0 : c.getFailedSince());
+        }
+
+        public boolean isPassed() {
+            return status==PASSED;
+        }
+    }
+
+    /**
+     * Test counts and duration of a set of test cases in one build.
+     */
+    public static final class Summary {
+        public final AbstractBuild<?,?> build;
+        private int passCount, failCount, skipCount;
+        private float duration;
+
+        Summary(AbstractBuild<?,?> build) {
+            this.build = build;
+        }
+
+        Summary(AbstractBuild<?,?> build, int passCount, int failCount, int skipCount, float duration) {
+            this.build = build;
+            this.passCount = passCount;
+            this.failCount = failCount;
+            this.skipCount = skipCount;
+            this.duration = duration;
+        }
+
+        Summary(hudson.tasks.test.TestResult o) {
+            this(o.getOwner());
+            passCount = o.getPassCount();
+            failCount = o.getFailCount();
+            skipCount = o.getSkipCount();
+            duration = o.getDuration();
+        }
+
+        public int getPassCount() {
+            return passCount;
+        }
+
+        public int getFailCount() {
+            return failCount;
+        }
+
+        public int getSkipCount() {
+            return skipCount;
+        }
+
+        public int getTotalCount() {
+            return passCount+failCount+skipCount;
+        }
+
+        /**
+         * In seconds.
+         */
+        public float getDuration() {
+            return duration;
+        }
+    }
+
+    /**
+     * Key of the test cases whose keys were lost in a crash.
+     */
+    private static final String LOST = "(lost)";
+
+    private static final int DATA_MAGIC = 0x4A484932;  // JHI2
+    private static final int DATA_HEADER_SIZE = 4;
+
+    public static final byte ABSENT = 0;
+    public static final byte PASSED = 1;
+    public static final byte FAILED = 2;
+    public static final byte SKIPPED = 3;
+
+    /**
+     * Stores of the jobs, keyed by their directories. Entries are evicted when jobs are renamed or deleted.
+     */
+    private static final Map<File,HistoryStore> STORES = new HashMap<File,HistoryStore>();
+
+    /**
+     * Number of blocks kept in memory by each store.
+     */
+    private static final int CACHE_SIZE = 8;
+
+    /**
+     * Forgets deleted builds, so that their blocks are eventually compacted away.
+     */
+    @Extension
+    public static final class RunListenerImpl extends RunListener<Run> {
+        @Override
+        public void onDeleted(Run r) {
+            if (!ENABLED || !(r instanceof AbstractBuild))
+                return;
+            AbstractProject<?,?> job = ((AbstractBuild<?,?>)r).getProject();
+            if (!new File(job.getRootDir(),"junitHistory.dat").exists())
+                return;     // no point in loading the store
+            try {
+                get(job).remove(r.getNumber());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to remove "+r+" from the test history", e);
+            }
+        }
+    }
+
+    /**
+     * Drops the stores of jobs that moved or are gone.
+     */
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            evict();
+        }
+
+        @Override
+        public void onRenamed(Item item, String oldName, String newName) {
+            evict();
+        }
+
+        private void evict() {
+            synchronized (STORES) {
+                for (Iterator<File> itr = STORES.keySet().iterator(); itr.hasNext();) {
+                    if (!itr.next().exists())
+                        itr.remove();
+                }
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(HistoryStore.class.getName());
+
+    /**
+     * Set to false to disable the store, and look up test history from each build.
+     */
+    public static boolean ENABLED = !Boolean.getBoolean(HistoryStore.class.getName()+".disabled");
+}
@@ -31,6 +31,8 @@ import hudson.remoting.VirtualChannel;
 
 import java.io.IOException;
 import java.io.File;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.apache.tools.ant.types.FileSet;
 import org.apache.tools.ant.DirectoryScanner;
@@ -80,7 +82,9 @@ public class JUnitParser extends TestResultParser {
         // [BUG 3123310] TODO - Test Result Refactor: review and fix TestDataPublisher/TestAction subsystem]
         // also get code that deals with testDataPublishers from JUnitResultArchiver.perform
         
-        TestResult testResult = build.getWorkspace().act( new ParseResultCallable(testResultLocations, buildTime, timeOnMaster, keepLongStdio));
+        // large stdout/stderr are sent straight into the build directory, instead of as a part of TestResult
+        FilePath stdioDir = new FilePath(new File(build.getRootDir(),StdioBuffer.DIR_NAME));
+        TestResult testResult = build.getWorkspace().act( new ParseResultCallable(testResultLocations, buildTime, timeOnMaster, keepLongStdio, stdioDir));
         return testResult;        
     }
 
@@ -90,15 +94,17 @@ public class JUnitParser extends TestResultParser {
         private final String testResults;
         private final long nowMaster;
         private final boolean keepLongStdio;
+        private final FilePath stdioDir;
 
-        private ParseResultCallable(String testResults, long buildTime, long nowMaster, boolean keepLongStdio) {
+        private ParseResultCallable(String testResults, long buildTime, long nowMaster, boolean keepLongStdio, FilePath stdioDir) {
             this.buildTime = buildTime;
             this.testResults = testResults;
             this.nowMaster = nowMaster;
             this.keepLongStdio = keepLongStdio;
+            this.stdioDir = stdioDir;
         }
 
-        public TestResult invoke(File ws, VirtualChannel channel) throws IOException {
+        public TestResult invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
             final long nowSlave = System.currentTimeMillis();
 
             FileSet fs = Util.createFileSet(ws, testResults);
@@ -111,10 +117,24 @@ public class JUnitParser extends TestResultParser {
                 throw new AbortException(Messages.JUnitResultArchiver_NoTestReportFound());
             }
 
-            TestResult result = new TestResult(buildTime + (nowSlave - nowMaster), ds, keepLongStdio);
-            result.tally();
-            return result; 
+            File spillDir = Util.createTempDir();
+            try {
+                TestResult result = new TestResult(buildTime + (nowSlave - nowMaster), ds, keepLongStdio, spillDir);
+                result.tally();
+
+                String[] spilled = spillDir.list();
+                if (spilled!=null && spilled.length>0)
+                    new FilePath(spillDir).copyRecursiveTo(stdioDir);
+                return result;
+            } finally {
+                try {
+                    Util.deleteRecursive(spillDir);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to delete "+spillDir,e);
+                }
+            }
         }
     }
 
+    private static final Logger LOGGER = Logger.getLogger(JUnitParser.class.getName());
 }
@@ -176,6 +176,14 @@ public class JUnitResultArchiver extends Recorder implements Serializable,
 		build.getActions().add(action);
 		CHECKPOINT.report();
 
+		if (HistoryStore.ENABLED) {
+			try {
+				HistoryStore.get(build.getProject()).record(build, action.getResult());
+			} catch (IOException e) {
+				e.printStackTrace(listener.error("Failed to record the test history"));
+			}
+		}
+
 		if (action.getResult().getFailCount() > 0)
 			build.setResult(Result.UNSTABLE);
 
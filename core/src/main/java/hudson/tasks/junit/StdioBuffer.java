@@ -0,0 +1,176 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks.junit;
+
+import hudson.model.AbstractBuild;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects stdout/stderr of a test while its report is being parsed, without holding
+ * all of it in memory.
+ *
+ * <p>
+ * Once the output gets bigger than {@link #SPILL_THRESHOLD}, the rest goes to a file in
+ * the spill directory, and only the head and the tail are kept in memory, which is all
+ * that's needed if the output ends up {@linkplain #HALF_MAX_SIZE trimmed}.
+ * The spill files that are kept are copied into {@link #DIR_NAME} of the build, and
+ * loaded on demand.
+ *
+ * @author Kohsuke Kawaguchi
+ * @since 1.398
+ */
+final class StdioBuffer {
+    /**
+     * Directory to spill into. Null to keep everything in memory.
+     */
+    private final File spillDir;
+    private final StringBuilder buf = new StringBuilder();
+    private long length;
+
+    private File spillFile;
+    private Writer spill;
+    private String head;
+    /**
+     * Ring buffer of the last {@link #HALF_MAX_SIZE} chars, once spilled.
+     */
+    private final char[] tail = new char[HALF_MAX_SIZE];
+    private int tailPos;
+
+    StdioBuffer(File spillDir) {
+        this.spillDir = spillDir;
+    }
+
+    void append(char[] ch, int start, int len) throws IOException {
+        length += len;
+        if (spill==null) {
+            buf.append(ch,start,len);
+            if (spillDir!=null && buf.length()>Math.max(SPILL_THRESHOLD,HALF_MAX_SIZE*2))
+                startSpilling();
+        } else {
+            spill.write(ch,start,len);
+            if (len>=HALF_MAX_SIZE) {
+                System.arraycopy(ch,start+len-HALF_MAX_SIZE,tail,0,HALF_MAX_SIZE);
+                tailPos = 0;
+            } else {
+                for (int i=0; i<len; i++) {
+                    tail[tailPos++] = ch[start+i];
+                    if (tailPos==HALF_MAX_SIZE)    tailPos=0;
+                }
+            }
+        }
+    }
+
+    void append(Reader r) throws IOException {
+        char[] chunk = new char[8192];
+        int len;
+        while ((len=r.read(chunk))>=0)
+            append(chunk,0,len);
+    }
+
+    private void startSpilling() throws IOException {
+        spillFile = File.createTempFile("stdio",".txt",spillDir);
+        spill = new OutputStreamWriter(new FileOutputStream(spillFile),"UTF-8");
+        spill.write(buf.toString());
+
+        head = buf.substring(0,HALF_MAX_SIZE);
+        buf.getChars(buf.length()-HALF_MAX_SIZE,buf.length(),tail,0);
+        tailPos = 0;
+        buf.setLength(0);
+        buf.trimToSize();
+    }
+
+    /**
+     * Stops collecting the output.
+     *
+     * @param trim
+     *      true to only keep the head and the tail of a long output.
+     * @return
+     *      the output, or null if it's been spilled, in which case {@link #getSpillFileName()}
+     *      tells where.
+     */
+    String finish(boolean trim) throws IOException {
+        if (spill==null) {
+            long middle = length - HALF_MAX_SIZE*2;
+            if (!trim || middle<=0)
+                return buf.toString();
+            return buf.substring(0,HALF_MAX_SIZE) + "...[truncated " + middle + " chars]..." + buf.substring(buf.length()-HALF_MAX_SIZE);
+        }
+
+        spill.close();
+        if (!trim)
+            return null;
+
+        spillFile.delete();
+        spillFile = null;
+        return head + "...[truncated " + (length-HALF_MAX_SIZE*2) + " chars]..." + new String(tail,tailPos,HALF_MAX_SIZE-tailPos) + new String(tail,0,tailPos);
+    }
+
+    /**
+     * Name of the spill file, if the output has been spilled and kept.
+     */
+    String getSpillFileName() {
+        return spillFile!=null ? spillFile.getName() : null;
+    }
+
+    /**
+     * Loads the spilled output of a test of the given build.
+     */
+    static String load(AbstractBuild<?,?> owner, String fileName) {
+        if (fileName==null || owner==null)
+            return null;
+        File f = new File(new File(owner.getRootDir(),DIR_NAME),fileName);
+        try {
+            return FileUtils.readFileToString(f,"UTF-8");
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load "+f,e);
+            return null;
+        }
+    }
+
+    /**
+     * Output of a passing test longer than twice this many chars gets trimmed.
+     */
+    static final int HALF_MAX_SIZE = 500;
+
+    /**
+     * Directory in the build to keep the spilled output in.
+     */
+    static final String DIR_NAME = "junitResult-stdio";
+
+    private static final Logger LOGGER = Logger.getLogger(StdioBuffer.class.getName());
+
+    /**
+     * Output bigger than this many chars is spilled to a file, instead of being kept in memory.
+     */
+    public static int SPILL_THRESHOLD = Integer.getInteger(StdioBuffer.class.getName()+".spillThreshold",64*1024);
+}
@@ -23,22 +23,30 @@
  */
 package hudson.tasks.junit;
 
+import hudson.model.AbstractBuild;
 import hudson.tasks.test.TestObject;
 import hudson.util.IOException2;
-import org.apache.commons.io.FileUtils;
-import org.dom4j.Document;
-import org.dom4j.DocumentException;
-import org.dom4j.Element;
-import org.dom4j.io.SAXReader;
 import org.kohsuke.stapler.export.Exported;
 import org.kohsuke.stapler.export.ExportedBean;
-
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.Reader;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -62,6 +70,16 @@ public final class SuiteResult implements Serializable {
     private final String name;
     private final String stdout;
     private final String stderr;
+    /**
+     * If the stdout/stderr was too big to keep in memory, the name of the file
+     * that holds it. See {@link StdioBuffer}.
+     */
+    private final String stdoutFile, stderrFile;
+    /**
+     * If the stdout/stderr has been left in {@link BinaryResultFile} to be loaded on demand,
+     * its offset in that file, otherwise 0.
+     */
+    private transient long stdoutPos, stderrPos;
     private float duration;
     /**
      * The 'timestamp' attribute of  the test suite.
@@ -80,6 +98,28 @@ public final class SuiteResult implements Serializable {
         this.stderr = stderr;
         this.stdout = stdout;
         this.file = null;
+        this.stdoutFile = null;
+        this.stderrFile = null;
+    }
+
+    /**
+     * Used by {@link BinaryResultFile} to restore a persisted test result.
+     */
+    SuiteResult(String file, String name, String timestamp, String stdoutFile, long stdoutPos,
+                String stderrFile, long stderrPos, float duration, List<CaseResult> cases) {
+        this.file = file;
+        this.name = name;
+        this.timestamp = timestamp;
+        this.stdout = null;
+        this.stderr = null;
+        this.stdoutFile = stdoutFile;
+        this.stderrFile = stderrFile;
+        this.stdoutPos = stdoutPos;
+        this.stderrPos = stderrPos;
+        this.duration = duration;
+        for (CaseResult c : cases)
+            c.setParentSuiteResult(this);
+        this.cases.addAll(cases);
     }
 
     /**
@@ -87,57 +127,202 @@ public final class SuiteResult implements Serializable {
      * This method returns a collection, as a single XML may have multiple &lt;testsuite>
      * elements wrapped into the top-level &lt;testsuites>.
      */
-    static List<SuiteResult> parse(File xmlReport, boolean keepLongStdio) throws DocumentException, IOException {
-        List<SuiteResult> r = new ArrayList<SuiteResult>();
+    static List<SuiteResult> parse(File xmlReport, boolean keepLongStdio) throws SAXException, IOException {
+        return parse(xmlReport, keepLongStdio, null);
+    }
 
-        // parse into DOM
-        SAXReader saxReader = new SAXReader();
+    /**
+     * @param spillDir
+     *      If non-null, stdout/stderr too big to keep in memory are written to files in this directory.
+     *      See {@link StdioBuffer}.
+     */
+    static List<SuiteResult> parse(File xmlReport, boolean keepLongStdio, File spillDir) throws SAXException, IOException {
+        // parse in a streaming fashion, as a report can be too big to fit in memory as a tree
+        SAXParserFactory spf = SAXParserFactory.newInstance();
+        spf.setNamespaceAware(true);
+        XMLReader reader;
+        try {
+            reader = spf.newSAXParser().getXMLReader();
+        } catch (ParserConfigurationException e) {
+            throw new IOException2("Failed to create a parser",e);
+        }
         // install EntityResolver for resolving DTDs, which are in files created by TestNG.
         // (see https://hudson.dev.java.net/servlets/ReadMsg?listName=users&msgNo=5530)
-        XMLEntityResolver resolver = new XMLEntityResolver();
-        saxReader.setEntityResolver(resolver);
-        Document result = saxReader.read(xmlReport);
-        Element root = result.getRootElement();
-
-        if(root.getName().equals("testsuites")) {
-            // multi-suite file
-            for (Element suite : (List<Element>)root.elements("testsuite"))
-                r.add(new SuiteResult(xmlReport, suite, keepLongStdio));
-        } else {
-            // single suite file
-            r.add(new SuiteResult(xmlReport, root, keepLongStdio));
-        }
-
-        return r;
+        reader.setEntityResolver(new XMLEntityResolver());
+        Parser parser = new Parser(xmlReport, keepLongStdio, spillDir);
+        reader.setContentHandler(parser);
+        reader.parse(new InputSource(xmlReport.toURI().toString()));
+        return parser.results;
     }
 
     /**
-     * @param xmlReport
-     *      A JUnit XML report file whose top level element is 'testsuite'.
-     * @param suite
-     *      The parsed result of {@code xmlReport}
+     * Builds {@link SuiteResult}s from the SAX events of a report.
+     *
+     * <p>
+     * If the root element is &lt;testsuites>, its &lt;testsuite> children are the suites.
+     * Otherwise the root element itself is the suite.
      */
-    private SuiteResult(File xmlReport, Element suite, boolean keepLongStdio) throws DocumentException, IOException {
-    	this.file = xmlReport.getAbsolutePath();
-        String name = suite.attributeValue("name");
-        if(name==null)
-            // some user reported that name is null in their environment.
-            // see http://www.nabble.com/Unexpected-Null-Pointer-Exception-in-Hudson-1.131-tf4314802.html
-            name = '('+xmlReport.getName()+')';
-        else {
-            String pkg = suite.attributeValue("package");
-            if(pkg!=null&& pkg.length()>0)   name=pkg+'.'+name;
+    private static final class Parser extends DefaultHandler {
+        private final File xmlReport;
+        private final boolean keepLongStdio;
+        private final File spillDir;
+        final List<SuiteResult> results = new ArrayList<SuiteResult>();
+
+        /**
+         * Used to share the same instance among test cases of the same class,
+         * to keep the parsed result compact in memory as well as on the wire.
+         */
+        private final Map<String,String> strings = new HashMap<String,String>();
+
+        private int depth;
+        private int suiteDepth = 1;
+
+        private Attributes suite;
+        private Attributes suiteError;
+        private StringBuilder suiteErrorText;
+        private boolean suiteSkipped;
+        private StdioBuffer suiteStdout, suiteStderr;
+        private List<CaseResult> cases;
+
+        private Attributes testCase;
+        private StringBuilder error, failure;
+        private Attributes errorAttrs, failureAttrs;
+        private boolean skipped;
+        private StdioBuffer stdout, stderr;
+
+        /**
+         * Receives the text content of the element being collected, if any.
+         */
+        private StringBuilder text;
+        private StdioBuffer stdio;
+        private int textDepth;
+
+        Parser(File xmlReport, boolean keepLongStdio, File spillDir) {
+            this.xmlReport = xmlReport;
+            this.keepLongStdio = keepLongStdio;
+            this.spillDir = spillDir;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+            depth++;
+            if (depth==1) {
+                if (localName.equals("testsuites"))
+                    suiteDepth = 2;
+                else
+                    startSuite(atts);
+                return;
+            }
+
+            if (depth==suiteDepth) {
+                if (localName.equals("testsuite"))
+                    startSuite(atts);
+                return;
+            }
+            if (suite==null)    return;
+
+            if (depth==suiteDepth+1) {
+                if (localName.equals("testcase")) {
+                    testCase = new AttributesImpl(atts);
+                    error = failure = null;
+                    errorAttrs = failureAttrs = null;
+                    skipped = false;
+                    stdout = stderr = null;
+                } else if (localName.equals("error")) {
+                    if (suiteError==null) {
+                        suiteError = new AttributesImpl(atts);
+                        collectText(suiteErrorText = new StringBuilder());
+                    }
+                } else if (localName.equals("skipped")) {
+                    suiteSkipped = true;
+                } else if (localName.equals("system-out")) {
+                    if (suiteStdout==null)
+                        collectStdio(suiteStdout = new StdioBuffer(spillDir));
+                } else if (localName.equals("system-err")) {
+                    if (suiteStderr==null)
+                        collectStdio(suiteStderr = new StdioBuffer(spillDir));
+                }
+                return;
+            }
+
+            if (depth==suiteDepth+2 && testCase!=null) {
+                if (localName.equals("error")) {
+                    if (error==null) {
+                        errorAttrs = new AttributesImpl(atts);
+                        collectText(error = new StringBuilder());
+                    }
+                } else if (localName.equals("failure")) {
+                    if (failure==null) {
+                        failureAttrs = new AttributesImpl(atts);
+                        collectText(failure = new StringBuilder());
+                    }
+                } else if (localName.equals("skipped")) {
+                    skipped = true;
+                } else if (localName.equals("system-out")) {
+                    if (stdout==null)
+                        collectStdio(stdout = new StdioBuffer(spillDir));
+                } else if (localName.equals("system-err")) {
+                    if (stderr==null)
+                        collectStdio(stderr = new StdioBuffer(spillDir));
+                }
+            }
+        }
+
+        private void collectText(StringBuilder buf) {
+            text = buf;
+            textDepth = depth;
+        }
+
+        private void collectStdio(StdioBuffer buf) {
+            stdio = buf;
+            textDepth = depth;
         }
-        this.name = TestObject.safe(name);
-        this.timestamp = suite.attributeValue("timestamp");
 
-        Element ex = suite.element("error");
-        if(ex!=null) {
-            // according to junit-noframes.xsl l.229, this happens when the test class failed to load
-            addCase(new CaseResult(this, suite, "<init>", keepLongStdio));
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            // like dom4j's Element.getText(), only the direct text content counts
+            if (depth!=textDepth)   return;
+            if (text!=null)
+                text.append(ch,start,length);
+            if (stdio!=null) {
+                try {
+                    stdio.append(ch,start,length);
+                } catch (IOException e) {
+                    throw new SAXException(e);
+                }
+            }
         }
 
-        for (Element e : (List<Element>)suite.elements("testcase")) {
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            try {
+                if (depth==textDepth) {
+                    text = null;
+                    stdio = null;
+                    textDepth = 0;
+                }
+                if (suite!=null) {
+                    if (depth==suiteDepth+1 && testCase!=null)
+                        endCase();
+                    else if (depth==suiteDepth)
+                        endSuite();
+                }
+                depth--;
+            } catch (IOException e) {
+                throw new SAXException(e);
+            }
+        }
+
+        private void startSuite(Attributes atts) {
+            suite = new AttributesImpl(atts);
+            suiteError = null;
+            suiteErrorText = null;
+            suiteSkipped = false;
+            suiteStdout = suiteStderr = null;
+            cases = new ArrayList<CaseResult>();
+        }
+
+        private void endCase() throws IOException {
             // https://hudson.dev.java.net/issues/show_bug.cgi?id=1233 indicates that
             // when <testsuites> is present, we are better off using @classname on the
             // individual testcase class.
@@ -146,9 +331,9 @@ public final class SuiteResult implements Serializable {
             // @classname may not exist in individual testcase elements. We now
             // also test if the testsuite element has a package name that can be used
             // as the class name instead of the file name which is default.
-            String classname = e.attributeValue("classname");
+            String classname = testCase.getValue("classname");
             if (classname == null) {
-                classname = suite.attributeValue("name");
+                classname = suite.getValue("name");
             }
 
             // https://hudson.dev.java.net/issues/show_bug.cgi?id=1233 and
@@ -157,29 +342,109 @@ public final class SuiteResult implements Serializable {
             // one wants to use @name from <testsuite>,
             // the other wants to use @classname from <testcase>.
 
-            addCase(new CaseResult(this, e, classname, keepLongStdio));
+            String errorStackTrace = error!=null ? error.toString() : failure!=null ? failure.toString() : null;
+            Attributes msg = errorAttrs!=null ? errorAttrs : failureAttrs;
+            String errorDetails = msg!=null ? msg.getValue("message") : null;
+
+            cases.add(newCase(testCase, classname, errorStackTrace, errorDetails, skipped, stdout, stderr));
+            testCase = null;
         }
 
-        String stdout = suite.elementText("system-out");
-        String stderr = suite.elementText("system-err");
-        if (stdout==null && stderr==null) {
-            // Surefire never puts stdout/stderr in the XML. Instead, it goes to a separate file
-            Matcher m = SUREFIRE_FILENAME.matcher(xmlReport.getName());
-            if (m.matches()) {
-                // look for ***-output.txt from TEST-***.xml
-                File mavenOutputFile = new File(xmlReport.getParentFile(),m.group(1)+"-output.txt");
-                if (mavenOutputFile.exists()) {
-                    try {
-                        stdout = FileUtils.readFileToString(mavenOutputFile);
-                    } catch (IOException e) {
-                        throw new IOException2("Failed to read "+mavenOutputFile,e);
+        private void endSuite() throws IOException {
+            String stdout=null, stderr=null, stdoutFile=null, stderrFile=null;
+
+            if (suiteStdout==null && suiteStderr==null) {
+                // Surefire never puts stdout/stderr in the XML. Instead, it goes to a separate file
+                Matcher m = SUREFIRE_FILENAME.matcher(xmlReport.getName());
+                if (m.matches()) {
+                    // look for ***-output.txt from TEST-***.xml
+                    File mavenOutputFile = new File(xmlReport.getParentFile(),m.group(1)+"-output.txt");
+                    if (mavenOutputFile.exists()) {
+                        try {
+                            Reader r = new FileReader(mavenOutputFile);
+                            try {
+                                suiteStdout = new StdioBuffer(spillDir);
+                                suiteStdout.append(r);
+                            } finally {
+                                r.close();
+                            }
+                        } catch (IOException e) {
+                            throw new IOException2("Failed to read "+mavenOutputFile,e);
+                        }
                     }
                 }
             }
+
+            if (suiteError!=null) {
+                // according to junit-noframes.xsl l.229, this happens when the test class failed to load.
+                // this case falls back to the stdio of the suite, which is kept in full as this is a failure.
+                cases.add(0,newCase(suite, "<init>", suiteErrorText.toString(), suiteError.getValue("message"), suiteSkipped, null, null));
+            }
+
+            boolean trim = !keepLongStdio && !hasError(cases);
+            if (suiteStdout!=null) {
+                stdout = suiteStdout.finish(trim);
+                stdoutFile = suiteStdout.getSpillFileName();
+            }
+            if (suiteStderr!=null) {
+                stderr = suiteStderr.finish(trim);
+                stderrFile = suiteStderr.getSpillFileName();
+            }
+
+            results.add(new SuiteResult(xmlReport, suite, stdout, stderr, stdoutFile, stderrFile, cases));
+            suite = null;
+            cases = null;
+        }
+
+        private CaseResult newCase(Attributes atts, String testClassName, String errorStackTrace, String errorDetails,
+                                   boolean skipped, StdioBuffer stdout, StdioBuffer stderr) throws IOException {
+            boolean trim = !keepLongStdio && errorStackTrace==null;
+            String out=null, err=null;
+            if (stdout!=null)   out = stdout.finish(trim);
+            if (stderr!=null)   err = stderr.finish(trim);
+            return new CaseResult(intern(testClassName), atts.getValue("name"), CaseResult.parseTime(atts.getValue("time")),
+                    skipped, errorStackTrace, errorDetails,
+                    out, stdout!=null ? stdout.getSpillFileName() : null,
+                    err, stderr!=null ? stderr.getSpillFileName() : null);
+        }
+
+        private String intern(String s) {
+            if (s==null)    return null;
+            String v = strings.get(s);
+            if (v==null)    strings.put(s,v=s);
+            return v;
+        }
+
+        private static boolean hasError(List<CaseResult> cases) {
+            for (CaseResult c : cases)
+                if (c.getErrorStackTrace()!=null)
+                    return true;
+            return false;
+        }
+    }
+
+    private SuiteResult(File xmlReport, Attributes suite, String stdout, String stderr, String stdoutFile, String stderrFile, List<CaseResult> cases) {
+    	this.file = xmlReport.getAbsolutePath();
+        String name = suite.getValue("name");
+        if(name==null)
+            // some user reported that name is null in their environment.
+            // see http://www.nabble.com/Unexpected-Null-Pointer-Exception-in-Hudson-1.131-tf4314802.html
+            name = '('+xmlReport.getName()+')';
+        else {
+            String pkg = suite.getValue("package");
+            if(pkg!=null&& pkg.length()>0)   name=pkg+'.'+name;
         }
+        this.name = TestObject.safe(name);
+        this.timestamp = suite.getValue("timestamp");
+        this.stdout = stdout;
+        this.stderr = stderr;
+        this.stdoutFile = stdoutFile;
+        this.stderrFile = stderrFile;
 
-        this.stdout = CaseResult.possiblyTrimStdio(cases, keepLongStdio, stdout);
-        this.stderr = CaseResult.possiblyTrimStdio(cases, keepLongStdio, stderr);
+        for (CaseResult c : cases) {
+            c.setParentSuiteResult(this);
+            addCase(c);
+        }
     }
 
     /*package*/ void addCase(CaseResult cr) {
@@ -205,7 +470,9 @@ public final class SuiteResult implements Serializable {
      */
     @Exported
     public String getStdout() {
-        return stdout;
+        String s = getOwnStdout();
+        if (s!=null)   return s;
+        return StdioBuffer.load(getOwner(),stdoutFile);
     }
 
     /**
@@ -216,8 +483,34 @@ public final class SuiteResult implements Serializable {
      */
     @Exported
     public String getStderr() {
+        String s = getOwnStderr();
+        if (s!=null)   return s;
+        return StdioBuffer.load(getOwner(),stderrFile);
+    }
+
+    /**
+     * The stdout kept with the test result, as opposed to in a {@linkplain #getStdoutFile() file}.
+     */
+    String getOwnStdout() {
+        if (stdoutPos!=0)   return BinaryResultFile.loadStdio(getOwner(),stdoutPos);
+        return stdout;
+    }
+
+    String getOwnStderr() {
+        if (stderrPos!=0)   return BinaryResultFile.loadStdio(getOwner(),stderrPos);
         return stderr;
     }
+
+    /**
+     * See {@link StdioBuffer}.
+     */
+    String getStdoutFile() {
+        return stdoutFile;
+    }
+
+    String getStderrFile() {
+        return stderrFile;
+    }
     
     /**
      * The absolute path to the original test report. OS-dependent.
@@ -226,6 +519,10 @@ public final class SuiteResult implements Serializable {
 		return file;
 	}
 
+    private AbstractBuild<?,?> getOwner() {
+        return parent!=null ? parent.getOwner() : null;
+    }
+
 	public hudson.tasks.junit.TestResult getParent() {
         return parent;
     }
@@ -32,10 +32,10 @@ import hudson.tasks.test.TestObject;
 import hudson.tasks.test.AbstractTestResultAction;
 import hudson.util.IOException2;
 import org.apache.tools.ant.DirectoryScanner;
-import org.dom4j.DocumentException;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 import org.kohsuke.stapler.export.Exported;
+import org.xml.sax.SAXException;
 
 import java.io.File;
 import java.io.IOException;
@@ -94,6 +94,11 @@ public final class TestResult extends MetaTabulatedResult {
     private transient List<CaseResult> failedTests;
 
     private final boolean keepLongStdio;
+
+    /**
+     * See {@link StdioBuffer}. Only used while parsing.
+     */
+    private transient File stdioSpillDir;
     
     /**
      * Creates an empty result.
@@ -117,6 +122,25 @@ public final class TestResult extends MetaTabulatedResult {
         this.keepLongStdio = keepLongStdio;
         parse(buildTime, results);
     }
+
+    /**
+     * @param stdioSpillDir
+     *      Directory to write stdout/stderr that are too big to keep in memory.
+     */
+    TestResult(long buildTime, DirectoryScanner results, boolean keepLongStdio, File stdioSpillDir) throws IOException {
+        this.keepLongStdio = keepLongStdio;
+        this.stdioSpillDir = stdioSpillDir;
+        parse(buildTime, results);
+    }
+
+    /**
+     * Used by {@link BinaryResultFile} to restore a persisted test result.
+     */
+    TestResult(boolean keepLongStdio, float duration, List<SuiteResult> suites) {
+        this.keepLongStdio = keepLongStdio;
+        this.duration = duration;
+        this.suites.addAll(suites);
+    }
     
     public TestObject getParent() {
     	return parent;
@@ -196,11 +220,11 @@ public final class TestResult extends MetaTabulatedResult {
      */
     public void parse(File reportFile) throws IOException {
         try {
-            for (SuiteResult suiteResult : SuiteResult.parse(reportFile, keepLongStdio))
+            for (SuiteResult suiteResult : SuiteResult.parse(reportFile, keepLongStdio, stdioSpillDir))
                 add(suiteResult);
         } catch (RuntimeException e) {
             throw new IOException2("Failed to read "+reportFile,e);
-        } catch (DocumentException e) {
+        } catch (SAXException e) {
             if (!reportFile.getPath().endsWith(".xml")) {
                 throw new IOException2("Failed to read "+reportFile+"\n"+
                     "Is this really a JUnit report file? Your configuration must be matching too many files",e);
@@ -428,6 +452,10 @@ public final class TestResult extends MetaTabulatedResult {
         return !suites.isEmpty(); 
     }
 
+    /*package*/ boolean isKeepLongStdio() {
+        return keepLongStdio;
+    }
+
     @Exported(inline=true,visibility=9)
     public Collection<SuiteResult> getSuites() {
         return suites;
@@ -32,14 +32,19 @@ import hudson.tasks.test.AbstractTestResultAction;
 import hudson.tasks.test.TestObject;
 import hudson.util.HeapSpaceStringConverter;
 import hudson.util.XStream2;
+import org.apache.commons.io.FileUtils;
+import org.kohsuke.stapler.Stapler;
 import org.kohsuke.stapler.StaplerProxy;
+import org.kohsuke.stapler.StaplerRequest;
 
 import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -67,6 +72,32 @@ public class TestResultAction extends AbstractTestResultAction<TestResultAction>
         setResult(result, listener);
     }
 
+    /**
+     * Creates an action that reports the same test result as that of another build,
+     * for a build that reuses the outcome of an earlier build instead of running the tests again.
+     *
+     * <p>
+     * The persisted result is copied as is, so the test result isn't loaded.
+     *
+     * @since 1.398
+     */
+    public TestResultAction(AbstractBuild owner, TestResultAction src) throws IOException {
+        super(owner);
+        totalCount = src.getTotalCount();
+        failCount = src.getFailCount();
+        skipCount = src.getSkipCount();
+        if (src.testData!=null)
+            testData.addAll(src.testData);
+
+        if (src.getDataFile().exists())
+            FileUtils.copyFile(src.getDataFile(),getDataFile());
+        if (src.getXmlFile().exists())
+            FileUtils.copyFile(src.getXmlFile().getFile(),getXmlFile().getFile());
+        File stdio = new File(src.owner.getRootDir(),StdioBuffer.DIR_NAME);
+        if (stdio.isDirectory())
+            FileUtils.copyDirectory(stdio,new File(owner.getRootDir(),StdioBuffer.DIR_NAME));
+    }
+
     /**
      * Overwrites the {@link TestResult} by a new data set.
      */
@@ -79,7 +110,7 @@ public class TestResultAction extends AbstractTestResultAction<TestResultAction>
 
         // persist the data
         try {
-            getDataFile().write(result);
+            BinaryResultFile.write(getDataFile(),result);
         } catch (IOException e) {
             e.printStackTrace(listener.fatalError("Failed to save the JUnit test result"));
         }
@@ -87,7 +118,14 @@ public class TestResultAction extends AbstractTestResultAction<TestResultAction>
         this.result = new WeakReference<TestResult>(result);
     }
 
-    private XmlFile getDataFile() {
+    private File getDataFile() {
+        return new File(owner.getRootDir(), BinaryResultFile.FILE_NAME);
+    }
+
+    /**
+     * Where test results used to be persisted before {@link BinaryResultFile}.
+     */
+    private XmlFile getXmlFile() {
         return new XmlFile(XSTREAM,new File(owner.getRootDir(), "junitResult.xml"));
     }
 
@@ -112,6 +150,13 @@ public class TestResultAction extends AbstractTestResultAction<TestResultAction>
         return r;
     }
 
+     @Override
+     public List<CaseResult> getFailedTests() {
+          if (getFailCount()==0)
+              return Collections.emptyList();   // no need to load the test result to know that
+          return getResult().getFailedTests();
+     }
+
     @Override
     public int getFailCount() {
         if(totalCount==null)
@@ -133,29 +178,100 @@ public class TestResultAction extends AbstractTestResultAction<TestResultAction>
         return totalCount;
     }
 
-     @Override
-     public List<CaseResult> getFailedTests() {
-          return getResult().getFailedTests();
-     }
+    /**
+     * Gets the test counts of each package, keyed by the package name.
+     *
+     * <p>
+     * Unless the test result is already in memory, this only reads the counts from the disk,
+     * without loading any test case.
+     */
+    public Map<String,HistoryStore.Summary> getPackageSummaries() {
+        TestResult r = result!=null ? result.get() : null;
+        if (r==null && getDataFile().exists()) {
+            try {
+                return BinaryResultFile.readHeader(getDataFile(),owner).packages;
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to load "+getDataFile(),e);
+            }
+        }
+        if (r==null)
+            r = getResult();
+
+        Map<String,HistoryStore.Summary> summaries = new LinkedHashMap<String,HistoryStore.Summary>();
+        for (PackageResult p : r.getChildren())
+            summaries.put(p.getName(),new HistoryStore.Summary(p));
+        return summaries;
+    }
 
     /**
      * Loads a {@link TestResult} from disk.
      */
     private TestResult load() {
+        File f = getDataFile();
+        if (f.exists()) {
+            try {
+                TestResult r = BinaryResultFile.read(f);
+                r.freeze(this);
+                return r;
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to load "+f,e);
+            }
+        }
+
+        // results recorded by earlier versions
+        XmlFile xml = getXmlFile();
         TestResult r;
         try {
-            r = (TestResult)getDataFile().read();
+            r = (TestResult)xml.read();
         } catch (IOException e) {
-            logger.log(Level.WARNING, "Failed to load "+getDataFile(),e);
+            logger.log(Level.WARNING, "Failed to load "+xml,e);
             r = new TestResult();   // return a dummy
+            r.freeze(this);
+            return r;
         }
         r.freeze(this);
+
+        // convert it, so that next time it loads faster.
+        // the XML file is left alone, so that earlier versions can still read it
+        try {
+            BinaryResultFile.write(f,r);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to convert "+xml,e);
+        }
         return r;
     }
 
+    /**
+     * Gets the top level of the test result made only of the counts of each package,
+     * which doesn't load the test result unless it's already in memory.
+     *
+     * @since 1.398
+     */
+    public TestResultSummary getSummary() {
+        return new TestResultSummary(this,getPackageSummaries());
+    }
+
+    /**
+     * The top page of a result without failures only shows the counts of each package,
+     * so it's rendered from {@link #getSummary()}, without loading the test result.
+     * Everything else, including the pages of packages and the remote API, goes to {@link TestResult}.
+     */
     public Object getTarget() {
+        StaplerRequest req = Stapler.getCurrentRequest();
+        if (req!=null && isSummaryPage(req.getRestOfPath()))
+            return getSummary();
         return getResult();
     }
+
+    /**
+     * Decided only from what's persisted, so that the same page is shown
+     * regardless of whether the test result happens to be in memory.
+     */
+    private boolean isSummaryPage(String restOfPath) {
+        if (restOfPath.length()>0 && !restOfPath.equals("/"))
+            return false;
+        return getFailCount()==0 && (testData==null || testData.isEmpty()) && getDataFile().exists();
+    }
     
     public List<TestAction> getActions(TestObject object) {
     	List<TestAction> result = new ArrayList<TestAction>();
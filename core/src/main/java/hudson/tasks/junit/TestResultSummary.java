@@ -0,0 +1,264 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks.junit;
+
+import hudson.model.AbstractBuild;
+import hudson.tasks.test.AbstractTestResultAction;
+import hudson.tasks.test.MetaTabulatedResult;
+import hudson.tasks.test.TabulatedResult;
+import hudson.tasks.test.TestObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Top level of a test result, made only of the counts of each package that
+ * {@link TestResultAction#getPackageSummaries()} reads from the disk.
+ *
+ * <p>
+ * This is rendered by the same views as {@link TestResult}, so that the top page of
+ * a result without failures can be shown without loading any test case.
+ * It has no failed tests and no test cases, so anything below the package list
+ * is left to {@link TestResult}.
+ *
+ * @author Kohsuke Kawaguchi
+ * @since 1.398
+ */
+public final class TestResultSummary extends MetaTabulatedResult {
+    private final TestResultAction parentAction;
+    private final List<PackageSummary> children = new ArrayList<PackageSummary>();
+    private float duration;
+
+    TestResultSummary(TestResultAction parentAction, Map<String,HistoryStore.Summary> packages) {
+        this.parentAction = parentAction;
+        for (Entry<String,HistoryStore.Summary> e : packages.entrySet()) {
+            children.add(new PackageSummary(this,e.getKey(),e.getValue()));
+            duration += e.getValue().getDuration();
+        }
+    }
+
+    @Override
+    public AbstractBuild<?,?> getOwner() {
+        return parentAction.owner;
+    }
+
+    @Override
+    public TestObject getParent() {
+        return null;
+    }
+
+    @Override
+    public AbstractTestResultAction getParentAction() {
+        return parentAction;
+    }
+
+    @Override
+    public AbstractTestResultAction getTestResultAction() {
+        return parentAction;
+    }
+
+    @Override
+    public hudson.tasks.test.TestResult getTopLevelTestResult() {
+        return this;
+    }
+
+    /**
+     * Same as {@link TestResult#getName()}, so that the ID and the description match.
+     */
+    @Override
+    public String getName() {
+        return "junit";
+    }
+
+    public String getDisplayName() {
+        return Messages.TestResult_getDisplayName();
+    }
+
+    @Override
+    public String getTitle() {
+        return Messages.TestResult_getTitle();
+    }
+
+    @Override
+    public String getChildTitle() {
+        return Messages.TestResult_getChildTitle();
+    }
+
+    @Override
+    public float getDuration() {
+        return duration;
+    }
+
+    @Override
+    public int getPassCount() {
+        return parentAction.getTotalCount()-getFailCount()-getSkipCount();
+    }
+
+    @Override
+    public int getFailCount() {
+        return parentAction.getFailCount();
+    }
+
+    @Override
+    public int getSkipCount() {
+        return parentAction.getSkipCount();
+    }
+
+    @Override
+    public Collection<? extends hudson.tasks.test.TestResult> getFailedTests() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Collection<PackageSummary> getChildren() {
+        return children;
+    }
+
+    @Override
+    public boolean hasChildren() {
+        return !children.isEmpty();
+    }
+
+    /**
+     * The summary of the previous build, so that the differences don't load its test result either.
+     */
+    @Override
+    public TestResultSummary getPreviousResult() {
+        TestResultAction prev = parentAction.getPreviousResult();
+        return prev==null ? null : prev.getSummary();
+    }
+
+    @Override
+    public TestResultSummary getResultInBuild(AbstractBuild<?,?> build) {
+        TestResultAction a = build.getAction(TestResultAction.class);
+        return a==null ? null : a.getSummary();
+    }
+
+    @Override
+    public hudson.tasks.test.TestResult findCorrespondingResult(String id) {
+        if (id==null || id.equals(getId()))
+            return this;
+        for (PackageSummary p : children) {
+            hudson.tasks.test.TestResult r = p.findCorrespondingResult(id);
+            if (r!=null)
+                return r;
+        }
+        return null;
+    }
+
+    /**
+     * Counts of a package, in the place of {@link PackageResult}.
+     */
+    public static final class PackageSummary extends TabulatedResult {
+        private final TestResultSummary parent;
+        private final String name;
+        private final HistoryStore.Summary summary;
+
+        PackageSummary(TestResultSummary parent, String name, HistoryStore.Summary summary) {
+            this.parent = parent;
+            this.name = name;
+            this.summary = summary;
+        }
+
+        @Override
+        public AbstractBuild<?,?> getOwner() {
+            return parent.getOwner();
+        }
+
+        @Override
+        public TestResultSummary getParent() {
+            return parent;
+        }
+
+        @Override
+        public AbstractTestResultAction getParentAction() {
+            return parent.getParentAction();
+        }
+
+        @Override
+        public AbstractTestResultAction getTestResultAction() {
+            return parent.getTestResultAction();
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        public String getDisplayName() {
+            return name;
+        }
+
+        @Override
+        public float getDuration() {
+            return summary.getDuration();
+        }
+
+        @Override
+        public int getPassCount() {
+            return summary.getPassCount();
+        }
+
+        @Override
+        public int getFailCount() {
+            return summary.getFailCount();
+        }
+
+        @Override
+        public int getSkipCount() {
+            return summary.getSkipCount();
+        }
+
+        @Override
+        public Collection<? extends hudson.tasks.test.TestResult> getChildren() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean hasChildren() {
+            return false;
+        }
+
+        @Override
+        public hudson.tasks.test.TestResult getPreviousResult() {
+            TestResultSummary prev = parent.getPreviousResult();
+            return prev==null ? null : prev.findCorrespondingResult(getId());
+        }
+
+        @Override
+        public hudson.tasks.test.TestResult getResultInBuild(AbstractBuild<?,?> build) {
+            TestResultSummary s = parent.getResultInBuild(build);
+            return s==null ? null : s.findCorrespondingResult(getId());
+        }
+
+        @Override
+        public hudson.tasks.test.TestResult findCorrespondingResult(String id) {
+            return getId().equals(id) ? this : null;
+        }
+    }
+}
@@ -0,0 +1,816 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent map from fixed-size 16-byte keys (such as MD5 checksums) to byte arrays,
+ * kept in a single append-only log file with an on-disk hash index.
+ *
+ * <p>
+ * Every {@link #put(byte[], byte[])} and {@link #delete(byte[])} appends a record to
+ * {@code data.log}, so a write never rewrites existing data. {@code data.idx} is an
+ * open-addressing hash table (linear probing) from keys to the offset of their latest
+ * record in the log. Neither file is ever read into memory as a whole, so the store
+ * scales to millions of entries without a matching heap footprint.
+ *
+ * <p>
+ * The index header records how much of the log it covers. Modifications are committed in
+ * batches: the log and the index slots are forced to the disk first, and only then is the header
+ * updated to cover the new records and forced again, so the header never covers data that could be lost.
+ * Before the slots are touched after a commit, the header is marked dirty, and a store that's reopened
+ * with a dirty index rebuilds it from the log. Otherwise records past the covered point are replayed
+ * into the index. Each record carries a CRC32, so a torn record at the end of the log is detected
+ * and truncated away. If the index is missing or found to be inconsistent, it is rebuilt from the log.
+ *
+ * <p>
+ * A commit happens every {@link #SYNC_BATCH} modifications, {@link #SYNC_INTERVAL} milliseconds after
+ * the first uncommitted one, or when {@link #sync()} or {@link #close()} is called, whichever comes first.
+ *
+ * <p>
+ * Overwritten and deleted records stay in the log until {@link #compact()} copies the
+ * live records into a new log. Callers decide when that's worth doing by looking at
+ * {@link #getGarbageSize()}.
+ *
+ * <p>
+ * All the operations are synchronized on this object.
+ *
+ * @author Kohsuke Kawaguchi
+ * @since 1.398
+ */
+public final class LogStructuredStore {
+    /**
+     * Size of the keys in bytes.
+     */
+    public static final int KEY_SIZE = 16;
+
+    private final File dir;
+    private final File logFile;
+    private final File indexFile;
+
+    private RandomAccessFile log;
+    private RandomAccessFile index;
+
+    /**
+     * Number of slots in the hash table.
+     */
+    private int capacity;
+    /**
+     * Number of slots that are not empty, including tombstones.
+     */
+    private int used;
+    /**
+     * Number of live entries.
+     */
+    private int live;
+    /**
+     * Bytes in the log that belong to overwritten or deleted records.
+     */
+    private long garbage;
+
+    /**
+     * True if the index slots have been modified since the last {@link #commit()}.
+     */
+    private boolean dirty;
+    /**
+     * Number of records appended since the last {@link #commit()}.
+     */
+    private int uncommitted;
+    /**
+     * Scheduled commit of the records appended so far, if any.
+     */
+    private TimerTask syncTask;
+
+    public LogStructuredStore(File dir) throws IOException {
+        this.dir = dir;
+        this.logFile = new File(dir,"data.log");
+        this.indexFile = new File(dir,"data.idx");
+        open();
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Gets the latest value stored for the given key, or null if none.
+     */
+    public synchronized byte[] get(byte[] key) throws IOException {
+        checkKey(key);
+        ensureOpen();
+        int slot = find(key);
+        if(slot<0)  return null;
+        long offset = readSlotOffset(slot);
+        try {
+            return readValue(offset,key);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Index in "+dir+" looks inconsistent. Rebuilding", e);
+            rebuildIndex();
+            slot = find(key);
+            return slot<0 ? null : readValue(readSlotOffset(slot),key);
+        }
+    }
+
+    public synchronized boolean contains(byte[] key) throws IOException {
+        checkKey(key);
+        ensureOpen();
+        return find(key)>=0;
+    }
+
+    /**
+     * Stores the value for the given key, replacing the previous value if any.
+     */
+    public synchronized void put(byte[] key, byte[] value) throws IOException {
+        checkKey(key);
+        ensureOpen();
+        long offset = append(PUT,key,value);
+        applyPut(key,offset);
+        appended();
+    }
+
+    /**
+     * Removes the given key.
+     *
+     * @return
+     *      false if there was no such key.
+     */
+    public synchronized boolean delete(byte[] key) throws IOException {
+        checkKey(key);
+        ensureOpen();
+        if(find(key)<0)     return false;
+        long offset = append(DELETE,key,EMPTY);
+        applyDelete(key,offset);
+        appended();
+        return true;
+    }
+
+    /**
+     * Forces the modifications made so far to the disk.
+     */
+    public synchronized void sync() throws IOException {
+        ensureOpen();
+        if(dirty)   commit();
+    }
+
+    /**
+     * Number of live entries.
+     */
+    public synchronized int size() {
+        return live;
+    }
+
+    /**
+     * Size of the log file in bytes.
+     */
+    public synchronized long getLogSize() throws IOException {
+        ensureOpen();
+        return log.length();
+    }
+
+    /**
+     * Bytes in the log that {@link #compact()} would reclaim.
+     */
+    public synchronized long getGarbageSize() {
+        return garbage;
+    }
+
+    /**
+     * Iterates all the keys currently in the store.
+     *
+     * <p>
+     * The iteration is weakly consistent. It doesn't hold the lock in between
+     * elements, so concurrent modifications are allowed, but keys added or removed
+     * during the iteration may or may not be reported, and if the index is grown in
+     * the mean time some keys may be reported twice.
+     */
+    public Iterable<byte[]> keys() {
+        return new Iterable<byte[]>() {
+            public Iterator<byte[]> iterator() {
+                return new Iterator<byte[]>() {
+                    private int slot = 0;
+                    private byte[] next;
+
+                    public boolean hasNext() {
+                        if(next==null)  next = fetch();
+                        return next!=null;
+                    }
+
+                    public byte[] next() {
+                        if(!hasNext())  throw new NoSuchElementException();
+                        byte[] r = next;
+                        next = null;
+                        return r;
+                    }
+
+                    private byte[] fetch() {
+                        synchronized (LogStructuredStore.this) {
+                            try {
+                                ensureOpen();
+                                byte[] buf = new byte[SLOT_SIZE];
+                                for( ; slot<capacity; slot++) {
+                                    readSlot(slot,buf);
+                                    long offset = slotOffset(buf);
+                                    if(offset!=EMPTY_SLOT && offset!=DELETED_SLOT) {
+                                        slot++;
+                                        byte[] key = new byte[KEY_SIZE];
+                                        System.arraycopy(buf,0,key,0,KEY_SIZE);
+                                        return key;
+                                    }
+                                }
+                                return null;
+                            } catch (IOException e) {
+                                throw new IllegalStateException("Failed to read the index in "+dir,e);
+                            }
+                        }
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Rewrites the log so that it only contains the live records,
+     * and rebuilds the index accordingly.
+     */
+    public synchronized void compact() throws IOException {
+        ensureOpen();
+        File newLog = new File(dir,"data.log.compact");
+        File newIndex = new File(dir,"data.idx.compact");
+        newLog.delete();
+        newIndex.delete();
+
+        int newCapacity = capacityFor(live);
+        RandomAccessFile nl = new RandomAccessFile(newLog,"rw");
+        RandomAccessFile ni = new RandomAccessFile(newIndex,"rw");
+        try {
+            nl.setLength(0);
+            nl.writeInt(LOG_MAGIC);
+            nl.writeInt(VERSION);
+            initIndex(ni,newCapacity);
+
+            byte[] buf = new byte[SLOT_SIZE];
+            byte[] key = new byte[KEY_SIZE];
+            for( int i=0; i<capacity; i++ ) {
+                readSlot(i,buf);
+                long offset = slotOffset(buf);
+                if(offset==EMPTY_SLOT || offset==DELETED_SLOT)   continue;
+                System.arraycopy(buf,0,key,0,KEY_SIZE);
+                byte[] value = readValue(offset,key);
+
+                long pos = nl.length();
+                nl.seek(pos);
+                writeRecord(nl,PUT,key,value);
+                insert(ni,newCapacity,key,pos);
+            }
+            ni.seek(0);
+            writeHeader(ni,newCapacity,live,live,nl.length(),0,0);
+            nl.getChannel().force(false);
+            ni.getChannel().force(false);
+        } finally {
+            nl.close();
+            ni.close();
+        }
+
+        close();
+        // drop the old index first, so that if we die in between, the index gets rebuilt
+        // from whichever log survived instead of pointing into the wrong one.
+        indexFile.delete();
+        replace(newLog,logFile);
+        replace(newIndex,indexFile);
+        open();
+    }
+
+    public synchronized void close() throws IOException {
+        try {
+            if(dirty && log!=null)  commit();
+        } finally {
+            close0();
+        }
+    }
+
+    private void close0() throws IOException {
+        if(syncTask!=null) {
+            syncTask.cancel();
+            syncTask = null;
+        }
+        try {
+            if(index!=null)     index.close();
+        } finally {
+            index = null;
+            if(log!=null)       log.close();
+            log = null;
+        }
+    }
+
+//
+// implementation
+//
+    private void ensureOpen() throws IOException {
+        if(log==null)   open();
+    }
+
+    private void open() throws IOException {
+        dir.mkdirs();
+        log = new RandomAccessFile(logFile,"rw");
+        if(log.length()<LOG_HEADER_SIZE) {
+            log.setLength(0);
+            log.writeInt(LOG_MAGIC);
+            log.writeInt(VERSION);
+        } else {
+            log.seek(0);
+            if(log.readInt()!=LOG_MAGIC || log.readInt()!=VERSION) {
+                log.close();
+                log = null;
+                throw new IOException(logFile+" is not a store log or it's of an unsupported version");
+            }
+        }
+
+        index = new RandomAccessFile(indexFile,"rw");
+        dirty = false;
+        uncommitted = 0;
+        if(!readHeader()) {
+            rebuildIndex();
+            return;
+        }
+        if(logPosition<log.length())
+            replay(logPosition);
+    }
+
+    /**
+     * Position in the log up to which the index is up to date, as recorded in the index header.
+     */
+    private long logPosition;
+
+    private boolean readHeader() throws IOException {
+        if(index.length()<INDEX_HEADER_SIZE)    return false;
+        index.seek(0);
+        if(index.readInt()!=INDEX_MAGIC || index.readInt()!=VERSION)  return false;
+        capacity = index.readInt();
+        used = index.readInt();
+        live = index.readInt();
+        int flags = index.readInt();
+        logPosition = index.readLong();
+        garbage = index.readLong();
+        return (flags&DIRTY)==0 && capacity>0 && index.length()==INDEX_HEADER_SIZE+(long)capacity*SLOT_SIZE && logPosition<=log.length();
+    }
+
+    /**
+     * Makes the index header cover everything in the log.
+     *
+     * <p>
+     * The records and the slots that point to them are forced first,
+     * so that the header never claims what's not on the disk.
+     */
+    private void commit() throws IOException {
+        if(SYNC) {
+            log.getChannel().force(false);
+            index.getChannel().force(false);
+        }
+        logPosition = log.length();
+        index.seek(0);
+        writeHeader(index,capacity,used,live,logPosition,garbage,0);
+        if(SYNC)
+            index.getChannel().force(false);
+        dirty = false;
+        uncommitted = 0;
+        if(syncTask!=null) {
+            syncTask.cancel();
+            syncTask = null;
+        }
+    }
+
+    /**
+     * Marks the index header dirty before the slots are modified, so that if we die
+     * before the next {@link #commit()}, the index gets rebuilt instead of trusted.
+     */
+    private void markDirty() throws IOException {
+        if(dirty)   return;
+        index.seek(FLAGS_OFFSET);
+        index.writeInt(DIRTY);
+        if(SYNC)
+            index.getChannel().force(false);
+        dirty = true;
+    }
+
+    /**
+     * Called after a record is appended and applied to the index, to commit it in due course.
+     */
+    private void appended() throws IOException {
+        if(++uncommitted>=SYNC_BATCH) {
+            commit();
+            return;
+        }
+        if(syncTask==null) {
+            syncTask = new TimerTask() {
+                public void run() {
+                    synchronized (LogStructuredStore.this) {
+                        if(syncTask!=this)  return;
+                        syncTask = null;
+                        try {
+                            if(dirty && log!=null)
+                                commit();
+                        } catch (IOException e) {
+                            LOGGER.log(Level.WARNING, "Failed to sync "+dir, e);
+                        }
+                    }
+                }
+            };
+            SYNC_TIMER.schedule(syncTask,SYNC_INTERVAL);
+        }
+    }
+
+    private void rebuildIndex() throws IOException {
+        capacity = INITIAL_CAPACITY;
+        used = live = 0;
+        garbage = 0;
+        initIndex(index,capacity);
+        dirty = false;
+        replay(LOG_HEADER_SIZE);
+    }
+
+    /**
+     * Applies the log records from the given position to the index.
+     */
+    private void replay(long pos) throws IOException {
+        long len = log.length();
+        while(pos<len) {
+            Record r;
+            try {
+                r = readRecord(pos);
+            } catch (EOFException e) {
+                LOGGER.warning("Truncating "+(len-pos)+" bytes from an incomplete record at "+pos+" in "+logFile);
+                log.setLength(pos);
+                break;
+            }
+            if(r.type==PUT)     applyPut(r.key,pos);
+            else                applyDelete(r.key,pos);
+            pos += RECORD_HEADER_SIZE+r.value.length;
+        }
+        commit();
+    }
+
+    private void applyPut(byte[] key, long offset) throws IOException {
+        markDirty();
+        int slot = find(key);
+        if(slot>=0) {
+            garbage += recordSize(readSlotOffset(slot));
+            writeSlot(index,slot,key,offset);
+            return;
+        }
+        if(used+1>capacity*LOAD_FACTOR)
+            grow();
+        if(insert(index,capacity,key,offset))
+            used++;
+        live++;
+    }
+
+    private void applyDelete(byte[] key, long offset) throws IOException {
+        markDirty();
+        garbage += RECORD_HEADER_SIZE;   // a delete record is garbage from the start
+        int slot = find(key);
+        if(slot<0)  return;
+        garbage += recordSize(readSlotOffset(slot));
+        writeSlot(index,slot,key,DELETED_SLOT);
+        live--;
+    }
+
+    /**
+     * Doubles the hash table, dropping the tombstones along the way.
+     */
+    private void grow() throws IOException {
+        int newCapacity = capacityFor(live+1);
+        File tmp = new File(dir,"data.idx.tmp");
+        tmp.delete();
+        RandomAccessFile ni = new RandomAccessFile(tmp,"rw");
+        try {
+            initIndex(ni,newCapacity);
+            byte[] buf = new byte[SLOT_SIZE];
+            byte[] key = new byte[KEY_SIZE];
+            for( int i=0; i<capacity; i++ ) {
+                readSlot(i,buf);
+                long offset = slotOffset(buf);
+                if(offset==EMPTY_SLOT || offset==DELETED_SLOT)   continue;
+                System.arraycopy(buf,0,key,0,KEY_SIZE);
+                insert(ni,newCapacity,key,offset);
+            }
+            ni.seek(0);
+            // the new slots may point to uncommitted records, so the header stays dirty
+            writeHeader(ni,newCapacity,live,live,logPosition,garbage,dirty?DIRTY:0);
+            ni.getChannel().force(false);
+        } finally {
+            ni.close();
+        }
+        index.close();
+        replace(tmp,indexFile);
+        index = new RandomAccessFile(indexFile,"rw");
+        capacity = newCapacity;
+        used = live;
+    }
+
+    /**
+     * Finds the slot that holds the given key, or -1.
+     */
+    private int find(byte[] key) throws IOException {
+        byte[] buf = new byte[SLOT_SIZE];
+        int slot = hash(key,capacity);
+        for( int i=0; i<capacity; i++ ) {
+            readSlot(index,slot,buf);
+            long offset = slotOffset(buf);
+            if(offset==EMPTY_SLOT)  return -1;
+            if(offset!=DELETED_SLOT && keyEquals(buf,key))
+                return slot;
+            slot = (slot+1)%capacity;
+        }
+        return -1;
+    }
+
+    /**
+     * Puts a key that's known not to be in the table.
+     *
+     * @return
+     *      true if an empty slot was consumed, false if a tombstone was reused.
+     */
+    private static boolean insert(RandomAccessFile f, int capacity, byte[] key, long offset) throws IOException {
+        byte[] buf = new byte[SLOT_SIZE];
+        int slot = hash(key,capacity);
+        for( int i=0; i<capacity; i++ ) {
+            readSlot(f,slot,buf);
+            long o = slotOffset(buf);
+            if(o==EMPTY_SLOT || o==DELETED_SLOT) {
+                writeSlot(f,slot,key,offset);
+                return o==EMPTY_SLOT;
+            }
+            slot = (slot+1)%capacity;
+        }
+        throw new IOException("Index is full");
+    }
+
+    /**
+     * Appends a record. It's forced to the disk by the next {@link #commit()}.
+     */
+    private long append(byte type, byte[] key, byte[] value) throws IOException {
+        long pos = log.length();
+        log.seek(pos);
+        writeRecord(log,type,key,value);
+        return pos;
+    }
+
+    private static void writeRecord(RandomAccessFile f, byte type, byte[] key, byte[] value) throws IOException {
+        byte[] buf = new byte[RECORD_HEADER_SIZE+value.length];
+        buf[0] = type;
+        System.arraycopy(key,0,buf,1,KEY_SIZE);
+        writeInt(buf,KEY_SIZE+1,value.length);
+        System.arraycopy(value,0,buf,RECORD_HEADER_SIZE,value.length);
+        writeInt(buf,KEY_SIZE+5,checksum(buf,value.length));
+        f.write(buf);
+    }
+
+    /**
+     * Computes the CRC32 of a record, covering everything but the checksum itself.
+     */
+    private static int checksum(byte[] buf, int size) {
+        CRC32 crc = new CRC32();
+        crc.update(buf,0,KEY_SIZE+5);
+        crc.update(buf,RECORD_HEADER_SIZE,size);
+        return (int)crc.getValue();
+    }
+
+    /**
+     * Reads and verifies the record at the given offset.
+     *
+     * @throws EOFException
+     *      if the record is incomplete or doesn't match its checksum, as is the case with a torn write.
+     */
+    private Record readRecord(long offset) throws IOException {
+        long len = log.length();
+        if(offset+RECORD_HEADER_SIZE>len)
+            throw new EOFException("Incomplete record at "+offset+" in "+logFile);
+        byte[] header = new byte[RECORD_HEADER_SIZE];
+        log.seek(offset);
+        log.readFully(header);
+        byte type = header[0];
+        int size = readInt(header,KEY_SIZE+1);
+        if((type!=PUT && type!=DELETE) || size<0 || offset+RECORD_HEADER_SIZE+size>len)
+            throw new EOFException("Incomplete record at "+offset+" in "+logFile);
+
+        byte[] buf = new byte[RECORD_HEADER_SIZE+size];
+        System.arraycopy(header,0,buf,0,RECORD_HEADER_SIZE);
+        log.readFully(buf,RECORD_HEADER_SIZE,size);
+        if(checksum(buf,size)!=readInt(header,KEY_SIZE+5))
+            throw new EOFException("Checksum mismatch in the record at "+offset+" in "+logFile);
+
+        Record r = new Record();
+        r.type = type;
+        System.arraycopy(header,1,r.key,0,KEY_SIZE);
+        r.value = new byte[size];
+        System.arraycopy(buf,RECORD_HEADER_SIZE,r.value,0,size);
+        return r;
+    }
+
+    private static final class Record {
+        byte type;
+        final byte[] key = new byte[KEY_SIZE];
+        byte[] value;
+    }
+
+    private byte[] readValue(long offset, byte[] key) throws IOException {
+        Record r = readRecord(offset);
+        if(r.type!=PUT || !Arrays.equals(r.key,key))
+            throw new IOException("Unexpected record at "+offset+" in "+logFile);
+        return r.value;
+    }
+
+    private static void writeInt(byte[] buf, int pos, int v) {
+        buf[pos]   = (byte)(v>>>24);
+        buf[pos+1] = (byte)(v>>>16);
+        buf[pos+2] = (byte)(v>>>8);
+        buf[pos+3] = (byte)v;
+    }
+
+    private static int readInt(byte[] buf, int pos) {
+        return ((buf[pos]&0xFF)<<24) | ((buf[pos+1]&0xFF)<<16) | ((buf[pos+2]&0xFF)<<8) | (buf[pos+3]&0xFF);
+    }
+
+    private long recordSize(long offset) throws IOException {
+        log.seek(offset+1+KEY_SIZE);
+        return RECORD_HEADER_SIZE+log.readInt();
+    }
+
+    private long readSlotOffset(int slot) throws IOException {
+        index.seek(INDEX_HEADER_SIZE+(long)slot*SLOT_SIZE+KEY_SIZE);
+        return index.readLong();
+    }
+
+    private void readSlot(int slot, byte[] buf) throws IOException {
+        readSlot(index,slot,buf);
+    }
+
+    private static void readSlot(RandomAccessFile f, int slot, byte[] buf) throws IOException {
+        f.seek(INDEX_HEADER_SIZE+(long)slot*SLOT_SIZE);
+        f.readFully(buf);
+    }
+
+    private static void writeSlot(RandomAccessFile f, int slot, byte[] key, long offset) throws IOException {
+        f.seek(INDEX_HEADER_SIZE+(long)slot*SLOT_SIZE);
+        f.write(key);
+        f.writeLong(offset);
+    }
+
+    private static long slotOffset(byte[] buf) {
+        long v = 0;
+        for( int i=KEY_SIZE; i<SLOT_SIZE; i++ )
+            v = (v<<8) | (buf[i]&0xFF);
+        return v;
+    }
+
+    private static boolean keyEquals(byte[] slot, byte[] key) {
+        for( int i=0; i<KEY_SIZE; i++ )
+            if(slot[i]!=key[i])     return false;
+        return true;
+    }
+
+    /**
+     * Mixes all the bytes of the key, so that keys that aren't uniformly distributed,
+     * unlike MD5 checksums, don't pile up in one probe sequence of the power-of-two sized table.
+     */
+    private static int hash(byte[] key, int capacity) {
+        int h = 0;
+        for (byte b : key)
+            h = 31*h + (b&0xFF);
+        h ^= h>>>16;
+        h *= 0x85EBCA6B;
+        h ^= h>>>13;
+        h *= 0xC2B2AE35;
+        h ^= h>>>16;
+        return (h&0x7FFFFFFF)%capacity;
+    }
+
+    private static int capacityFor(int entries) {
+        int c = INITIAL_CAPACITY;
+        while(c*LOAD_FACTOR<entries*2)
+            c*=2;
+        return c;
+    }
+
+    private static void initIndex(RandomAccessFile f, int capacity) throws IOException {
+        f.setLength(0);
+        // extending the file fills it with zeros, which is what EMPTY_SLOT is
+        f.setLength(INDEX_HEADER_SIZE+(long)capacity*SLOT_SIZE);
+        f.seek(0);
+        writeHeader(f,capacity,0,0,LOG_HEADER_SIZE,0,0);
+    }
+
+    private static void writeHeader(RandomAccessFile f, int capacity, int used, int live, long logPosition, long garbage, int flags) throws IOException {
+        f.writeInt(INDEX_MAGIC);
+        f.writeInt(VERSION);
+        f.writeInt(capacity);
+        f.writeInt(used);
+        f.writeInt(live);
+        f.writeInt(flags);
+        f.writeLong(logPosition);
+        f.writeLong(garbage);
+    }
+
+    private static void replace(File src, File dst) throws IOException {
+        if(!src.renameTo(dst)) {
+            // Windows can't rename over an existing file
+            dst.delete();
+            if(!src.renameTo(dst))
+                throw new IOException("Failed to rename "+src+" to "+dst);
+        }
+    }
+
+    private static void checkKey(byte[] key) {
+        if(key.length!=KEY_SIZE)
+            throw new IllegalArgumentException("Expected a "+KEY_SIZE+" byte key but got "+key.length);
+    }
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final int LOG_MAGIC = 0x48464C47;    // HFLG
+    private static final int INDEX_MAGIC = 0x48464958;  // HFIX
+    private static final int VERSION = 2;
+
+    private static final int LOG_HEADER_SIZE = 8;
+    private static final int INDEX_HEADER_SIZE = 40;
+    /**
+     * Position of the flags in the index header.
+     */
+    private static final int FLAGS_OFFSET = 20;
+    /**
+     * Flag set in the index header while the slots may be ahead of the covered part of the log.
+     */
+    private static final int DIRTY = 1;
+    /**
+     * type, key, value length, and checksum.
+     */
+    private static final int RECORD_HEADER_SIZE = 1+KEY_SIZE+4+4;
+    private static final int SLOT_SIZE = KEY_SIZE+8;
+
+    /**
+     * The log starts with its header, so no record lives at offset 0.
+     */
+    private static final long EMPTY_SLOT = 0;
+    private static final long DELETED_SLOT = -1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final float LOAD_FACTOR = 0.7f;
+
+    /**
+     * Set to false to skip forcing records to the disk, trading durability for speed.
+     */
+    public static boolean SYNC = !Boolean.getBoolean(LogStructuredStore.class.getName()+".noSync");
+
+    /**
+     * Maximum number of modifications committed together.
+     */
+    public static int SYNC_BATCH = Integer.getInteger(LogStructuredStore.class.getName()+".syncBatch",1000);
+
+    /**
+     * Maximum time in milliseconds a modification waits to be committed.
+     */
+    public static int SYNC_INTERVAL = Integer.getInteger(LogStructuredStore.class.getName()+".syncInterval",1000);
+
+    private static final Timer SYNC_TIMER = new Timer("LogStructuredStore sync",true);
+
+    private static final Logger LOGGER = Logger.getLogger(LogStructuredStore.class.getName());
+}
@@ -0,0 +1,623 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.util.io;
+
+import hudson.Functions;
+import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
+import hudson.util.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static hudson.util.jna.GNUCLibrary.LIBC;
+
+/**
+ * Brings a directory on one node up to date with a directory on another, sending only what changed,
+ * in the manner of rsync.
+ *
+ * <ol>
+ * <li>The sending side {@linkplain #list(File, DirScanner) lists} the files with their sizes and timestamps.
+ * <li>The receiving side looks at what it already has in the <em>basis</em> directory, which is
+ *     either the target directory itself or something similar, like the artifacts of the previous build,
+ *     and {@linkplain #signatures(File, List) describes} it: files with the same size and timestamp
+ *     and small files are described by their MD5, and other large files by the MD5 as well as the weak
+ *     rolling checksum and MD5 of every block.
+ * <li>Files whose MD5 is the same on both sides are taken from the basis as they are. The size and
+ *     timestamp alone only decide how much work goes into describing a file, since a file can be
+ *     rewritten within the resolution of the timestamp without changing its size.
+ * <li>The sender {@linkplain #send(File, List, List, OutputStream) writes} the instructions to build
+ *     each file: copy it from the basis, copy a block from the basis, or take these bytes.
+ *     Blocks are found at any offset by rolling the weak checksum through the file a byte at a time.
+ * <li>The receiver {@linkplain #receive(File, File, InputStream) follows} them.
+ *     Files built from blocks are checked against the MD5 of the original.
+ *     Files taken as they are from a different directory are hard-linked where the platform allows.
+ * </ol>
+ *
+ * <p>
+ * Files in the target directory that the sender doesn't have are left alone.
+ *
+ * @author Kohsuke Kawaguchi
+ * @since 1.398
+ * @see hudson.FilePath#syncRecursiveTo(String, String, hudson.FilePath, hudson.FilePath)
+ */
+public final class DeltaSync {
+    private DeltaSync() {}
+
+    /**
+     * A file on the sending side.
+     */
+    public static final class FileInfo implements Serializable {
+        /**
+         * Relative path, separated by '/'.
+         */
+        public final String path;
+        public final long size;
+        public final long lastModified;
+
+        public FileInfo(String path, long size, long lastModified) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * What the receiving side has for a {@link FileInfo}.
+     */
+    public static final class Signature implements Serializable {
+        /**
+         * MD5 of the whole file.
+         */
+        final byte[] digest;
+        /**
+         * For large files that appear to have changed, the checksums of every full block of this size.
+         */
+        final int blockSize;
+        final int[] weak;
+        /**
+         * MD5 of the blocks, 16 bytes each.
+         */
+        final byte[] strong;
+
+        private Signature(byte[] digest, int blockSize, int[] weak, byte[] strong) {
+            this.digest = digest;
+            this.blockSize = blockSize;
+            this.weak = weak;
+            this.strong = strong;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Lists up the files to be sent.
+     */
+    public static List<FileInfo> list(File baseDir, DirScanner scanner) throws IOException {
+        final List<FileInfo> r = new ArrayList<FileInfo>();
+        scanner.scan(baseDir,new FileVisitor() {
+            public void visit(File f, String relativePath) {
+                if (f.isDirectory())    return; // created as needed
+                if(Functions.isWindows())
+                    relativePath = relativePath.replace('\\','/');
+                r.add(new FileInfo(relativePath,f.length(),f.lastModified()));
+            }
+        });
+        return r;
+    }
+
+    /**
+     * Describes what the basis directory has for the given files.
+     *
+     * @return
+     *      list of the same size as the given list. null for a file that the basis doesn't have.
+     */
+    public static List<Signature> signatures(File basis, List<FileInfo> files) throws IOException {
+        List<Signature> r = new ArrayList<Signature>(files.size());
+        for (FileInfo fi : files) {
+            File f = new File(basis,fi.path);
+            if (!f.isFile())
+                r.add(null);
+            else
+            if (f.length()<MIN_DELTA_SIZE || (f.length()==fi.size && f.lastModified()==fi.lastModified))
+                // most likely the same, so there's no point in computing the block checksums
+                r.add(new Signature(digest(f),0,null,null));
+            else
+                r.add(blockSignature(f));
+        }
+        return r;
+    }
+
+    private static Signature blockSignature(File f) throws IOException {
+        int bs = blockSize(f.length());
+        int n = (int)(f.length()/bs);
+        int[] weak = new int[n];
+        byte[] strong = new byte[n*16];
+        byte[] buf = new byte[bs];
+        MessageDigest md5 = md5();
+        MessageDigest whole = md5();
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            for (int i=0; i<n; i++) {
+                in.readFully(buf);
+                whole.update(buf);
+                weak[i] = weakChecksum(buf,0,bs);
+                System.arraycopy(md5.digest(buf),0,strong,i*16,16);
+            }
+            // and the partial block at the end
+            int len;
+            while ((len=in.read(buf))>=0)
+                whole.update(buf,0,len);
+        } finally {
+            in.close();
+        }
+        return new Signature(whole.digest(),bs,weak,strong);
+    }
+
+    /**
+     * Roughly the square root of the size, so that both the number of blocks and
+     * the size of a block grow slowly.
+     */
+    private static int blockSize(long size) {
+        int bs = Integer.highestOneBit((int)Math.min(Math.sqrt(size),Integer.MAX_VALUE));
+        return Math.max(MIN_BLOCK_SIZE,Math.min(bs,MAX_BLOCK_SIZE));
+    }
+
+    /**
+     * Writes out the instructions to rebuild the given files from the signatures, and closes the stream.
+     *
+     * @return
+     *      number of bytes of file contents written, as opposed to those copied from the basis.
+     */
+    public static long send(File baseDir, List<FileInfo> files, List<Signature> signatures, OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os,BUFFER_SIZE));
+        long literal = 0;
+        try {
+            for (int i=0; i<files.size(); i++) {
+                FileInfo fi = files.get(i);
+                Signature sig = signatures.get(i);
+                File f = new File(baseDir,fi.path);
+
+                if (sig!=null && Arrays.equals(sig.digest,digest(f))) {
+                    out.writeByte(SAME);
+                    out.writeUTF(fi.path);
+                    out.writeLong(f.lastModified());
+                    continue;
+                }
+
+                out.writeByte(FILE);
+                out.writeUTF(fi.path);
+                out.writeLong(f.lastModified());
+                out.writeInt(sig!=null ? sig.blockSize : 0);
+                literal += new Delta(sig,out).write(f);
+            }
+            out.writeByte(END);
+        } finally {
+            out.close();
+        }
+        return literal;
+    }
+
+    /**
+     * Computes the instructions for one file.
+     */
+    private static final class Delta {
+        private final DataOutputStream out;
+        private final int bs;
+        private final Map<Integer,List<Integer>> blocks = new HashMap<Integer,List<Integer>>();
+        /**
+         * Quick check before looking up {@link #blocks}, which is done for every byte.
+         */
+        private final boolean[] tags = new boolean[1<<16];
+        private final byte[] strong;
+        private final MessageDigest whole = md5();
+        private final MessageDigest md5 = md5();
+        private long literal;
+
+        Delta(Signature sig, DataOutputStream out) {
+            this.out = out;
+            if (sig!=null && sig.weak!=null) {
+                bs = sig.blockSize;
+                strong = sig.strong;
+                for (int i=0; i<sig.weak.length; i++) {
+                    Integer w = sig.weak[i];
+                    List<Integer> l = blocks.get(w);
+                    if (l==null)    blocks.put(w,l=new ArrayList<Integer>(1));
+                    l.add(i);
+                    tags[tag(w)] = true;
+                }
+            } else {
+                bs = 0;
+                strong = null;
+            }
+        }
+
+        long write(File f) throws IOException {
+            InputStream in = new FileInputStream(f);
+            try {
+                if (blocks.isEmpty())
+                    copy(in);
+                else
+                    roll(in);
+            } finally {
+                in.close();
+            }
+            out.writeByte(END);
+            out.write(whole.digest());
+            return literal;
+        }
+
+        /**
+         * Nothing to compare with, so just send everything.
+         */
+        private void copy(InputStream in) throws IOException {
+            byte[] buf = new byte[BUFFER_SIZE];
+            int len;
+            while ((len=in.read(buf))>=0) {
+                whole.update(buf,0,len);
+                literal(buf,0,len);
+            }
+        }
+
+        /**
+         * Slides a block sized window through the file, looking for blocks that the basis has.
+         */
+        private void roll(InputStream in) throws IOException {
+            byte[] buf = new byte[MAX_LITERAL+2*bs];
+            int end = 0;    // end of data in buf
+            int p = 0;      // start of the window
+            int lit = 0;    // start of the bytes that didn't match anything
+            boolean eof = false;
+            int a=0, b=0;   // weak checksum of the window
+            boolean valid = false;
+
+            while (true) {
+                if (end-p<=bs && !eof) {
+                    // make room and read more, so that there's a window and the byte after it
+                    System.arraycopy(buf,lit,buf,0,end-lit);
+                    p -= lit;
+                    end -= lit;
+                    lit = 0;
+                    while (end<buf.length) {
+                        int len = in.read(buf,end,buf.length-end);
+                        if (len<0) {
+                            eof = true;
+                            break;
+                        }
+                        whole.update(buf,end,len);
+                        end += len;
+                    }
+                }
+                if (end-p<bs)
+                    break;  // what's left is shorter than a block
+
+                if (!valid) {
+                    int w = weakChecksum(buf,p,bs);
+                    a = w&0xFFFF;
+                    b = w>>>16;
+                    valid = true;
+                }
+
+                int idx = find(a|(b<<16),buf,p);
+                if (idx>=0) {
+                    literal(buf,lit,p-lit);
+                    out.writeByte(COPY);
+                    out.writeInt(idx);
+                    p += bs;
+                    lit = p;
+                    valid = false;
+                    continue;
+                }
+
+                if (end-p==bs)
+                    break;  // no more bytes to slide in
+                // slide the window by one byte
+                int x = buf[p]&0xFF, y = buf[p+bs]&0xFF;
+                a = (a-x+y)&0xFFFF;
+                b = (b-bs*x+a)&0xFFFF;
+                p++;
+                if (p-lit>=MAX_LITERAL) {
+                    literal(buf,lit,p-lit);
+                    lit = p;
+                }
+            }
+            literal(buf,lit,end-lit);
+        }
+
+        /**
+         * Finds the block that has the same contents as the window.
+         *
+         * @return -1 if none.
+         */
+        private int find(int w, byte[] buf, int p) {
+            if (!tags[tag(w)])  return -1;
+            List<Integer> candidates = blocks.get(w);
+            if (candidates==null)   return -1;
+            md5.update(buf,p,bs);
+            byte[] d = md5.digest();
+            for (int i : candidates) {
+                if (equals(d,strong,i*16))
+                    return i;
+            }
+            return -1;
+        }
+
+        private static boolean equals(byte[] d, byte[] strong, int offset) {
+            for (int i=0; i<16; i++)
+                if (d[i]!=strong[offset+i])
+                    return false;
+            return true;
+        }
+
+        private void literal(byte[] buf, int off, int len) throws IOException {
+            if (len==0)     return;
+            out.writeByte(DATA);
+            out.writeInt(len);
+            out.write(buf,off,len);
+            literal += len;
+        }
+
+        private static int tag(int w) {
+            return (w^(w>>>16))&0xFFFF;
+        }
+    }
+
+    /**
+     * Follows the instructions written by {@link #send(File, List, List, OutputStream)}, and closes the stream.
+     *
+     * @param basis
+     *      Directory that the instructions refer to. Can be the same as the target.
+     *      Otherwise unchanged files may be hard-linked from the basis, so files in the target
+     *      must be replaced, not modified in place, for as long as the basis is in use.
+     */
+    public static void receive(File basis, File target, InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is,BUFFER_SIZE));
+        byte[] buf = new byte[BUFFER_SIZE];
+        try {
+            while (true) {
+                int op = in.readByte();
+                if (op==END)    return;
+
+                String path = in.readUTF();
+                long timestamp = in.readLong();
+                File src = new File(basis,path);
+                File dst = new File(target,path);
+                File parent = dst.getParentFile();
+                if (parent!=null)   parent.mkdirs();
+
+                switch (op) {
+                case SAME:
+                    if (!src.equals(dst)) {
+                        // a link shares the timestamp too, so only link if that's right as well
+                        if (!dst.delete() && dst.exists())
+                            throw new IOException("Failed to delete "+dst);
+                        if (src.lastModified()!=timestamp || !link(src,dst)) {
+                            InputStream fin = new FileInputStream(src);
+                            try {
+                                IOUtils.copy(fin,dst);
+                            } finally {
+                                fin.close();
+                            }
+                        }
+                    }
+                    break;
+                case FILE:
+                    int bs = in.readInt();
+                    File tmp = File.createTempFile("delta",".tmp",parent!=null ? parent : target);
+                    try {
+                        build(in,src,bs,tmp,buf);
+                        // on Windows rename doesn't overwrite
+                        if (!dst.delete() && dst.exists())
+                            throw new IOException("Failed to delete "+dst);
+                        if (!tmp.renameTo(dst))
+                            throw new IOException("Failed to rename "+tmp+" to "+dst);
+                    } finally {
+                        tmp.delete();
+                    }
+                    break;
+                default:
+                    throw new IOException("Unexpected instruction "+op);
+                }
+                dst.setLastModified(timestamp);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Builds one file from the basis and the bytes in the stream.
+     */
+    private static void build(DataInputStream in, File src, int bs, File tmp, byte[] buf) throws IOException {
+        MessageDigest md5 = md5();
+        RandomAccessFile basis = null;
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            byte[] block = null;
+            while (true) {
+                int op = in.readByte();
+                if (op==END)    break;
+                switch (op) {
+                case COPY:
+                    int idx = in.readInt();
+                    if (basis==null) {
+                        basis = new RandomAccessFile(src,"r");
+                        block = new byte[bs];
+                    }
+                    basis.seek((long)idx*bs);
+                    basis.readFully(block);
+                    out.write(block);
+                    md5.update(block);
+                    break;
+                case DATA:
+                    int len = in.readInt();
+                    while (len>0) {
+                        int n = Math.min(len,buf.length);
+                        in.readFully(buf,0,n);
+                        out.write(buf,0,n);
+                        md5.update(buf,0,n);
+                        len -= n;
+                    }
+                    break;
+                default:
+                    throw new IOException("Unexpected instruction "+op);
+                }
+            }
+        } finally {
+            out.close();
+            if (basis!=null)    basis.close();
+        }
+
+        byte[] expected = new byte[16];
+        in.readFully(expected);
+        if (!Arrays.equals(expected,md5.digest()))
+            throw new IOException("Checksum mismatch in "+src+". Is the file changing?");
+    }
+
+    /**
+     * Copies the given files to a directory on the same node. There's nothing to save
+     * in the transfer, but files that are the same as in the basis are hard-linked
+     * from there where the platform allows, as {@link #receive(File, File, InputStream)} does.
+     *
+     * @param basis
+     *      Directory to take unchanged files from. Must not be the same as the target.
+     */
+    public static void copy(File baseDir, List<FileInfo> files, File basis, File target) throws IOException {
+        for (FileInfo fi : files) {
+            File src = new File(baseDir,fi.path);
+            File b = new File(basis,fi.path);
+            File dst = new File(target,fi.path);
+            File parent = dst.getParentFile();
+            if (parent!=null)   parent.mkdirs();
+
+            // the target may be a link to something else, so never write into it
+            if (!dst.delete() && dst.exists())
+                throw new IOException("Failed to delete "+dst);
+            long timestamp = src.lastModified();
+            if (b.isFile() && b.length()==src.length() && b.lastModified()==timestamp
+             && Arrays.equals(digest(b),digest(src)) && link(b,dst))
+                continue;
+
+            InputStream in = new FileInputStream(src);
+            try {
+                IOUtils.copy(in,dst);
+            } finally {
+                in.close();
+            }
+            dst.setLastModified(timestamp);
+        }
+    }
+
+    /**
+     * Adler-32 like checksum that can be rolled a byte at a time. The lower 16 bits are
+     * the sum of the bytes, and the upper 16 bits are the sum of those sums.
+     */
+    /*package*/ static int weakChecksum(byte[] buf, int off, int len) {
+        int a=0, b=0;
+        for (int i=0; i<len; i++) {
+            a += buf[off+i]&0xFF;
+            b += a;
+        }
+        return (a&0xFFFF)|((b&0xFFFF)<<16);
+    }
+
+    private static boolean link(File existing, File link) {
+        if (!USE_LINKS)     return false;
+        try {
+            return LIBC.link(existing.getPath(),link.getPath())==0;
+        } catch (LinkageError e) {
+            LOGGER.log(Level.FINE, "Failed to create a hard link",e);
+            return false;
+        }
+    }
+
+    private static byte[] digest(File f) throws IOException {
+        MessageDigest md5 = md5();
+        byte[] buf = new byte[BUFFER_SIZE];
+        InputStream in = new FileInputStream(f);
+        try {
+            int len;
+            while ((len=in.read(buf))>=0)
+                md5.update(buf,0,len);
+        } finally {
+            in.close();
+        }
+        return md5.digest();
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static final int END = 0;
+    // top-level instructions
+    private static final int SAME = 1;
+    private static final int FILE = 2;
+    // instructions within FILE
+    private static final int COPY = 1;
+    private static final int DATA = 2;
+
+    private static final int BUFFER_SIZE = 64*1024;
+    private static final int MAX_LITERAL = 256*1024;
+    private static final int MIN_BLOCK_SIZE = 2048;
+    private static final int MAX_BLOCK_SIZE = 128*1024;
+
+    /**
+     * Files smaller than this are compared as a whole, instead of block by block.
+     */
+    public static long MIN_DELTA_SIZE = Long.getLong(DeltaSync.class.getName()+".minDeltaSize",256*1024);
+
+    /**
+     * Set to false to copy unchanged files from the basis instead of hard-linking them.
+     */
+    public static boolean USE_LINKS = !Functions.isWindows()
+            && !Boolean.getBoolean(DeltaSync.class.getName()+".disableLinks");
+
+    private static final Logger LOGGER = Logger.getLogger(DeltaSync.class.getName());
+}
@@ -0,0 +1,487 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.util.io;
+
+import hudson.FilePath.TarCompression;
+import hudson.Functions;
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.DirScanner;
+import hudson.util.ExceptionCatchingThreadFactory;
+import hudson.util.FileVisitor;
+import hudson.util.IOException2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies a directory tree over several streams at once, such as multiple {@link hudson.remoting.Pipe}s.
+ *
+ * <p>
+ * A single tar stream serializes everything: the directory scan, reading files, compression,
+ * the transfer, and writing files on the other end. Here the scan feeds a queue, and each stream
+ * has its own thread that takes work from the queue, so the streams are busy at the same time.
+ * Small files are sent in batches to keep the queue overhead low, and large files are split
+ * into {@link #CHUNK_SIZE} pieces so that a single big file doesn't end up on a single stream.
+ * The receiving side reads all the streams in parallel, and writes pieces of a file at their offsets.
+ *
+ * <p>
+ * Each stream is a sequence of records: a tag byte, the relative path, and for files the size of the file,
+ * the offset and the length of the piece, the timestamp, then the data. For symlinks, the path is followed
+ * by the target of the link.
+ *
+ * @author Kohsuke Kawaguchi
+ * @since 1.398
+ * @see hudson.FilePath#copyRecursiveTo(String, String, hudson.FilePath)
+ */
+public final class ParallelCopy {
+    private ParallelCopy() {}
+
+    /**
+     * Sends the files in the given directory to the given streams, and closes them.
+     *
+     * @param compression
+     *      Compression applied to each stream.
+     * @return
+     *      number of files/directories that are sent.
+     */
+    public static int send(File baseDir, DirScanner scanner, OutputStream[] outs, TarCompression compression) throws IOException {
+        Sender sender = new Sender(outs,compression);
+        try {
+            scanner.scan(baseDir,sender);
+            sender.finish();
+        } finally {
+            sender.abort();
+        }
+        return sender.count;
+    }
+
+    /**
+     * Receives files sent by {@link #send(File, DirScanner, OutputStream[], TarCompression)} into the given directory,
+     * and closes the streams.
+     *
+     * @param name
+     *      Human readable name of what's being received, for error messages.
+     */
+    public static void receive(String name, File baseDir, InputStream[] ins, TarCompression compression) throws IOException {
+        List<Future<Void>> readers = new ArrayList<Future<Void>>();
+        ConcurrentHashMap<String,AtomicLong> remaining = new ConcurrentHashMap<String,AtomicLong>();
+        AtomicBoolean aborted = new AtomicBoolean();
+        for (InputStream in : ins)
+            readers.add(POOL.submit(new Receiver(baseDir,in,compression,remaining,aborted)));
+
+        Throwable failure = null;
+        try {
+            for (Future<Void> f : readers) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    if (failure==null)  failure = e.getCause();
+                }
+            }
+        } catch (InterruptedException e) {
+            aborted.set(true);
+            for (Future<Void> f : readers)
+                f.cancel(true);
+            throw (IOException)new InterruptedIOException().initCause(e);
+        }
+        if (failure!=null)
+            throw new IOException2("Failed to extract "+name,failure);
+    }
+
+    /**
+     * Piece of a file, or a whole file, or a directory, or a symlink.
+     */
+    private static final class Piece {
+        final File file;
+        final String path;
+        final long size, offset, length;
+        /**
+         * Target of the symlink, or null if this isn't a symlink.
+         */
+        final String target;
+
+        Piece(File file, String path, long size, long offset, long length) {
+            this.file = file;
+            this.path = path;
+            this.size = size;
+            this.offset = offset;
+            this.length = length;
+            this.target = null;
+        }
+
+        Piece(File link, String path, String target) {
+            this.file = link;
+            this.path = path;
+            this.size = this.offset = this.length = 0;
+            this.target = target;
+        }
+
+        boolean isDirectory() {
+            return size<0;
+        }
+
+        boolean isSymlink() {
+            return target!=null;
+        }
+    }
+
+    /**
+     * Scans files and hands them over to the writers.
+     */
+    private static final class Sender extends FileVisitor {
+        private final BlockingQueue<List<Piece>> queue;
+        private final List<Future<Void>> writers = new ArrayList<Future<Void>>();
+        private List<Piece> batch = new ArrayList<Piece>();
+        private long batchSize;
+        private boolean finished;
+        int count;
+
+        Sender(OutputStream[] outs, TarCompression compression) {
+            queue = new ArrayBlockingQueue<List<Piece>>(outs.length*2);
+            for (OutputStream out : outs)
+                writers.add(POOL.submit(new Writer(out,compression,queue)));
+        }
+
+        @Override
+        public void visit(File f, String relativePath) throws IOException {
+            if(Functions.isWindows())
+                relativePath = relativePath.replace('\\','/');
+            count++;
+
+            if (f.isDirectory()) {
+                add(new Piece(f,relativePath,-1,0,0));
+                return;
+            }
+
+            long size = f.length();
+            if (size>CHUNK_SIZE && writers.size()>1) {
+                for (long offset=0; offset<size; offset+=CHUNK_SIZE) {
+                    List<Piece> chunk = new ArrayList<Piece>(1);
+                    chunk.add(new Piece(f,relativePath,size,offset,Math.min(CHUNK_SIZE,size-offset)));
+                    put(chunk);
+                }
+            } else {
+                batchSize += size;
+                add(new Piece(f,relativePath,size,0,size));
+            }
+        }
+
+        @Override
+        public void visitSymlink(File link, String target, String relativePath) throws IOException {
+            if(Functions.isWindows())
+                relativePath = relativePath.replace('\\','/');
+            count++;
+            add(new Piece(link,relativePath,target));
+        }
+
+        @Override
+        public boolean understandsSymlink() {
+            return true;
+        }
+
+        private void add(Piece p) throws IOException {
+            batch.add(p);
+            if (batchSize>=BATCH_SIZE || batch.size()>=MAX_BATCH_FILES)
+                flushBatch();
+        }
+
+        private void flushBatch() throws IOException {
+            if (batch.isEmpty())    return;
+            put(batch);
+            batch = new ArrayList<Piece>();
+            batchSize = 0;
+        }
+
+        private void put(List<Piece> work) throws IOException {
+            try {
+                while (!queue.offer(work,100,TimeUnit.MILLISECONDS)) {
+                    // if a writer died, nobody might be taking from the queue
+                    for (Future<Void> w : writers)
+                        if (w.isDone())
+                            get(w);
+                }
+            } catch (InterruptedException e) {
+                throw (IOException)new InterruptedIOException().initCause(e);
+            }
+        }
+
+        /**
+         * Tells the writers that there's nothing more to send, and waits for them.
+         */
+        void finish() throws IOException {
+            flushBatch();
+            for (int i=0; i<writers.size(); i++)
+                put(new ArrayList<Piece>());
+            for (Future<Void> w : writers)
+                get(w);
+            finished = true;
+        }
+
+        void abort() {
+            if (!finished)
+                for (Future<Void> w : writers)
+                    w.cancel(true);
+        }
+
+        private void get(Future<Void> w) throws IOException {
+            try {
+                w.get();
+            } catch (InterruptedException e) {
+                throw (IOException)new InterruptedIOException().initCause(e);
+            } catch (ExecutionException e) {
+                throw new IOException2("Failed to send files",e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Writes what's in the queue to one stream, until it gets an empty list.
+     */
+    private static final class Writer implements Callable<Void> {
+        private final OutputStream out;
+        private final TarCompression compression;
+        private final BlockingQueue<List<Piece>> queue;
+
+        Writer(OutputStream out, TarCompression compression, BlockingQueue<List<Piece>> queue) {
+            this.out = out;
+            this.compression = compression;
+            this.queue = queue;
+        }
+
+        public Void call() throws Exception {
+            DataOutputStream dos;
+            try {
+                dos = new DataOutputStream(new BufferedOutputStream(compression.compress(out),BUFFER_SIZE));
+            } catch (IOException e) {
+                out.close();
+                throw e;
+            }
+            byte[] buf = new byte[BUFFER_SIZE];
+            try {
+                List<Piece> work;
+                while (!(work=queue.take()).isEmpty()) {
+                    for (Piece p : work) {
+                        if (p.isDirectory()) {
+                            dos.writeByte(DIRECTORY);
+                            dos.writeUTF(p.path);
+                        } else
+                        if (p.isSymlink()) {
+                            dos.writeByte(SYMLINK);
+                            dos.writeUTF(p.path);
+                            dos.writeUTF(p.target);
+                        } else {
+                            dos.writeByte(FILE);
+                            dos.writeUTF(p.path);
+                            dos.writeLong(p.size);
+                            dos.writeLong(p.offset);
+                            dos.writeLong(p.length);
+                            dos.writeLong(p.file.lastModified());
+                            copy(p,dos,buf);
+                        }
+                    }
+                }
+                dos.writeByte(END);
+            } finally {
+                dos.close();
+            }
+            return null;
+        }
+
+        private void copy(Piece p, OutputStream out, byte[] buf) throws IOException {
+            FileInputStream in = new FileInputStream(p.file);
+            try {
+                if (in.skip(p.offset)!=p.offset)
+                    throw new IOException(p.file+" got shorter while it was being sent");
+                long left = p.length;
+                while (left>0) {
+                    int len = in.read(buf,0,(int)Math.min(buf.length,left));
+                    if (len<0)
+                        throw new IOException(p.file+" got shorter while it was being sent");
+                    out.write(buf,0,len);
+                    left -= len;
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Reads one stream and writes files.
+     */
+    private static final class Receiver implements Callable<Void> {
+        private final File baseDir;
+        private final InputStream in;
+        private final TarCompression compression;
+        /**
+         * Bytes yet to be written for files that are split into pieces, shared by all receivers.
+         */
+        private final ConcurrentHashMap<String,AtomicLong> remaining;
+
+        /**
+         * Set when one of the receivers failed, so that the rest stop writing files.
+         */
+        private final AtomicBoolean aborted;
+
+        Receiver(File baseDir, InputStream in, TarCompression compression, ConcurrentHashMap<String,AtomicLong> remaining, AtomicBoolean aborted) {
+            this.baseDir = baseDir;
+            this.in = in;
+            this.compression = compression;
+            this.remaining = remaining;
+            this.aborted = aborted;
+        }
+
+        public Void call() throws IOException {
+            try {
+                receive();
+                return null;
+            } catch (IOException e) {
+                aborted.set(true);
+                throw e;
+            } catch (RuntimeException e) {
+                aborted.set(true);
+                throw e;
+            } finally {
+                // the sender can't finish until its pipe is read to the end, which close() does.
+                // every receiver does this for its own stream, as they might need to be drained at the same time.
+                in.close();
+            }
+        }
+
+        private void receive() throws IOException {
+            // this reads the header, so do it here and not before all the streams are being read
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(compression.extract(in),BUFFER_SIZE));
+            byte[] buf = new byte[BUFFER_SIZE];
+            while (!aborted.get()) {
+                int tag = dis.read();
+                switch (tag) {
+                case -1:
+                    throw new EOFException("Unexpected end of stream");
+                case END:
+                    return;
+                case DIRECTORY:
+                    new File(baseDir,dis.readUTF()).mkdirs();
+                    break;
+                case SYMLINK:
+                    String link = dis.readUTF();
+                    String target = dis.readUTF();
+                    File dir = new File(baseDir,link).getParentFile();
+                    if (dir!=null)  dir.mkdirs();
+                    try {
+                        Util.createSymlink(baseDir,target,link,TaskListener.NULL);
+                    } catch (InterruptedException e) {
+                        throw (IOException)new InterruptedIOException().initCause(e);
+                    }
+                    break;
+                case FILE:
+                    String path = dis.readUTF();
+                    long size = dis.readLong();
+                    long offset = dis.readLong();
+                    long length = dis.readLong();
+                    long timestamp = dis.readLong();
+                    File f = new File(baseDir,path);
+                    File parent = f.getParentFile();
+                    if (parent!=null)   parent.mkdirs();
+
+                    RandomAccessFile raf = new RandomAccessFile(f,"rw");
+                    try {
+                        // safe to do from every piece, since pieces only ever write within the size
+                        raf.setLength(size);
+                        raf.seek(offset);
+                        long left = length;
+                        while (left>0) {
+                            int len = dis.read(buf,0,(int)Math.min(buf.length,left));
+                            if (len<0)  throw new EOFException("Unexpected end of stream in "+path);
+                            raf.write(buf,0,len);
+                            left -= len;
+                        }
+                    } finally {
+                        raf.close();
+                    }
+
+                    if (length!=size) {
+                        AtomicLong r = remaining.get(path);
+                        if (r==null) {
+                            AtomicLong n = new AtomicLong(size);
+                            r = remaining.putIfAbsent(path,n);
+                            if (r==null)    r = n;
+                        }
+                        if (r.addAndGet(-length)>0)
+                            break;  // other pieces are still on their way
+                        remaining.remove(path);
+                    }
+                    f.setLastModified(timestamp);
+                    break;
+                default:
+                    throw new IOException("Unexpected record type "+tag);
+                }
+            }
+        }
+    }
+
+    private static final int END = 0;
+    private static final int FILE = 1;
+    private static final int DIRECTORY = 2;
+    private static final int SYMLINK = 3;
+
+    private static final int BUFFER_SIZE = 64*1024;
+    private static final int MAX_BATCH_FILES = 1024;
+
+    /**
+     * Files larger than this are split into pieces of this size.
+     */
+    public static long CHUNK_SIZE = Long.getLong(ParallelCopy.class.getName()+".chunkSize",8*1024*1024);
+
+    /**
+     * Small files are put together until they add up to this many bytes.
+     */
+    public static long BATCH_SIZE = Long.getLong(ParallelCopy.class.getName()+".batchSize",1024*1024);
+
+    private static final ExecutorService POOL = Executors.newCachedThreadPool(new ExceptionCatchingThreadFactory(new DaemonThreadFactory()));
+}
@@ -92,6 +92,13 @@ public interface GNUCLibrary extends Library {
      */
     int symlink(String oldname, String newname);
 
+    /**
+     * Creates a hard link.
+     *
+     * See http://linux.die.net/man/2/link
+     */
+    int link(String oldname, String newname);
+
     /**
      * Read a symlink. The name will be copied into the specified memory, and returns the number of
      * bytes copied. The string is not null-terminated.
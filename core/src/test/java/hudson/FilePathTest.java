@@ -23,11 +23,16 @@
  */
 package hudson;
 
+import hudson.model.TaskListener;
 import hudson.remoting.VirtualChannel;
 import hudson.util.NullStream;
+import hudson.util.io.ParallelCopy;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.output.NullOutputStream;
 
 /**
@@ -78,6 +83,95 @@ public class FilePathTest extends ChannelTestCase {
         }
     }
 
+    /**
+     * Copies to another node over multiple pipes, with a file big enough to be split.
+     */
+    public void testCopyRecursiveToRemote() throws Exception {
+        File tmp = Util.createTempDir(), src = new File(tmp, "src"), dst = new File(tmp, "dst");
+        int streams = FilePath.PARALLEL_COPY_STREAMS;
+        long chunkSize = ParallelCopy.CHUNK_SIZE;
+        try {
+            FilePath.PARALLEL_COPY_STREAMS = 4;
+            ParallelCopy.CHUNK_SIZE = 1000;
+            FileUtils.writeStringToFile(new File(src,"a/b.txt"),"hello");
+            FileUtils.writeStringToFile(new File(src,"c.txt"),"world");
+            byte[] data = new byte[4500];
+            new Random(0).nextBytes(data);
+            FileUtils.writeByteArrayToFile(new File(src,"big.bin"),data);
+
+            FilePath d = new FilePath(french,dst.getPath());
+            assertEquals(3, new FilePath(src).copyRecursiveTo("**/*",d));
+            assertEquals("hello", d.child("a/b.txt").readToString());
+            assertEquals("world", d.child("c.txt").readToString());
+            assertTrue(Arrays.equals(data, FileUtils.readFileToByteArray(new File(dst,"big.bin"))));
+        } finally {
+            FilePath.PARALLEL_COPY_STREAMS = streams;
+            ParallelCopy.CHUNK_SIZE = chunkSize;
+            Util.deleteRecursive(tmp);
+        }
+    }
+
+    /**
+     * Symlinks are copied as symlinks when copying to another node over multiple pipes.
+     */
+    public void testCopyRecursiveToRemoteSymlink() throws Exception {
+        if (Functions.isWindows())  return;
+        File tmp = Util.createTempDir(), src = new File(tmp, "src"), dst = new File(tmp, "dst");
+        int streams = FilePath.PARALLEL_COPY_STREAMS;
+        try {
+            FilePath.PARALLEL_COPY_STREAMS = 2;
+            FileUtils.writeStringToFile(new File(src,"c.txt"),"world");
+            Util.createSymlink(src,"c.txt","link",TaskListener.NULL);
+
+            // an empty mask scans everything, the directory itself included, and that's what reports symlinks
+            new FilePath(src).copyRecursiveTo("",null,new FilePath(french,dst.getPath()));
+            assertEquals("world", FileUtils.readFileToString(new File(dst,"src/c.txt")));
+            assertEquals("c.txt", Util.resolveSymlink(new File(dst,"src/link"),TaskListener.NULL));
+        } finally {
+            FilePath.PARALLEL_COPY_STREAMS = streams;
+            Util.deleteRecursive(tmp);
+        }
+    }
+
+    /**
+     * Syncs to another node, then syncs again after changing a large file.
+     */
+    public void testSyncRecursiveTo() throws Exception {
+        File tmp = Util.createTempDir(), src = new File(tmp, "src"), dst = new File(tmp, "dst");
+        try {
+            Random r = new Random(0);
+            byte[] data = new byte[1024*1024];
+            r.nextBytes(data);
+            FileUtils.writeByteArrayToFile(new File(src,"big.bin"),data);
+            FileUtils.writeStringToFile(new File(src,"a/b.txt"),"hello");
+            new File(src,"a/b.txt").setLastModified(1000000000L); // so that the rewrite below changes it
+
+            FilePath s = new FilePath(src);
+            FilePath d = new FilePath(french,dst.getPath());
+            assertEquals(2, s.syncRecursiveTo("**/*",null,null,d));
+            assertTrue(Arrays.equals(data, FileUtils.readFileToByteArray(new File(dst,"big.bin"))));
+
+            // shift the contents by inserting a few bytes
+            byte[] data2 = new byte[data.length+3];
+            System.arraycopy(data,0,data2,3,data.length);
+            FileUtils.writeByteArrayToFile(new File(src,"big.bin"),data2);
+            FileUtils.writeStringToFile(new File(src,"a/b.txt"),"world");
+
+            assertEquals(2, s.syncRecursiveTo("**/*",null,null,d));
+            assertTrue(Arrays.equals(data2, FileUtils.readFileToByteArray(new File(dst,"big.bin"))));
+            assertEquals("world", FileUtils.readFileToString(new File(dst,"a/b.txt")));
+            assertEquals(new File(src,"big.bin").lastModified(), new File(dst,"big.bin").lastModified());
+
+            // rewritten without changing the size or the timestamp
+            FileUtils.writeStringToFile(new File(src,"a/b.txt"),"earth");
+            new File(src,"a/b.txt").setLastModified(new File(dst,"a/b.txt").lastModified());
+            s.syncRecursiveTo("**/*",null,null,d);
+            assertEquals("earth", FileUtils.readFileToString(new File(dst,"a/b.txt")));
+        } finally {
+            Util.deleteRecursive(tmp);
+        }
+    }
+
     public void testArchiveBug4039() throws Exception {
         File tmp = Util.createTempDir();
         try {
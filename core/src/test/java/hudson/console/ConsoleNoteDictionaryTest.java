@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2011, agent
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.console;
+
+import hudson.Util;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * @author agent
+ */
+public class ConsoleNoteDictionaryTest extends TestCase {
+    private File dir;
+    private File log;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = Util.createTempDir();
+        log = new File(dir,"log");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Util.deleteRecursive(dir);
+        super.tearDown();
+    }
+
+    /**
+     * Notes go to the dictionary, and reading the log through {@link ConsoleNoteDictionary#decode(InputStream, File)}
+     * gives back what was written.
+     */
+    public void testRoundtrip() throws Exception {
+        byte[] note1 = note("first");
+        byte[] note2 = note("second");
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        OutputStream out = ConsoleNoteDictionary.encode(new FileOutputStream(log),log);
+        for (int i=0; i<100; i++) {
+            byte[] line = ("line "+i+" \u001B[1mbold\u001B[0m\n").getBytes();
+            byte[] note = i%3==0 ? note2 : note1;
+            for (OutputStream o : new OutputStream[]{out,expected}) {
+                o.write(note);
+                o.write(line);
+            }
+        }
+        out.close();
+
+        assertTrue(ConsoleNoteDictionary.getFile(log).exists());
+        assertTrue(log.length()<expected.size());
+
+        InputStream in = ConsoleNoteDictionary.decode(new FileInputStream(log),log);
+        try {
+            assertTrue(Arrays.equals(expected.toByteArray(),IOUtils.toByteArray(in)));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Bytes held back in case they start a note are written out by a flush.
+     */
+    public void testFlush() throws Exception {
+        OutputStream out = ConsoleNoteDictionary.encode(new FileOutputStream(log),log);
+        out.write("progress \u001B[".getBytes());
+        out.flush();
+        assertEquals("progress \u001B[",FileUtils.readFileToString(log));
+
+        byte[] note = note("split");
+        out.write(note,0,note.length/2);
+        out.flush();
+        out.write(note,note.length/2,note.length-note.length/2);
+        out.close();
+        // cut short by the flush, so it's kept as is
+        assertEquals("progress \u001B["+new String(note),FileUtils.readFileToString(log));
+    }
+
+    /**
+     * Encodes a fake note, which only needs to look like a gzip stream.
+     */
+    private byte[] note(String s) throws Exception {
+        ByteArrayOutputStream gz = new ByteArrayOutputStream();
+        GZIPOutputStream o = new GZIPOutputStream(gz);
+        o.write(s.getBytes());
+        o.close();
+        return ConsoleNote.encodePayload(gz.toByteArray()).toByteArray();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.console;
+
+import hudson.Util;
+import junit.framework.TestCase;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class LineIndexTest extends TestCase {
+    private File dir;
+    private File log;
+    private int interval;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = Util.createTempDir();
+        log = new File(dir,"log");
+        interval = LineIndex.INTERVAL;
+        LineIndex.INTERVAL = 7;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        LineIndex.INTERVAL = interval;
+        Util.deleteRecursive(dir);
+        super.tearDown();
+    }
+
+    public void testWriteAndCompress() throws Exception {
+        StringBuilder text = new StringBuilder();
+        OutputStream out = LineIndex.openLog(log);
+        for (int i=0; i<100; i++) {
+            String line = "line "+i+"\n";
+            text.append(line);
+            if (i%2==0)
+                out.write(line.getBytes());
+            else
+                for (byte b : line.getBytes())
+                    out.write(b);
+        }
+        out.write("partial".getBytes());
+        text.append("partial");
+        out.close();
+
+        verify(LineIndex.load(log), text.toString());
+
+        // logs written before the index existed get one when first asked
+        LineIndex.getIndexFile(log).delete();
+        verify(LineIndex.get(log,true), text.toString());
+
+        LineIndex.compress(log);
+        assertFalse(log.exists());
+        LineIndex index = LineIndex.load(log);
+        assertTrue(index.isCompressed());
+        verify(index, text.toString());
+    }
+
+    private void verify(LineIndex index, String text) throws Exception {
+        String[] lines = text.split("\n",-1);
+        assertEquals(lines.length, index.getLineCount());
+        int offset = 0;
+        for (int i=0; i<=lines.length; i++) {
+            assertEquals(offset, index.getOffsetOfLine(i));
+            InputStream in = index.openAtLine(i);
+            try {
+                assertEquals(text.substring(offset), IOUtils.toString(in));
+            } finally {
+                in.close();
+            }
+            if (i<lines.length)
+                offset = Math.min(text.length(), offset+lines[i].length()+1);
+        }
+    }
+}
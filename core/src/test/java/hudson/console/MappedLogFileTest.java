@@ -0,0 +1,123 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.console;
+
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class MappedLogFileTest extends TestCase {
+    private File log;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        log = File.createTempFile("log","txt");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        log.delete();
+        super.tearDown();
+    }
+
+    public void testPlainText() throws Exception {
+        String note = HyperlinkNote.encodeTo("http://example.com/","link");
+        FileUtils.writeStringToFile(log, "abc\n"+note+" here\nfoo\nbar", "UTF-8");
+        MappedLogFile f = new MappedLogFile(log);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        f.writePlainTextTo(0,f.length(),out,false);
+        assertEquals("abc\nlink here\nfoo\nbar", out.toString("UTF-8"));
+
+        // the raw bytes come out as they are
+        out = new ByteArrayOutputStream();
+        f.writeTo(4,f.length(),out,false);
+        assertEquals(note+" here\nfoo\nbar", out.toString("UTF-8"));
+    }
+
+    /**
+     * Ranges of the plain text count the bytes without the console notes.
+     */
+    public void testPlainTextRange() throws Exception {
+        String note = HyperlinkNote.encodeTo("http://example.com/","link");
+        FileUtils.writeStringToFile(log, "abc\n"+note+" here\nfoo\nbar", "UTF-8");
+        MappedLogFile f = new MappedLogFile(log);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        f.writePlainTextTo(0,f.length(),new AnnotatedLargeText.RangeOutputStream(out,4,14),false);
+        assertEquals("link here\n", out.toString("UTF-8"));
+
+        out = new ByteArrayOutputStream();
+        f.writePlainTextTo(0,f.length(),new AnnotatedLargeText.RangeOutputStream(out,18,100),false);
+        assertEquals("bar", out.toString("UTF-8"));
+    }
+
+    public void testWholeLines() throws Exception {
+        FileUtils.writeStringToFile(log, "abc\ndef\nghi", "US-ASCII");
+        MappedLogFile f = new MappedLogFile(log);
+        assertWholeLines("abc\ndef\n",8,f,0,f.length());
+        assertWholeLines("abc\n",4,f,0,7);
+        assertWholeLines("",9,f,9,f.length());
+
+        // across regions, each of which is cut at the end of a line
+        int size = MappedLogFile.MAP_SIZE;
+        boolean mapping = MappedLogFile.USE_MAPPING;
+        try {
+            MappedLogFile.MAP_SIZE = 5;
+            MappedLogFile.USE_MAPPING = true;
+            assertWholeLines("abc\ndef\n",8,f,0,f.length());
+        } finally {
+            MappedLogFile.MAP_SIZE = size;
+            MappedLogFile.USE_MAPPING = mapping;
+        }
+    }
+
+    private void assertWholeLines(String expected, long end, MappedLogFile f, long start, long to) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(end,f.writeTo(start,to,out,true));
+        assertEquals(expected,out.toString("US-ASCII"));
+    }
+
+    public void testParseRange() {
+        assertRange(0,99,AnnotatedLargeText.parseRange("bytes=0-99",1000));
+        assertRange(900,999,AnnotatedLargeText.parseRange("bytes=-100",1000));
+        assertRange(0,999,AnnotatedLargeText.parseRange("bytes=-5000",1000));
+        assertRange(500,Long.MAX_VALUE,AnnotatedLargeText.parseRange("bytes=500-",1000));
+        assertNull(AnnotatedLargeText.parseRange("bytes=0-1,5-6",1000));
+        assertNull(AnnotatedLargeText.parseRange("bytes=9-5",1000));
+        assertNull(AnnotatedLargeText.parseRange("lines=1-2",1000));
+    }
+
+    private void assertRange(long first, long last, long[] r) {
+        assertNotNull(r);
+        assertEquals(first,r[0]);
+        assertEquals(last,r[1]);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.model;
+
+import hudson.Functions;
+import hudson.Util;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class ArtifactStoreTest extends TestCase {
+    private File dir;
+    private ArtifactStore store;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = Util.createTempDir();
+        store = new ArtifactStore(new File(dir,"artifacts"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Util.deleteRecursive(dir);
+        super.tearDown();
+    }
+
+    public void testIntern() throws Exception {
+        if (Functions.isWindows())  return;
+        File a = write("a","same");
+        File b = write("b","same");
+        String md5 = Util.getDigestOf(new FileInputStream(a));
+        store.intern(a,md5);
+        store.intern(b,md5);
+
+        File blob = store.getBlob(md5);
+        assertEquals(3,ArtifactStore.getLinkCount(blob));
+        assertEquals("same",FileUtils.readFileToString(b));
+    }
+
+    /**
+     * A file isn't linked to a blob that merely claims the same checksum.
+     */
+    public void testCollision() throws Exception {
+        if (Functions.isWindows())  return;
+        File a = write("a","mine");
+        String md5 = Util.getDigestOf(new FileInputStream(a));
+        File blob = store.getBlob(md5);
+        blob.getParentFile().mkdirs();
+        FileUtils.writeStringToFile(blob,"evil");
+
+        store.intern(a,md5);
+        assertEquals("mine",FileUtils.readFileToString(a));
+        assertEquals(1,ArtifactStore.getLinkCount(blob));
+        assertEquals(1,ArtifactStore.getLinkCount(a));
+    }
+
+    public void testSweep() throws Exception {
+        if (Functions.isWindows())  return;
+        File a = write("a","kept");
+        File b = write("b","gone");
+        String kept = Util.getDigestOf(new FileInputStream(a));
+        String gone = Util.getDigestOf(new FileInputStream(b));
+        store.intern(a,kept);
+        store.intern(b,gone);
+
+        // as if the build went away without releasing its blobs
+        assertTrue(b.delete());
+        assertEquals(1,store.sweep());
+        assertTrue(store.getBlob(kept).exists());
+        assertFalse(store.getBlob(gone).exists());
+    }
+
+    private File write(String name, String content) throws Exception {
+        File f = new File(dir,name);
+        FileUtils.writeStringToFile(f,content);
+        return f;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.model;
+
+import hudson.Util;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class BuildSummaryIndexTest extends TestCase {
+    private File dir;
+    private final SortedMap<Integer,TestBuild> runs = new TreeMap<Integer,TestBuild>(RunMap.COMPARATOR);
+    private Job job;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = Util.createTempDir();
+        job = createMockProject(dir,runs);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Util.deleteRecursive(dir);
+        super.tearDown();
+    }
+
+    public void testUpdateAndReload() throws Exception {
+        BuildSummaryIndex index = new BuildSummaryIndex(job);
+        index.update(build(1,Result.SUCCESS,10));
+        index.update(build(2,Result.FAILURE,20));
+        index.update(build(3,Result.UNSTABLE,30));
+        index.remove(1);
+
+        index = new BuildSummaryIndex(job);
+        assertNull(index.get(1));
+        assertSame(Result.FAILURE,index.get(2).getResult());
+        assertEquals(30L,index.get(3).getDuration());
+        assertEquals(3,index.getLastSuccessful().getNumber());
+        assertEquals(2,index.getLastFailed().getNumber());
+        assertNull(index.getLastStable());
+    }
+
+    /**
+     * A record with a result that doesn't exist makes the index rebuilt, instead of failing to load.
+     */
+    public void testBadResult() throws Exception {
+        BuildSummaryIndex index = new BuildSummaryIndex(job);
+        index.update(build(1,Result.SUCCESS,10));
+
+        // the result is the 21st byte of the first record, after the 4-byte header
+        RandomAccessFile f = new RandomAccessFile(index.getFile(),"rw");
+        f.seek(4+20);
+        f.writeByte(42);
+        f.close();
+
+        // there's no build.xml to rebuild from
+        index = new BuildSummaryIndex(job);
+        assertTrue(index.getRecords().isEmpty());
+        assertEquals(4L,index.getFile().length());
+    }
+
+    /**
+     * A completed build without a result counts as unsuccessful, whether the index is used or not.
+     */
+    public void testNullResult() throws Exception {
+        build(1,Result.FAILURE,10);
+        build(2,null,10);
+        build(3,Result.SUCCESS,10);
+        assertEquals(2,job.getLastUnsuccessfulBuild().getNumber());
+        assertEquals(3,job.getLastSuccessfulBuild().getNumber());
+
+        job.getBuildSummaries().rebuild(runs.values());
+        assertEquals(2,job.getLastUnsuccessfulBuild().getNumber());
+        assertEquals(1,job.getLastFailedBuild().getNumber());
+    }
+
+    /**
+     * Builds in a time range are found through the index.
+     */
+    public void testBuildsByTimestamp() throws Exception {
+        build(1,Result.SUCCESS,10,100);
+        build(2,Result.SUCCESS,10,200);
+        build(3,Result.SUCCESS,10,300);
+        job.getBuildSummaries().rebuild(runs.values());
+
+        assertEquals(1,job.getBuildsByTimestamp(200,300).size());
+        assertEquals(2,job.getBuildsByTimestamp(200,300).get(0).getNumber());
+        assertEquals(2,job.getBuildsByTimestamp(0,250).size());
+    }
+
+    private TestBuild build(int number, Result result, long duration) throws IOException {
+        return build(number,result,duration,0);
+    }
+
+    private TestBuild build(int number, Result result, long duration, long timestamp) throws IOException {
+        TestBuild b = new TestBuild(job,number,result,duration,timestamp);
+        if (!runs.isEmpty())
+            b.previousBuild = runs.get(runs.firstKey());
+        runs.put(number,b);
+        return b;
+    }
+
+    private static Job createMockProject(final File dir, final SortedMap<Integer,? extends Run> runs) {
+        return new Job(null,"name") {
+            @Override
+            public File getRootDir() {
+                return dir;
+            }
+
+            @Override
+            public SortedMap<Integer,? extends Run> _getRuns() {
+                return runs;
+            }
+
+            @Override
+            public boolean isBuildable() {
+                return true;
+            }
+
+            @Override
+            protected void removeRun(Run run) {
+            }
+        };
+    }
+
+    private static class TestBuild extends Run {
+        TestBuild(Job project, int number, Result result, long duration, long timestamp) {
+            super(project,timestamp);
+            this.number = number;
+            this.result = result;
+            this.duration = duration;
+        }
+
+        @Override
+        public boolean isBuilding() {
+            return false;
+        }
+    }
+
+    public void testScan() throws Exception {
+        File xml = File.createTempFile("build","xml");
+        try {
+            FileOutputStream o = new FileOutputStream(xml);
+            o.write(("<?xml version='1.0' encoding='UTF-8'?>\n" +
+                     "<build>\n" +
+                     "  <actions>\n" +
+                     "    <hudson.model.CauseAction><result>bogus</result></hudson.model.CauseAction>\n" +
+                     "  </actions>\n" +
+                     "  <number>12</number>\n" +
+                     "  <result>UNSTABLE</result>\n" +
+                     "  <duration>3456</duration>\n" +
+                     "  <displayName>release</displayName>\n" +
+                     "  <keepLog>false</keepLog>\n" +
+                     "</build>").getBytes("UTF-8"));
+            o.close();
+
+            BuildSummaryIndex.Record r = BuildSummaryIndex.scan(job, xml, 1000L);
+            assertEquals(12, r.getNumber());
+            assertEquals(1000L, r.getTimeInMillis());
+            assertEquals(3456L, r.getDuration());
+            assertSame(Result.UNSTABLE, r.getResult());
+            assertTrue(r.hasCustomDisplayName());
+            assertFalse(r.isBuilding());
+        } finally {
+            xml.delete();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package hudson.model;
+
+import hudson.util.IOException2;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class RunMapTest extends TestCase {
+    private File xml;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        xml = File.createTempFile("build","xml");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        xml.delete();
+        super.tearDown();
+    }
+
+    private void write(String s) throws IOException {
+        FileOutputStream o = new FileOutputStream(xml);
+        try {
+            o.write(s.getBytes("UTF-8"));
+        } finally {
+            o.close();
+        }
+    }
+
+    /**
+     * Only the top-level &lt;number> counts, not the ones nested in actions.
+     */
+    public void testReadNumber() throws Exception {
+        write("<?xml version='1.0' encoding='UTF-8'?>\n" +
+              "<build>\n" +
+              "  <actions>\n" +
+              "    <hudson.model.ParametersAction><number>7</number></hudson.model.ParametersAction>\n" +
+              "  </actions>\n" +
+              "  <number>42</number>\n" +
+              "  <result>SUCCESS</result>\n" +
+              "</build>");
+        assertEquals(Integer.valueOf(42), RunMap.readNumber(xml));
+    }
+
+    public void testReadNumberMissing() throws Exception {
+        write("<build><result>SUCCESS</result></build>");
+        assertNull(RunMap.readNumber(xml));
+    }
+
+    public void testReadNumberBroken() throws Exception {
+        write("<build><number>4");
+        try {
+            RunMap.readNumber(xml);
+            fail();
+        } catch (IOException2 e) {
+            // expected
+        }
+    }
+}
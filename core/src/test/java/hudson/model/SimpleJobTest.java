@@ -1,9 +1,11 @@
 package hudson.model;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
+import hudson.Util;
 import junit.framework.Assert;
 import junit.framework.TestCase;
 
@@ -11,6 +13,22 @@ import junit.framework.TestCase;
  * Unit test for {@link Job}.
  */
 public class SimpleJobTest extends TestCase {
+    /**
+     * Root directory of the mock project, where its build summaries go.
+     */
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = Util.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Util.deleteRecursive(dir);
+        super.tearDown();
+    }
 
     public void testGetEstimatedDuration() throws IOException {
         
@@ -102,6 +120,11 @@ public class SimpleJobTest extends TestCase {
                 return i++;
             }
             
+            @Override
+            public File getRootDir() {
+                return dir;
+            }
+
             @Override
             public SortedMap<Integer, ? extends Run> _getRuns() {
                 return runs;
@@ -0,0 +1,141 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks.junit;
+
+import hudson.Util;
+import hudson.tasks.junit.HistoryStore.CaseEntry;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import static hudson.tasks.junit.HistoryStore.*;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class HistoryStoreTest extends TestCase {
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = Util.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Util.deleteRecursive(dir);
+        super.tearDown();
+    }
+
+    public void testRecordAndRead() throws Exception {
+        HistoryStore s = new HistoryStore(dir);
+        s.record(1,cases("a.A\tx",PASSED,"a.A\ty",FAILED));
+        s.record(2,cases("a.A\ty",PASSED,"b.B\tz",SKIPPED));
+
+        s = new HistoryStore(dir);
+        assertEquals(PASSED,s.readCase(1,"a.A\tx").status);
+        assertEquals(FAILED,s.readCase(1,"a.A\ty").status);
+        assertEquals(ABSENT,s.readCase(1,"b.B\tz").status);
+        assertEquals(ABSENT,s.readCase(2,"a.A\tx").status);
+        assertEquals(SKIPPED,s.readCase(2,"b.B\tz").status);
+        assertEquals(ABSENT,s.readCase(2,"no.Such\tcase").status);
+        assertNull(s.readCase(3,"a.A\tx"));
+    }
+
+    /**
+     * A block only has the test cases of its build.
+     */
+    public void testBlocksAreSparse() throws Exception {
+        HistoryStore s = new HistoryStore(dir);
+        for (int i=1; i<=100; i++)
+            s.record(i,cases("a.A\tt"+i,PASSED));
+        File data = new File(dir,"junitHistory.dat");
+        long len = data.length();
+        s.record(101,cases("a.A\tt1",FAILED));
+        assertEquals(8+13,data.length()-len);
+        assertEquals(FAILED,s.readCase(101,"a.A\tt1").status);
+    }
+
+    /**
+     * If the ids file was cut short in the middle of a line,
+     * keys added later don't get glued to it.
+     */
+    public void testPartialIdsLine() throws Exception {
+        HistoryStore s = new HistoryStore(dir);
+        s.record(1,cases("a.A\tx",PASSED));
+
+        FileOutputStream out = new FileOutputStream(new File(dir,"junitHistory.ids"),true);
+        out.write("a.A\tpart".getBytes("UTF-8"));
+        out.close();
+
+        s = new HistoryStore(dir);
+        s.record(2,cases("a.A\tx",FAILED,"a.A\ty",PASSED));
+        s = new HistoryStore(dir);
+        assertEquals(PASSED,s.readCase(1,"a.A\tx").status);
+        assertEquals(FAILED,s.readCase(2,"a.A\tx").status);
+        assertEquals(PASSED,s.readCase(2,"a.A\ty").status);
+    }
+
+    /**
+     * A partially written block is dropped, and test cases that the data refers to
+     * but that didn't make it to the ids file get placeholders instead of someone else's data.
+     */
+    public void testRecovery() throws Exception {
+        HistoryStore s = new HistoryStore(dir);
+        s.record(1,cases("a.A\tx",PASSED));
+        s.record(2,cases("a.A\ty",FAILED));
+        s.record(3,cases("a.A\tx",FAILED));
+
+        // lose the last key, and tear the last block
+        File ids = new File(dir,"junitHistory.ids");
+        RandomAccessFile raf = new RandomAccessFile(ids,"rw");
+        raf.setLength("a.A\tx\n".length());
+        raf.close();
+        File data = new File(dir,"junitHistory.dat");
+        raf = new RandomAccessFile(data,"rw");
+        raf.setLength(raf.length()-3);
+        raf.close();
+
+        s = new HistoryStore(dir);
+        assertEquals(PASSED,s.readCase(1,"a.A\tx").status);
+        assertEquals(ABSENT,s.readCase(2,"a.A\tx").status);
+        assertNull(s.readCase(3,"a.A\tx"));
+
+        s.record(4,cases("a.A\tz",PASSED));
+        assertEquals(ABSENT,s.readCase(2,"a.A\tz").status);
+        assertEquals(PASSED,s.readCase(4,"a.A\tz").status);
+    }
+
+    private static Map<String,CaseEntry> cases(Object... keysAndStatuses) {
+        Map<String,CaseEntry> r = new HashMap<String,CaseEntry>();
+        for (int i=0; i<keysAndStatuses.length; i+=2)
+            r.put((String)keysAndStatuses[i],new CaseEntry((Byte)keysAndStatuses[i+1],1,0));
+        return r;
+    }
+}
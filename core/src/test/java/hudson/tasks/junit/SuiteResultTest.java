@@ -28,6 +28,7 @@ import java.util.List;
 import java.net.URISyntaxException;
 
 import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
 
 import hudson.XmlFile;
 import java.io.FileWriter;
@@ -177,4 +178,37 @@ public class SuiteResultTest extends TestCase {
         }
     }
 
+    public void testStdioSpill() throws Exception {
+        File data = File.createTempFile("testStdioSpill", ".xml");
+        File spillDir = File.createTempFile("testStdioSpill", "dir");
+        spillDir.delete();
+        spillDir.mkdir();
+        int threshold = StdioBuffer.SPILL_THRESHOLD;
+        try {
+            StdioBuffer.SPILL_THRESHOLD = 1000;
+            StringBuilder output = new StringBuilder();
+            for (int i = 0; i < 1000; i++)
+                output.append("Line #").append(i).append('\n');
+
+            PrintWriter pw = new PrintWriter(new FileWriter(data));
+            pw.println("<testsuite failures='1' errors='0' tests='2' name='x'>");
+            pw.println("<testcase name='x' classname='x'><system-out>"+output+"</system-out></testcase>");
+            pw.println("<testcase name='y' classname='x'><failure message='y'>trace</failure></testcase>");
+            pw.println("<system-err><![CDATA["+output+"]]></system-err>");
+            pw.println("</testsuite>");
+            pw.close();
+
+            List<SuiteResult> results = SuiteResult.parse(data, false, spillDir);
+            SuiteResult sr = results.get(0);
+            // output of a passing test is trimmed in memory, but that of the failing suite is spilled in full
+            assertEquals(sr.getCase("x").getStdout(), 1028, sr.getCase("x").getStdout().length());
+            File[] spilled = spillDir.listFiles();
+            assertEquals(1, spilled.length);
+            assertEquals(output.toString(), FileUtils.readFileToString(spilled[0], "UTF-8"));
+        } finally {
+            StdioBuffer.SPILL_THRESHOLD = threshold;
+            data.delete();
+            FileUtils.deleteDirectory(spillDir);
+        }
+    }
 }
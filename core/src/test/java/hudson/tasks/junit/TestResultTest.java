@@ -78,6 +78,40 @@ public class TestResultTest extends TestCase {
         assertEquals(5, failedCase.getFailedSince());
     }
 
+    /**
+     * Test results converted from XML should read back the same.
+     */
+    public void testBinaryRoundTrip() throws Exception {
+        TestResult xml = (TestResult)new XmlFile(XSTREAM, getDataFile("junitResult.xml")).read();
+        xml.tally();
+
+        File f = File.createTempFile("junitResult",".bin");
+        try {
+            BinaryResultFile.write(f,xml);
+
+            BinaryResultFile.Header h = BinaryResultFile.readHeader(f,null);
+            assertEquals(9, h.total.getTotalCount());
+            assertEquals(1, h.total.getFailCount());
+            assertEquals(xml.getChildren().size(), h.packages.size());
+
+            TestResult result = BinaryResultFile.read(f);
+            result.tally();
+            assertEquals(9, result.getTotalCount());
+            assertEquals(1, result.getSkipCount());
+            assertEquals(1, result.getFailCount());
+            assertEquals(0.576, result.getDuration(), 0.0001);
+            assertEquals(6, result.getSuites().size());
+
+            CaseResult failedCase = result.getSuite("broken").getCase("becomeUglier");
+            assertNotNull(failedCase);
+            assertFalse(failedCase.isPassed());
+            assertEquals(5, failedCase.getFailedSince());
+            assertEquals(xml.getSuite("broken").getCase("becomeUglier").getErrorStackTrace(), failedCase.getErrorStackTrace());
+        } finally {
+            f.delete();
+        }
+    }
+
     private static final XStream XSTREAM = new XStream2();
 
     static {
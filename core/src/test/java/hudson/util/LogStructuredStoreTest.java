@@ -0,0 +1,181 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.util;
+
+import hudson.Util;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class LogStructuredStoreTest extends TestCase {
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = Util.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Util.deleteRecursive(dir);
+        super.tearDown();
+    }
+
+    public void testBasic() throws Exception {
+        LogStructuredStore s = new LogStructuredStore(dir);
+        assertNull(s.get(key(1)));
+        s.put(key(1),"one".getBytes());
+        s.put(key(2),"two".getBytes());
+        s.put(key(1),"uno".getBytes());
+        assertEquals("uno",new String(s.get(key(1))));
+        assertEquals("two",new String(s.get(key(2))));
+        assertEquals(2,s.size());
+
+        assertTrue(s.delete(key(2)));
+        assertFalse(s.delete(key(2)));
+        assertNull(s.get(key(2)));
+        assertEquals(1,s.size());
+        assertTrue(s.getGarbageSize()>0);
+        s.close();
+
+        s = new LogStructuredStore(dir);
+        assertEquals("uno",new String(s.get(key(1))));
+        assertNull(s.get(key(2)));
+        assertEquals(1,s.size());
+        s.close();
+    }
+
+    /**
+     * Enough entries to grow the index a few times, then compact it.
+     */
+    public void testGrowAndCompact() throws Exception {
+        LogStructuredStore s = new LogStructuredStore(dir);
+        for (int i=0; i<5000; i++)
+            s.put(key(i),("v"+i).getBytes());
+        for (int i=0; i<5000; i+=2)
+            s.delete(key(i));
+        long before = s.getLogSize();
+
+        s.compact();
+        assertEquals(0,s.getGarbageSize());
+        assertTrue(s.getLogSize()<before);
+        assertEquals(2500,s.size());
+
+        Set<String> keys = new HashSet<String>();
+        for (byte[] k : s.keys())
+            keys.add(Util.toHexString(k));
+        assertEquals(2500,keys.size());
+        for (int i=0; i<5000; i++) {
+            byte[] v = s.get(key(i));
+            if(i%2==0)  assertNull(v);
+            else        assertEquals("v"+i,new String(v));
+        }
+        s.close();
+    }
+
+    /**
+     * Records appended after the index was last written are replayed,
+     * and a torn record at the end is dropped.
+     */
+    public void testRecovery() throws Exception {
+        LogStructuredStore s = new LogStructuredStore(dir);
+        s.put(key(1),"one".getBytes());
+        s.close();
+
+        // simulate a crash: the index is missing, and the last record is half-written
+        File log = new File(dir,"data.log");
+        long good = log.length();
+        RandomAccessFile raf = new RandomAccessFile(log,"rw");
+        raf.seek(good);
+        raf.write(new byte[]{1,2,3});
+        raf.close();
+        assertTrue(new File(dir,"data.idx").delete());
+
+        s = new LogStructuredStore(dir);
+        assertEquals("one",new String(s.get(key(1))));
+        assertEquals(good,s.getLogSize());
+        s.put(key(2),"two".getBytes());
+        assertEquals("two",new String(s.get(key(2))));
+        s.close();
+    }
+
+    /**
+     * A record whose length looks right but whose payload didn't make it to the disk
+     * is caught by its checksum.
+     */
+    public void testTornPayload() throws Exception {
+        LogStructuredStore s = new LogStructuredStore(dir);
+        s.put(key(1),"one".getBytes());
+        s.put(key(2),"two".getBytes());
+        s.close();
+
+        File log = new File(dir,"data.log");
+        long len = log.length();
+        RandomAccessFile raf = new RandomAccessFile(log,"rw");
+        raf.seek(len-1);
+        raf.write('x');
+        raf.close();
+        assertTrue(new File(dir,"data.idx").delete());
+
+        s = new LogStructuredStore(dir);
+        assertEquals("one",new String(s.get(key(1))));
+        assertNull(s.get(key(2)));
+        assertEquals(1,s.size());
+        s.close();
+    }
+
+    /**
+     * An index whose slots were modified after the last commit is not trusted.
+     */
+    public void testUncommittedIndex() throws Exception {
+        LogStructuredStore s = new LogStructuredStore(dir);
+        s.put(key(1),"one".getBytes());
+        s.sync();
+        s.put(key(2),"two".getBytes());
+        s.delete(key(1));
+
+        // reopen without closing, as if we died before the commit
+        LogStructuredStore t = new LogStructuredStore(dir);
+        assertNull(t.get(key(1)));
+        assertEquals("two",new String(t.get(key(2))));
+        assertEquals(1,t.size());
+        t.close();
+    }
+
+    private static byte[] key(int i) {
+        byte[] k = new byte[LogStructuredStore.KEY_SIZE];
+        for (int j=0; j<k.length; j++)
+            k[j] = (byte)((i*31+j*17)>>(j%3));
+        k[0] = (byte)i;
+        k[1] = (byte)(i>>8);
+        return k;
+    }
+}
@@ -35,11 +35,13 @@ import hudson.remoting.Future;
 import hudson.util.IOException2;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.Serializable;
 import java.lang.reflect.InvocationTargetException;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -89,9 +91,30 @@ public class Maven3Builder extends AbstractMavenBuilder implements DelegatingCal
     private final Map<ModuleName,List<MavenReporter>> reporters = new HashMap<ModuleName,List<MavenReporter>>();
     
     private final MavenBuildInformation mavenBuildInformation;
+
+    /**
+     * Logs of the modules, if they are built concurrently. Null otherwise.
+     * In that case, the output of each thread is copied to the log of the module it's building.
+     */
+    private final Map<ModuleName,OutputStream> moduleLogs;
+
+    /**
+     * Log of the module that the current thread is building.
+     *
+     * <p>
+     * Deliberately not inheritable. Threads that a plugin starts while building a module
+     * can outlive the module, or be pooled and reused for another one, so their output
+     * only goes to the build log.
+     */
+    private transient ThreadLocal<OutputStream> currentModuleLog;
     
     protected Maven3Builder(BuildListener listener,Map<ModuleName,ProxyImpl2> proxies, Map<ModuleName,List<MavenReporter>> reporters, List<String> goals, Map<String, String> systemProps, MavenBuildInformation mavenBuildInformation) {
+        this(listener, proxies, reporters, goals, systemProps, mavenBuildInformation, null);
+    }
+
+    protected Maven3Builder(BuildListener listener,Map<ModuleName,ProxyImpl2> proxies, Map<ModuleName,List<MavenReporter>> reporters, List<String> goals, Map<String, String> systemProps, MavenBuildInformation mavenBuildInformation, Map<ModuleName,OutputStream> moduleLogs) {
         super( listener, goals, systemProps );
+        this.moduleLogs = moduleLogs;
         this.mavenBuildInformation = mavenBuildInformation;
         sourceProxies = new HashMap<ModuleName, ProxyImpl2>(proxies);
         this.proxies = new HashMap<ModuleName, MavenBuildProxy2>(proxies);
@@ -105,7 +128,8 @@ public class Maven3Builder extends AbstractMavenBuilder implements DelegatingCal
 
         MavenExecutionListener mavenExecutionListener = new MavenExecutionListener( this );
         try {
-            futures = new ArrayList<Future<?>>();
+            // modules built concurrently schedule their asynchronous executions from their own threads
+            futures = Collections.synchronizedList(new ArrayList<Future<?>>());
             
             Maven3Launcher.setMavenExecutionListener( mavenExecutionListener );
             
@@ -120,42 +144,71 @@ public class Maven3Builder extends AbstractMavenBuilder implements DelegatingCal
 
             listener.getLogger().println(formatArgs(goals));
             
-            
-            int r = Maven3Main.launch( goals.toArray(new String[goals.size()]));
+            PrintStream out = System.out, err = System.err;
+            if (moduleLogs!=null) {
+                currentModuleLog = new ThreadLocal<OutputStream>();
+                System.setOut(new PrintStream(new ModuleLogRouter(out),true));
+                System.setErr(new PrintStream(new ModuleLogRouter(err),true));
+            }
+            int r;
+            try {
+                r = Maven3Main.launch( goals.toArray(new String[goals.size()]));
+            } finally {
+                if (moduleLogs!=null) {
+                    System.setOut(out);
+                    System.setErr(err);
+                    for (OutputStream log : moduleLogs.values())
+                        log.flush();
+                }
+            }
 
-            // now check the completion status of async ops
+            // now check the completion status of async ops.
+            // plugins may still be scheduling them from their own threads, so we take them
+            // out of the list under its lock, and keep going until no more shows up
             boolean messageReported = false;
             long startTime = System.nanoTime();
-            for (Future<?> f : futures) {
-                try {
-                    if(!f.isDone() && !messageReported) {
-                        messageReported = true;
+            while (true) {
+                List<Future<?>> pending;
+                synchronized (futures) {
+                    if (futures.isEmpty())  break;
+                    pending = new ArrayList<Future<?>>(futures);
+                    futures.clear();
+                }
+                for (Future<?> f : pending) {
+                    try {
+                        if(!f.isDone() && !messageReported) {
+                            messageReported = true;
+                            // FIXME messages
+                            listener.getLogger().println("maven builder waiting");
+                        }
+                        f.get();
+                    } catch (InterruptedException e) {
+                        // attempt to cancel all asynchronous tasks
+                        for (Future<?> g : pending)
+                            g.cancel(true);
+                        synchronized (futures) {
+                            for (Future<?> g : futures)
+                                g.cancel(true);
+                        }
+                        // FIXME messages
+                        listener.getLogger().println("build aborted");
+                        return Result.ABORTED;
+                    } catch (ExecutionException e) {
                         // FIXME messages
-                        listener.getLogger().println("maven builder waiting");
+                        e.printStackTrace(listener.error("async build failed"));
                     }
-                    f.get();
-                } catch (InterruptedException e) {
-                    // attempt to cancel all asynchronous tasks
-                    for (Future<?> g : futures)
-                        g.cancel(true);
-                    // FIXME messages
-                    listener.getLogger().println("build aborted");
-                    return Result.ABORTED;
-                } catch (ExecutionException e) {
-                    // FIXME messages
-                    e.printStackTrace(listener.error("async build failed"));
                 }
             }
             mavenExecutionListener.overheadTime += System.nanoTime()-startTime;
-            futures.clear();
 
             if(profile) {
                 NumberFormat n = NumberFormat.getInstance();
                 PrintStream logger = listener.getLogger();
                 logger.println("Total overhead was "+format(n,mavenExecutionListener.overheadTime)+"ms");
                 Channel ch = Channel.current();
-                logger.println("Class loading "   +format(n,ch.classLoadingTime.get())   +"ms, "+ch.classLoadingCount+" classes");
+                logger.println("Class loading "   +format(n,ch.classLoadingTime.get())   +"ms, "+ch.classLoadingCount+" classes, "+ch.classLoadingPrefetchCacheCount+" classes from cached jars");
                 logger.println("Resource loading "+format(n,ch.resourceLoadingTime.get())+"ms, "+ch.resourceLoadingCount+" times");                
+                logger.println("Sent "+ch.commandSendCount+" commands in "+ch.sendBatchCount+" writes, "+ch.sendByteCount.get()/1024+"KB");
             }
 
             mavenExecutionResult = Maven3Launcher.getMavenExecutionResult();
@@ -194,6 +247,51 @@ public class Maven3Builder extends AbstractMavenBuilder implements DelegatingCal
     public ClassLoader getClassLoader() {
         return Hudson.getInstance().getPluginManager().uberClassLoader;
     }
+
+    /**
+     * Called when the current thread starts building the given module.
+     */
+    private void enterModule(MavenProject mavenProject) {
+        if (moduleLogs!=null)
+            currentModuleLog.set(moduleLogs.get(new ModuleName(mavenProject)));
+    }
+
+    private void leaveModule() {
+        if (moduleLogs!=null)
+            currentModuleLog.remove();
+    }
+
+    /**
+     * Copies the output of threads that are building a module to the log of that module.
+     */
+    private final class ModuleLogRouter extends OutputStream {
+        private final OutputStream base;
+
+        ModuleLogRouter(OutputStream base) {
+            this.base = base;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            base.write(b);
+            OutputStream log = currentModuleLog.get();
+            if (log!=null)  log.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            base.write(b,off,len);
+            OutputStream log = currentModuleLog.get();
+            if (log!=null)  log.write(b,off,len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            base.flush();
+            OutputStream log = currentModuleLog.get();
+            if (log!=null)  log.flush();
+        }
+    }
     
     
     /**
@@ -338,6 +436,7 @@ public class Maven3Builder extends AbstractMavenBuilder implements DelegatingCal
          * @see org.apache.maven.execution.ExecutionListener#projectStarted(org.apache.maven.execution.ExecutionEvent)
          */
         public void projectStarted( ExecutionEvent event ) {
+            maven3Builder.enterModule( event.getProject() );
             //maven3Builder.listener.getLogger().println( "projectStarted " + event.getProject().getGroupId() + ":"
             //                                                + event.getProject().getArtifactId() + ":" + event.getProject().getVersion() );
             reccordProjectStarted( event );        
@@ -389,6 +488,7 @@ public class Maven3Builder extends AbstractMavenBuilder implements DelegatingCal
                                                             + event.getProject().getVersion());
             reccordProjectSucceeded( event );
             this.eventLogger.projectSucceeded( event );
+            maven3Builder.leaveModule();
         }
         
         public void reccordProjectSucceeded( ExecutionEvent event ) {
@@ -434,6 +534,7 @@ public class Maven3Builder extends AbstractMavenBuilder implements DelegatingCal
                                                                         + ":" + event.getProject().getVersion());
             reccordProjectFailed( event );
             this.eventLogger.projectFailed( event );
+            maven3Builder.leaveModule();
         }
         
         public void reccordProjectFailed( ExecutionEvent event ) {
@@ -25,10 +25,13 @@ package hudson.maven;
 
 import hudson.FilePath;
 import hudson.EnvVars;
+import hudson.maven.reporters.MavenArtifactRecord;
 import hudson.maven.reporters.SurefireArchiver;
+import hudson.maven.reporters.SurefireReport;
 import hudson.slaves.WorkspaceList;
 import hudson.slaves.WorkspaceList.Lease;
 import hudson.maven.agent.AbortException;
+import hudson.model.ArtifactStore;
 import hudson.model.BuildListener;
 import hudson.model.Computer;
 import hudson.model.Hudson;
@@ -60,6 +63,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.PrintStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -94,6 +98,13 @@ public class MavenBuild extends AbstractMavenBuild<MavenModule,MavenBuild> {
      * @since 1.394
      */
     private String builtOn;    
+
+    /**
+     * Number of the earlier build whose results this build carries over, if this module
+     * wasn't affected by the changes in an incremental build. 0 if this module was actually built.
+     * @since 1.398
+     */
+    private int carriedOverFrom;
     
     public MavenBuild(MavenModule job) throws IOException {
         super(job);
@@ -213,6 +224,16 @@ public class MavenBuild extends AbstractMavenBuild<MavenModule,MavenBuild> {
         return Collections.unmodifiableList(projectActionReporters);
     }
 
+    /**
+     * If this module wasn't affected by the changes in an incremental build,
+     * returns the earlier build whose results this build carries over. Otherwise null.
+     *
+     * @since 1.398
+     */
+    public MavenBuild getCarriedOverFrom() {
+        return carriedOverFrom>0 ? getParent().getBuildByNumber(carriedOverFrom) : null;
+    }
+
     public List<ExecutedMojo> getExecutedMojos() {
         if(executedMojos==null)
             return Collections.emptyList();
@@ -450,6 +471,10 @@ public class MavenBuild extends AbstractMavenBuild<MavenModule,MavenBuild> {
     }
 
     public class ProxyImpl2 extends ProxyImpl implements MavenBuildProxy2 {
+        /**
+         * Null if modules are built concurrently, in which case the output
+         * is sent to {@link #getLog()} directly.
+         */
         private final SplittableBuildListener listener;
         long startTime;
         private final OutputStream log;
@@ -465,7 +490,8 @@ public class MavenBuild extends AbstractMavenBuild<MavenModule,MavenBuild> {
             onStartBuilding();
             startTime = System.currentTimeMillis();
             try {
-                listener.setSideOutputStream(log);
+                if(listener!=null)
+                    listener.setSideOutputStream(log);
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -478,7 +504,8 @@ public class MavenBuild extends AbstractMavenBuild<MavenModule,MavenBuild> {
             duration += System.currentTimeMillis()- startTime;
             parentBuild.notifyModuleBuild(MavenBuild.this);
             try {
-                listener.setSideOutputStream(null);
+                if(listener!=null)
+                    listener.setSideOutputStream(null);
                 save();
             } catch (IOException e) {
                 e.printStackTrace();
@@ -489,6 +516,7 @@ public class MavenBuild extends AbstractMavenBuild<MavenModule,MavenBuild> {
          * Sends the accumuldated log in {@link SplittableBuildListener} to the log of this build.
          */
         public void appendLastLog() {
+            if(listener==null)  return;
             try {
                 listener.setSideOutputStream(log);
                 listener.setSideOutputStream(null);
@@ -497,6 +525,40 @@ public class MavenBuild extends AbstractMavenBuild<MavenModule,MavenBuild> {
             }
         }
 
+        /**
+         * The log file of this module.
+         */
+        OutputStream getLog() {
+            return log;
+        }
+
+        /**
+         * Records the results of the given earlier build as those of this build, instead of
+         * building this module. Used for modules not affected by the changes in incremental builds.
+         */
+        void carryOver(MavenBuild from) throws IOException, InterruptedException {
+            onStartBuilding();
+            PrintStream out = new PrintStream(log);
+            out.println(Messages.MavenBuild_CarriedOver(from.getFullDisplayName()));
+            out.flush();
+
+            carriedOverFrom = from.getNumber();
+            projectActionReporters = from.projectActionReporters;
+
+            ArtifactStore.copyArtifacts(from,MavenBuild.this);
+            MavenArtifactRecord mar = from.getAction(MavenArtifactRecord.class);
+            if (mar!=null)
+                addAction(new MavenArtifactRecord(MavenBuild.this,mar));
+            SurefireReport sr = from.getAction(SurefireReport.class);
+            if (sr!=null)
+                addAction(new SurefireReport(MavenBuild.this,sr));
+
+            setResult(from.getResult());
+            onEndBuilding();
+            parentBuild.notifyModuleBuild(MavenBuild.this);
+            save();
+        }
+
         /**
          * Performs final clean up. Invoked after the entire aggregator build is completed.
          */
@@ -191,8 +191,9 @@ public abstract class MavenBuilder extends AbstractMavenBuilder implements Deleg
                 PrintStream logger = listener.getLogger();
                 logger.println("Total overhead was "+format(n,a.overheadTime)+"ms");
                 Channel ch = Channel.current();
-                logger.println("Class loading "   +format(n,ch.classLoadingTime.get())   +"ms, "+ch.classLoadingCount+" classes");
+                logger.println("Class loading "   +format(n,ch.classLoadingTime.get())   +"ms, "+ch.classLoadingCount+" classes, "+ch.classLoadingPrefetchCacheCount+" classes from cached jars");
                 logger.println("Resource loading "+format(n,ch.resourceLoadingTime.get())+"ms, "+ch.resourceLoadingCount+" times");                
+                logger.println("Sent "+ch.commandSendCount+" commands in "+ch.sendBatchCount+" writes, "+ch.sendByteCount.get()/1024+"KB");
             }
 
             if(r==0)    return Result.SUCCESS;
@@ -170,6 +170,13 @@ public final class MavenModule extends AbstractMavenProject<MavenModule,MavenBui
         return r;
     }
 
+    /**
+     * Modules that this module declares direct dependencies on.
+     */
+    /*package*/ Set<ModuleDependency> getDependencies() {
+        return dependencies;
+    }
+
     /**
      * Called to update the module with the new POM.
      * <p>
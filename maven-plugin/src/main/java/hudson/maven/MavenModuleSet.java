@@ -72,6 +72,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -161,6 +162,15 @@ public final class MavenModuleSet extends AbstractMavenProject<MavenModuleSet,Ma
      */
     private boolean incrementalBuild = false;
 
+    /**
+     * If more than 1, and if aggregatorStyleBuild is true and we are using Maven 3, this many modules
+     * are built concurrently by Maven ("-T"), scheduled by their dependencies.
+     * 0 in configurations saved before this option existed, which means the same as 1.
+     *
+     * @since 1.398
+     */
+    private int moduleThreads = 1;
+
     /**
      * If true, the build will use its own local Maven repository
      * via "-Dmaven.repo.local=...".
@@ -333,6 +343,53 @@ public final class MavenModuleSet extends AbstractMavenProject<MavenModuleSet,Ma
         return r;
     }
 
+    /**
+     * Computes the modules that need to be built when the given modules have changed,
+     * which are those modules themselves and all the modules that depend on them, directly or indirectly.
+     *
+     * @return
+     *      active modules in the build order.
+     */
+    /*package*/ List<MavenModule> getAffectedModules(Collection<MavenModule> changed) {
+        Map<ModuleDependency,MavenModule> byDependency = new HashMap<ModuleDependency,MavenModule>();
+        for (MavenModule m : getDisabledModules(false)) {
+            byDependency.put(m.asDependency(),m);
+            byDependency.put(m.asDependency().withUnknownVersion(),m);
+        }
+
+        // from a module to the modules that depend on it
+        Map<MavenModule,List<MavenModule>> downstream = new HashMap<MavenModule,List<MavenModule>>();
+        for (MavenModule m : getDisabledModules(false)) {
+            for (ModuleDependency d : m.getDependencies()) {
+                MavenModule up = byDependency.get(d);
+                if (up==null || up==m)  continue;
+                List<MavenModule> l = downstream.get(up);
+                if (l==null)
+                    downstream.put(up,l=new ArrayList<MavenModule>());
+                l.add(m);
+            }
+        }
+
+        Set<MavenModule> affected = new HashSet<MavenModule>();
+        Stack<MavenModule> q = new Stack<MavenModule>();
+        for (MavenModule m : changed)
+            if (affected.add(m))
+                q.push(m);
+        while (!q.isEmpty()) {
+            List<MavenModule> l = downstream.get(q.pop());
+            if (l==null)    continue;
+            for (MavenModule m : l)
+                if (affected.add(m))
+                    q.push(m);
+        }
+
+        List<MavenModule> r = new ArrayList<MavenModule>();
+        for (MavenModule m : getDisabledModules(false))
+            if (affected.contains(m))
+                r.add(m);
+        return r;
+    }
+
     public Indenter<MavenModule> createIndenter() {
         return new Indenter<MavenModule>() {
             protected int getNestLevel(MavenModule job) {
@@ -365,6 +422,17 @@ public final class MavenModuleSet extends AbstractMavenProject<MavenModuleSet,Ma
         this.incrementalBuild = incrementalBuild;
     }
 
+    /**
+     * Number of modules to build concurrently in the aggregator style build. 1 if they are built one by one.
+     */
+    public int getModuleThreads() {
+        return Math.max(1,moduleThreads);
+    }
+
+    public void setModuleThreads(int moduleThreads) {
+        this.moduleThreads = moduleThreads;
+    }
+
     public void setAggregatorStyleBuild(boolean aggregatorStyleBuild) {
         this.aggregatorStyleBuild = aggregatorStyleBuild;
     }
@@ -810,6 +878,7 @@ public final class MavenModuleSet extends AbstractMavenProject<MavenModuleSet,Ma
         usePrivateRepository = req.hasParameter("maven.usePrivateRepository");
         ignoreUpstremChanges = !json.has("triggerByDependency");
         incrementalBuild = req.hasParameter("maven.incrementalBuild");
+        moduleThreads = Math.max(1, NumberUtils.toInt( req.getParameter( "maven.moduleThreads" ), 1 ));
         archivingDisabled = req.hasParameter("maven.archivingDisabled");
         resolveDependencies = req.hasParameter( "maven.resolveDependencies" );
         processPlugins = req.hasParameter( "maven.processPlugins" );
@@ -51,6 +51,7 @@ import hudson.model.Run;
 import hudson.model.StringParameterDefinition;
 import hudson.model.TaskListener;
 import hudson.remoting.Channel;
+import hudson.remoting.RemoteOutputStream;
 import hudson.remoting.VirtualChannel;
 import hudson.scm.ChangeLogSet;
 import hudson.tasks.BuildWrapper;
@@ -62,8 +63,10 @@ import hudson.util.MaskingClassLoader;
 import hudson.util.StreamTaskListener;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -77,6 +80,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -87,11 +91,17 @@ import org.apache.maven.artifact.versioning.ComparableVersion;
 import org.apache.maven.execution.MavenSession;
 import org.apache.maven.execution.ReactorManager;
 import org.apache.maven.lifecycle.LifecycleExecutionException;
+import org.apache.maven.model.Dependency;
+import org.apache.maven.model.DependencyManagement;
+import org.apache.maven.model.Model;
+import org.apache.maven.model.Parent;
 import org.apache.maven.model.building.ModelBuildingRequest;
+import org.apache.maven.model.io.xpp3.MavenXpp3Reader;
 import org.apache.maven.monitor.event.EventDispatcher;
 import org.apache.maven.project.MavenProject;
 import org.apache.maven.project.ProjectBuildingException;
 import org.codehaus.plexus.util.PathTool;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 import org.sonatype.aether.transfer.TransferCancelledException;
@@ -270,7 +280,8 @@ public class MavenModuleSetBuild extends AbstractMavenBuild<MavenModuleSet,Maven
         for (List<MavenBuild> builds : moduleBuilds.values()) {
             if (!builds.isEmpty()) {
                 MavenBuild build = builds.get(0);
-                if (build.getResult() != Result.NOT_BUILT && build.getEstimatedDuration() != -1) {
+                if (build.getResult() != Result.NOT_BUILT && build.getCarriedOverFrom() == null
+                        && build.getEstimatedDuration() != -1) {
                     result += build.getEstimatedDuration();
                 }
             }
@@ -529,9 +540,17 @@ public class MavenModuleSetBuild extends AbstractMavenBuild<MavenModuleSet,Maven
                             return Result.FAILURE;
 
                         parsePoms(listener, logger, envVars, mvn, mavenVersion); // #5428 : do pre-build *before* parsing pom
-                        SplittableBuildListener slistener = new SplittableBuildListener(listener);
+                        boolean maven3orLater = MavenUtil.maven3orLater( mavenVersion ); 
+                        // when modules are built concurrently, their output can't be split by time.
+                        // Maven3Builder sends the output of each thread to the log of its module instead.
+                        boolean concurrent = maven3orLater && project.getModuleThreads()>1;
+                        SplittableBuildListener slistener = concurrent ? null : new SplittableBuildListener(listener);
+                        BuildListener mlistener = concurrent ? listener : slistener;
                         proxies = new HashMap<ModuleName, ProxyImpl2>();
-                        List<String> changedModules = new ArrayList<String>();
+                        Map<MavenModule,MavenBuild> moduleBuilds = new LinkedHashMap<MavenModule,MavenBuild>();
+                        List<MavenModule> changedModules = new ArrayList<MavenModule>();
+                        // building only some of the modules requires Maven 2.1 or later
+                        boolean maven2_1orLater = new ComparableVersion (mavenVersion).compareTo( new ComparableVersion ("2.1") ) >= 0;
 
                         for (MavenModule m : project.sortedActiveModules) {
                             MavenBuild mb = m.newBuild();
@@ -540,19 +559,45 @@ public class MavenModuleSetBuild extends AbstractMavenBuild<MavenModuleSet,Maven
                             // Check if incrementalBuild is selected and that there are changes -
                             // we act as if incrementalBuild is not set if there are no changes.
                             if (!MavenModuleSetBuild.this.getChangeSet().isEmptySet()
-                                && project.isIncrementalBuild()) {
+                                && project.isIncrementalBuild() && maven2_1orLater) {
                                 //If there are changes for this module, add it.
                                 // Also add it if we've never seen this module before,
                                 // or if the previous build of this module failed or was unstable.
                                 if ((mb.getPreviousBuiltBuild() == null) ||
                                     (!getChangeSetFor(m).isEmpty()) 
                                     || (mb.getPreviousBuiltBuild().getResult().isWorseThan(Result.SUCCESS))) {
-                                    changedModules.add(m.getModuleName().toString());
+                                    changedModules.add(m);
                                 }
                             }
 
                             mb.setWorkspace(getModuleRoot().child(m.getRelativePath()));
-                            proxies.put(m.getModuleName(), mb.new ProxyImpl2(MavenModuleSetBuild.this,slistener));
+                            moduleBuilds.put(m, mb);
+                        }
+
+                        // modules that depend on the changed modules need to be built, too.
+                        // the rest carry over the results of their last build, which was successful.
+                        // if there are no changed modules, or all the modules are affected, we're building everything anyway.
+                        List<String> affectedModules = new ArrayList<String>();
+                        if (!changedModules.isEmpty()) {
+                            List<MavenModule> affected = project.getAffectedModules(changedModules);
+                            if (affected.size() < moduleBuilds.size())
+                                for (MavenModule m : affected)
+                                    affectedModules.add(m.getModuleName().toString());
+                        }
+
+                        for (Entry<MavenModule,MavenBuild> e : moduleBuilds.entrySet()) {
+                            MavenModule m = e.getKey();
+                            MavenBuild mb = e.getValue();
+                            ProxyImpl2 proxy = mb.new ProxyImpl2(MavenModuleSetBuild.this,slistener);
+                            if (!affectedModules.isEmpty() && !affectedModules.contains(m.getModuleName().toString())) {
+                                try {
+                                    proxy.carryOver(mb.getPreviousBuiltBuild());
+                                } finally {
+                                    proxy.close();
+                                }
+                            } else {
+                                proxies.put(m.getModuleName(), proxy);
+                            }
                         }
 
                         // run the complete build here
@@ -570,13 +615,11 @@ public class MavenModuleSetBuild extends AbstractMavenBuild<MavenModuleSet,Maven
                         
                         ProcessCache.MavenProcess process = null;
                         
-                        boolean maven3orLater = MavenUtil.maven3orLater( mavenVersion ); 
-                       
                         if ( maven3orLater )
                         {
                             LOGGER.info( "using maven 3 " + mavenVersion );
                             process =
-                                MavenBuild.mavenProcessCache.get( launcher.getChannel(), slistener,
+                                MavenBuild.mavenProcessCache.get( launcher.getChannel(), mlistener,
                                                                   new Maven3ProcessFactory( project, launcher, envVars,
                                                                                             pom.getParent() ) );
                         }
@@ -590,13 +633,14 @@ public class MavenModuleSetBuild extends AbstractMavenBuild<MavenModuleSet,Maven
                         ArgumentListBuilder margs = new ArgumentListBuilder().add("-B").add("-f", pom.getRemote());
                         if(project.usesPrivateRepository())
                             margs.add("-Dmaven.repo.local="+getWorkspace().child(".repository"));
-                        // If incrementalBuild is set, and we're on Maven 2.1 or later, *and* there's at least one module
-                        // listed in changedModules, do the Maven incremental build commands - if there are no changed modules,
-                        // We're building everything anyway.
-                        boolean maven2_1orLater = new ComparableVersion (mavenVersion).compareTo( new ComparableVersion ("2.1") ) >= 0;
-                        if (project.isIncrementalBuild() && maven2_1orLater && !changedModules.isEmpty()) {
-                            margs.add("-amd");
-                            margs.add("-pl", Util.join(changedModules, ","));
+                        // If only some of the modules are affected by the changes, just build them.
+                        // They already include all the modules that depend on the changed ones, so no need for "-amd".
+                        if (!affectedModules.isEmpty()) {
+                            margs.add("-pl", Util.join(affectedModules, ","));
+                        }
+                        if (concurrent) {
+                            // Maven schedules the modules by their dependencies
+                            margs.add("-T", String.valueOf(project.getModuleThreads()));
                         }
 
                         if (project.getAlternateSettings() != null) {
@@ -621,8 +665,14 @@ public class MavenModuleSetBuild extends AbstractMavenBuild<MavenModuleSet,Maven
                             {
                                 reporters.put( mavenModule.getModuleName(), mavenModule.createReporters() );
                             }
+                            Map<ModuleName,OutputStream> moduleLogs = null;
+                            if (concurrent) {
+                                moduleLogs = new HashMap<ModuleName,OutputStream>();
+                                for (Entry<ModuleName,ProxyImpl2> e : proxies.entrySet())
+                                    moduleLogs.put(e.getKey(), new RemoteOutputStream(e.getValue().getLog()));
+                            }
                             Maven3Builder maven3Builder = 
-                                new Maven3Builder( slistener, proxies, reporters, margs.toList(), envVars, mavenBuildInformation );
+                                new Maven3Builder( mlistener, proxies, reporters, margs.toList(), envVars, mavenBuildInformation, moduleLogs );
                             MavenProbeAction mpa=null;
                             try {
                                 mpa = new MavenProbeAction(project,process.channel);
@@ -996,6 +1046,10 @@ public class MavenModuleSetBuild extends AbstractMavenBuild<MavenModuleSet,Maven
          * takes an effect even when {@link PomParser} runs in a slave.
          */
         private final boolean verbose = debug;
+        /**
+         * Ditto for {@link PomInfoCache#DISABLED}.
+         */
+        private final boolean useCache = !PomInfoCache.DISABLED;
         private final MavenInstallation mavenHome;
         private final String profiles;
         private final Properties properties;
@@ -1112,6 +1166,16 @@ public class MavenModuleSetBuild extends AbstractMavenBuild<MavenModuleSet,Maven
                 throw new AbortException(Messages.MavenModuleSetBuild_NoSuchAlternateSettings(settingsLoc.getAbsolutePath()));
             }
 
+            String cacheKey = null;
+            if (useCache) {
+                cacheKey = getCacheKey(ws, pom, settingsLoc);
+                List<PomInfo> cached = PomInfoCache.get(cacheKey);
+                if (cached!=null) {
+                    logger.println(Messages.MavenModuleSetBuild_ReusingParsedPOMs());
+                    return cached;
+                }
+            }
+
             try {
                 MavenEmbedderRequest mavenEmbedderRequest = new MavenEmbedderRequest( listener, mavenHome.getHomeDir(),
                                                                                       profiles, properties,
@@ -1191,7 +1255,13 @@ public class MavenModuleSetBuild extends AbstractMavenBuild<MavenModuleSet,Maven
                 for (PomInfo pi : infos)
                     pi.cutCycle();
 
-                return new ArrayList<PomInfo>(infos);
+                List<PomInfo> r = new ArrayList<PomInfo>(infos);
+                if (cacheKey!=null) {
+                    Set<File> parsed = getParsedFiles(mps, settingsLoc, embedder.getLocalRepository().getBasedir());
+                    if (parsed!=null)
+                        PomInfoCache.put(cacheKey, parsed, r);
+                }
+                return r;
             } catch (MavenEmbedderException e) {
                 throw new MavenExecutionException(e);
             } catch (ProjectBuildingException e) {
@@ -1258,6 +1328,151 @@ public class MavenModuleSetBuild extends AbstractMavenBuild<MavenModuleSet,Maven
             }
         }
         
+        /**
+         * Captures the configuration of this parser that affects the result of the parsing.
+         */
+        private String getCacheKey(File ws, File pom, File settingsLoc) {
+            StringBuilder buf = new StringBuilder();
+            buf.append(pom.getAbsolutePath()).append('\n');
+            buf.append(ws.getAbsolutePath()).append('\n');
+            buf.append(workspaceProper).append('\n');
+            buf.append(moduleRootPath).append('\n');
+            buf.append(rootPOMRelPrefix).append('\n');
+            buf.append(mavenHome.getHome()).append('\n');
+            buf.append(mavenVersion).append('\n');
+            buf.append(profiles).append('\n');
+            buf.append(new TreeMap<Object,Object>(properties)).append('\n');
+            buf.append(privateRepository).append('\n');
+            buf.append(settingsLoc).append('\n');
+            buf.append(nonRecursive).append(resolveDependencies).append(processPlugins).append(mavenValidationLevel);
+            // environment variables and system properties are only checked if the POMs refer to them. see PomInfoCache
+            return buf.toString();
+        }
+
+        /**
+         * Lists the files that the given projects were built from:
+         * POMs of the reactor, their parents, the BOMs they import, and settings.
+         *
+         * @param localRepository
+         *      Where the imported BOMs are resolved to.
+         * @return
+         *      null if the files can't be determined, in which case the result shouldn't be cached.
+         */
+        private Set<File> getParsedFiles(List<MavenProject> mps, File settingsLoc, String localRepository) {
+            Set<File> files = new HashSet<File>();
+            for (MavenProject mp : mps) {
+                for (MavenProject p=mp; p!=null; p=p.getParent()) {
+                    if (p.getFile()!=null && p.getFile().isFile())
+                        files.add(p.getFile());
+                    // the effective model no longer has the imports, so look at the model as written
+                    Properties props = new Properties();
+                    props.putAll(p.getProperties());
+                    props.setProperty("project.groupId",p.getGroupId());
+                    props.setProperty("project.version",p.getVersion());
+                    if (!addImportedPoms(p.getOriginalModel(),props,localRepository,files))
+                        return null;
+                }
+            }
+            File[] settings = {
+                settingsLoc,
+                new File(System.getProperty("user.home"),".m2/settings.xml"),
+                new File(mavenHome.getHomeDir(),"conf/settings.xml")
+            };
+            for (File f : settings)
+                if (f!=null && f.isFile())
+                    files.add(f);
+            return files;
+        }
+
+        /**
+         * Adds the POMs imported into the dependency management of the given model,
+         * along with their parents and the POMs they import in turn, from the local repository.
+         *
+         * @return
+         *      false if any of them can't be located.
+         */
+        private boolean addImportedPoms(Model model, Properties props, String localRepository, Set<File> files) {
+            if (model==null)
+                return false;
+            DependencyManagement dm = model.getDependencyManagement();
+            if (dm==null)
+                return true;
+            for (Dependency d : dm.getDependencies()) {
+                if (!"import".equals(d.getScope()) || !"pom".equals(d.getType()))
+                    continue;
+                String groupId = interpolate(d.getGroupId(),props);
+                String artifactId = interpolate(d.getArtifactId(),props);
+                String version = interpolate(d.getVersion(),props);
+                if (groupId==null || artifactId==null || version==null)
+                    return false;
+                if (!addRepositoryPom(groupId,artifactId,version,localRepository,files))
+                    return false;
+            }
+            return true;
+        }
+
+        private boolean addRepositoryPom(String groupId, String artifactId, String version, String localRepository, Set<File> files) {
+            File pom = new File(localRepository, groupId.replace('.','/')+'/'+artifactId+'/'+version+'/'+artifactId+'-'+version+".pom");
+            if (!pom.isFile())
+                return false;
+            if (!files.add(pom))
+                return true;    // already visited
+
+            Model model;
+            try {
+                FileInputStream in = new FileInputStream(pom);
+                try {
+                    model = new MavenXpp3Reader().read(in,false);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                return false;
+            } catch (XmlPullParserException e) {
+                return false;
+            }
+
+            Parent parent = model.getParent();
+            if (parent!=null && !addRepositoryPom(parent.getGroupId(),parent.getArtifactId(),parent.getVersion(),localRepository,files))
+                return false;
+
+            Properties props = new Properties();
+            props.putAll(model.getProperties());
+            props.setProperty("project.groupId",groupId);
+            props.setProperty("project.version",version);
+            return addImportedPoms(model,props,localRepository,files);
+        }
+
+        /**
+         * Expands "${...}" in the given string.
+         *
+         * @return
+         *      null if some of the references can't be resolved.
+         */
+        private static String interpolate(String s, Properties props) {
+            if (s==null)
+                return null;
+            StringBuilder buf = new StringBuilder();
+            int i=0;
+            while (true) {
+                int start = s.indexOf("${",i);
+                if (start<0)
+                    break;
+                int end = s.indexOf('}',start);
+                if (end<0)
+                    return null;
+                String name = s.substring(start+2,end);
+                if (name.startsWith("pom."))
+                    name = "project."+name.substring(4);
+                String value = props.getProperty(name);
+                if (value==null)
+                    return null;
+                buf.append(s,i,start).append(value);
+                i = end+1;
+            }
+            return buf.append(s.substring(i)).toString();
+        }
+
         /**
          * Computes the path of {@link #rootPOM}.
          *
@@ -0,0 +1,209 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.maven;
+
+import hudson.Util;
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Remembers {@link PomInfo}s parsed from POMs, so that the next build of the same
+ * reactor can skip parsing when none of the POMs have changed.
+ *
+ * <p>
+ * This lives in the JVM where POMs are parsed, which is normally the slave.
+ * Each entry records the checksums of all the files that went into the parsing:
+ * POMs of the reactor, parent POMs, BOMs imported from the local repository, and settings.
+ * It also records the values of the environment variables and system properties that those files
+ * refer to, as <tt>${env.X}</tt>, <tt>${X}</tt>, or in the property activation of profiles.
+ * The entry is used only if all of them are still the same. Computing checksums of a few hundred POMs takes
+ * a tiny fraction of the time Maven takes to build the project models from them.
+ *
+ * @author Kohsuke Kawaguchi
+ * @since 1.398
+ */
+final class PomInfoCache {
+    private static final class Item {
+        /**
+         * From the absolute path of the file to its MD5 checksum.
+         */
+        final Map<String,String> files;
+        /**
+         * From the names of the variables that the files refer to, to their values.
+         *
+         * @see #getVariable(String)
+         */
+        final Map<String,String> variables;
+        final List<PomInfo> infos;
+
+        Item(Map<String,String> files, Map<String,String> variables, List<PomInfo> infos) {
+            this.files = files;
+            this.variables = variables;
+            this.infos = infos;
+        }
+    }
+
+    /**
+     * Keyed by the parser configuration. Least recently used items get evicted.
+     */
+    private static final Map<String,Item> CACHE = new LinkedHashMap<String,Item>(16,0.75f,true) {
+        @Override
+        protected boolean removeEldestEntry(Entry<String,Item> eldest) {
+            return size()>MAX_SIZE;
+        }
+    };
+
+    private PomInfoCache() {}
+
+    /**
+     * Gets the previously parsed {@link PomInfo}s, if none of the files they were parsed from
+     * and none of the variables that those files refer to have changed since.
+     *
+     * @param key
+     *      Captures the configuration of the parser that affects the parsing,
+     *      such as the location of the root POM, profiles, and properties.
+     * @return
+     *      null if there's no usable cache entry.
+     */
+    static List<PomInfo> get(String key) throws IOException {
+        Item item;
+        synchronized (CACHE) {
+            item = CACHE.get(key);
+        }
+        if (item==null)
+            return null;
+
+        if (!isUpToDate(item)) {
+            synchronized (CACHE) {
+                CACHE.remove(key);
+            }
+            return null;
+        }
+        // PomInfos are never modified once parsed, so they can be shared
+        return new ArrayList<PomInfo>(item.infos);
+    }
+
+    private static boolean isUpToDate(Item item) throws IOException {
+        for (Entry<String,String> e : item.variables.entrySet()) {
+            // a property that's defined but empty still activates profiles, so null and "" differ
+            String v = getVariable(e.getKey());
+            if (v==null ? e.getValue()!=null : !v.equals(e.getValue()))
+                return false;
+        }
+        for (Entry<String,String> e : item.files.entrySet()) {
+            File f = new File(e.getKey());
+            if (!f.exists() || !digest(FileUtils.readFileToByteArray(f)).equals(e.getValue()))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Remembers the result of parsing.
+     *
+     * @param files
+     *      All the files that were read during the parsing.
+     */
+    static void put(String key, Collection<File> files, List<PomInfo> infos) throws IOException {
+        Map<String,String> digests = new HashMap<String,String>();
+        Set<String> names = new HashSet<String>(Arrays.asList(JVM_PROPERTIES));
+        for (File f : files) {
+            byte[] data = FileUtils.readFileToByteArray(f);
+            digests.put(f.getAbsolutePath(),digest(data));
+            // names are ASCII, whatever the encoding of the file is
+            names.addAll(getReferencedVariables(new String(data,"ISO-8859-1")));
+        }
+
+        Map<String,String> variables = new HashMap<String,String>();
+        for (String name : names)
+            variables.put(name,getVariable(name));
+
+        synchronized (CACHE) {
+            CACHE.put(key,new Item(digests,variables,new ArrayList<PomInfo>(infos)));
+        }
+    }
+
+    /**
+     * Finds the names of the environment variables (as <tt>env.X</tt>) and system properties
+     * that the given POM or settings file can be affected by.
+     * Names that are neither, such as <tt>project.version</tt>, are included too, which is harmless.
+     */
+    static Set<String> getReferencedVariables(String text) {
+        Set<String> names = new HashSet<String>();
+        for (Pattern p : new Pattern[]{EXPRESSION,ACTIVATION_PROPERTY}) {
+            Matcher m = p.matcher(text);
+            while (m.find())
+                names.add(m.group(1).trim());
+        }
+        return names;
+    }
+
+    /**
+     * Gets the current value of a name returned by {@link #getReferencedVariables(String)}, just like Maven does.
+     */
+    static String getVariable(String name) {
+        if (name.startsWith("env."))
+            return System.getenv(name.substring(4));
+        return System.getProperty(name);
+    }
+
+    private static String digest(byte[] data) throws IOException {
+        return Util.getDigestOf(new ByteArrayInputStream(data));
+    }
+
+    private static final Pattern EXPRESSION = Pattern.compile("\\$\\{([^}]+)\\}");
+    /**
+     * The name of the property that activates a profile, possibly negated.
+     */
+    private static final Pattern ACTIVATION_PROPERTY = Pattern.compile("<property>\\s*<name>\\s*!?([^<]+)</name>");
+    /**
+     * System properties that the JDK and OS activation of profiles looks at.
+     */
+    private static final String[] JVM_PROPERTIES = {"java.version","os.name","os.arch","os.version"};
+
+    /**
+     * Maximum number of reactors to remember in one JVM.
+     */
+    public static int MAX_SIZE = Integer.getInteger(PomInfoCache.class.getName()+".maxSize",32);
+
+    /**
+     * Set to true to parse POMs for every build.
+     */
+    public static boolean DISABLED = Boolean.getBoolean(PomInfoCache.class.getName()+".disabled");
+}
@@ -23,23 +23,28 @@
  */
 package hudson.maven;
 
+import hudson.Extension;
 import hudson.Util;
 import hudson.Proc;
 import hudson.model.BuildListener;
 import hudson.model.JDK;
+import hudson.model.PeriodicWork;
 import hudson.model.TaskListener;
 import hudson.remoting.Callable;
 import hudson.remoting.Channel;
 import hudson.remoting.VirtualChannel;
 import hudson.remoting.RequestAbortedException;
 import hudson.tasks.Maven.MavenInstallation;
+import hudson.tools.ToolInstallation;
 import hudson.util.DelegatingOutputStream;
 import hudson.util.NullStream;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.WeakHashMap;
@@ -50,6 +55,12 @@ import java.util.logging.Level;
  * Hold on to launched Maven processes so that multiple builds
  * can reuse the same Maven JVM, which leads to improved performance.
  *
+ * <p>
+ * Processes are pooled per node, and a process is reused by a build that
+ * uses the same Maven installation, JDK, and MAVEN_OPTS. Processes that sit idle
+ * for longer than {@link #IDLE_TIMEOUT} are {@linkplain IdleProcessReaper discarded},
+ * and so are processes that fail the health check before reuse.
+ *
  * @author Kohsuke Kawaguchi
  */
 public final class ProcessCache {
@@ -101,6 +112,11 @@ public final class ProcessCache {
 
         private int age = 0;
 
+        /**
+         * When this process was last returned to the pool.
+         */
+        private long lastUsed;
+
         MavenProcess(PerChannel parent, String mavenOpts, MavenInstallation installation, JDK jdk, NewProcess np, RedirectableOutputStream output) throws IOException, InterruptedException {
             this.parent = parent;
             this.mavenOpts = mavenOpts;
@@ -117,9 +133,33 @@ public final class ProcessCache {
         }
         
         boolean matches(String mavenOpts,MavenInstallation installation, JDK jdk) {
+            // installations are resolved for the node and the environment of each build,
+            // so they need to be compared by what they point to, not by identity
             return Util.fixNull(this.mavenOpts).equals(Util.fixNull(mavenOpts))
-                && this.installation==installation
-                && this.jdk==jdk;
+                && sameTool(this.installation,installation)
+                && sameTool(this.jdk,jdk);
+        }
+
+        /**
+         * Checks if this process can still run a build, and resets the system properties for it.
+         */
+        private boolean isHealthy() {
+            try {
+                if(!proc.isAlive())
+                    return false;
+                call(new SetSystemProperties(systemProperties));
+                return true;
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE,"Discarding an unhealthy maven process",e);
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        private boolean isIdleFor(long now, long timeout) {
+            return now-lastUsed > timeout;
         }
 
         public void recycle() throws IOException {
@@ -127,6 +167,7 @@ public final class ProcessCache {
                 discard();
             else {
                 output.set(new NullStream());
+                lastUsed = System.currentTimeMillis();
                 // make room for the new process and reuse.
                 synchronized(parent.processes) {
                     while(parent.processes.size()>=maxProcess)
@@ -208,11 +249,7 @@ public final class ProcessCache {
             for (Iterator<MavenProcess> itr = list.processes.iterator(); itr.hasNext();) {
                 MavenProcess p =  itr.next();
                 if(p.matches(mavenOpts,installation,jdk)) {
-                    // reset the system property.
-                    // this also serves as the sanity check.
-                    try {
-                        p.call(new SetSystemProperties(p.systemProperties));
-                    } catch (IOException e) {
+                    if(!p.isHealthy()) {
                         p.discard();
                         itr.remove();
                         continue;
@@ -231,10 +268,62 @@ public final class ProcessCache {
         return new MavenProcess(list,mavenOpts,installation,jdk,factory.newProcess(listener,out),out);
     }
 
+    /**
+     * Discards processes that have been idle for longer than the given time.
+     */
+    public void discardIdleProcesses(long timeout) {
+        List<PerChannel> lists;
+        synchronized (this) {
+            lists = new ArrayList<PerChannel>(cache.values());
+        }
+
+        long now = System.currentTimeMillis();
+        for (PerChannel list : lists) {
+            List<MavenProcess> idle = new ArrayList<MavenProcess>();
+            synchronized(list.processes) {
+                for (Iterator<MavenProcess> itr = list.processes.iterator(); itr.hasNext();) {
+                    MavenProcess p = itr.next();
+                    if(p.isIdleFor(now,timeout)) {
+                        idle.add(p);
+                        itr.remove();
+                    }
+                }
+            }
+            // close channels outside the lock, so that builds can keep taking processes from the pool
+            for (MavenProcess p : idle)
+                p.discard();
+        }
+    }
+
+    private static boolean sameTool(ToolInstallation x, ToolInstallation y) {
+        if(x==null || y==null)  return x==y;
+        return Util.fixNull(x.getName()).equals(Util.fixNull(y.getName()))
+            && Util.fixNull(x.getHome()).equals(Util.fixNull(y.getHome()));
+    }
+
+    /**
+     * Discards Maven processes that have been sitting idle in {@link MavenBuild#mavenProcessCache}.
+     */
+    @Extension
+    public static final class IdleProcessReaper extends PeriodicWork {
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        protected void doRun() {
+            MavenBuild.mavenProcessCache.discardIdleProcesses(IDLE_TIMEOUT);
+        }
+    }
+
 
 
     public static int MAX_AGE = 5;
 
+    /**
+     * Processes idle longer than this many milliseconds are discarded.
+     */
+    public static long IDLE_TIMEOUT = Long.getLong(ProcessCache.class.getName()+".idleTimeout",10*60*1000);
+
     static {
         String age = System.getProperty(ProcessCache.class.getName() + ".age");
         if(age!=null)
@@ -27,6 +27,7 @@ import hudson.Extension;
 import hudson.Launcher;
 import hudson.Util;
 import hudson.maven.reporters.MavenAbstractArtifactRecord;
+import hudson.maven.reporters.MavenArtifactRecord;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
@@ -124,8 +125,14 @@ public class RedeployPublisher extends Recorder {
             final ArtifactRepository repository = factory.createDeploymentArtifactRepository(
                     id, url, layout, uniqueVersion);
             WrappedArtifactRepository repo = new WrappedArtifactRepository(repository,uniqueVersion);
-            for (MavenAbstractArtifactRecord mar : mars)
+            for (MavenAbstractArtifactRecord mar : mars) {
+                if (mar instanceof MavenArtifactRecord && ((MavenArtifactRecord)mar).isCarriedOver()) {
+                    // deployed along with the build it was carried over from
+                    listener.getLogger().println("Skipping "+((MavenArtifactRecord)mar).getBuild().getParent().getName()+", whose artifacts are carried over from an earlier build");
+                    continue;
+                }
                 mar.deploy(embedder,repo,listener);
+            }
 
             return true;
         } catch (MavenEmbedderException e) {
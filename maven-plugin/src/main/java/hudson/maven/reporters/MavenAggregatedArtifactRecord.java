@@ -74,7 +74,7 @@ public class MavenAggregatedArtifactRecord extends MavenAbstractArtifactRecord<M
 
         for (MavenBuild build : parent.getModuleLastBuilds().values()) {
             MavenArtifactRecord mar = build.getAction(MavenArtifactRecord.class);
-            if(mar!=null) {
+            if(mar!=null && !mar.isCarriedOver()) {
                 if(debug)
                     listener.getLogger().println("Deploying module: "+build+" timestamp="+build.getTimestamp());
                 mar.deploy(embedder,deploymentRepository,listener);
@@ -82,6 +82,11 @@ public class MavenArtifactRecord extends MavenAbstractArtifactRecord<MavenBuild>
      */
     public final List<MavenArtifact> attachedArtifacts;
 
+    /**
+     * @see #isCarriedOver()
+     */
+    private boolean carriedOver;
+
     public MavenArtifactRecord(MavenBuild parent, MavenArtifact pomArtifact, MavenArtifact mainArtifact, List<MavenArtifact> attachedArtifacts) {
         assert parent!=null;
         assert pomArtifact!=null;
@@ -94,6 +99,27 @@ public class MavenArtifactRecord extends MavenAbstractArtifactRecord<MavenBuild>
         this.attachedArtifacts = attachedArtifacts;
     }
 
+    /**
+     * Records the same artifacts as another build, for a module whose results are carried over.
+     *
+     * @see MavenBuild#getCarriedOverFrom()
+     * @since 1.398
+     */
+    public MavenArtifactRecord(MavenBuild parent, MavenArtifactRecord src) {
+        this(parent,src.pomArtifact,src.mainArtifact,src.attachedArtifacts);
+        this.carriedOver = true;
+    }
+
+    /**
+     * True if these artifacts were carried over from an earlier build,
+     * in which case they have already been deployed along with that build.
+     *
+     * @since 1.398
+     */
+    public boolean isCarriedOver() {
+        return carriedOver;
+    }
+
     public MavenBuild getBuild() {
         return parent;
     }
@@ -34,7 +34,7 @@ import hudson.maven.MavenReporterDescriptor;
 import hudson.maven.MojoInfo;
 import hudson.maven.MavenModuleSetBuild;
 import hudson.model.BuildListener;
-import hudson.model.FingerprintMap;
+import hudson.model.FingerprintWriter.Usage;
 import hudson.model.Hudson;
 import hudson.tasks.Fingerprinter.FingerprintAction;
 import org.apache.maven.artifact.Artifact;
@@ -42,6 +42,7 @@ import org.apache.maven.project.MavenProject;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -99,12 +100,12 @@ public class MavenFingerprinter extends MavenReporter {
             private final Map<String,String> p = produced;
 
             public Void call(MavenBuild build) throws IOException, InterruptedException {
-                FingerprintMap map = Hudson.getInstance().getFingerprintMap();
-
+                List<Usage> usages = new ArrayList<Usage>();
                 for (Entry<String, String> e : p.entrySet())
-                    map.getOrCreate(build, e.getKey(), e.getValue()).add(build);
+                    usages.add(new Usage(e.getValue(),e.getKey(),true));
                 for (Entry<String, String> e : u.entrySet())
-                    map.getOrCreate(null, e.getKey(), e.getValue()).add(build);
+                    usages.add(new Usage(e.getValue(),e.getKey(),false));
+                Hudson.getInstance().getFingerprintMap().getWriter().record(build,usages);
 
                 Map<String,String> all = new HashMap<String, String>(u);
                 all.putAll(p);
@@ -172,9 +173,10 @@ public class MavenFingerprinter extends MavenReporter {
             }
         }
         if(!records.isEmpty()) {
-            FingerprintMap map = Hudson.getInstance().getFingerprintMap();
+            List<Usage> usages = new ArrayList<Usage>();
             for (Entry<String, String> e : records.entrySet())
-                map.getOrCreate(null, e.getKey(), e.getValue()).add(mmsb);
+                usages.add(new Usage(e.getValue(),e.getKey(),false));
+            Hudson.getInstance().getFingerprintMap().getWriter().record(mmsb,usages);
             mmsb.addAction(new FingerprintAction(mmsb,records));
         }
     }
@@ -33,6 +33,7 @@ import hudson.model.Action;
 import hudson.tasks.junit.TestResult;
 import hudson.tasks.junit.TestResultAction;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 
@@ -45,6 +46,16 @@ public class SurefireReport extends TestResultAction implements AggregatableActi
         super(build, result, listener);
     }
 
+    /**
+     * Reports the same test result as another build.
+     *
+     * @see MavenBuild#getCarriedOverFrom()
+     * @since 1.398
+     */
+    public SurefireReport(MavenBuild build, SurefireReport src) throws IOException {
+        super(build, src);
+    }
+
     public MavenAggregatedReport createAggregatedAction(MavenModuleSetBuild build, Map<MavenModule, List<MavenBuild>> moduleBuilds) {
         return new SurefireAggregatedReport(build);
     }
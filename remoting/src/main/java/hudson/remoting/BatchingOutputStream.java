@@ -0,0 +1,272 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.remoting;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sits between the {@link java.io.ObjectOutputStream} of a {@link Channel} and the actual stream,
+ * and queues up the serialized commands in memory so that a writer task can write them out.
+ *
+ * <p>
+ * {@link Channel#send(Command)} still serializes the command on the calling thread, but it
+ * no longer waits for the I/O. The writer writes everything queued so far with a single write and flush,
+ * so commands sent while the previous batch is on its way go out together.
+ *
+ * <p>
+ * The queue is bounded by {@link #MAX_BATCH_SIZE}. Once that much is queued, senders wait
+ * for the writer, just like they used to wait for the stream. With {@link #MAX_BATCH_DELAY},
+ * the writer can also wait a little for more commands before it writes a small batch.
+ *
+ * <p>
+ * If the write fails, the channel is terminated, so that pending calls don't wait for responses
+ * that will never come.
+ *
+ * @author Kohsuke Kawaguchi
+ * @since 1.398
+ */
+final class BatchingOutputStream extends OutputStream implements Runnable {
+    private final Channel channel;
+    private final OutputStream out;
+
+    private byte[] buf = new byte[INITIAL_SIZE];
+    private int size;
+    /**
+     * Buffer that the writer is done with, kept for the next swap.
+     */
+    private byte[] spare;
+    /**
+     * {@link System#nanoTime()} when the first byte of the current batch was queued.
+     */
+    private long queuedAt;
+    /**
+     * True while the writer task is scheduled or running.
+     */
+    private boolean writing;
+    private Thread writerThread;
+    private boolean closed;
+    private IOException failure;
+
+    BatchingOutputStream(Channel channel, OutputStream out) {
+        this.channel = channel;
+        this.out = out;
+    }
+
+    /**
+     * Number of bytes queued and not yet handed to the underlying stream.
+     */
+    synchronized int getQueueSize() {
+        return size;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte)b},0,1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (size>=MAX_BATCH_SIZE && Thread.currentThread()!=writerThread) {
+            // the other side isn't keeping up
+            startWriter();
+            long start = System.nanoTime();
+            while (size>=MAX_BATCH_SIZE && failure==null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw (IOException)new InterruptedIOException().initCause(e);
+                }
+            }
+            channel.sendBlockedTime.addAndGet(System.nanoTime()-start);
+        }
+        if (failure!=null)
+            throw new ChannelClosedException(failure);
+        if (closed)
+            throw new IOException("already closed");
+
+        if (size==0)
+            queuedAt = System.nanoTime();
+        if (buf.length<size+len) {
+            byte[] nb = new byte[Math.max(buf.length*2,size+len)];
+            System.arraycopy(buf,0,nb,0,size);
+            buf = nb;
+        }
+        System.arraycopy(b,off,buf,size,len);
+        size += len;
+
+        if (size>channel.maxSendQueueSize.get())
+            channel.maxSendQueueSize.set(size);
+        if (MAX_BATCH_DELAY>0 && size>=MAX_BATCH_SIZE)
+            notifyAll();    // the writer may be lingering
+    }
+
+    /**
+     * Has what's queued so far written, without waiting for it.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (failure!=null)
+            throw new ChannelClosedException(failure);
+        if (size>0)
+            startWriter();
+    }
+
+    private void startWriter() {
+        if (!writing) {
+            writing = true;
+            WRITERS.execute(this);
+        }
+    }
+
+    /**
+     * Waits for everything queued to be written, then closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed)     return;
+            closed = true;
+            if (size>0)
+                startWriter();
+            boolean interrupted = false;
+            while (writing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // the close command needs to go out, so finish this first
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+        out.close();
+    }
+
+    /**
+     * Writer task.
+     */
+    public void run() {
+        synchronized (this) {
+            writerThread = Thread.currentThread();
+        }
+        while (true) {
+            byte[] b;
+            int len;
+            long waited;
+            synchronized (this) {
+                if (MAX_BATCH_DELAY>0 && !closed) {
+                    // give other commands a chance to join this batch
+                    long deadline = queuedAt+MAX_BATCH_DELAY*1000000L;
+                    long now;
+                    while (size>0 && size<MAX_BATCH_SIZE && (now=System.nanoTime())<deadline) {
+                        try {
+                            long w = deadline-now;
+                            wait(w/1000000,(int)(w%1000000));
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                }
+                if (size==0) {
+                    writing = false;
+                    writerThread = null;
+                    notifyAll();
+                    return;
+                }
+                b = buf;
+                len = size;
+                waited = System.nanoTime()-queuedAt;
+                buf = spare!=null ? spare : new byte[INITIAL_SIZE];
+                spare = null;
+                size = 0;
+                notifyAll();    // senders waiting for room
+            }
+
+            try {
+                out.write(b,0,len);
+                out.flush();
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+
+            channel.sendBatchCount.incrementAndGet();
+            channel.sendByteCount.addAndGet(len);
+            channel.sendQueueTime.addAndGet(waited);
+
+            synchronized (this) {
+                if (b.length<=MAX_BATCH_SIZE)
+                    spare = b;  // don't hold on to an unusually large buffer
+            }
+        }
+    }
+
+    private void fail(IOException e) {
+        synchronized (this) {
+            failure = e;
+            size = 0;
+            writing = false;
+            writerThread = null;
+            notifyAll();
+        }
+        if (channel.isInClosed()) {
+            // the channel is already gone, so this is expected
+            LOGGER.log(Level.FINE, "Failed to write to "+channel, e);
+            return;
+        }
+        LOGGER.log(Level.WARNING, "Failed to write to "+channel, e);
+        channel.terminate(e);
+    }
+
+    private static final int INITIAL_SIZE = 8192;
+
+    /**
+     * Once this many bytes are queued, senders wait for the writer.
+     */
+    public static int MAX_BATCH_SIZE = Integer.getInteger(BatchingOutputStream.class.getName()+".maxBatchSize",256*1024);
+
+    /**
+     * Milliseconds the writer may wait for more commands before it writes a batch.
+     * 0 to write as soon as the writer gets to it, which is the default.
+     */
+    public static int MAX_BATCH_DELAY = Integer.getInteger(BatchingOutputStream.class.getName()+".maxBatchDelay",0);
+
+    private static final ExecutorService WRITERS = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r,"Channel writer");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private static final Logger LOGGER = Logger.getLogger(BatchingOutputStream.class.getName());
+}
@@ -33,7 +33,7 @@ public final class Capability implements Serializable {
     }
 
     Capability() {
-        this(MASK_MULTI_CLASSLOADER|MASK_PIPE_THROTTLING);
+        this(MASK_MULTI_CLASSLOADER|MASK_PIPE_THROTTLING|MASK_JAR_CACHE|MASK_BATCHED_UNEXPORT|(DISABLE_FRAMING ? 0 : MASK_FRAMING));
     }
 
     /**
@@ -55,6 +55,33 @@ public final class Capability implements Serializable {
         return (mask& MASK_PIPE_THROTTLING)!=0;
     }
 
+    /**
+     * Does the implementation answer class and jar requests with jar checksums,
+     * so that the other side can use its {@link JarCache}?
+     *
+     * @see RemoteClassLoader.IClassLoader#fetch3(String)
+     */
+    public boolean supportsJarCache() {
+        return (mask&MASK_JAR_CACHE)!=0;
+    }
+
+    /**
+     * Does the implementation read and write the command stream in frames, so that
+     * they can be compressed?
+     *
+     * @see FramedOutputStream
+     */
+    public boolean supportsFraming() {
+        return (mask&MASK_FRAMING)!=0;
+    }
+
+    /**
+     * Does the implementation accept {@link UnexportCommand} with multiple object IDs?
+     */
+    public boolean supportsBatchedUnexport() {
+        return (mask&MASK_BATCHED_UNEXPORT)!=0;
+    }
+
     /**
      * Writes out the capacity preamble.
      */
@@ -103,6 +130,27 @@ public final class Capability implements Serializable {
      */
     private static final long MASK_PIPE_THROTTLING = 4L;
 
+    /**
+     * Bit that indicates that {@link RemoteClassLoader.IClassLoader#fetch3(String)} and
+     * {@link RemoteClassLoader.IClassLoader#getJarChecksum(java.net.URL)} are available.
+     */
+    private static final long MASK_JAR_CACHE = 8L;
+
+    /**
+     * Bit that indicates that the stream after the preamble consists of {@link FramedOutputStream} frames.
+     */
+    private static final long MASK_FRAMING = 16L;
+
+    /**
+     * Bit that indicates that {@link UnexportCommand} may carry multiple object IDs.
+     */
+    private static final long MASK_BATCHED_UNEXPORT = 32L;
+
+    /**
+     * Set to true to keep talking in the plain stream, for example to look at the traffic.
+     */
+    public static boolean DISABLE_FRAMING = Boolean.getBoolean(Capability.class.getName()+".disableFraming");
+
     static final byte[] PREAMBLE;
 
     public static final Capability NONE = new Capability(0);
@@ -39,8 +39,10 @@ import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
 import java.util.Vector;
 import java.util.WeakHashMap;
@@ -52,8 +54,12 @@ import java.net.URL;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Represents a communication channel to the remote peer.
@@ -109,6 +115,23 @@ import java.util.concurrent.ThreadFactory;
 public class Channel implements VirtualChannel, IChannel {
     private final ObjectInputStream ois;
     private final ObjectOutputStream oos;
+    /**
+     * True if {@link #oos} needs to be reset before the next command. See {@link #send(Command)}.
+     */
+    private boolean resetPending;
+    /**
+     * Underlying stream of {@link #oos}, which queues the commands up for the writer.
+     */
+    private final BatchingOutputStream out;
+    /**
+     * Non-null if the incoming data is in frames. The frame being read may hold more commands.
+     */
+    private FramedInputStream framedIn;
+    /**
+     * True if the frames read by {@link #framedIn} are on the wire as they are,
+     * as opposed to being encoded for {@link Mode#TEXT}.
+     */
+    private boolean framedWire;
     /**
      * Human readable description of where this channel is connected to. Used during diagnostic output
      * and error reports.
@@ -173,6 +196,14 @@ public class Channel implements VirtualChannel, IChannel {
     private final Vector<Listener> listeners = new Vector<Listener>();
     private int gcCounter;
 
+    /**
+     * Object IDs of the remote objects that are no longer referenced here, waiting to be sent
+     * in one {@link UnexportCommand}. Guarded by itself.
+     *
+     * @see #unexportRemotely(int)
+     */
+    private final List<Integer> pendingUnexports = new ArrayList<Integer>();
+
     /**
      * Total number of nanoseconds spent for remote class loading.
      * <p>
@@ -195,6 +226,13 @@ public class Channel implements VirtualChannel, IChannel {
      */
     public final AtomicInteger classLoadingCount = new AtomicInteger();
 
+    /**
+     * Total count of classes that were loaded from the jars prefetched or retrieved
+     * from {@link JarCache}, without asking the remote peer. These are not included in
+     * {@link #classLoadingCount}.
+     */
+    public final AtomicInteger classLoadingPrefetchCacheCount = new AtomicInteger();
+
     /**
      * Total number of nanoseconds spent for remote resource loading.
      * @see #classLoadingTime
@@ -207,6 +245,40 @@ public class Channel implements VirtualChannel, IChannel {
      */
     public final AtomicInteger resourceLoadingCount = new AtomicInteger();
 
+    /**
+     * Total count of commands sent.
+     */
+    public final AtomicLong commandSendCount = new AtomicLong();
+
+    /**
+     * Total count of writes to the underlying stream. Commands that are sent while
+     * the previous ones are being written go out together, so this is usually smaller
+     * than {@link #commandSendCount}.
+     */
+    public final AtomicLong sendBatchCount = new AtomicLong();
+
+    /**
+     * Total number of bytes written to the underlying stream.
+     */
+    public final AtomicLong sendByteCount = new AtomicLong();
+
+    /**
+     * Total number of nanoseconds the batches waited to be written, counted from
+     * the first command in each batch.
+     */
+    public final AtomicLong sendQueueTime = new AtomicLong();
+
+    /**
+     * Total number of nanoseconds senders waited because the queue was full.
+     */
+    public final AtomicLong sendBlockedTime = new AtomicLong();
+
+    /**
+     * Largest number of bytes that were waiting to be written.
+     * @see #getSendQueueSize()
+     */
+    public final AtomicInteger maxSendQueueSize = new AtomicInteger();
+
     /**
      * Property bag that contains application-specific stuff.
      */
@@ -339,6 +411,16 @@ public class Channel implements VirtualChannel, IChannel {
     }
 
     /*package*/ Channel(String name, ExecutorService exec, Mode mode, InputStream is, OutputStream os, OutputStream header, boolean restricted, Capability capability) throws IOException {
+        this(name,exec,mode,is,os,header,restricted,capability,true);
+    }
+
+    /**
+     * @param readerThread
+     *      If false, the caller takes the responsibility of calling {@link #readCommand()}
+     *      whenever there's data to read, instead of having {@link ReaderThread} block on the input.
+     *      See {@link NioChannelHub}.
+     */
+    /*package*/ Channel(String name, ExecutorService exec, Mode mode, InputStream is, OutputStream os, OutputStream header, boolean restricted, Capability capability, boolean readerThread) throws IOException {
         this.name = name;
         this.executor = exec;
         this.isRestricted = restricted;
@@ -356,11 +438,9 @@ public class Channel implements VirtualChannel, IChannel {
 
         capability.writePreamble(os);
 
-        ObjectOutputStream oos = null;
         if(mode!= Mode.NEGOTIATE) {
             os.write(mode.preamble);
-            oos = new ObjectOutputStream(mode.wrap(os));
-            oos.flush();    // make sure that stream preamble is sent to the other end. avoids dead-lock
+            os.flush();    // make sure that stream preamble is sent to the other end. avoids dead-lock
         }
 
         {// read the input until we hit preamble
@@ -386,17 +466,28 @@ public class Channel implements VirtualChannel, IChannel {
                                     // now we know what the other side wants, so send the consistent preamble
                                     mode = modes[i];
                                     os.write(mode.preamble);
-                                    oos = new ObjectOutputStream(mode.wrap(os));
-                                    oos.flush();
                                 } else {
                                     if(modes[i]!=mode)
                                         throw new IOException("Protocol negotiation failure");
                                 }
-                                this.oos = oos;
+
+                                // the capability preamble always comes before the mode preamble,
+                                // so by now both sides know if the other side can do frames.
+                                OutputStream o = mode.wrap(os);
+                                InputStream in = mode.wrap(is);
+                                if(capability.supportsFraming() && cap.supportsFraming()) {
+                                    o = new FramedOutputStream(o);
+                                    in = this.framedIn = new FramedInputStream(in);
+                                    this.framedWire = mode==Mode.BINARY;
+                                }
+                                this.out = new BatchingOutputStream(this,o);
+                                this.oos = new ObjectOutputStream(out);
+                                oos.flush();    // make sure that the stream header is sent to the other end. avoids dead-lock
                                 this.remoteCapability = cap;
                                 this.pipeWriter = createPipeWriter();
-                                this.ois = new ObjectInputStream(mode.wrap(is));
-                                new ReaderThread(name).start();
+                                this.ois = new ObjectInputStream(in);
+                                if (readerThread)
+                                    new ReaderThread(name).start();
 
                                 return;
                             case 2:
@@ -446,7 +537,8 @@ public class Channel implements VirtualChannel, IChannel {
      */
     private ExecutorService createPipeWriter() {
         if (remoteCapability.supportsPipeThrottling())
-            return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            // single thread that goes away while idle, so that idle channels don't hold on to threads
+            return new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
                 public Thread newThread(Runnable r) {
                     return new Thread(r,"Pipe writer thread: "+name);
                 }
@@ -460,6 +552,10 @@ public class Channel implements VirtualChannel, IChannel {
      * <p>
      * This is the lowest layer of abstraction in {@link Channel}.
      * {@link Command}s are executed on a remote system in the order they are sent.
+     *
+     * <p>
+     * The command is serialized right away, but it's written to the stream later,
+     * possibly together with other commands. See {@link BatchingOutputStream}.
      */
     /*package*/ synchronized void send(Command cmd) throws IOException {
         if(outClosed!=null)
@@ -468,17 +564,22 @@ public class Channel implements VirtualChannel, IChannel {
             logger.fine("Send "+cmd);
         Channel old = Channel.setCurrent(this);
         try {
+            // have OOS and remote OIS forget all the objects we sent in the previous command.
+            // Otherwise it'll keep objects in memory unnecessarily.
+            // This is done before the command rather than after the previous one, so that the reset
+            // travels with this command and nothing is left in the stream after a command
+            // (NioChannelHub relies on that to tell when a whole command has arrived.)
+            // However, there's no reset after the close, because that's supposed to be the last command
+            // ever sent. See the comment from jglick on HUDSON-3077 about what happens if we do oos.reset().
+            if(resetPending)
+                oos.reset();
             oos.writeObject(cmd);
-            oos.flush();        // make sure the command reaches the other end.
+            oos.flush();        // make sure the command gets written to the other end.
         } finally {
             Channel.setCurrent(old);
         }
-        // unless this is the last command, have OOS and remote OIS forget all the objects we sent
-        // in this command. Otherwise it'll keep objects in memory unnecessarily.
-        // However, this may fail if the command was the close, because that's supposed to be the last command
-        // ever sent. See the comment from jglick on HUDSON-3077 about what happens if we do oos.reset(). 
-        if(!(cmd instanceof CloseCommand))
-            oos.reset();
+        commandSendCount.incrementAndGet();
+        resetPending = !(cmd instanceof CloseCommand);
     }
 
     /**
@@ -534,6 +635,56 @@ public class Channel implements VirtualChannel, IChannel {
         exportedObjects.unexportByOid(id);
     }
 
+    /**
+     * Tells the remote side that the object of the given ID is no longer referenced from here.
+     *
+     * <p>
+     * When a build finishes, lots of proxies tend to get garbage collected at once, so
+     * if the other side understands it, the IDs are collected for a short while and sent in one command.
+     */
+    /*package*/ void unexportRemotely(int oid) throws IOException {
+        if (!remoteCapability.supportsBatchedUnexport()) {
+            send(new UnexportCommand(oid));
+            return;
+        }
+
+        boolean full;
+        synchronized (pendingUnexports) {
+            pendingUnexports.add(oid);
+            full = pendingUnexports.size()>=UNEXPORT_BATCH_SIZE;
+            if (pendingUnexports.size()==1 && !full)
+                UNEXPORT_TIMER.schedule(new Runnable() {
+                    public void run() {
+                        try {
+                            flushUnexports();
+                        } catch (IOException e) {
+                            logger.log(Level.FINE, "Failed to unexport objects on "+name, e);
+                        } catch (Throwable t) {
+                            logger.log(Level.WARNING, "Failed to unexport objects on "+name, t);
+                        }
+                    }
+                }, UNEXPORT_BATCH_DELAY, TimeUnit.MILLISECONDS);
+        }
+        if (full)
+            flushUnexports();
+    }
+
+    /**
+     * Sends the object IDs collected by {@link #unexportRemotely(int)}.
+     */
+    private void flushUnexports() throws IOException {
+        int[] oids;
+        synchronized (pendingUnexports) {
+            if (pendingUnexports.isEmpty())     return;
+            oids = new int[pendingUnexports.size()];
+            for (int i=0; i<oids.length; i++)
+                oids[i] = pendingUnexports.get(i);
+            pendingUnexports.clear();
+        }
+        if (outClosed==null)
+            send(new UnexportCommand(oids));
+    }
+
     /**
      * Preloads jar files on the remote side.
      *
@@ -611,12 +762,31 @@ public class Channel implements VirtualChannel, IChannel {
                     return w;
             }
 
-            Real w = new Real(k, PIPE_WINDOW_SIZE);
+            // a new pipe only gets what's left of the channel's budget, but at least
+            // the smallest window, so that it can still make progress when the budget is used up.
+            long left = PIPE_WINDOW_CHANNEL_MAX-getPipeWindowTotal();
+            int initial = (int)Math.max(PIPE_WINDOW_MIN,Math.min(PIPE_WINDOW_SIZE,left));
+            Real w = new Real(this, k, initial);
             pipeWindows.put(k,new WeakReference<PipeWindow>(w));
             return w;
         }
     }
 
+    /**
+     * Total size of the windows of the pipes that are still open.
+     */
+    /*package*/ long getPipeWindowTotal() {
+        long total = 0;
+        synchronized (pipeWindows) {
+            for (WeakReference<PipeWindow> v : pipeWindows.values()) {
+                PipeWindow w = v.get();
+                if (w instanceof Real)
+                    total += ((Real)w).getCommittedSize();
+            }
+        }
+        return total;
+    }
+
 
     /**
      * {@inheritDoc}
@@ -728,6 +898,22 @@ public class Channel implements VirtualChannel, IChannel {
             wait();
     }
 
+    /**
+     * Returns true if the input has data buffered above the underlying stream, so that
+     * the next command can be read without reading from the underlying stream.
+     */
+    /*package*/ boolean hasBufferedInput() {
+        return framedIn!=null && framedIn.available()>0;
+    }
+
+    /**
+     * Returns true if the underlying input stream carries {@link FramedOutputStream} frames as they are,
+     * so that one can tell where a frame ends without decoding anything.
+     */
+    /*package*/ boolean isFramedWire() {
+        return framedWire;
+    }
+
     /**
      * If the receiving end of the channel is closed (that is, if we are guaranteed to receive nothing further),
      * this method returns true.
@@ -791,8 +977,22 @@ public class Channel implements VirtualChannel, IChannel {
     public void resetPerformanceCounters() {
         classLoadingCount.set(0);
         classLoadingTime.set(0);
+        classLoadingPrefetchCacheCount.set(0);
         resourceLoadingCount.set(0);
         resourceLoadingTime.set(0);
+        commandSendCount.set(0);
+        sendBatchCount.set(0);
+        sendByteCount.set(0);
+        sendQueueTime.set(0);
+        sendBlockedTime.set(0);
+        maxSendQueueSize.set(0);
+    }
+
+    /**
+     * Number of bytes of commands that are sent but not yet written to the underlying stream.
+     */
+    public int getSendQueueSize() {
+        return out.getQueueSize();
     }
 
     /**
@@ -801,10 +1001,11 @@ public class Channel implements VirtualChannel, IChannel {
     public synchronized void close() throws IOException {
         if(outClosed!=null)  return;  // already closed
 
+        flushUnexports();
         send(new CloseCommand());
         outClosed = new IOException();   // last command sent. no further command allowed. lock guarantees that no command will slip inbetween
         try {
-            oos.close();
+            oos.close();    // this waits for the queued commands to be written
         } catch (IOException e) {
             // there's a race condition here.
             // the remote peer might have already responded to the close command
@@ -945,6 +1146,24 @@ public class Channel implements VirtualChannel, IChannel {
      */
     public void dumpExportTable(PrintWriter w) throws IOException {
         exportedObjects.dump(w);
+        dumpPipeWindows(w);
+    }
+
+    /**
+     * Dumps the current window size and throughput of the pipes that send data from this side.
+     */
+    public void dumpPipeWindows(PrintWriter w) {
+        List<Real> windows = new ArrayList<Real>();
+        synchronized (pipeWindows) {
+            for (WeakReference<PipeWindow> v : pipeWindows.values()) {
+                PipeWindow pw = v.get();
+                if (pw instanceof Real)
+                    windows.add((Real)pw);
+            }
+        }
+        w.printf("%nPipe windows: %d, %dKB in total%n",windows.size(),getPipeWindowTotal()/1024);
+        for (Real pw : windows)
+            pw.dump(w);
     }
 
     public ExportList startExportRecording() {
@@ -965,40 +1184,67 @@ public class Channel implements VirtualChannel, IChannel {
 
         @Override
         public void run() {
-            Command cmd = null;
             try {
-                while(inClosed==null) {
-                    try {
-                        Channel old = Channel.setCurrent(Channel.this);
-                        try {
-                            cmd = (Command)ois.readObject();
-                            lastHeard = System.currentTimeMillis();
-                        } finally {
-                            Channel.setCurrent(old);
-                        }
-                    } catch (EOFException e) {
-                        IOException ioe = new IOException("Unexpected termination of the channel");
-                        ioe.initCause(e);
-                        throw ioe;
-                    } catch (ClassNotFoundException e) {
-                        logger.log(Level.SEVERE, "Unable to read a command (channel " + name + ")",e);
-                    }
-                    if(logger.isLoggable(Level.FINE))
-                        logger.fine("Received "+cmd);
-                    try {
-                        cmd.execute(Channel.this);
-                    } catch (Throwable t) {
-                        logger.log(Level.SEVERE, "Failed to execute command "+cmd+ " (channel " + name + ")",t);
-                        logger.log(Level.SEVERE, "This command is created here",cmd.createdAt);
-                    }
-                }
-                ois.close();
+                while(inClosed==null)
+                    readCommand();
+                closeReader();
             } catch (IOException e) {
-                logger.log(Level.SEVERE, "I/O error in channel "+name,e);
-                terminate(e);
+                abortReader(e);
+            }
+        }
+    }
+
+    /**
+     * Reads the next command and executes it, blocking until the command arrives.
+     */
+    /*package*/ void readCommand() throws IOException {
+        Command cmd = null;
+        try {
+            Channel old = Channel.setCurrent(this);
+            try {
+                cmd = (Command)ois.readObject();
+                lastHeard = System.currentTimeMillis();
             } finally {
-                pipeWriter.shutdown();
+                Channel.setCurrent(old);
             }
+        } catch (EOFException e) {
+            IOException ioe = new IOException("Unexpected termination of the channel");
+            ioe.initCause(e);
+            throw ioe;
+        } catch (ClassNotFoundException e) {
+            logger.log(Level.SEVERE, "Unable to read a command (channel " + name + ")",e);
+            return;
+        }
+        if(logger.isLoggable(Level.FINE))
+            logger.fine("Received "+cmd);
+        try {
+            cmd.execute(this);
+        } catch (Throwable t) {
+            logger.log(Level.SEVERE, "Failed to execute command "+cmd+ " (channel " + name + ")",t);
+            logger.log(Level.SEVERE, "This command is created here",cmd.createdAt);
+        }
+    }
+
+    /**
+     * Called by the reader once it has read the last command.
+     */
+    /*package*/ void closeReader() throws IOException {
+        try {
+            ois.close();
+        } finally {
+            pipeWriter.shutdown();
+        }
+    }
+
+    /**
+     * Called by the reader when it fails to read from the stream.
+     */
+    /*package*/ void abortReader(IOException e) {
+        try {
+            logger.log(Level.SEVERE, "I/O error in channel "+name,e);
+            terminate(e);
+        } finally {
+            pipeWriter.shutdown();
         }
     }
 
@@ -1027,8 +1273,46 @@ public class Channel implements VirtualChannel, IChannel {
 
     private static final Logger logger = Logger.getLogger(Channel.class.getName());
 
+    /**
+     * Maximum number of object IDs sent in one {@link UnexportCommand}.
+     */
+    public static int UNEXPORT_BATCH_SIZE = Integer.getInteger(Channel.class.getName()+".unexportBatchSize",256);
+
+    /**
+     * Milliseconds to collect object IDs before they are sent in one {@link UnexportCommand}.
+     */
+    public static int UNEXPORT_BATCH_DELAY = Integer.getInteger(Channel.class.getName()+".unexportBatchDelay",100);
+
+    /**
+     * Unlike {@link java.util.Timer}, this keeps running tasks after one of them fails.
+     */
+    private static final ScheduledExecutorService UNEXPORT_TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r,"Channel unexport");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
     public static final int PIPE_WINDOW_SIZE = Integer.getInteger(Channel.class+".pipeWindowSize",128*1024);
 
+    /**
+     * Smallest window a pipe shrinks to when it's not using its window.
+     */
+    public static final int PIPE_WINDOW_MIN = Integer.getInteger(Channel.class.getName()+".pipeWindowMin",Math.min(16*1024,PIPE_WINDOW_SIZE));
+
+    /**
+     * Largest window a pipe grows to on a high latency link.
+     * Set to {@link #PIPE_WINDOW_SIZE} to disable the growth.
+     */
+    public static final int PIPE_WINDOW_MAX = Integer.getInteger(Channel.class.getName()+".pipeWindowMax",Math.max(8*1024*1024,PIPE_WINDOW_SIZE));
+
+    /**
+     * Limit to the total window size of the pipes of a channel, which is how much memory
+     * the data in flight can take up on the receiving side.
+     */
+    public static final long PIPE_WINDOW_CHANNEL_MAX = Long.getLong(Channel.class.getName()+".pipeWindowChannelMax",64*1024*1024);
+
 //    static {
 //        ConsoleHandler h = new ConsoleHandler();
 //        h.setFormatter(new Formatter(){
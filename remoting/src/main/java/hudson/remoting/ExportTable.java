@@ -25,24 +25,43 @@ package hudson.remoting;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Manages unique ID for exported objects, and allows look-up from IDs.
  *
+ * <p>
+ * The table is split into {@link #STRIPES} stripes, each with its own lock, so that
+ * threads exporting and looking up different objects don't contend with each other.
+ * An entry is found by its ID in the stripe chosen by the ID, and by its object in
+ * the stripe chosen by the object's hash code. Reference counts are guarded by the
+ * lock of the latter.
+ *
  * @author Kohsuke Kawaguchi
  */
 final class ExportTable<T> {
-    private final Map<Integer,Entry> table = new HashMap<Integer,Entry>();
-    private final Map<T,Entry> reverse = new HashMap<T,Entry>();
+    @SuppressWarnings("unchecked") // an array of an inner class of a generic class can only be created raw
+    private final Stripe[] stripes = (Stripe[])new ExportTable.Stripe[STRIPES];
     /**
      * {@link ExportList}s which are actively recording the current
      * export operation.
      */
     private final ThreadLocal<ExportList> lists = new ThreadLocal<ExportList>();
 
+    /**
+     * Unique ID generator.
+     */
+    private final AtomicInteger iota = new AtomicInteger(1);
+
+    ExportTable() {
+        for (int i=0; i<STRIPES; i++)
+            stripes[i] = new Stripe();
+    }
+
     /**
      * Information about one exporetd object.
      */
@@ -55,36 +74,57 @@ final class ExportTable<T> {
         final Exception allocationTrace;
         /**
          * Current reference count.
-         * Access to {@link ExportTable} is guarded by synchronized block,
-         * so accessing this field requires no further synchronization.
+         * Guarded by the lock of the stripe of {@link #object}.
          */
         private int referenceCount;
 
         Entry(T object) {
-            this.id = iota++;
+            this.id = iota.getAndIncrement();
             this.object = object;
             this.allocationTrace = new Exception();
             // force the computation of the stack trace in a Java friendly data structure,
             // so that the call stack can be seen from the heap dump after the fact. 
             allocationTrace.getStackTrace();
-            addRef();
-
-            table.put(id,this);
-            reverse.put(object,this);
-        }
-
-        void addRef() {
-            referenceCount++;
+            referenceCount = 1;
         }
 
         void release() {
-            if(--referenceCount==0) {
-                table.remove(id);
-                reverse.remove(object);
+            Stripe s = stripeOf(object);
+            synchronized (s) {
+                if(referenceCount>0 && --referenceCount==0) {
+                    s.reverse.remove(object);
+                    Stripe t = stripeOf(id);
+                    synchronized (t) {
+                        t.table.remove(id);
+                    }
+                }
             }
         }
     }
 
+    /**
+     * A portion of the table.
+     *
+     * <p>
+     * To avoid deadlocks, the lock of the stripe of an ID is only ever acquired
+     * while holding the lock of the stripe of an object, not the other way around.
+     */
+    private final class Stripe {
+        final IntMap<Entry> table = new IntMap<Entry>();
+        final Map<T,Entry> reverse = new HashMap<T,Entry>();
+    }
+
+    private Stripe stripeOf(int id) {
+        return stripes[id&(STRIPES-1)];
+    }
+
+    private Stripe stripeOf(Object o) {
+        int h = o.hashCode();
+        h ^= (h>>>20)^(h>>>12);
+        h ^= (h>>>7)^(h>>>4);
+        return stripes[h&(STRIPES-1)];
+    }
+
     /**
      * Captures the list of export, so that they can be unexported later.
      *
@@ -98,21 +138,14 @@ final class ExportTable<T> {
             lists.set(this);
         }
         void release() {
-            synchronized(ExportTable.this) {
-                for (Entry e : this)
-                    e.release();
-            }
+            for (Entry e : this)
+                e.release();
         }
         void stopRecording() {
             lists.set(old);
         }
     }
 
-    /**
-     * Unique ID generator.
-     */
-    private int iota = 1;
-
     /**
      * Starts the recording of the export operations
      * and returns the list that captures the result.
@@ -140,7 +173,7 @@ final class ExportTable<T> {
      *      The assigned 'object ID'. If the object is already exported,
      *      it will return the ID already assigned to it.
      */
-    public synchronized int export(T t) {
+    public int export(T t) {
         return export(t,true);
     }
 
@@ -149,14 +182,24 @@ final class ExportTable<T> {
      *      If false, listener will not be notified. This is used to
      *      create an export that won't get unexported when the call returns.
      */
-    public synchronized int export(T t, boolean notifyListener) {
+    public int export(T t, boolean notifyListener) {
         if(t==null)    return 0;   // bootstrap classloader
 
-        Entry e = reverse.get(t);
-        if(e==null)
-            e = new Entry(t);
-        else
-            e.addRef();
+        Entry e;
+        Stripe s = stripeOf(t);
+        synchronized (s) {
+            e = s.reverse.get(t);
+            if(e==null) {
+                e = new Entry(t);
+                s.reverse.put(t,e);
+                Stripe i = stripeOf(e.id);
+                synchronized (i) {
+                    i.table.put(e.id,e);
+                }
+            } else {
+                e.referenceCount++;
+            }
+        }
 
         if(notifyListener) {
             ExportList l = lists.get();
@@ -166,8 +209,12 @@ final class ExportTable<T> {
         return e.id;
     }
 
-    public synchronized T get(int id) {
-        Entry e = table.get(id);
+    public T get(int id) {
+        Stripe s = stripeOf(id);
+        Entry e;
+        synchronized (s) {
+            e = s.table.get(id);
+        }
         if(e!=null) return e.object;
         else        return null;
     }
@@ -175,9 +222,13 @@ final class ExportTable<T> {
     /**
      * Removes the exported object from the table.
      */
-    public synchronized void unexport(T t) {
+    public void unexport(T t) {
         if(t==null)     return;
-        Entry e = reverse.get(t);
+        Entry e;
+        Stripe s = stripeOf(t);
+        synchronized (s) {
+            e = s.reverse.get(t);
+        }
         if(e==null)    return; // presumably already unexported
         e.release();
     }
@@ -185,9 +236,20 @@ final class ExportTable<T> {
     /**
      * Removes the exported object for the specified oid from the table.
      */
-    public synchronized void unexportByOid(Integer oid) {
+    public void unexportByOid(Integer oid) {
         if(oid==null)     return;
-        Entry e = table.get(oid);
+        unexportByOid(oid.intValue());
+    }
+
+    /**
+     * Removes the exported object for the specified oid from the table.
+     */
+    public void unexportByOid(int oid) {
+        Stripe s = stripeOf(oid);
+        Entry e;
+        synchronized (s) {
+            e = s.table.get(oid);
+        }
         if(e==null)    return; // presumably already unexported
         e.release();
     }
@@ -195,10 +257,106 @@ final class ExportTable<T> {
     /**
      * Dumps the contents of the table to a file.
      */
-    public synchronized void dump(PrintWriter w) throws IOException {
-        for (Entry e : table.values()) {
+    public void dump(PrintWriter w) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                entries.addAll(s.reverse.values());
+            }
+        }
+        for (Entry e : entries) {
             w.printf("#%d (ref.%d) : %s\n", e.id, e.referenceCount, e.object);
             e.allocationTrace.printStackTrace(w);
         }
     }
+
+    /**
+     * Hash map from int to objects, with open addressing so that the keys aren't boxed.
+     * Not thread safe.
+     */
+    static final class IntMap<V> {
+        private int[] keys = new int[16];
+        private Object[] values = new Object[16];
+        private int size;
+
+        @SuppressWarnings("unchecked") // put only ever stores a V
+        V get(int key) {
+            int mask = keys.length-1;
+            for (int i=hash(key)&mask; values[i]!=null; i=(i+1)&mask)
+                if (keys[i]==key)
+                    return (V)values[i];
+            return null;
+        }
+
+        void put(int key, V value) {
+            insert(key,value);
+        }
+
+        private void insert(int key, Object value) {
+            if ((size+1)*4>keys.length*3)
+                rehash(keys.length*2);
+            int mask = keys.length-1;
+            int i = hash(key)&mask;
+            for (; values[i]!=null; i=(i+1)&mask) {
+                if (keys[i]==key) {
+                    values[i] = value;
+                    return;
+                }
+            }
+            keys[i] = key;
+            values[i] = value;
+            size++;
+        }
+
+        void remove(int key) {
+            int mask = keys.length-1;
+            int i = hash(key)&mask;
+            while (true) {
+                if (values[i]==null)    return;
+                if (keys[i]==key)       break;
+                i = (i+1)&mask;
+            }
+            // shift the following entries back, so that the probing sequences stay intact
+            int hole = i;
+            for (int j=(i+1)&mask; values[j]!=null; j=(j+1)&mask) {
+                int home = hash(keys[j])&mask;
+                // can the entry at j move to the hole? it can unless its home is cyclically in (hole,j]
+                if (hole<=j ? (home<=hole || home>j) : (home<=hole && home>j)) {
+                    keys[hole] = keys[j];
+                    values[hole] = values[j];
+                    hole = j;
+                }
+            }
+            values[hole] = null;
+            size--;
+            if (keys.length>16 && size*8<keys.length)
+                rehash(keys.length/2);
+        }
+
+        int size() {
+            return size;
+        }
+
+        private void rehash(int capacity) {
+            int[] ok = keys;
+            Object[] ov = values;
+            keys = new int[capacity];
+            values = new Object[capacity];
+            size = 0;
+            for (int i=0; i<ok.length; i++)
+                if (ov[i]!=null)
+                    insert(ok[i],ov[i]);
+        }
+
+        private static int hash(int key) {
+            // IDs are sequential, so spread them out
+            int h = key*0x9E3779B9;
+            return h^(h>>>16);
+        }
+    }
+
+    /**
+     * Number of stripes. Must be a power of two.
+     */
+    private static final int STRIPES = 16;
 }
@@ -0,0 +1,152 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.remoting;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static hudson.remoting.FramedOutputStream.COMPRESSED;
+
+/**
+ * Reads the frames written by {@link FramedOutputStream}.
+ *
+ * <p>
+ * The next frame is read only when the current one is used up, so {@link #available()}
+ * tells how much of the current frame is left without blocking.
+ *
+ * <p>
+ * Frame sizes come from the other side, so frames larger than {@link #MAX_FRAME_SIZE}
+ * are rejected as corrupt instead of being allocated, which terminates the channel.
+ *
+ * @author Kohsuke Kawaguchi
+ * @since 1.398
+ */
+final class FramedInputStream extends InputStream {
+    private final DataInputStream in;
+    private final Inflater inflater = new Inflater();
+    private byte[] buf = new byte[0];
+    private byte[] cbuf = new byte[0];
+    private int pos, end;
+
+    FramedInputStream(InputStream in) {
+        this.in = new DataInputStream(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill())    return -1;
+        return buf[pos++]&0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len==0)     return 0;
+        if (!fill())    return -1;
+        len = Math.min(len,end-pos);
+        System.arraycopy(buf,pos,b,off,len);
+        pos += len;
+        return len;
+    }
+
+    @Override
+    public int available() {
+        return end-pos;
+    }
+
+    /**
+     * Reads the next frame if the current one is used up.
+     *
+     * @return false if the stream ended at a frame boundary.
+     */
+    private boolean fill() throws IOException {
+        while (pos==end) {
+            int ch = in.read();
+            if (ch<0)   return false;
+            int header = (ch<<24) | (in.readUnsignedByte()<<16) | (in.readUnsignedShort());
+            int len = header&~COMPRESSED;
+            checkSize(len);
+
+            pos = end = 0;
+            if ((header&COMPRESSED)==0) {
+                buf = ensureCapacity(buf,len);
+                in.readFully(buf,0,len);
+                end = len;
+            } else {
+                int size = in.readInt();
+                checkSize(size);
+                cbuf = ensureCapacity(cbuf,len);
+                in.readFully(cbuf,0,len);
+                buf = ensureCapacity(buf,size);
+                end = inflate(len,size);
+            }
+        }
+        return true;
+    }
+
+    /*package*/ static void checkSize(int size) throws IOException {
+        if (size<0 || size>MAX_FRAME_SIZE)
+            throw new IOException("Corrupt frame size: "+size+" (the limit is "+MAX_FRAME_SIZE+")");
+    }
+
+    private int inflate(int len, int size) throws IOException {
+        inflater.reset();
+        inflater.setInput(cbuf,0,len);
+        try {
+            int n = 0;
+            while (n<size && !inflater.finished()) {
+                int r = inflater.inflate(buf,n,size-n);
+                if (r==0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                n += r;
+            }
+            if (n!=size || !inflater.finished())
+                throw new EOFException("Corrupt frame: expected "+size+" bytes but got "+n);
+            return n;
+        } catch (DataFormatException e) {
+            throw (IOException)new IOException("Corrupt frame").initCause(e);
+        }
+    }
+
+    private static byte[] ensureCapacity(byte[] b, int size) {
+        if (b.length<size)
+            return new byte[size];
+        return b;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+
+    /**
+     * Largest frame payload accepted, compressed or not. The other side writes
+     * at most {@link FramedOutputStream#MAX_PAYLOAD} bytes per frame.
+     */
+    public static int MAX_FRAME_SIZE = Integer.getInteger(FramedInputStream.class.getName()+".maxFrameSize",64*1024*1024);
+}
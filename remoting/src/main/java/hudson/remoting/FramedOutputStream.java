@@ -0,0 +1,152 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.remoting;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Writes each {@code write(byte[],int,int)} call as a length-prefixed frame, compressed
+ * if that makes it meaningfully smaller. Read by {@link FramedInputStream}.
+ *
+ * <p>
+ * A channel uses this underneath {@link BatchingOutputStream} when both sides
+ * {@linkplain Capability#supportsFraming() support it}, so a frame is a batch of commands.
+ *
+ * <p>
+ * Whether to compress is decided frame by frame from the content, since the same channel carries
+ * both data that compresses well (console output, class files, serialized objects) and data that
+ * doesn't (such as the gzipped tar streams of {@code FilePath}). Large frames are tested
+ * with a sample first, so that incompressible data doesn't cost much CPU.
+ *
+ * <p>
+ * A frame starts with a 4-byte length of the payload. If the highest bit is set, the payload
+ * is deflated and is preceded by another 4-byte length of the inflated data.
+ * Writes larger than {@link #MAX_PAYLOAD} are split into several frames.
+ *
+ * @author Kohsuke Kawaguchi
+ * @since 1.398
+ */
+final class FramedOutputStream extends OutputStream {
+    private final DataOutputStream out;
+    private final Deflater deflater;
+    private byte[] cbuf = new byte[0];
+
+    FramedOutputStream(OutputStream out) {
+        this.out = new DataOutputStream(out);
+        this.deflater = new Deflater(COMPRESSION_LEVEL>0 ? COMPRESSION_LEVEL : Deflater.BEST_SPEED);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte)b},0,1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len>MAX_PAYLOAD) {
+            // the reader refuses huge frames, so split them
+            write(b,off,MAX_PAYLOAD);
+            off += MAX_PAYLOAD;
+            len -= MAX_PAYLOAD;
+        }
+        if (len==0)     return;
+
+        if (len>=MIN_COMPRESS_SIZE && COMPRESSION_LEVEL>0 && looksCompressible(b,off,len)) {
+            int clen = deflate(b,off,len,len-len/8);
+            if (clen>0) {
+                out.writeInt(COMPRESSED|clen);
+                out.writeInt(len);
+                out.write(cbuf,0,clen);
+                return;
+            }
+        }
+
+        out.writeInt(len);
+        out.write(b,off,len);
+    }
+
+    /**
+     * Compresses a sample of a large frame to see if the whole thing is worth compressing.
+     */
+    private boolean looksCompressible(byte[] b, int off, int len) {
+        if (len<SAMPLE_SIZE*4)
+            return true;    // just try the whole thing
+        return deflate(b,off+(len-SAMPLE_SIZE)/2,SAMPLE_SIZE,SAMPLE_SIZE-SAMPLE_SIZE/10)>0;
+    }
+
+    /**
+     * Deflates the given range into {@link #cbuf}.
+     *
+     * @return
+     *      the compressed size, or 0 if it's not smaller than the given limit.
+     */
+    private int deflate(byte[] b, int off, int len, int limit) {
+        if (cbuf.length<limit)
+            cbuf = new byte[limit];
+        deflater.reset();
+        deflater.setInput(b,off,len);
+        deflater.finish();
+        int clen = 0;
+        while (!deflater.finished()) {
+            if (clen==limit)
+                return 0;   // not worth it
+            clen += deflater.deflate(cbuf,clen,limit-clen);
+        }
+        return clen;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        deflater.end();
+        out.close();
+    }
+
+    /*package*/ static final int COMPRESSED = 0x80000000;
+
+    /**
+     * Largest payload written in one frame. Must stay well below {@link FramedInputStream#MAX_FRAME_SIZE}
+     * of the other side.
+     */
+    /*package*/ static final int MAX_PAYLOAD = 8*1024*1024;
+
+    /**
+     * Frames smaller than this aren't worth compressing.
+     */
+    private static final int MIN_COMPRESS_SIZE = 512;
+
+    private static final int SAMPLE_SIZE = 4096;
+
+    /**
+     * {@link Deflater} compression level. 0 to disable compression but still send frames.
+     */
+    public static int COMPRESSION_LEVEL = Integer.getInteger(FramedOutputStream.class.getName()+".compressionLevel",Deflater.BEST_SPEED);
+}
@@ -0,0 +1,224 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.remoting;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Content-addressed on-disk cache of jar files that {@link RemoteClassLoader} loads classes from.
+ *
+ * <p>
+ * Jars are identified by the SHA-1 checksum of their contents, so the cache survives
+ * reconnections and master restarts, and is shared by all the channels in this JVM
+ * (and by all the JVMs that use the same directory.) When a class or a jar is requested,
+ * the other side first answers with the checksum of the jar, and the jar itself is only
+ * transferred if it's not in the cache yet.
+ *
+ * <p>
+ * The cache lives in {@code ~/.hudson/cache/jars} by default, which can be changed with
+ * {@code -Dhudson.remoting.JarCache.dir=...}, or turned off with {@code -Dhudson.remoting.JarCache.disabled=true}.
+ *
+ * @author Kohsuke Kawaguchi
+ * @see Capability#supportsJarCache()
+ */
+final class JarCache {
+    private final File rootDir;
+
+    JarCache(File rootDir) {
+        this.rootDir = rootDir;
+    }
+
+    /**
+     * Finds the cached jar of the given checksum.
+     *
+     * @return null if it's not in the cache.
+     */
+    File get(String checksum) {
+        File f = getFile(checksum);
+        return f.exists() ? f : null;
+    }
+
+    /**
+     * Puts the jar image into the cache.
+     *
+     * @return
+     *      the cached jar file, or null if the image doesn't match the checksum.
+     */
+    File put(String checksum, byte[] image) throws IOException {
+        if (!checksum.equals(HexDump.toHex(digest().digest(image))))
+            return null;
+
+        File f = getFile(checksum);
+        if (f.exists())     return f;   // someone else did it
+        f.getParentFile().mkdirs();
+        File tmp = File.createTempFile("jar",".tmp",f.getParentFile());
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(image);
+            } finally {
+                out.close();
+            }
+            // if another JVM beats us to it, the rename fails but the jar is there all the same
+            if (!tmp.renameTo(f) && !f.exists())
+                throw new IOException("Failed to rename "+tmp+" to "+f);
+            return f;
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private File getFile(String checksum) {
+        return new File(rootDir,checksum.substring(0,2)+'/'+checksum.substring(2)+".jar");
+    }
+
+    /**
+     * Gets the cache to be used in this JVM.
+     *
+     * @return null if the cache is disabled or unusable.
+     */
+    static synchronized JarCache getDefault() {
+        if (DISABLED)   return null;
+        if (DEFAULT==null) {
+            String dir = System.getProperty(JarCache.class.getName()+".dir");
+            File f = dir!=null ? new File(dir) : new File(System.getProperty("user.home"),".hudson/cache/jars");
+            f.mkdirs();
+            if (!f.isDirectory() || !f.canWrite()) {
+                LOGGER.warning("Jar cache is disabled since "+f+" isn't writable");
+                DISABLED = true;
+                return null;
+            }
+            DEFAULT = new JarCache(f);
+        }
+        return DEFAULT;
+    }
+
+    /**
+     * Figures out the local jar file that the given resource comes from.
+     *
+     * @return null if the resource isn't in a jar file, or if the jar is not worth caching.
+     */
+    static File jarFileOf(URL resource) {
+        try {
+            if (!resource.getProtocol().equals("jar"))
+                return null;
+            URL jar = ((JarURLConnection)resource.openConnection()).getJarFileURL();
+            return toFile(jar);
+        } catch (IOException e) {
+            return null;
+        } catch (ClassCastException e) {
+            return null;
+        }
+    }
+
+    static File toFile(URL jar) {
+        try {
+            if (!jar.getProtocol().equals("file"))
+                return null;
+            File f = new File(jar.toURI());
+            if (!f.isFile() || f.length()>MAX_JAR_SIZE)
+                return null;
+            return f;
+        } catch (URISyntaxException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Computes the checksum of the given jar, remembering it as long as the file stays the same.
+     */
+    static String checksum(File jar) throws IOException {
+        synchronized (checksums) {
+            Checksum c = checksums.get(jar);
+            if (c!=null && c.isUpToDate(jar))
+                return c.value;
+        }
+
+        Checksum c = new Checksum(jar);
+        synchronized (checksums) {
+            checksums.put(jar,c);
+        }
+        return c.value;
+    }
+
+    private static final class Checksum {
+        final long length, timestamp;
+        final String value;
+
+        Checksum(File jar) throws IOException {
+            length = jar.length();
+            timestamp = jar.lastModified();
+            MessageDigest md = digest();
+            InputStream in = new FileInputStream(jar);
+            try {
+                byte[] buf = new byte[8192];
+                int len;
+                while ((len=in.read(buf))>=0)
+                    md.update(buf,0,len);
+            } finally {
+                in.close();
+            }
+            value = HexDump.toHex(md.digest());
+        }
+
+        boolean isUpToDate(File jar) {
+            return jar.length()==length && jar.lastModified()==timestamp;
+        }
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static final Map<File,Checksum> checksums = new HashMap<File,Checksum>();
+
+    private static JarCache DEFAULT;
+
+    /**
+     * Jars bigger than this are not worth transferring whole just to load some classes from them.
+     */
+    public static long MAX_JAR_SIZE = Long.getLong(JarCache.class.getName()+".maxJarSize",32*1024*1024);
+
+    public static boolean DISABLED = Boolean.getBoolean(JarCache.class.getName()+".disabled");
+
+    private static final Logger LOGGER = Logger.getLogger(JarCache.class.getName());
+}
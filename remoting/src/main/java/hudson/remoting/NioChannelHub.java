@@ -0,0 +1,666 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.remoting;
+
+import hudson.remoting.Channel.Mode;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves many {@link Channel}s over non-blocking sockets with a few selector threads,
+ * instead of a reader thread per channel.
+ *
+ * <p>
+ * The wire protocol is unchanged. A selector thread buffers the bytes that arrive on a socket.
+ * When the channel uses {@linkplain FramedOutputStream frames}, the selector thread follows the frame headers,
+ * and only once a whole frame is in, it hands the channel to a reader task that reads and executes
+ * commands just like {@link Channel.ReaderThread} does. The task ends as soon as no whole frame is left,
+ * so an idle channel doesn't hold on to any thread, and a task blocks only in the rare case that
+ * a command continues in a frame that's still on its way. That's what lets a small, bounded pool
+ * of reader threads serve all the channels.
+ *
+ * <p>
+ * Channels without frames (the other side is too old, or it uses {@link Mode#TEXT}) give no way
+ * to tell whether a whole command is in, so a reader would block on every partially received command.
+ * They get a reader thread of their own instead, just like {@link Channel.ReaderThread},
+ * so that they never tie up the shared reader threads.
+ *
+ * <p>
+ * Writes go straight to the socket from the sending thread, which waits for the selector
+ * to report the socket writable whenever the socket buffer is full.
+ *
+ * @author Kohsuke Kawaguchi
+ * @since 1.398
+ */
+public class NioChannelHub {
+    private final SelectorThread[] selectors;
+    private int next;
+
+    /**
+     * Runs the reader tasks.
+     */
+    private final ExecutorService readers;
+
+    /**
+     * @param nSelectors
+     *      Number of selector threads.
+     * @param nReaders
+     *      Number of threads that read and execute commands.
+     */
+    public NioChannelHub(int nSelectors, int nReaders) throws IOException {
+        readers = Executors.newFixedThreadPool(nReaders, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r,"NIO channel reader");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        selectors = new SelectorThread[nSelectors];
+        for (int i=0; i<nSelectors; i++) {
+            selectors[i] = new SelectorThread(i);
+            selectors[i].start();
+        }
+    }
+
+    /**
+     * @param nSelectors
+     *      Number of selector threads.
+     */
+    public NioChannelHub(int nSelectors) throws IOException {
+        this(nSelectors,READER_THREADS);
+    }
+
+    /**
+     * Uses as many selector threads as half the processors, but at least one.
+     */
+    public NioChannelHub() throws IOException {
+        this(Math.max(1,Runtime.getRuntime().availableProcessors()/2));
+    }
+
+    /**
+     * Creates a channel over the given socket.
+     *
+     * <p>
+     * Just like the {@link Channel} constructor, this method blocks until the channel is established.
+     * The socket is switched to non-blocking mode, so the caller shouldn't use it any more.
+     *
+     * @param header
+     *      See {@link Channel#Channel(String, ExecutorService, Mode, InputStream, OutputStream, OutputStream, boolean)}.
+     * @param restricted
+     *      See {@link Channel#Channel(String, ExecutorService, Mode, InputStream, OutputStream, OutputStream, boolean)}.
+     */
+    public Channel newChannel(String name, ExecutorService exec, SocketChannel socket, OutputStream header, boolean restricted) throws IOException {
+        SelectorThread st;
+        synchronized (this) {
+            st = selectors[next++%selectors.length];
+        }
+
+        Connection c = new Connection(st,socket);
+        socket.configureBlocking(false);
+        st.register(c);
+        Channel ch;
+        try {
+            ch = new Channel(name,exec,Mode.NEGOTIATE,c.in,new BufferedOutputStream(c.out),header,restricted,new Capability(),false);
+        } catch (IOException e) {
+            c.close();
+            throw e;
+        }
+        if (ch.isFramedWire()) {
+            // the handshake read whole frames, so the buffer now starts at a frame boundary
+            c.in.startFrames();
+            c.channel = ch;
+            // process whatever arrived during the handshake
+            c.scheduleRead();
+        } else {
+            c.dedicated = true;
+            c.channel = ch;
+            new Thread(c,"Channel reader thread: "+name).start();
+        }
+        return ch;
+    }
+
+    /**
+     * Stops the selector threads. Channels created by this hub stop working.
+     */
+    public void close() {
+        for (SelectorThread st : selectors)
+            st.shutdown();
+        // the selector threads close the connections, which still needs the readers
+        for (SelectorThread st : selectors) {
+            try {
+                st.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        readers.shutdown();
+    }
+
+    /**
+     * A socket and the channel over it.
+     */
+    private final class Connection implements Runnable {
+        private final SelectorThread owner;
+        private final SocketChannel socket;
+        private SelectionKey key;
+        private final Inbound in = new Inbound(this);
+        private final Outbound out = new Outbound(this);
+        /**
+         * Set once the handshake is over.
+         */
+        private volatile Channel channel;
+        /**
+         * True if the channel has a reader thread of its own, instead of reader tasks.
+         * Set before {@link #channel}.
+         */
+        private boolean dedicated;
+        /**
+         * True while a reader task is scheduled or running.
+         */
+        private boolean reading;
+        /**
+         * True while the selector doesn't read from the socket because too much data is buffered.
+         */
+        private volatile boolean readPaused;
+        /**
+         * True while a writer waits for the socket to become writable.
+         */
+        private volatile boolean writeWanted;
+
+        Connection(SelectorThread owner, SocketChannel socket) {
+            this.owner = owner;
+            this.socket = socket;
+        }
+
+        /**
+         * Interest ops that reflect the current state.
+         */
+        int interestOps() {
+            int ops = 0;
+            if (!readPaused && !in.isEof())   ops |= SelectionKey.OP_READ;
+            if (writeWanted)    ops |= SelectionKey.OP_WRITE;
+            return ops;
+        }
+
+        /**
+         * Makes sure that the reader task is processing the buffered data, if there's enough of it.
+         */
+        void scheduleRead() {
+            Channel ch = channel;
+            if (ch==null)  return; // the handshake is reading on its own
+            if (dedicated)  return; // the reader thread just blocks until the data arrives
+            if (!in.isReady() && !ch.hasBufferedInput())
+                return;
+            synchronized (this) {
+                if (reading)    return;
+                reading = true;
+            }
+            try {
+                readers.execute(this);
+            } catch (RejectedExecutionException e) {
+                // the hub is closed
+                synchronized (this) {
+                    reading = false;
+                }
+            }
+        }
+
+        /**
+         * Reader task. Runs the commands while there are whole frames,
+         * or until the end of the channel on a dedicated reader thread.
+         */
+        public void run() {
+            Channel ch = channel;
+            try {
+                for (int i=0; !ch.isInClosed(); i++) {
+                    if (dedicated) {
+                        ch.readCommand();
+                        continue;
+                    }
+                    synchronized (this) {
+                        if (!in.isReady() && !ch.hasBufferedInput()) {
+                            reading = false;
+                            return;
+                        }
+                    }
+                    if (i==COMMANDS_PER_TASK) {
+                        // give the other channels a turn
+                        try {
+                            readers.execute(this);
+                            return;
+                        } catch (RejectedExecutionException e) {
+                            // the hub is closing, so just carry on
+                        }
+                    }
+                    ch.readCommand();
+                }
+                ch.closeReader();
+            } catch (IOException e) {
+                ch.abortReader(e);
+            }
+            close();
+        }
+
+        /**
+         * Called when the buffered data was consumed.
+         */
+        void onConsumed() {
+            // decided under the buffer lock, so that it can't race with onReadable pausing the read
+            synchronized (in) {
+                if (!readPaused || (in.available()>=LOW_WATERMARK && in.isReady()))
+                    return;
+                readPaused = false;
+            }
+            owner.updateInterest(this);
+        }
+
+        /**
+         * Called by the selector thread when there's data to read.
+         */
+        void onReadable(ByteBuffer buf) throws IOException {
+            buf.clear();
+            int n;
+            try {
+                n = socket.read(buf);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to read from "+socket, e);
+                n = -1;
+            }
+            if (n<0) {
+                in.eof();
+            } else {
+                buf.flip();
+                synchronized (in) {
+                    // keep reading until a whole frame is in, or nobody would ever consume it
+                    if (in.append(buf)>HIGH_WATERMARK && in.isReady())
+                        readPaused = true;
+                }
+            }
+            key.interestOps(interestOps());
+            scheduleRead();
+        }
+
+        /**
+         * Called by the selector thread when the socket can take more data.
+         */
+        void onWritable() {
+            synchronized (out.writable) {
+                writeWanted = false;
+                out.writable.notifyAll();
+            }
+            key.interestOps(interestOps());
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to close "+socket, e);
+            }
+            in.eof();
+            synchronized (out.writable) {
+                out.writable.notifyAll();
+            }
+            // so that the channel finds out
+            scheduleRead();
+        }
+    }
+
+    /**
+     * Data received from the socket, waiting to be read.
+     */
+    private static final class Inbound extends InputStream {
+        private final Connection connection;
+        private byte[] buf = new byte[8192];
+        private int start, end;
+        private boolean eof;
+        /**
+         * True once the frame headers are followed. Until then, any buffered data is ready to be read.
+         */
+        private boolean framed;
+        /**
+         * Offsets in the stream: how much has been read, and where the last whole frame ends.
+         */
+        private long consumed, frameEnd;
+        /**
+         * Header of the frame being received, and how much of it has been received.
+         */
+        private int header, headerBytes;
+        /**
+         * Bytes of the frame being received that are yet to come, once its header is in.
+         */
+        private int left;
+
+        Inbound(Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * @return the number of bytes buffered.
+         */
+        synchronized int append(ByteBuffer data) {
+            int from;
+            int len = data.remaining();
+            if (buf.length-end<len) {
+                // compact, and grow if that's not enough
+                int size = end-start;
+                byte[] b = buf;
+                if (buf.length<size+len)
+                    b = new byte[Math.max(buf.length*2,size+len)];
+                System.arraycopy(buf,start,b,0,size);
+                buf = b;
+                start = 0;
+                end = size;
+            }
+            from = end;
+            data.get(buf,end,len);
+            end += len;
+            notifyAll();
+            if (framed)
+                scan(from);
+            return end-start;
+        }
+
+        /**
+         * Starts following the frame headers. Must be called at a frame boundary.
+         */
+        synchronized void startFrames() {
+            framed = true;
+            frameEnd = consumed;
+            scan(start);
+        }
+
+        /**
+         * Follows the frame headers in the buffered data from the given index on.
+         */
+        private void scan(int i) {
+            while (i<end) {
+                if (headerBytes<4) {
+                    header = (header<<8) | (buf[i++]&0xFF);
+                    if (++headerBytes<4)    continue;
+                    int len = header&~FramedOutputStream.COMPRESSED;
+                    try {
+                        FramedInputStream.checkSize(len);
+                    } catch (IOException e) {
+                        // let the reader run into it, so that the channel fails
+                        LOGGER.log(Level.FINE, "Giving up on frames of "+connection.socket, e);
+                        framed = false;
+                        return;
+                    }
+                    left = (header&FramedOutputStream.COMPRESSED)!=0 ? len+4 : len;
+                } else {
+                    int n = Math.min(left,end-i);
+                    i += n;
+                    left -= n;
+                }
+                if (left==0) {
+                    frameEnd = consumed+(i-start);
+                    header = headerBytes = 0;
+                }
+            }
+        }
+
+        /**
+         * True if there's enough data for a reader task to get going without blocking:
+         * a whole frame, or the end of the stream.
+         */
+        synchronized boolean isReady() {
+            if (eof)    return true;
+            if (framed) return frameEnd>consumed;
+            return end>start;
+        }
+
+        synchronized void eof() {
+            eof = true;
+            notifyAll();
+        }
+
+        synchronized boolean isEof() {
+            return eof;
+        }
+
+        @Override
+        public synchronized int available() {
+            return end-start;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b,0,1)<0 ? -1 : b[0]&0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len==0)     return 0;
+            int n;
+            synchronized (this) {
+                while (start==end) {
+                    if (eof)    return -1;
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw (IOException)new InterruptedIOException().initCause(e);
+                    }
+                }
+                n = Math.min(len,end-start);
+                System.arraycopy(buf,start,b,off,n);
+                start += n;
+                consumed += n;
+                if (start==end)
+                    start = end = 0;
+            }
+            connection.onConsumed();
+            return n;
+        }
+    }
+
+    /**
+     * Writes to the non-blocking socket, waiting for it to become writable as necessary.
+     */
+    private static final class Outbound extends OutputStream {
+        private final Connection connection;
+        /**
+         * Notified when the socket becomes writable.
+         */
+        private final Object writable = new Object();
+
+        Outbound(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte)b},0,1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(b,off,len);
+            while (buf.hasRemaining()) {
+                if (connection.socket.write(buf)==0)
+                    awaitWritable();
+            }
+        }
+
+        private void awaitWritable() throws IOException {
+            synchronized (writable) {
+                connection.writeWanted = true;
+                connection.owner.updateInterest(connection);
+                while (connection.writeWanted) {
+                    if (!connection.socket.isOpen())
+                        throw new ClosedChannelException();
+                    try {
+                        writable.wait(1000);
+                    } catch (InterruptedException e) {
+                        throw (IOException)new InterruptedIOException().initCause(e);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Only closes our half, just like {@link SocketOutputStream}, so that we can still receive
+         * the close command from the other side. The socket is closed when the reading is over.
+         */
+        @Override
+        public void close() throws IOException {
+            if (connection.socket.isOpen())
+                connection.socket.socket().shutdownOutput();
+        }
+    }
+
+    private final class SelectorThread extends Thread {
+        private final Selector selector;
+        /**
+         * Work that needs to be done on this thread, such as registering sockets.
+         */
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(64*1024);
+        private volatile boolean shuttingDown;
+
+        SelectorThread(int n) throws IOException {
+            super("NIO selector #"+n);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        void register(final Connection c) {
+            post(new Runnable() {
+                public void run() {
+                    try {
+                        c.key = c.socket.register(selector,c.interestOps(),c);
+                    } catch (ClosedChannelException e) {
+                        c.close();
+                    }
+                }
+            });
+        }
+
+        void updateInterest(final Connection c) {
+            post(new Runnable() {
+                public void run() {
+                    if (c.key!=null && c.key.isValid())
+                        c.key.interestOps(c.interestOps());
+                }
+            });
+        }
+
+        private void post(Runnable task) {
+            synchronized (tasks) {
+                tasks.add(task);
+            }
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            shuttingDown = true;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!shuttingDown) {
+                    selector.select();
+
+                    Runnable[] pending;
+                    synchronized (tasks) {
+                        pending = tasks.toArray(new Runnable[tasks.size()]);
+                        tasks.clear();
+                    }
+                    for (Runnable t : pending)
+                        t.run();
+
+                    for (Iterator<SelectionKey> itr = selector.selectedKeys().iterator(); itr.hasNext();) {
+                        SelectionKey key = itr.next();
+                        itr.remove();
+                        Connection c = (Connection)key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable())
+                                c.onReadable(buf);
+                            if (key.isValid() && key.isWritable())
+                                c.onWritable();
+                        } catch (IOException e) {
+                            LOGGER.log(Level.WARNING, "Failed to process "+c.socket, e);
+                            c.close();
+                        } catch (CancelledKeyException e) {
+                            c.close();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Selector thread failed", e);
+            } finally {
+                for (SelectionKey key : selector.keys())
+                    ((Connection)key.attachment()).close();
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to close the selector", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Once this much data is buffered for a channel, stop reading from its socket until it's consumed.
+     * A frame that's larger is still received in full, since it's not consumed before that.
+     */
+    private static final int HIGH_WATERMARK = 1024*1024;
+    private static final int LOW_WATERMARK = HIGH_WATERMARK/2;
+
+    /**
+     * Commands a reader task runs for a channel before it lets the others have the thread.
+     */
+    private static final int COMMANDS_PER_TASK = 64;
+
+    /**
+     * Default number of reader threads.
+     */
+    public static int READER_THREADS = Integer.getInteger(NioChannelHub.class.getName()+".readerThreads",
+            Math.max(4,Runtime.getRuntime().availableProcessors()*2));
+
+    private static final Logger LOGGER = Logger.getLogger(NioChannelHub.class.getName());
+}
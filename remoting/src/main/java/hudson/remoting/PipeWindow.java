@@ -24,6 +24,7 @@
 package hudson.remoting;
 
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.util.logging.Logger;
 
 import static java.util.logging.Level.*;
@@ -44,6 +45,13 @@ import static java.util.logging.Level.*;
  * writes data to {@link OutputStream}, it'll send back the "ack" command, which adds to this value, allowing
  * the sender to send more data.
  *
+ * <p>
+ * The window size starts at {@link Channel#PIPE_WINDOW_SIZE} and is then tuned for each pipe from
+ * the measured round trip time and ack rate, between {@link Channel#PIPE_WINDOW_MIN} and
+ * {@link Channel#PIPE_WINDOW_MAX}. The windows of a channel together don't grow beyond
+ * {@link Channel#PIPE_WINDOW_CHANNEL_MAX}, and a new pipe starts smaller if that budget is
+ * mostly taken, but never below {@link Channel#PIPE_WINDOW_MIN}.
+ *
  * @author Kohsuke Kawaguchi
  */
 abstract class PipeWindow {
@@ -58,6 +66,12 @@ abstract class PipeWindow {
 
     abstract void decrease(int delta);
 
+    /**
+     * Called when the stream is closed and no more data will be sent.
+     */
+    void close() {
+    }
+
     /**
      * Fake implementation used when the receiver side doesn't support throttling.
      */
@@ -98,6 +112,11 @@ abstract class PipeWindow {
     }
 
     static class Real extends PipeWindow {
+        private final Channel channel;
+        /**
+         * Current window size, which is tuned as we go.
+         */
+        private volatile int size;
         private int available;
         private long written;
         private long acked;
@@ -107,10 +126,49 @@ abstract class PipeWindow {
          * keeps this object accessible in {@link Channel#pipeWindows}.
          */
         private final Key key;
+        private volatile boolean closed;
 
-        Real(Key key, int initialSize) {
+        // measurement of the current round, which ends when the data sent at its start gets acked.
+        /**
+         * {@link System#nanoTime()} when the current round started, or 0 if there's nothing in flight.
+         */
+        private long roundStart;
+        private long roundEnd;
+        private long roundAcked;
+        /**
+         * True if the sender ran out of window during the current round.
+         */
+        private boolean limited;
+
+        // results of the auto tuning
+        /**
+         * Smoothed round trip time in nanoseconds, including the time the receiver took to write the data.
+         */
+        private long rtt;
+        /**
+         * Bytes per second acked in the last round.
+         */
+        private long throughput;
+        /**
+         * Throughput before the last growth, to see if growing helped.
+         */
+        private long throughputBeforeGrowth;
+        /**
+         * Window size before the last growth, or 0 if the last round didn't grow the window.
+         */
+        private int sizeBeforeGrowth;
+        private int idleRounds;
+        /**
+         * Rounds to wait before growing again, after a growth that didn't help.
+         */
+        private int holdRounds;
+        private long waits;
+
+        Real(Channel channel, Key key, int initialSize) {
+            this.channel = channel;
             this.key = key;
             this.oid = key.oid;
+            this.size = initialSize;
             this.available = initialSize;
         }
 
@@ -119,6 +177,8 @@ abstract class PipeWindow {
                 LOGGER.finer(String.format("increase(%d,%d)->%d",oid,delta,delta+available));
             available += delta;
             acked += delta;
+            if (roundStart!=0 && acked>=roundEnd)
+                endRound();
             notifyAll();
         }
 
@@ -139,15 +199,24 @@ abstract class PipeWindow {
                 if (available>0)
                     return available;
 
-                while (available==0) {
-                    wait();
-                }
+                limited = true;
+                waits++;
             }
 
-            Thread.sleep(10);
+            while (true) {
+                synchronized (this) {
+                    while (available<=0) {
+                        wait();
+                    }
+                }
 
-            synchronized (this) {
-                return available;
+                Thread.sleep(10);
+
+                synchronized (this) {
+                    // the window may have shrunk in the mean time
+                    if (available>0)
+                        return available;
+                }
             }
         }
 
@@ -156,6 +225,8 @@ abstract class PipeWindow {
                 LOGGER.finer(String.format("decrease(%d,%d)->%d",oid,delta,available-delta));
             available -= delta;
             written+= delta;
+            if (roundStart==0)
+                startRound();
             /*
             HUDSON-7745 says the following assertion fails, which AFAICT is only possible if multiple
             threads write to OutputStream concurrently, but that doesn't happen in most of the situations, so
@@ -166,7 +237,100 @@ abstract class PipeWindow {
 //            if (available<0)
 //                throw new AssertionError();
         }
+
+        synchronized void close() {
+            closed = true;
+        }
+
+        /**
+         * Window size that counts toward the limit of the channel.
+         */
+        int getCommittedSize() {
+            return closed ? 0 : size;
+        }
+
+        private void startRound() {
+            roundStart = System.nanoTime();
+            roundEnd = written;
+            roundAcked = acked;
+            limited = false;
+        }
+
+        /**
+         * Adjusts the window size once per round trip, similar to TCP auto tuning.
+         *
+         * <p>
+         * If the sender ran out of window, the window is what limits the throughput, so we double it.
+         * But the ack also waits for the receiver to write the data, so if the receiver is
+         * the bottleneck, a bigger window only makes the queue on the receiver longer.
+         * So if a growth didn't improve the throughput, we go back and stay there for a while.
+         * If the sender keeps not using up the window, we shrink it to save memory on the receiver.
+         */
+        private void endRound() {
+            long now = System.nanoTime();
+            long elapsed = Math.max(1,now-roundStart);
+            rtt = rtt==0 ? elapsed : (7*rtt+elapsed)/8;
+            throughput = (acked-roundAcked)*1000000000L/elapsed;
+
+            if (limited) {
+                idleRounds = 0;
+                if (sizeBeforeGrowth!=0 && throughput<throughputBeforeGrowth+throughputBeforeGrowth/10) {
+                    // growing didn't help
+                    resize(sizeBeforeGrowth);
+                    sizeBeforeGrowth = 0;
+                    holdRounds = HOLD_ROUNDS;
+                } else if (holdRounds>0) {
+                    holdRounds--;
+                    sizeBeforeGrowth = 0;
+                } else {
+                    int newSize = (int)Math.min((long)size*2,Channel.PIPE_WINDOW_MAX);
+                    long others = channel.getPipeWindowTotal()-size;
+                    newSize = (int)Math.min(newSize,Channel.PIPE_WINDOW_CHANNEL_MAX-others);
+                    if (newSize>size) {
+                        sizeBeforeGrowth = size;
+                        throughputBeforeGrowth = throughput;
+                        resize(newSize);
+                    } else {
+                        sizeBeforeGrowth = 0;
+                    }
+                }
+            } else {
+                sizeBeforeGrowth = 0;
+                if (++idleRounds>=IDLE_ROUNDS && size>Channel.PIPE_WINDOW_MIN) {
+                    resize(Math.max(Channel.PIPE_WINDOW_MIN,size/2));
+                    idleRounds = 0;
+                }
+            }
+
+            if (written>acked)
+                startRound();
+            else
+                roundStart = 0;
+        }
+
+        private void resize(int newSize) {
+            if (LOGGER.isLoggable(FINE))
+                LOGGER.fine(String.format("Pipe window of %d resized from %d to %d (rtt=%dms, %dKB/s)",
+                        oid,size,newSize,rtt/1000000,throughput/1024));
+            available += newSize-size;
+            size = newSize;
+        }
+
+        synchronized void dump(PrintWriter w) {
+            w.printf("Pipe #%d: window=%dKB available=%dKB written=%dKB acked=%dKB rtt=%dms throughput=%dKB/s waits=%d%s%n",
+                    oid, size/1024, available/1024, written/1024, acked/1024, rtt/1000000, throughput/1024, waits,
+                    closed ? " (closed)" : "");
+        }
     }
 
+    /**
+     * Number of rounds not limited by the window before the window shrinks.
+     */
+    private static final int IDLE_ROUNDS = 4;
+    /**
+     * Number of rounds to keep the window size after a growth that didn't help.
+     */
+    private static final int HOLD_ROUNDS = 16;
+
     private static final Logger LOGGER = Logger.getLogger(PipeWindow.class.getName());
 }
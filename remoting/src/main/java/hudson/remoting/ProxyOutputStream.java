@@ -140,6 +140,7 @@ final class ProxyOutputStream extends OutputStream {
     }
 
     private void doClose() throws IOException {
+        window.close();
         channel.send(new EOF(oid));
         channel = null;
         oid = -1;
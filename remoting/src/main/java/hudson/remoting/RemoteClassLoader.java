@@ -101,12 +101,53 @@ final class RemoteClassLoader extends URLClassLoader {
     protected Class<?> findClass(String name) throws ClassNotFoundException {
         try {
             // first attempt to load from locally fetched jars
-            return super.findClass(name);
+            Class<?> c = super.findClass(name);
+            if (!prefetchedJars.isEmpty())
+                channel.classLoadingPrefetchCacheCount.incrementAndGet();
+            return c;
         } catch (ClassNotFoundException e) {
             if(channel.isRestricted)
                 throw e;
             // delegate to remote
-            if (channel.remoteCapability.supportsMultiClassLoaderRPC()) {
+            if (channel.remoteCapability.supportsJarCache() && JarCache.getDefault()!=null) {
+                long startTime = System.nanoTime();
+                ClassReference ref = proxy.fetch3(name);
+                ClassLoader cl = channel.importedClassLoaders.get(ref.classLoader);
+                if (ref.checksum!=null && cl instanceof RemoteClassLoader) {
+                    // the jar will serve the rest of its classes locally, too
+                    RemoteClassLoader rcl = (RemoteClassLoader) cl;
+                    try {
+                        rcl.addJar(ref.jar,ref.checksum);
+                    } catch (IOException x) {
+                        throw new ClassNotFoundException("Failed to retrieve "+ref.jar,x);
+                    }
+                    channel.classLoadingTime.addAndGet(System.nanoTime()-startTime);
+                    channel.classLoadingCount.incrementAndGet();
+
+                    Class<?> c = rcl.findLoadedClass(name);
+                    if (c==null) {
+                        try {
+                            c = rcl.findLocalClass(name);
+                        } catch (ClassNotFoundException x) {
+                            // the jar doesn't have the class after all. just get the class file
+                            c = rcl.loadClassFile(name,proxy.fetch2(name).classImage);
+                        }
+                    }
+                    return c;
+                }
+
+                channel.classLoadingTime.addAndGet(System.nanoTime()-startTime);
+                channel.classLoadingCount.incrementAndGet();
+                if (cl instanceof RemoteClassLoader) {
+                    RemoteClassLoader rcl = (RemoteClassLoader) cl;
+                    Class<?> c = rcl.findLoadedClass(name);
+                    if (c==null)
+                        c = rcl.loadClassFile(name,ref.classImage);
+                    return c;
+                } else {
+                    return cl.loadClass(name);
+                }
+            } else if (channel.remoteCapability.supportsMultiClassLoaderRPC()) {
                 /*
                     In multi-classloader setup, RemoteClassLoaders do not retain the relationships among the original classloaders,
                     so each RemoteClassLoader ends up loading classes on its own without delegating to other RemoteClassLoaders.
@@ -144,6 +185,13 @@ final class RemoteClassLoader extends URLClassLoader {
         }
     }
 
+    /**
+     * Loads the class from the jars added to this class loader, without going to the remote.
+     */
+    private Class<?> findLocalClass(String name) throws ClassNotFoundException {
+        return super.findClass(name);
+    }
+
     private Class<?> loadClassFile(String name, byte[] bytes) {
         // define package
         definePackage(name);
@@ -305,9 +353,38 @@ final class RemoteClassLoader extends URLClassLoader {
             if(prefetchedJars.contains(jar))
                 return false;
 
-            String p = jar.getPath().replace('\\','/');
-            p = p.substring(p.lastIndexOf('/')+1);
-            File localJar = makeResource(p,proxy.fetchJar(jar));
+            String checksum = null;
+            if (channel.remoteCapability.supportsJarCache() && JarCache.getDefault()!=null)
+                checksum = proxy.getJarChecksum(jar);
+            return addJar(jar,checksum);
+        }
+    }
+
+    /**
+     * Adds the jar to this class loader, from {@link JarCache} if it's there.
+     *
+     * @param checksum
+     *      checksum of the jar, or null to bypass the cache.
+     * @return
+     *      false if the jar has already been added.
+     */
+    private boolean addJar(URL jar, String checksum) throws IOException {
+        synchronized (prefetchedJars) {
+            if(prefetchedJars.contains(jar))
+                return false;
+
+            File localJar = null;
+            JarCache cache = JarCache.getDefault();
+            if (checksum!=null && cache!=null) {
+                localJar = cache.get(checksum);
+                if (localJar==null)
+                    localJar = cache.put(checksum,proxy.fetchJar(jar));
+            }
+            if (localJar==null) {
+                String p = jar.getPath().replace('\\','/');
+                p = p.substring(p.lastIndexOf('/')+1);
+                localJar = makeResource(p,proxy.fetchJar(jar));
+            }
             addURL(localJar.toURI().toURL());
             prefetchedJars.add(jar);
             return true;
@@ -329,6 +406,38 @@ final class RemoteClassLoader extends URLClassLoader {
         private static final long serialVersionUID = 1L;
     }
 
+    /**
+     * Answer to {@link IClassLoader#fetch3(String)}.
+     * Either {@link #checksum} or {@link #classImage} is non-null.
+     */
+    static class ClassReference implements Serializable {
+        /**
+         * oid of the classloader that should load this class.
+         */
+        final int classLoader;
+        /**
+         * Jar that contains the class, which is a file on the side that sent this.
+         */
+        final URL jar;
+        /**
+         * Checksum of {@link #jar}.
+         */
+        final String checksum;
+        /**
+         * The class file image, if the class isn't in a jar that can be cached.
+         */
+        final byte[] classImage;
+
+        ClassReference(int classLoader, URL jar, String checksum, byte[] classImage) {
+            this.classLoader = classLoader;
+            this.jar = jar;
+            this.checksum = checksum;
+            this.classImage = classImage;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
     /**
      * Remoting interface.
      */
@@ -336,6 +445,17 @@ final class RemoteClassLoader extends URLClassLoader {
         byte[] fetchJar(URL url) throws IOException;
         byte[] fetch(String className) throws ClassNotFoundException;
         ClassFile fetch2(String className) throws ClassNotFoundException;
+        /**
+         * Like {@link #fetch2(String)}, but if the class is in a jar, the checksum of the jar
+         * is returned instead of the class file, so that the jar can be retrieved from {@link JarCache}.
+         * Only available if {@link Capability#supportsJarCache()}.
+         */
+        ClassReference fetch3(String className) throws ClassNotFoundException;
+        /**
+         * Gets the checksum of the given jar, or null if it's not cacheable.
+         * Only available if {@link Capability#supportsJarCache()}.
+         */
+        String getJarChecksum(URL jar) throws IOException;
         byte[] getResource(String name) throws IOException;
         byte[][] getResources(String name) throws IOException;
     }
@@ -391,14 +511,7 @@ final class RemoteClassLoader extends URLClassLoader {
         }
 
         public ClassFile fetch2(String className) throws ClassNotFoundException {
-            ClassLoader ecl = cl.loadClass(className).getClassLoader();
-            if (ecl == null) {
-            	if (USE_BOOTSTRAP_CLASSLOADER) {
-            		ecl = PSEUDO_BOOTSTRAP;
-            	} else {
-            		throw new ClassNotFoundException("Classloading from system classloader disabled");
-            	}
-            }
+            ClassLoader ecl = getDefiningClassLoader(className);
 
             try {
                 return new ClassFile(
@@ -409,6 +522,40 @@ final class RemoteClassLoader extends URLClassLoader {
             }
         }
 
+        public ClassReference fetch3(String className) throws ClassNotFoundException {
+            ClassLoader ecl = getDefiningClassLoader(className);
+            URL resource = ecl.getResource(className.replace('.', '/') + ".class");
+            if (resource==null)
+                throw new ClassNotFoundException(className);
+
+            try {
+                // classes of the JRE are not ours to send around
+                File jar = ecl!=PSEUDO_BOOTSTRAP ? JarCache.jarFileOf(resource) : null;
+                if (jar!=null)
+                    return new ClassReference(exportId(ecl,channel), jar.toURI().toURL(), JarCache.checksum(jar), null);
+                return new ClassReference(exportId(ecl,channel), null, null, readFully(resource.openStream()));
+            } catch (IOException e) {
+                throw new ClassNotFoundException(className,e);
+            }
+        }
+
+        public String getJarChecksum(URL url) throws IOException {
+            File jar = JarCache.toFile(url);
+            return jar!=null ? JarCache.checksum(jar) : null;
+        }
+
+        private ClassLoader getDefiningClassLoader(String className) throws ClassNotFoundException {
+            ClassLoader ecl = cl.loadClass(className).getClassLoader();
+            if (ecl == null) {
+            	if (USE_BOOTSTRAP_CLASSLOADER) {
+            		ecl = PSEUDO_BOOTSTRAP;
+            	} else {
+            		throw new ClassNotFoundException("Classloading from system classloader disabled");
+            	}
+            }
+            return ecl;
+        }
+
         public byte[] getResource(String name) throws IOException {
         	URL resource = cl.getResource(name);
         	if (resource == null) {
@@ -512,6 +659,14 @@ final class RemoteClassLoader extends URLClassLoader {
             return proxy.fetch2(className);
         }
 
+        public ClassReference fetch3(String className) throws ClassNotFoundException {
+            return proxy.fetch3(className);
+        }
+
+        public String getJarChecksum(URL jar) throws IOException {
+            return proxy.getJarChecksum(jar);
+        }
+
         public byte[] getResource(String name) throws IOException {
             return proxy.getResource(name);
         }
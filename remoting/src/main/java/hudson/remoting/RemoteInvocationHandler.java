@@ -194,7 +194,7 @@ final class RemoteInvocationHandler implements InvocationHandler, Serializable {
     protected void finalize() throws Throwable {
         // unexport the remote object
         if(channel!=null && !autoUnexportByCaller)
-            channel.send(new UnexportCommand(oid));
+            channel.unexportRemotely(oid);
         super.finalize();
     }
 
@@ -24,18 +24,45 @@
 package hudson.remoting;
 
 /**
- * {@link Command} that unexports an object.
+ * {@link Command} that unexports an object, or a batch of them.
  * @author Kohsuke Kawaguchi
  */
 public class UnexportCommand extends Command {
     private final int oid;
+    /**
+     * If non-null, the objects to unexport instead of {@link #oid}.
+     * Only sent to peers that {@linkplain Capability#supportsBatchedUnexport() understand it}.
+     *
+     * @since 1.398
+     */
+    private final int[] oids;
 
     public UnexportCommand(int oid) {
         this.oid = oid;
+        this.oids = null;
+    }
+
+    /**
+     * @since 1.398
+     */
+    public UnexportCommand(int[] oids) {
+        super(false);   // sent from a timer, so where it's created tells nothing
+        this.oid = 0;
+        this.oids = oids;
     }
 
     protected void execute(Channel channel) {
-        channel.unexport(oid);
+        if (oids==null) {
+            channel.unexport(oid);
+            return;
+        }
+        for (int id : oids)
+            channel.unexport(id);
+    }
+
+    @Override
+    public String toString() {
+        return oids==null ? "Unexport "+oid : "Unexport "+oids.length+" objects";
     }
 
     private static final long serialVersionUID = 1L;
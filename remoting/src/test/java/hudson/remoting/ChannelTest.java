@@ -7,4 +7,30 @@ public class ChannelTest extends RmiTestBase {
     public void testCapability() {
         assertTrue(channel.remoteCapability.supportsMultiClassLoaderRPC());
     }
+
+    /**
+     * Commands are written by the writer task, and counted.
+     */
+    public void testSendCounters() throws Exception {
+        channel.resetPerformanceCounters();
+        for (int i=0; i<10; i++)
+            assertEquals(i,(int)channel.call(new Echo(i)));
+
+        // one request each, plus whatever else the channel had to say
+        assertTrue(channel.commandSendCount.get()>=10);
+        assertTrue(channel.sendBatchCount.get()<=channel.commandSendCount.get());
+        assertTrue(channel.sendByteCount.get()>0);
+    }
+
+    private static class Echo implements Callable<Integer,RuntimeException> {
+        private final int i;
+
+        Echo(int i) {
+            this.i = i;
+        }
+
+        public Integer call() {
+            return i;
+        }
+    }
 }
@@ -0,0 +1,73 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.remoting;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class ExportTableTest extends TestCase {
+    public void testReferenceCount() {
+        ExportTable<Object> t = new ExportTable<Object>();
+        Object o = new Object();
+        int id = t.export(o);
+        assertEquals(id,t.export(o));
+        assertSame(o,t.get(id));
+
+        t.unexportByOid(id);
+        assertSame(o,t.get(id));
+        t.unexport(o);
+        assertNull(t.get(id));
+
+        // IDs aren't reused, so a stale ID doesn't hit a newly exported object
+        assertTrue(t.export(o)!=id);
+    }
+
+    /**
+     * Compares {@link ExportTable.IntMap} against {@link HashMap}.
+     */
+    public void testIntMap() {
+        Random r = new Random(0);
+        ExportTable.IntMap<Integer> m = new ExportTable.IntMap<Integer>();
+        Map<Integer,Integer> expected = new HashMap<Integer,Integer>();
+        for (int i=0; i<100000; i++) {
+            int k = r.nextInt(2000);
+            if (r.nextInt(3)==0) {
+                m.remove(k);
+                expected.remove(k);
+            } else {
+                m.put(k,i);
+                expected.put(k,i);
+            }
+            assertEquals(expected.size(),m.size());
+        }
+        for (int k=0; k<2000; k++)
+            assertEquals(expected.get(k),m.get(k));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.remoting;
+
+import junit.framework.TestCase;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests {@link FramedOutputStream} and {@link FramedInputStream}.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class FramedStreamTest extends TestCase {
+    public void testRoundtrip() throws Exception {
+        Random r = new Random(0);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        FramedOutputStream out = new FramedOutputStream(wire);
+
+        for (int i=0; i<100; i++) {
+            byte[] frame;
+            switch (i%3) {
+            case 0: // compressible
+                StringBuilder sb = new StringBuilder();
+                for (int j=r.nextInt(1000); j>=0; j--)
+                    sb.append("[INFO] line ").append(j).append('\n');
+                frame = sb.toString().getBytes("UTF-8");
+                break;
+            case 1: // incompressible
+                frame = new byte[r.nextInt(100000)];
+                r.nextBytes(frame);
+                break;
+            default: // tiny
+                frame = new byte[r.nextInt(10)+1];
+                r.nextBytes(frame);
+            }
+            out.write(frame,0,frame.length);
+            expected.write(frame);
+        }
+        out.close();
+
+        assertTrue(wire.size()<expected.size());
+
+        FramedInputStream in = new FramedInputStream(new ByteArrayInputStream(wire.toByteArray()));
+        assertTrue(Arrays.equals(expected.toByteArray(),IOUtils.toByteArray(in)));
+        assertEquals(-1,in.read());
+    }
+
+    /**
+     * A frame size from a broken or hostile peer must not be allocated.
+     */
+    public void testFrameTooLarge() throws Exception {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(wire);
+        out.writeInt(FramedInputStream.MAX_FRAME_SIZE+1);
+        out.write(new byte[16]);
+
+        FramedInputStream in = new FramedInputStream(new ByteArrayInputStream(wire.toByteArray()));
+        try {
+            in.read();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Writes bigger than a frame are split and still read back as one stream.
+     */
+    public void testSplit() throws Exception {
+        byte[] data = new byte[FramedOutputStream.MAX_PAYLOAD*2+10];
+        new Random(0).nextBytes(data);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        FramedOutputStream out = new FramedOutputStream(wire);
+        out.write(data,0,data.length);
+        out.close();
+
+        FramedInputStream in = new FramedInputStream(new ByteArrayInputStream(wire.toByteArray()));
+        assertTrue(Arrays.equals(data,IOUtils.toByteArray(in)));
+    }
+}
@@ -0,0 +1,39 @@
+package hudson.remoting;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class JarCacheTest extends TestCase {
+    public void testPutAndGet() throws Exception {
+        File dir = File.createTempFile("jarcache","");
+        dir.delete();
+        dir.mkdirs();
+        try {
+            byte[] image = "not really a jar".getBytes();
+            File src = new File(dir,"src.jar");
+            FileOutputStream o = new FileOutputStream(src);
+            o.write(image);
+            o.close();
+
+            String checksum = JarCache.checksum(src);
+            assertEquals(40,checksum.length());
+
+            JarCache cache = new JarCache(new File(dir,"cache"));
+            assertNull(cache.get(checksum));
+            // corrupted transfer
+            assertNull(cache.put(checksum,"something else".getBytes()));
+            assertNull(cache.get(checksum));
+
+            File f = cache.put(checksum,image);
+            assertEquals(f,cache.get(checksum));
+            assertEquals(image.length,f.length());
+        } finally {
+            RemoteClassLoader.deleteDirectoryOnExit(dir);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, agent
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.remoting;
+
+import hudson.remoting.Channel.Mode;
+import junit.framework.TestCase;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link NioChannelHub} against channels with their own reader threads.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class NioChannelHubTest extends TestCase {
+    private NioChannelHub hub;
+    private ServerSocketChannel server;
+    private ExecutorService exec;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // fewer readers than channels
+        hub = new NioChannelHub(2,2);
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("localhost",0));
+        exec = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        hub.close();
+        server.close();
+        exec.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testManyChannels() throws Exception {
+        List<Connection> connections = new ArrayList<Connection>();
+        for (int i=0; i<20; i++)
+            connections.add(connect());
+
+        List<Future<?>> calls = new ArrayList<Future<?>>();
+        for (final Connection c : connections) {
+            calls.add(exec.submit(new java.util.concurrent.Callable<Object>() {
+                public Object call() throws Exception {
+                    for (int i=0; i<10; i++) {
+                        c.roundtrip("ping"+i);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> f : calls)
+            f.get();
+
+        for (Connection c : connections)
+            c.client.close();
+    }
+
+    /**
+     * Frames that trickle in a few bytes at a time, headers included.
+     */
+    public void testPartialFrame() throws Exception {
+        Connection c = connect();
+        c.out.split = true;
+        StringBuilder big = new StringBuilder();
+        for (int i=0; i<10000; i++)
+            big.append(i);
+        c.roundtrip("ping");
+        c.roundtrip(big.toString());
+        c.client.close();
+    }
+
+    public void testClose() throws Exception {
+        Connection c = connect();
+        c.roundtrip("ping");
+        c.client.close();
+        c.server.join(10000);
+        assertTrue(c.server.isInClosed());
+    }
+
+    /**
+     * The socket goes away without the close command.
+     */
+    public void testEof() throws Exception {
+        Connection c = connect();
+        c.roundtrip("ping");
+        c.socket.close();
+        c.server.join(10000);
+        assertTrue(c.server.isInClosed());
+    }
+
+    /**
+     * Channels from old slaves, without frames, that are stuck in the middle of a command.
+     * There are more of them than reader threads, and they mustn't starve the framed channels.
+     */
+    public void testUnframed() throws Exception {
+        Capability old;
+        Capability.DISABLE_FRAMING = true;
+        try {
+            old = new Capability();
+        } finally {
+            Capability.DISABLE_FRAMING = false;
+        }
+
+        List<Connection> unframed = new ArrayList<Connection>();
+        List<Future<?>> calls = new ArrayList<Future<?>>();
+        CountDownLatch release = new CountDownLatch(1);
+        for (int i=0; i<3; i++) {
+            final Connection c = connect(old);
+            c.roundtrip("ping");
+            c.out.hold = release;
+            c.out.split = true;
+            unframed.add(c);
+            calls.add(exec.submit(new java.util.concurrent.Callable<Object>() {
+                public Object call() throws Exception {
+                    return c.client.call(new Echo("stuck"));
+                }
+            }));
+        }
+
+        final Connection framed = connect();
+        exec.submit(new java.util.concurrent.Callable<Object>() {
+            public Object call() throws Exception {
+                framed.roundtrip("ping");
+                return null;
+            }
+        }).get(10,TimeUnit.SECONDS);
+
+        release.countDown();
+        for (Future<?> f : calls)
+            assertEquals("stuck",f.get(10,TimeUnit.SECONDS));
+        for (Connection c : unframed) {
+            c.client.close();
+            c.server.join(10000);
+            assertTrue(c.server.isInClosed());
+        }
+    }
+
+    private Connection connect() throws Exception {
+        return connect(new Capability());
+    }
+
+    private Connection connect(final Capability capability) throws Exception {
+        final Connection c = new Connection();
+        c.socket = new Socket("localhost",server.socket().getLocalPort());
+        c.socket.setTcpNoDelay(true);
+        c.out = new SplittingOutputStream(c.socket.getOutputStream());
+        Future<Channel> client = exec.submit(new java.util.concurrent.Callable<Channel>() {
+            public Channel call() throws Exception {
+                return new Channel("client",exec,Mode.BINARY,c.socket.getInputStream(),c.out,null,false,capability);
+            }
+        });
+        c.server = hub.newChannel("server",exec,server.accept(),null,false);
+        c.client = client.get();
+        return c;
+    }
+
+    private static final class Connection {
+        Socket socket;
+        SplittingOutputStream out;
+        Channel client, server;
+
+        /**
+         * Makes calls both ways, so that both sides read from the hub side.
+         */
+        void roundtrip(String s) throws Exception {
+            assertEquals(s,client.call(new Echo(s)));
+            assertEquals(s,server.call(new Echo(s)));
+        }
+    }
+
+    private static final class Echo implements Callable<String,RuntimeException> {
+        private final String s;
+
+        Echo(String s) {
+            this.s = s;
+        }
+
+        public String call() {
+            return s;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Sends every write in two pieces, with a pause in between.
+     */
+    private static final class SplittingOutputStream extends FilterOutputStream {
+        volatile boolean split;
+        /**
+         * If set, the pause lasts until this is released.
+         */
+        volatile CountDownLatch hold;
+
+        SplittingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!split || len<2) {
+                out.write(b,off,len);
+                return;
+            }
+            out.write(b,off,len/2);
+            out.flush();
+            try {
+                if (hold!=null)
+                    hold.await();
+                else
+                    Thread.sleep(5);
+            } catch (InterruptedException e) {
+                throw (IOException)new InterruptedIOException().initCause(e);
+            }
+            out.write(b,off+len/2,len-len/2);
+        }
+    }
+}
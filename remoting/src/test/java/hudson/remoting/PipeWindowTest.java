@@ -0,0 +1,271 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.remoting;
+
+import hudson.remoting.PipeWindow.Key;
+import hudson.remoting.PipeWindow.Real;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tests the tuning of {@link PipeWindow.Real}.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class PipeWindowTest extends TestCase {
+    private ChannelRunner runner;
+    private Channel channel;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        runner = new ChannelRunner.InProcess();
+        channel = runner.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        runner.stop(channel);
+        super.tearDown();
+    }
+
+    /**
+     * The window doubles after a round in which the sender ran out of it.
+     */
+    public void testGrow() throws Exception {
+        Real w = new Real(channel,new Key(1),64*1024);
+        limitedRound(w);
+        assertEquals(128*1024,w.getCommittedSize());
+    }
+
+    /**
+     * The window halves after several rounds that didn't use it up, but not below the minimum.
+     */
+    public void testShrink() throws Exception {
+        Real w = new Real(channel,new Key(1),Channel.PIPE_WINDOW_MIN*4);
+        for (int i=0; i<4; i++)
+            idleRound(w);
+        assertEquals(Channel.PIPE_WINDOW_MIN*2,w.getCommittedSize());
+
+        for (int i=0; i<40; i++)
+            idleRound(w);
+        assertEquals(Channel.PIPE_WINDOW_MIN,w.getCommittedSize());
+    }
+
+    /**
+     * Once the windows of a channel add up to its budget, a new pipe gets the smallest window,
+     * and the windows don't grow any more.
+     */
+    public void testChannelBudget() throws Exception {
+        List<PipeWindow> windows = new ArrayList<PipeWindow>();  // keep them from being collected
+        int oid = 0;
+        while (channel.getPipeWindowTotal()+Channel.PIPE_WINDOW_SIZE<=Channel.PIPE_WINDOW_CHANNEL_MAX)
+            windows.add(channel.getPipeWindow(oid++));
+        assertEquals(Channel.PIPE_WINDOW_SIZE,((Real)windows.get(0)).getCommittedSize());
+
+        Real w = (Real)channel.getPipeWindow(oid++);
+        windows.add(w);
+        int initial = w.getCommittedSize();
+        assertTrue(initial<Channel.PIPE_WINDOW_SIZE);
+        assertTrue(initial>=Channel.PIPE_WINDOW_MIN);
+
+        limitedRound(w);
+        assertEquals(initial,w.getCommittedSize());
+
+        // closing a pipe frees up its share
+        ((Real)windows.get(0)).close();
+        Real x = (Real)channel.getPipeWindow(oid++);
+        windows.add(x);
+        assertTrue(x.getCommittedSize()>=initial);
+    }
+
+    /**
+     * On a link with a long round trip, the window of a pipe grows beyond its initial size,
+     * as the initial size is what limits the throughput.
+     */
+    public void testLongLink() throws Exception {
+        ExecutorService exec = Executors.newCachedThreadPool();
+        FastPipedInputStream in1 = new FastPipedInputStream();
+        final OutputStream out1 = new DelayedOutputStream(new FastPipedOutputStream(in1),25);
+        final FastPipedInputStream in2 = new FastPipedInputStream();
+        OutputStream out2 = new DelayedOutputStream(new FastPipedOutputStream(in2),25);
+
+        final Channel[] south = new Channel[1];
+        final ExecutorService southExec = Executors.newCachedThreadPool();
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    south[0] = new Channel("south",southExec,in2,out1);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        t.start();
+        Channel north = new Channel("north",exec,in1,out2);
+        t.join();
+
+        try {
+            Pipe p = Pipe.createLocalToRemote();
+            Future<Long> f = north.callAsync(new Sink(p));
+            OutputStream os = p.getOut();
+            byte[] buf = new byte[64*1024];
+            // until the other side connects the pipe, the data just piles up here
+            os.write(buf);
+            while (north.getPipeWindowTotal()==0)
+                Thread.sleep(10);
+            for (int i=1; i<256; i++)
+                os.write(buf);
+
+            StringWriter w = new StringWriter();
+            north.dumpPipeWindows(new PrintWriter(w));
+            int max = 0;
+            Matcher m = Pattern.compile("window=(\\d+)KB").matcher(w.toString());
+            while (m.find())
+                max = Math.max(max,Integer.parseInt(m.group(1)));
+            assertTrue(w.toString(),max*1024>Channel.PIPE_WINDOW_SIZE);
+
+            os.close();
+            assertEquals(256L*buf.length,(long)f.get());
+        } finally {
+            north.close();
+            south[0].close();
+            exec.shutdownNow();
+            southExec.shutdownNow();
+        }
+    }
+
+    private static class Sink implements Callable<Long,IOException> {
+        private final Pipe p;
+
+        Sink(Pipe p) {
+            this.p = p;
+        }
+
+        public Long call() throws IOException {
+            InputStream in = p.getIn();
+            byte[] buf = new byte[64*1024];
+            long n = 0;
+            int len;
+            while ((len=in.read(buf))>=0)
+                n += len;
+            return n;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Delivers what's written to it after the given delay, like a link with a long round trip.
+     */
+    private static class DelayedOutputStream extends OutputStream {
+        private final LinkedBlockingQueue<Object[]> queue = new LinkedBlockingQueue<Object[]>();
+
+        DelayedOutputStream(final OutputStream out, final long delay) {
+            Thread t = new Thread("delayed link") {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            Object[] e = queue.take();
+                            long wait = (Long)e[0]+delay-System.currentTimeMillis();
+                            if (wait>0)
+                                Thread.sleep(wait);
+                            if (e[1]==null) {
+                                out.close();
+                                return;
+                            }
+                            out.write((byte[])e[1]);
+                            out.flush();
+                        }
+                    } catch (InterruptedException e) {
+                        // done
+                    } catch (IOException e) {
+                        // the other side is gone
+                    }
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte)b},0,1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            byte[] copy = new byte[len];
+            System.arraycopy(b,off,copy,0,len);
+            queue.add(new Object[]{System.currentTimeMillis(),copy});
+        }
+
+        @Override
+        public void close() throws IOException {
+            queue.add(new Object[]{System.currentTimeMillis(),null});
+        }
+    }
+
+    /**
+     * Sends the whole window, waits for more like a writer would, then gets the ack.
+     */
+    private void limitedRound(final Real w) throws Exception {
+        int size = w.getCommittedSize();
+        w.decrease(size);
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    w.get();
+                } catch (InterruptedException e) {
+                    // we'll fail below
+                }
+            }
+        };
+        t.start();
+        while (t.getState()!=Thread.State.WAITING)
+            Thread.sleep(1);
+        w.increase(size);
+        t.join();
+    }
+
+    private void idleRound(Real w) {
+        w.decrease(1);
+        w.increase(1);
+    }
+}
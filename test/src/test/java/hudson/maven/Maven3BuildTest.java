@@ -146,6 +146,27 @@ public class Maven3BuildTest extends HudsonTestCase {
         assertEquals("not only one module", 1, m.getModules().size());
     }    
     
+    public void testMaven3ConcurrentModuleBuilds() throws Exception {
+        MavenInstallation mavenInstallation = configureMaven3();
+        MavenModuleSet m = createMavenProject();
+        m.setMaven( mavenInstallation.getName() );
+        m.setModuleThreads( 2 );
+        m.getReporters().add(new TestReporter());
+        m.setScm(new ExtractResourceSCM(getClass().getResource("maven-multimod.zip")));
+        m.setGoals( "clean install" );
+        MavenModuleSetBuild b = buildAndAssertSuccess(m);
+        assertLogContains("-T 2", b);
+
+        // every module got a build of its own, with its own output in it
+        assertEquals(4, m.getModules().size());
+        for (MavenModule mod : m.getModules()) {
+            MavenBuild mb = mod.getLastBuild();
+            assertNotNull("no build of "+mod, mb);
+            assertBuildStatus(Result.SUCCESS, mb);
+            assertLogContains("maven-install-plugin", mb);
+        }
+    }
+
     private static class TestReporter extends MavenReporter {
         @Override
         public boolean end(MavenBuild build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
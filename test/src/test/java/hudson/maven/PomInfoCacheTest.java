@@ -0,0 +1,106 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.maven;
+
+import hudson.Util;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class PomInfoCacheTest extends TestCase {
+    private static final String PROP = PomInfoCacheTest.class.getName()+".prop";
+    private static final String UNRELATED = PomInfoCacheTest.class.getName()+".unrelated";
+
+    private File dir;
+    private File pom;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = Util.createTempDir();
+        pom = new File(dir,"pom.xml");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        System.getProperties().remove(PROP);
+        System.getProperties().remove(UNRELATED);
+        Util.deleteRecursive(dir);
+        super.tearDown();
+    }
+
+    public void testFileChange() throws Exception {
+        FileUtils.writeStringToFile(pom,"<project/>");
+        put();
+        assertNotNull(PomInfoCache.get(getName()));
+
+        FileUtils.writeStringToFile(pom,"<project><modules/></project>");
+        assertNull(PomInfoCache.get(getName()));
+    }
+
+    /**
+     * Only the variables that the POM refers to matter.
+     */
+    public void testVariables() throws Exception {
+        FileUtils.writeStringToFile(pom,"<project><name>${"+PROP+"}</name></project>");
+        System.setProperty(PROP,"a");
+        put();
+
+        System.setProperty(UNRELATED,"x");
+        assertNotNull(PomInfoCache.get(getName()));
+
+        System.setProperty(PROP,"b");
+        assertNull(PomInfoCache.get(getName()));
+    }
+
+    /**
+     * Profiles activated by a property that's not defined get activated once it's defined, even if it's empty.
+     */
+    public void testActivation() throws Exception {
+        FileUtils.writeStringToFile(pom,"<project><profiles><profile><activation><property>\n" +
+                "<name>"+PROP+"</name>\n" +
+                "</property></activation></profile></profiles></project>");
+        put();
+        assertNotNull(PomInfoCache.get(getName()));
+
+        System.setProperty(PROP,"");
+        assertNull(PomInfoCache.get(getName()));
+    }
+
+    public void testReferencedVariables() {
+        assertEquals(new HashSet<String>(Arrays.asList("env.HOME","x.y","neg")),
+                PomInfoCache.getReferencedVariables("<a>${env.HOME}/${x.y}</a><property><name>!neg</name></property>"));
+    }
+
+    private void put() throws Exception {
+        PomInfoCache.put(getName(),Collections.singleton(pom),Collections.<PomInfo>emptyList());
+    }
+}
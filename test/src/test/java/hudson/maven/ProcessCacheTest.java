@@ -0,0 +1,186 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.maven;
+
+import hudson.Proc;
+import hudson.maven.ProcessCache.MavenProcess;
+import hudson.maven.ProcessCache.NewProcess;
+import hudson.model.BuildListener;
+import hudson.model.JDK;
+import hudson.model.StreamBuildListener;
+import hudson.model.TaskListener;
+import hudson.remoting.Channel;
+import hudson.remoting.FastPipedInputStream;
+import hudson.remoting.FastPipedOutputStream;
+import hudson.remoting.LocalChannel;
+import hudson.tasks.Maven.MavenInstallation;
+import hudson.tools.ToolProperty;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class ProcessCacheTest extends TestCase {
+    private ExecutorService exec;
+    private LocalChannel node;
+    private ProcessCache cache;
+    private BuildListener listener;
+    /**
+     * Number of processes launched so far.
+     */
+    private int launched;
+    private final List<Channel> channels = new ArrayList<Channel>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        exec = Executors.newCachedThreadPool();
+        node = new LocalChannel(exec);
+        cache = new ProcessCache(2);
+        listener = new StreamBuildListener(System.out);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (Channel c : channels)
+            c.close();
+        exec.shutdownNow();
+        super.tearDown();
+    }
+
+    /**
+     * Installations are resolved again for each build, so they are compared by what they point to.
+     */
+    public void testReuse() throws Exception {
+        MavenProcess p = cache.get(node,listener,new TestFactory("-Xmx256m","/maven","/jdk"));
+        p.recycle();
+        assertSame(p,cache.get(node,listener,new TestFactory("-Xmx256m","/maven","/jdk")));
+        assertEquals(1,launched);
+    }
+
+    public void testMismatch() throws Exception {
+        MavenProcess p = cache.get(node,listener,new TestFactory("-Xmx256m","/maven","/jdk"));
+        p.recycle();
+        assertNotSame(p,cache.get(node,listener,new TestFactory("-Xmx512m","/maven","/jdk")));
+        assertNotSame(p,cache.get(node,listener,new TestFactory("-Xmx256m","/maven2","/jdk")));
+        assertNotSame(p,cache.get(node,listener,new TestFactory("-Xmx256m","/maven","/jdk2")));
+        assertSame(p,cache.get(node,listener,new TestFactory("-Xmx256m","/maven","/jdk")));
+        assertEquals(4,launched);
+    }
+
+    /**
+     * A process that died while it sat in the pool isn't handed out.
+     */
+    public void testUnhealthy() throws Exception {
+        MavenProcess p = cache.get(node,listener,new TestFactory("-Xmx256m","/maven","/jdk"));
+        p.recycle();
+        ((TestProc)p.proc).alive = false;
+        assertNotSame(p,cache.get(node,listener,new TestFactory("-Xmx256m","/maven","/jdk")));
+        assertEquals(2,launched);
+    }
+
+    public void testIdle() throws Exception {
+        MavenProcess p = cache.get(node,listener,new TestFactory("-Xmx256m","/maven","/jdk"));
+        p.recycle();
+        cache.discardIdleProcesses(60*1000);
+        assertSame(p,cache.get(node,listener,new TestFactory("-Xmx256m","/maven","/jdk")));
+
+        p.recycle();
+        Thread.sleep(10);
+        cache.discardIdleProcesses(0);
+        assertNotSame(p,cache.get(node,listener,new TestFactory("-Xmx256m","/maven","/jdk")));
+        assertEquals(2,launched);
+    }
+
+    private final class TestFactory implements ProcessCache.Factory {
+        private final String mavenOpts, mavenHome, javaHome;
+
+        TestFactory(String mavenOpts, String mavenHome, String javaHome) {
+            this.mavenOpts = mavenOpts;
+            this.mavenHome = mavenHome;
+            this.javaHome = javaHome;
+        }
+
+        /**
+         * Instead of launching a JVM, connects a channel to this JVM.
+         */
+        public NewProcess newProcess(BuildListener listener, OutputStream out) throws IOException, InterruptedException {
+            launched++;
+            final InputStream in1 = new FastPipedInputStream();
+            final OutputStream out1 = new FastPipedOutputStream((FastPipedInputStream)in1);
+            final InputStream in2 = new FastPipedInputStream();
+            final OutputStream out2 = new FastPipedOutputStream((FastPipedInputStream)in2);
+            Future<Channel> maven = exec.submit(new java.util.concurrent.Callable<Channel>() {
+                public Channel call() throws Exception {
+                    return new Channel("maven",exec,in2,out1);
+                }
+            });
+            Channel ch = new Channel("hudson",exec,in1,out2);
+            try {
+                channels.add(maven.get());
+            } catch (java.util.concurrent.ExecutionException e) {
+                throw new AssertionError(e);
+            }
+            return new NewProcess(ch,new TestProc());
+        }
+
+        public String getMavenOpts() {
+            return mavenOpts;
+        }
+
+        public MavenInstallation getMavenInstallation(TaskListener listener) {
+            return new MavenInstallation("maven",mavenHome,Collections.<ToolProperty<?>>emptyList());
+        }
+
+        public JDK getJava(TaskListener listener) {
+            return new JDK("jdk",javaHome);
+        }
+    }
+
+    private static final class TestProc extends Proc {
+        volatile boolean alive = true;
+
+        public boolean isAlive() {
+            return alive;
+        }
+
+        public void kill() {
+            alive = false;
+        }
+
+        public int join() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.model;
+
+import hudson.Util;
+import hudson.model.FingerprintWriter.Usage;
+import org.jvnet.hudson.test.HudsonTestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class FingerprintUsageIndexTest extends HudsonTestCase {
+    private static final String MD5 = "0123456789abcdef0123456789abcdef";
+    private static final String MD5_2 = "fedcba9876543210fedcba9876543210";
+
+    public void testAddAndRemove() throws Exception {
+        FingerprintUsageIndex index = hudson.getFingerprintMap().getUsageIndex();
+        index.add("a",Util.fromHexString(MD5));
+        index.add("a",Util.fromHexString(MD5_2));
+        index.add("b",Util.fromHexString(MD5));
+
+        // read back from the disk
+        index = new FingerprintUsageIndex();
+        assertEquals(Arrays.asList(MD5,MD5_2),Arrays.asList(index.get("a").toArray()));
+        assertEquals(Collections.singletonList(MD5),Arrays.asList(index.get("b").toArray()));
+
+        index.remove("a",Collections.singleton(MD5));
+        index = new FingerprintUsageIndex();
+        assertEquals(Collections.singletonList(MD5_2),Arrays.asList(index.get("a").toArray()));
+        assertTrue(index.get("c").isEmpty());
+    }
+
+    public void testRename() throws Exception {
+        FreeStyleProject p = createFreeStyleProject("old");
+        FreeStyleBuild b = buildAndAssertSuccess(p);
+        FingerprintWriter w = hudson.getFingerprintMap().getWriter();
+        w.record(b, Arrays.asList(new Usage(MD5,"a.jar",true)));
+        w.flush();
+        assertEquals(Collections.singletonList(MD5),Arrays.asList(p.getFingerprintHashes().toArray()));
+
+        p.renameTo("new");
+        assertEquals(Collections.singletonList(MD5),Arrays.asList(p.getFingerprintHashes().toArray()));
+        FingerprintUsageIndex index = new FingerprintUsageIndex();
+        assertTrue(index.get("old").isEmpty());
+        assertEquals(Collections.singletonList(MD5),Arrays.asList(index.get("new").toArray()));
+
+        Fingerprint fp = Fingerprint.load(Util.fromHexString(MD5));
+        assertTrue(fp.getRangeSet("new").includes(b.getNumber()));
+        assertTrue(fp.getRangeSet("old").isEmpty());
+    }
+}
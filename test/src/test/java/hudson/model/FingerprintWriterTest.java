@@ -0,0 +1,100 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.model;
+
+import hudson.Util;
+import hudson.model.FingerprintWriter.Usage;
+import org.jvnet.hudson.test.HudsonTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class FingerprintWriterTest extends HudsonTestCase {
+    private static final String MD5 = "0123456789abcdef0123456789abcdef";
+
+    private long commitDelay;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        commitDelay = FingerprintWriter.COMMIT_DELAY;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FingerprintWriter.COMMIT_DELAY = commitDelay;
+        super.tearDown();
+    }
+
+    public void testRecordAndFlush() throws Exception {
+        FreeStyleProject p = createFreeStyleProject();
+        FreeStyleBuild b = buildAndAssertSuccess(p);
+
+        FingerprintWriter w = hudson.getFingerprintMap().getWriter();
+        List<Fingerprint> r = w.record(b, Arrays.asList(new Usage(MD5,"a.jar",true)));
+        assertTrue(r.get(0).getRangeSet(p).includes(b.getNumber()));
+
+        w.flush();
+        Fingerprint saved = Fingerprint.load(Util.fromHexString(MD5));
+        assertTrue(saved.getRangeSet(p).includes(b.getNumber()));
+        assertTrue(hudson.getFingerprintMap().getUsageIndex().get(p.getFullName()).contains(MD5));
+        assertEquals(0,getJournals().length);
+    }
+
+    /**
+     * Usages that were journaled but not saved are applied at the next start,
+     * and a partially written entry at the end of the journal is ignored.
+     */
+    public void testReplay() throws Exception {
+        FreeStyleProject p = createFreeStyleProject();
+        FreeStyleBuild b = buildAndAssertSuccess(p);
+
+        // keep the background thread from saving anything
+        FingerprintWriter.COMMIT_DELAY = Long.MAX_VALUE;
+        hudson.getFingerprintMap().getWriter().record(b, Arrays.asList(new Usage(MD5,"a.jar",true)));
+        assertNull(Fingerprint.load(Util.fromHexString(MD5)));
+
+        File[] journals = getJournals();
+        assertEquals(1,journals.length);
+        FileOutputStream out = new FileOutputStream(journals[0],true);
+        out.write(new byte[]{0,0,0,100,1,2});
+        out.close();
+
+        // as if this is the next start
+        new FingerprintWriter(hudson.getFingerprintMap()).replay();
+        Fingerprint saved = Fingerprint.load(Util.fromHexString(MD5));
+        assertTrue(saved.getRangeSet(p).includes(b.getNumber()));
+        assertEquals(0,getJournals().length);
+    }
+
+    private File[] getJournals() {
+        File[] files = new File(hudson.getRootDir(),"fingerprints/journal").listFiles();
+        return files!=null ? files : new File[0];
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, agent
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.model;
+
+import org.jvnet.hudson.test.HudsonTestCase;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests {@link RunMap} with {@link RunMap#LAZY_LOADING}.
+ *
+ * @author agent
+ */
+public class RunMapLazyLoadingTest extends HudsonTestCase {
+    private boolean lazyLoading;
+    private int cacheSize;
+
+    @Override
+    protected void setUp() throws Exception {
+        lazyLoading = RunMap.LAZY_LOADING;
+        cacheSize = RunMap.CACHE_SIZE;
+        RunMap.LAZY_LOADING = true;
+        RunMap.CACHE_SIZE = 1;
+        super.setUp();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        RunMap.LAZY_LOADING = lazyLoading;
+        RunMap.CACHE_SIZE = cacheSize;
+    }
+
+    /**
+     * Creates a project with the given number of builds, then reloads it so that none of them is in memory.
+     */
+    private FreeStyleProject createProject(int builds) throws Exception {
+        FreeStyleProject p = createFreeStyleProject();
+        for (int i=0; i<builds; i++)
+            assertBuildStatusSuccess(p.scheduleBuild2(0));
+        p.onLoad(hudson,p.getName());
+        return p;
+    }
+
+    public void testLazyLoading() throws Exception {
+        FreeStyleProject p = createProject(3);
+        assertTrue(p.builds.isLazy());
+        assertEquals(3,p.builds.size());
+        for (int i=1; i<=3; i++)
+            assertFalse(p.builds.isLoaded(i));
+
+        FreeStyleBuild b = p.getBuildByNumber(2);
+        assertEquals(2,b.getNumber());
+        assertEquals(Result.SUCCESS,b.getResult());
+        assertTrue(p.builds.isLoaded(2));
+        assertFalse(p.builds.isLoaded(1));
+        assertFalse(p.builds.isLoaded(3));
+    }
+
+    public void testEviction() throws Exception {
+        FreeStyleProject p = createProject(2);
+        p.getBuildByNumber(1);
+        p.getBuildByNumber(2);  // pushes #1 out of the recently used builds
+
+        fillHeap();
+        assertFalse(p.builds.isLoaded(1));
+        assertTrue(p.builds.isLoaded(2));
+
+        FreeStyleBuild b = p.getBuildByNumber(1);
+        assertEquals(1,b.getNumber());
+        assertEquals(Result.SUCCESS,b.getResult());
+    }
+
+    /**
+     * Previous and next builds are found even when they aren't in memory.
+     */
+    public void testLinks() throws Exception {
+        FreeStyleProject p = createProject(3);
+        FreeStyleBuild b3 = p.getBuildByNumber(3);
+        FreeStyleBuild b1 = p.getBuildByNumber(1);
+        fillHeap();
+        assertFalse(p.builds.isLoaded(2));
+
+        assertEquals(2,b3.getPreviousBuild().getNumber());
+        assertEquals(2,b1.getNextBuild().getNumber());
+        assertEquals(1,b3.getPreviousBuild().getPreviousBuild().getNumber());
+        assertEquals(3,b1.getNextBuild().getNextBuild().getNumber());
+        assertNull(b3.getNextBuild());
+        assertNull(b1.getPreviousBuild());
+    }
+
+    /**
+     * Puts the heap under pressure until soft references get cleared.
+     */
+    private static void fillHeap() {
+        SoftReference<Object> canary = new SoftReference<Object>(new Object());
+        List<byte[]> garbage = new ArrayList<byte[]>();
+        try {
+            while (canary.get()!=null)
+                garbage.add(new byte[1024*1024]);
+        } catch (OutOfMemoryError e) {
+            // soft references are always cleared before this is thrown
+        }
+    }
+}
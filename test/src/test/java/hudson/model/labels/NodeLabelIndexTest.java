@@ -0,0 +1,109 @@
+package hudson.model.labels;
+
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Node.Mode;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.JNLPLauncher;
+import hudson.slaves.RetentionStrategy;
+import org.jvnet.hudson.test.HudsonTestCase;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class NodeLabelIndexTest extends HudsonTestCase {
+    private static final String[] EXPRESSIONS = {
+        "os0", "!os1", "os0 && arch1", "os2 || arch0 && jdk3", "os1 -> jdk2", "os0 <-> arch1", "(os1 || os2) && !jdk0 && tier4"
+    };
+
+    /**
+     * Sets up a farm of synthetic nodes that never connect.
+     */
+    private List<Node> createFarm(int size) throws Exception {
+        Random r = new Random(0);
+        List<Node> nodes = new ArrayList<Node>();
+        for (int i=0; i<size; i++) {
+            String labels = "os"+r.nextInt(3)+" arch"+r.nextInt(2)+" jdk"+r.nextInt(4)+" tier"+r.nextInt(8);
+            nodes.add(new DumbSlave("node"+i, "", createTmpDir().getPath(), "2", Mode.NORMAL, labels,
+                    new JNLPLauncher(), RetentionStrategy.NOOP));
+        }
+        hudson.setNodes(nodes);
+        return nodes;
+    }
+
+    /**
+     * The index needs to agree with {@link Label#matches(Node)}.
+     */
+    public void testConsistency() throws Exception {
+        createFarm(50);
+        NodeLabelIndex index = NodeLabelIndex.get();
+        assertEquals(51, index.size());
+
+        for (String e : EXPRESSIONS) {
+            Label l = hudson.getLabel(e);
+            BitSet b = index.getMatchingNodes(l);
+            for (int i=0; i<index.size(); i++)
+                assertEquals(e+" on "+index.getNode(i).getNodeName(), l.matches(index.getNode(i)), b.get(i));
+            // none of these nodes override canTake, so the label alone decides
+            assertEquals(e, b, index.getCandidateNodes(l));
+        }
+        assertEquals(index.size(), index.getCandidateNodes(null).cardinality());
+    }
+
+    public void testInvalidation() throws Exception {
+        createFarm(3);
+        NodeLabelIndex index = NodeLabelIndex.get();
+        assertSame(index, NodeLabelIndex.get());
+
+        hudson.addNode(new DumbSlave("extra", "", createTmpDir().getPath(), "1", Mode.NORMAL, "os0",
+                new JNLPLauncher(), RetentionStrategy.NOOP));
+        NodeLabelIndex updated = NodeLabelIndex.get();
+        assertNotSame(index, updated);
+        assertTrue(updated.matches(hudson.getLabel("os0"), hudson.getNode("extra")));
+    }
+
+    /**
+     * Matches the label of every buildable item against every node,
+     * as {@link hudson.model.Queue#pop()} does in each round, with and without the index.
+     * Both need to find the same nodes, and the time each takes is reported.
+     */
+    public void testLargeFarm() throws Exception {
+        List<Node> nodes = createFarm(300);
+        List<Label> labels = new ArrayList<Label>();
+        for (int i=0; i<1500; i++)
+            labels.add(hudson.getLabel(EXPRESSIONS[i%EXPRESSIONS.length]+" || node"+i%300));
+
+        long start = System.nanoTime();
+        List<List<Node>> naive = new ArrayList<List<Node>>();
+        for (Label l : labels) {
+            List<Node> r = new ArrayList<Node>();
+            for (Node n : nodes)
+                if (l.matches(n))
+                    r.add(n);
+            naive.add(r);
+        }
+        long naiveTime = System.nanoTime()-start;
+
+        start = System.nanoTime();
+        NodeLabelIndex index = new NodeLabelIndex(nodes);
+        List<List<Node>> indexed = new ArrayList<List<Node>>();
+        for (Label l : labels) {
+            List<Node> r = new ArrayList<Node>();
+            BitSet b = index.getMatchingNodes(l);
+            for (int i=b.nextSetBit(0); i>=0; i=b.nextSetBit(i+1))
+                r.add(index.getNode(i));
+            indexed.add(r);
+        }
+        long indexedTime = System.nanoTime()-start;
+
+        for (int i=0; i<labels.size(); i++)
+            assertEquals(labels.get(i).getName(), naive.get(i), indexed.get(i));
+        System.out.printf("300 nodes x 1500 tasks: %dms without index, %dms with index%n",
+                naiveTime/1000000, indexedTime/1000000);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.tasks.junit;
+
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.tasks.junit.TestResultSummary.PackageSummary;
+import org.jvnet.hudson.test.HudsonTestCase;
+import org.jvnet.hudson.test.TestBuilder;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class TestResultSummaryTest extends HudsonTestCase {
+    private FreeStyleProject project;
+    private int tests;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        project = createFreeStyleProject();
+        project.getBuildersList().add(new TestBuilder() {
+            public boolean perform(AbstractBuild<?,?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                StringBuilder buf = new StringBuilder("<testsuite name='a.A' time='1'>");
+                for (int i=0; i<tests; i++)
+                    buf.append("<testcase classname='a.A' name='t"+i+"' time='0.5'/>");
+                buf.append("</testsuite>");
+                build.getWorkspace().child("junit.xml").write(buf.toString(),"UTF-8");
+                return true;
+            }
+        });
+        project.getPublishersList().add(new JUnitResultArchiver("*.xml"));
+    }
+
+    public void testCounts() throws Exception {
+        tests = 2;
+        buildAndAssertSuccess(project);
+        tests = 3;
+        FreeStyleBuild b = buildAndAssertSuccess(project);
+
+        TestResultAction a = b.getAction(TestResultAction.class);
+        TestResult full = a.getResult();
+        TestResultSummary s = a.getSummary();
+        assertEquals(full.getId(),s.getId());
+        assertEquals(full.getTotalCount(),s.getTotalCount());
+        assertEquals(full.getPassCount(),s.getPassCount());
+        assertEquals(full.getDuration(),s.getDuration(),0.01);
+
+        Iterator<PackageSummary> itr = s.getChildren().iterator();
+        PackageSummary p = itr.next();
+        assertFalse(itr.hasNext());
+        assertEquals(full.byPackage("a").getId(),p.getId());
+        assertEquals(3,p.getPassCount());
+        assertEquals(2,p.getPreviousResult().getPassCount());
+        assertEquals(2,s.getPreviousResult().getTotalCount());
+    }
+
+    /**
+     * The same page comes back whether or not the test result is in memory.
+     */
+    public void testPage() throws Exception {
+        tests = 2;
+        FreeStyleBuild b = buildAndAssertSuccess(project);
+        b.getAction(TestResultAction.class).getResult();
+
+        WebClient wc = createWebClient();
+        HtmlPage page = wc.getPage(b,"testReport/");
+        assertNotNull(page.getAnchorByHref("a/"));
+        assertGoodStatus(page.getAnchorByHref("a/").click());
+        assertGoodStatus(wc.getPage(b,"testReport/history/"));
+    }
+}